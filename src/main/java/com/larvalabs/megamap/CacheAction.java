@@ -0,0 +1,169 @@
+/*
+ *   Copyright 2005 John Watkinson
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.larvalabs.megamap;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Stores a cache instruction for later action.
+ */
+class CacheAction {
+
+    public static final int ACTION_TYPE_PUT = 1;
+    public static final int ACTION_TYPE_REMOVE = 2;
+    public static final int ACTION_TYPE_BATCH = 3;
+
+    private int actionType;
+    private Serializable key;
+    private Serializable value;
+    private byte[] record;
+    private List<CacheAction> batchPuts;
+    private List<Serializable> batchRemoves;
+    private long estimatedSize;
+    private List<CompletableFuture<Void>> completions;
+
+    /**
+     * Creates a put, carrying the element already encoded for the disk store, which is written as it is. Its size
+     * is that of the encoded element.
+     */
+    public static CacheAction createPutAction(Serializable key, Serializable value, byte[] record) {
+        CacheAction ca = new CacheAction();
+        ca.key = key;
+        ca.value = value;
+        ca.record = record;
+        ca.actionType = ACTION_TYPE_PUT;
+        ca.estimatedSize = record.length;
+        return ca;
+    }
+
+    public static CacheAction createRemoveAction(Serializable key) {
+        CacheAction ca = new CacheAction();
+        ca.key = key;
+        ca.actionType = ACTION_TYPE_REMOVE;
+        ca.estimatedSize = SizeEstimator.estimate(key);
+        return ca;
+    }
+
+    /**
+     * Creates a single action for a batch of puts, made by {@link #createPutAction}, and removes. The keys in the
+     * batch must be distinct.
+     */
+    public static CacheAction createBatchAction(List<CacheAction> puts, List<Serializable> removes) {
+        CacheAction ca = new CacheAction();
+        ca.batchPuts = puts;
+        ca.batchRemoves = removes;
+        ca.actionType = ACTION_TYPE_BATCH;
+        for (int i = 0; i < puts.size(); i++) {
+            ca.estimatedSize += puts.get(i).estimatedSize;
+        }
+        for (int i = 0; i < removes.size(); i++) {
+            ca.estimatedSize += SizeEstimator.estimate(removes.get(i));
+        }
+        return ca;
+    }
+
+    /**
+     * Replaces this queued single-key action with a newer one for the same key, so that only the newer one is
+     * applied.
+     */
+    void supersede(CacheAction newer) {
+        actionType = newer.actionType;
+        value = newer.value;
+        record = newer.record;
+        estimatedSize = newer.estimatedSize;
+        if (newer.completions != null) {
+            for (int i = 0; i < newer.completions.size(); i++) {
+                addCompletion(newer.completions.get(i));
+            }
+        }
+    }
+
+    /**
+     * Adds a future to complete once the action has been written to the disk store file. A superseded action
+     * hands its futures on to the action that replaces it.
+     */
+    void addCompletion(CompletableFuture<Void> completion) {
+        if (completions == null) {
+            completions = new ArrayList<CompletableFuture<Void>>(1);
+        }
+        completions.add(completion);
+    }
+
+    boolean hasCompletions() {
+        return completions != null;
+    }
+
+    /**
+     * Completes the futures waiting for this action, normally or, if <code>failure</code> is not
+     * <code>null</code>, exceptionally.
+     */
+    void complete(Throwable failure) {
+        if (completions == null) {
+            return;
+        }
+        for (int i = 0; i < completions.size(); i++) {
+            if (failure == null) {
+                completions.get(i).complete(null);
+            } else {
+                completions.get(i).completeExceptionally(failure);
+            }
+        }
+    }
+
+    public boolean isBatch() {
+        return actionType == ACTION_TYPE_BATCH;
+    }
+
+    public int getActionType() {
+        return actionType;
+    }
+
+    public Serializable getKey() {
+        return key;
+    }
+
+    public Serializable getValue() {
+        return value;
+    }
+
+    /**
+     * Gets the encoded element of a put.
+     */
+    public byte[] getRecord() {
+        return record;
+    }
+
+    public List<CacheAction> getBatchPuts() {
+        return batchPuts;
+    }
+
+    public List<Serializable> getBatchRemoves() {
+        return batchRemoves;
+    }
+
+    /**
+     * Gets the number of bytes this action holds while it is queued: the size of its encoded elements, or the
+     * estimated size of the keys it removes.
+     */
+    public long getEstimatedSize() {
+        return estimatedSize;
+    }
+
+}
@@ -0,0 +1,116 @@
+/*
+ *   Copyright 2005 John Watkinson
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.larvalabs.megamap;
+
+/**
+ * A count-min sketch of how often keys have been used recently, for the admission decisions of a
+ * {@link ValueCache}.
+ * <p/>
+ * Each key has four counters of four bits, one per row of the sketch, and its frequency is the smallest of them,
+ * so collisions can only make a key look more popular than it is. The counters are packed sixteen to a
+ * <code>long</code>. Once ten times as many uses as the capacity have been recorded, all the counters are
+ * halved, so that keys that were popular long ago make way for those that are popular now.
+ * <p/>
+ * Not thread safe.
+ */
+class FrequencySketch {
+
+    private static final long[] SEEDS = {
+            0x97cb3127bd8ecd55L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+    private static final long HALVE_MASK = 0x7777777777777777L;
+
+    private final long[] table;
+    private final int capacity;
+    private final int counterMask;
+    private final int sampleSize;
+    private int additions;
+
+    /**
+     * @param capacity the number of distinct keys the sketch is sized for.
+     */
+    FrequencySketch(int capacity) {
+        this.capacity = Math.max(capacity, 16);
+        int counters = Integer.highestOneBit(Math.min(this.capacity, 1 << 26) - 1) << 3;
+        table = new long[counters >>> 4];
+        counterMask = counters - 1;
+        sampleSize = this.capacity * 10;
+    }
+
+    int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return the estimated number of recent uses of the key, at most 15.
+     */
+    int frequency(Object key) {
+        long hash = spread(key.hashCode());
+        int frequency = Integer.MAX_VALUE;
+        for (int row = 0; row < SEEDS.length; row++) {
+            frequency = Math.min(frequency, getCounter(indexOf(hash, row)));
+        }
+        return frequency;
+    }
+
+    /**
+     * Records a use of the key.
+     */
+    void increment(Object key) {
+        long hash = spread(key.hashCode());
+        boolean added = false;
+        for (int row = 0; row < SEEDS.length; row++) {
+            int index = indexOf(hash, row);
+            int count = getCounter(index);
+            if (count < 15) {
+                setCounter(index, count + 1);
+                added = true;
+            }
+        }
+        if (added && ++additions >= sampleSize) {
+            reset();
+        }
+    }
+
+    /**
+     * Halves every counter.
+     */
+    private void reset() {
+        for (int i = 0; i < table.length; i++) {
+            table[i] = (table[i] >>> 1) & HALVE_MASK;
+        }
+        additions /= 2;
+    }
+
+    private int indexOf(long hash, int row) {
+        long h = (hash + SEEDS[row]) * SEEDS[row];
+        return (int) (h >>> 32) & counterMask;
+    }
+
+    private int getCounter(int index) {
+        return (int) (table[index >>> 4] >>> ((index & 15) << 2)) & 15;
+    }
+
+    private void setCounter(int index, int count) {
+        int shift = (index & 15) << 2;
+        table[index >>> 4] = (table[index >>> 4] & ~(15L << shift)) | ((long) count << shift);
+    }
+
+    private static long spread(int hashCode) {
+        long h = hashCode * 0x9e3779b97f4a7c15L;
+        return h ^ (h >>> 29);
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ *   Copyright 2005 John Watkinson
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.larvalabs.megamap;
+
+import java.io.Serializable;
+
+/**
+ * A MegaMap keyed by <code>int</code>s that never boxes its keys. It is a view of a {@link LongMegaMap} that
+ * widens its keys, so it has the same memory use, threading and persistence.
+ * <p/>
+ * Create IntMegaMaps with {@link MegaMapManager#createIntMegaMap(String, boolean, boolean)}.
+ *
+ * @see LongMegaMap
+ */
+public class IntMegaMap<V extends Serializable> {
+
+    private final LongMegaMap<V> map;
+
+    /**
+     * This constructor cannot be called directly, use
+     * {@link MegaMapManager#createIntMegaMap(java.lang.String, boolean, boolean)} or
+     * {@link MegaMapManager#createIntMegaMap(java.lang.String, java.lang.String, boolean, boolean)}.
+     */
+    IntMegaMap(LongMegaMap<V> map) {
+        this.map = map;
+    }
+
+    /**
+     * @see LongMegaMap#put(long, java.io.Serializable)
+     */
+    public void put(int key, V value) throws MegaMapException {
+        map.put(key, value);
+    }
+
+    /**
+     * @see LongMegaMap#get(long)
+     */
+    public V get(int key) throws MegaMapException {
+        return map.get(key);
+    }
+
+    /**
+     * @see LongMegaMap#hasKey(long)
+     */
+    public boolean hasKey(int key) {
+        return map.hasKey(key);
+    }
+
+    /**
+     * @see LongMegaMap#remove(long)
+     */
+    public boolean remove(int key) throws MegaMapException {
+        return map.remove(key);
+    }
+
+    public int size() {
+        return map.size();
+    }
+
+    public boolean isEmpty() {
+        return map.isEmpty();
+    }
+
+    /**
+     * Gets all the keys stored in the IntMegaMap, in no particular order.
+     *
+     * @return a copy of the keys.
+     */
+    public int[] getKeys() {
+        long[] keys = map.getKeys();
+        int[] intKeys = new int[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            intKeys[i] = (int) keys[i];
+        }
+        return intKeys;
+    }
+
+    /**
+     * @see LongMegaMap#clear()
+     */
+    public void clear() throws MegaMapException {
+        map.clear();
+    }
+
+    /**
+     * @see LongMegaMap#flush()
+     */
+    public void flush() throws MegaMapException {
+        map.flush();
+    }
+
+    public String getName() {
+        return map.getName();
+    }
+
+}
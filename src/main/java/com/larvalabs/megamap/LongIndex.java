@@ -0,0 +1,204 @@
+/*
+ *   Copyright 2005 John Watkinson
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.larvalabs.megamap;
+
+import java.lang.ref.SoftReference;
+
+/**
+ * An open addressing hash table from <code>long</code> keys to the places of their values in the data file of a
+ * {@link LongMegaMap}, and to the values themselves while they are softly held in memory.
+ * <p/>
+ * Each key takes a slot in four parallel arrays, and no object at all unless its value is in memory, so a key
+ * costs about 32 bytes. Positions start after the header of the data file, so a position of 0 marks an empty
+ * slot and every key, including 0, can be stored. Collisions are resolved by linear probing, and removals shift
+ * the following keys back rather than leaving tombstones.
+ * <p/>
+ * Not thread safe. Slot numbers are only stable until the next insertion or removal.
+ */
+class LongIndex {
+
+    private static final int MIN_CAPACITY = 16;
+
+    private long[] keys;
+    private long[] positions;
+    private int[] lengths;
+    private SoftReference[] values;
+    private int size;
+
+    LongIndex() {
+        allocate(MIN_CAPACITY);
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return the slot of the key, or -1 if the key is not in the table.
+     */
+    int find(long key) {
+        int mask = keys.length - 1;
+        for (int slot = hash(key) & mask; positions[slot] != 0; slot = (slot + 1) & mask) {
+            if (keys[slot] == key) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Inserts a key if it is not in the table. The position of a new key is 0, and must be set with
+     * {@link #setPlace} before the table is used again.
+     *
+     * @return the slot of the key.
+     */
+    int insert(long key) {
+        int slot = find(key);
+        if (slot >= 0) {
+            return slot;
+        }
+        if (size + 1 > keys.length - (keys.length >>> 2)) {
+            rehash(keys.length << 1);
+        }
+        int mask = keys.length - 1;
+        slot = hash(key) & mask;
+        while (positions[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        keys[slot] = key;
+        size++;
+        return slot;
+    }
+
+    /**
+     * Removes the key in a slot, moving back the keys that follow it so that they can still be found.
+     */
+    void removeAt(int slot) {
+        int mask = keys.length - 1;
+        int hole = slot;
+        for (int next = (hole + 1) & mask; positions[next] != 0; next = (next + 1) & mask) {
+            int home = hash(keys[next]) & mask;
+            // Move the key back unless its home lies cyclically after the hole and up to its current slot
+            boolean stays = hole <= next ? (hole < home && home <= next) : (hole < home || home <= next);
+            if (!stays) {
+                keys[hole] = keys[next];
+                positions[hole] = positions[next];
+                lengths[hole] = lengths[next];
+                values[hole] = values[next];
+                hole = next;
+            }
+        }
+        positions[hole] = 0;
+        lengths[hole] = 0;
+        values[hole] = null;
+        size--;
+    }
+
+    /**
+     * Removes all the keys and shrinks the table.
+     */
+    void clear() {
+        allocate(MIN_CAPACITY);
+    }
+
+    long getKey(int slot) {
+        return keys[slot];
+    }
+
+    long getPosition(int slot) {
+        return positions[slot];
+    }
+
+    int getLength(int slot) {
+        return lengths[slot];
+    }
+
+    SoftReference getValue(int slot) {
+        return values[slot];
+    }
+
+    /**
+     * Records where the value of the key in a slot is stored. The position must not be 0.
+     */
+    void setPlace(int slot, long position, int length) {
+        positions[slot] = position;
+        lengths[slot] = length;
+    }
+
+    void setValue(int slot, SoftReference value) {
+        values[slot] = value;
+    }
+
+    /**
+     * @return the number of slots. The slots holding keys are those with a position other than 0.
+     */
+    int capacity() {
+        return keys.length;
+    }
+
+    /**
+     * @return a copy of the keys.
+     */
+    long[] getKeys() {
+        long[] copy = new long[size];
+        int n = 0;
+        for (int slot = 0; slot < keys.length; slot++) {
+            if (positions[slot] != 0) {
+                copy[n++] = keys[slot];
+            }
+        }
+        return copy;
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        positions = new long[capacity];
+        lengths = new int[capacity];
+        values = new SoftReference[capacity];
+        size = 0;
+    }
+
+    private void rehash(int capacity) {
+        long[] oldKeys = keys;
+        long[] oldPositions = positions;
+        int[] oldLengths = lengths;
+        SoftReference[] oldValues = values;
+        int oldSize = size;
+        allocate(capacity);
+        int mask = capacity - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldPositions[i] != 0) {
+                int slot = hash(oldKeys[i]) & mask;
+                while (positions[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = oldKeys[i];
+                positions[slot] = oldPositions[i];
+                lengths[slot] = oldLengths[i];
+                values[slot] = oldValues[i];
+            }
+        }
+        size = oldSize;
+    }
+
+    private static int hash(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        return (int) key;
+    }
+}
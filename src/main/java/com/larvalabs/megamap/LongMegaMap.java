@@ -0,0 +1,622 @@
+/*
+ *   Copyright 2005 John Watkinson
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.larvalabs.megamap;
+
+import net.sf.ehcache.codec.Codec;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A MegaMap keyed by <code>long</code>s, such as 64-bit IDs, that never boxes its keys.
+ * <p/>
+ * The keys and the places of their values on disk are held in a single open addressing table of primitive arrays,
+ * so a key costs about 32 bytes of heap rather than the several objects a {@link MegaMap} spends on it in its key
+ * set and in the index of its disk store. As in a {@link MegaMap}, values are held in memory by soft references
+ * and read back from disk once the garbage collector has cleared them.
+ * <p/>
+ * Values are written to a log: every put appends the key and the value, encoded by the value codec of the
+ * {@link MegaMapManager}, to the data file, and every
+ * remove of a persistent map appends a removal record. Appends are collected in a buffer and written together. A
+ * persistent map rebuilds its table by scanning the log when it is loaded, and its log is rewritten without the
+ * records that have been replaced or removed when it is shut down, if they take up more than half of it.
+ * <p/>
+ * LongMegaMap is threadsafe. Reads share a read lock and writes take a write lock.
+ * <p/>
+ * Create LongMegaMaps with {@link MegaMapManager#createLongMegaMap(String, boolean, boolean)}.
+ *
+ * @see IntMegaMap
+ */
+public class LongMegaMap<V extends Serializable> {
+
+    static Log log = LogFactory.getLog(LongMegaMap.class);
+
+    /**
+     * Starts the data file, and keeps every record at a position other than 0, which marks an empty slot of the
+     * table.
+     */
+    private static final byte[] FILE_HEADER = {'M', 'e', 'g', 'a', 'L', 'o', 'n', 'g'};
+
+    /**
+     * The key and the length of the value that start every record.
+     */
+    private static final int RECORD_HEADER = 12;
+
+    /**
+     * The length of the value of a removal record.
+     */
+    private static final int REMOVED = -1;
+
+    /**
+     * The first byte of a value written by the codec. Values written by earlier versions were serialized, and start
+     * with 0xAC instead.
+     */
+    private static final int VALUE_FORMAT = 0x01;
+
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Appended to the name of the data file to name the file it is compacted into.
+     */
+    static final String COMPACT_SUFFIX = ".compact";
+
+    private final String name;
+    private final File dataFile;
+    private final boolean persistent;
+    private final Codec valueCodec;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final LongIndex index = new LongIndex();
+    private final ReferenceQueue<V> softQueue = new ReferenceQueue<V>();
+    private RandomAccessFile randomAccessFile;
+    private FileChannel channel;
+    private final byte[] writeBuffer = new byte[WRITE_BUFFER_SIZE];
+    private int buffered;
+    private long fileLength;
+    private long garbage;
+    private boolean closed;
+
+    /**
+     * A soft reference to a value in memory that remembers its key, so that it can be dropped from the table once
+     * the garbage collector has cleared it.
+     */
+    private static class LongSoftValue<V> extends SoftReference<V> {
+
+        private final long key;
+
+        public LongSoftValue(long key, V value, ReferenceQueue<V> queue) {
+            super(value, queue);
+            this.key = key;
+        }
+
+    }
+
+    /**
+     * This constructor cannot be called directly, use
+     * {@link MegaMapManager#createLongMegaMap(java.lang.String, boolean, boolean)} or
+     * {@link MegaMapManager#createLongMegaMap(java.lang.String, java.lang.String, boolean, boolean)}.
+     */
+    LongMegaMap(String mapName, File directory, boolean persistent, Codec valueCodec) throws MegaMapException {
+        this.name = mapName;
+        this.persistent = persistent;
+        this.valueCodec = valueCodec;
+        this.dataFile = new File(directory, mapName + ".data");
+        try {
+            if (!directory.exists() && !directory.mkdirs()) {
+                throw new MegaMapException("Could not create directory " + directory);
+            }
+            File compactFile = new File(dataFile.getPath() + COMPACT_SUFFIX);
+            if (!persistent) {
+                dataFile.delete();
+                compactFile.delete();
+            } else if (compactFile.exists()) {
+                recoverCompaction(compactFile);
+            }
+            randomAccessFile = new RandomAccessFile(dataFile, "rw");
+            channel = randomAccessFile.getChannel();
+            if (channel.size() == 0) {
+                writeFully(ByteBuffer.wrap(FILE_HEADER), 0);
+                fileLength = FILE_HEADER.length;
+            } else {
+                load();
+            }
+        } catch (IOException e) {
+            close();
+            throw new MegaMapException("Error in initialization of LongMegaMap", e);
+        } catch (MegaMapException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Put a value in the LongMegaMap. Unlike {@link MegaMap#put}, the old value is not returned, as that could
+     * mean reading it from disk.
+     *
+     * @throws NullPointerException if the value is <code>null</code>.
+     * @throws MegaMapException if the value could not be serialized or written to disk.
+     */
+    public void put(long key, V value) throws MegaMapException {
+        if (value == null) {
+            throw new NullPointerException();
+        }
+        byte[] bytes = serialize(value);
+        lock.writeLock().lock();
+        try {
+            checkOpen();
+            purge();
+            long position = append(key, bytes);
+            int slot = index.insert(key);
+            if (index.getPosition(slot) != 0) {
+                garbage += RECORD_HEADER + index.getLength(slot);
+            }
+            index.setPlace(slot, position, bytes.length);
+            index.setValue(slot, new LongSoftValue<V>(key, value, softQueue));
+        } catch (IOException e) {
+            throw new MegaMapException("Could not write the value of key " + key, e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Gets the value for the given key.
+     *
+     * @return the value, or <code>null</code> if there is none.
+     * @throws MegaMapException if the value could not be read from disk.
+     */
+    public V get(long key) throws MegaMapException {
+        long position;
+        byte[] bytes;
+        lock.readLock().lock();
+        try {
+            checkOpen();
+            int slot = index.find(key);
+            if (slot < 0) {
+                return null;
+            }
+            SoftReference reference = index.getValue(slot);
+            V value = reference == null ? null : (V) reference.get();
+            if (value != null) {
+                return value;
+            }
+            position = index.getPosition(slot);
+            bytes = new byte[index.getLength(slot)];
+            if (position >= fileLength) {
+                // Still in the write buffer
+                System.arraycopy(writeBuffer, (int) (position - fileLength) + RECORD_HEADER, bytes, 0, bytes.length);
+            } else {
+                readFully(ByteBuffer.wrap(bytes), position + RECORD_HEADER);
+            }
+        } catch (IOException e) {
+            throw new MegaMapException("Could not read the value of key " + key, e);
+        } finally {
+            lock.readLock().unlock();
+        }
+        V value = (V) deserialize(bytes);
+        lock.writeLock().lock();
+        try {
+            // Keep the value in memory, unless it has been replaced meanwhile
+            int slot = index.find(key);
+            if (slot >= 0 && index.getPosition(slot) == position) {
+                index.setValue(slot, new LongSoftValue<V>(key, value, softQueue));
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        return value;
+    }
+
+    /**
+     * Checks if there is a value stored for the given key, without touching the disk.
+     */
+    public boolean hasKey(long key) {
+        lock.readLock().lock();
+        try {
+            return index.find(key) >= 0;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Removes the value for the given key. Unlike {@link MegaMap#remove}, the old value is not returned.
+     *
+     * @return <code>true</code> if there was a value for the key.
+     * @throws MegaMapException if the removal could not be written to disk.
+     */
+    public boolean remove(long key) throws MegaMapException {
+        lock.writeLock().lock();
+        try {
+            checkOpen();
+            purge();
+            int slot = index.find(key);
+            if (slot < 0) {
+                return false;
+            }
+            if (persistent) {
+                // Only a map that is loaded again needs to know that the key was removed
+                append(key, null);
+                garbage += RECORD_HEADER;
+            }
+            garbage += RECORD_HEADER + index.getLength(slot);
+            index.removeAt(slot);
+            return true;
+        } catch (IOException e) {
+            throw new MegaMapException("Could not write the removal of key " + key, e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the number of keys stored in the LongMegaMap.
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return index.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * Gets all the keys stored in the LongMegaMap, in no particular order.
+     *
+     * @return a copy of the keys.
+     */
+    public long[] getKeys() {
+        lock.readLock().lock();
+        try {
+            return index.getKeys();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Removes all keys from the LongMegaMap, and empties its data file.
+     *
+     * @throws MegaMapException if the data file could not be emptied.
+     */
+    public void clear() throws MegaMapException {
+        lock.writeLock().lock();
+        try {
+            checkOpen();
+            index.clear();
+            buffered = 0;
+            channel.truncate(FILE_HEADER.length);
+            fileLength = FILE_HEADER.length;
+            garbage = 0;
+        } catch (IOException e) {
+            throw new MegaMapException("Could not clear " + name, e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Writes the values that are still buffered to the data file.
+     *
+     * @throws MegaMapException if the data file could not be written.
+     */
+    public void flush() throws MegaMapException {
+        lock.writeLock().lock();
+        try {
+            checkOpen();
+            flushBuffer();
+        } catch (IOException e) {
+            throw new MegaMapException("Could not flush " + name, e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Gets the name of the LongMegaMap.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Cannot be called directly. Use {@link MegaMapManager#removeMegaMap(java.lang.String)} to shut down a
+     * specific LongMegaMap cleanly or {@link MegaMapManager#shutdown()} to shutdown all MegaMaps cleanly.
+     */
+    void shutdown() {
+        lock.writeLock().lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (persistent) {
+                flushBuffer();
+                if (garbage > (fileLength - FILE_HEADER.length) / 2) {
+                    compact();
+                }
+            }
+            channel.close();
+            if (!persistent) {
+                dataFile.delete();
+            }
+        } catch (IOException e) {
+            log.error("Could not shut down LongMegaMap " + name, e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Rebuilds the table from the data file. A record cut short by a crash ends the log, and is cut off.
+     */
+    private void load() throws IOException, MegaMapException {
+        long length = channel.size();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(dataFile), WRITE_BUFFER_SIZE));
+        try {
+            byte[] header = new byte[FILE_HEADER.length];
+            if (length < header.length) {
+                throw new MegaMapException(dataFile + " is not a LongMegaMap data file");
+            }
+            in.readFully(header);
+            if (!Arrays.equals(header, FILE_HEADER)) {
+                throw new MegaMapException(dataFile + " is not a LongMegaMap data file");
+            }
+            long position = header.length;
+            while (position + RECORD_HEADER <= length) {
+                long key = in.readLong();
+                int valueLength = in.readInt();
+                long next = position + RECORD_HEADER + Math.max(valueLength, 0);
+                if (valueLength < REMOVED || next > length) {
+                    break;
+                }
+                if (valueLength == REMOVED) {
+                    int slot = index.find(key);
+                    if (slot >= 0) {
+                        garbage += RECORD_HEADER + index.getLength(slot);
+                        index.removeAt(slot);
+                    }
+                    garbage += RECORD_HEADER;
+                } else {
+                    skipFully(in, valueLength);
+                    int slot = index.insert(key);
+                    if (index.getPosition(slot) != 0) {
+                        garbage += RECORD_HEADER + index.getLength(slot);
+                    }
+                    index.setPlace(slot, position, valueLength);
+                }
+                position = next;
+            }
+            if (position < length) {
+                log.warn("Discarding " + (length - position) + " bytes of incomplete record at the end of " + dataFile);
+                channel.truncate(position);
+            }
+            fileLength = position;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Appends a record to the write buffer, writing the buffer out first if the record does not fit.
+     *
+     * @param bytes the serialized value, or <code>null</code> for a removal.
+     * @return the position of the record in the data file.
+     */
+    private long append(long key, byte[] bytes) throws IOException {
+        int recordLength = RECORD_HEADER + (bytes == null ? 0 : bytes.length);
+        if (buffered + recordLength > writeBuffer.length) {
+            flushBuffer();
+        }
+        long position = fileLength + buffered;
+        ByteBuffer record;
+        if (recordLength > writeBuffer.length) {
+            record = ByteBuffer.allocate(recordLength);
+        } else {
+            record = ByteBuffer.wrap(writeBuffer, buffered, recordLength);
+        }
+        record.putLong(key);
+        record.putInt(bytes == null ? REMOVED : bytes.length);
+        if (bytes != null) {
+            record.put(bytes);
+        }
+        if (recordLength > writeBuffer.length) {
+            ((Buffer) record).flip();
+            writeFully(record, position);
+            fileLength += recordLength;
+        } else {
+            buffered += recordLength;
+        }
+        return position;
+    }
+
+    private void flushBuffer() throws IOException {
+        if (buffered > 0) {
+            writeFully(ByteBuffer.wrap(writeBuffer, 0, buffered), fileLength);
+            fileLength += buffered;
+            buffered = 0;
+        }
+    }
+
+    /**
+     * Rewrites the data file with only the current record of each key. The table is not updated, so the map must
+     * be closed.
+     * <p/>
+     * The records are written to a separate file, which is forced to disk before it replaces the data file, so a
+     * crash leaves either the old data file or the complete compacted one.
+     */
+    private void compact() throws IOException {
+        File compactFile = new File(dataFile.getPath() + COMPACT_SUFFIX);
+        FileOutputStream fileOut = new FileOutputStream(compactFile);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut, WRITE_BUFFER_SIZE));
+        try {
+            out.write(FILE_HEADER);
+            for (int slot = 0; slot < index.capacity(); slot++) {
+                long position = index.getPosition(slot);
+                if (position != 0) {
+                    byte[] record = new byte[RECORD_HEADER + index.getLength(slot)];
+                    readFully(ByteBuffer.wrap(record), position);
+                    out.write(record);
+                }
+            }
+            out.flush();
+            fileOut.getFD().sync();
+        } finally {
+            out.close();
+        }
+        channel.close();
+        try {
+            Files.move(compactFile.toPath(), dataFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(compactFile.toPath(), dataFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Deals with a compacted file left by a shut down that did not finish. The compacted file is forced to disk
+     * before it replaces the data file, so if the data file is still there the compaction did not finish and the
+     * compacted file is dropped, and if the data file has gone the compacted file is complete and replaces it.
+     */
+    private void recoverCompaction(File compactFile) throws IOException {
+        if (dataFile.exists()) {
+            log.warn("Discarding " + compactFile + " left by an unfinished compaction");
+            Files.delete(compactFile.toPath());
+        } else {
+            log.warn("Completing the compaction of " + dataFile + " from " + compactFile);
+            Files.move(compactFile.toPath(), dataFile.toPath());
+        }
+    }
+
+    /**
+     * Drops the values cleared by the garbage collector from the table, if the table still holds them.
+     */
+    private void purge() {
+        LongSoftValue<V> reference;
+        while ((reference = (LongSoftValue<V>) softQueue.poll()) != null) {
+            int slot = index.find(reference.key);
+            if (slot >= 0 && index.getValue(slot) == reference) {
+                index.setValue(slot, null);
+            }
+        }
+    }
+
+    /**
+     * Closes the data file after a failed initialization.
+     */
+    private void close() {
+        try {
+            if (randomAccessFile != null) {
+                randomAccessFile.close();
+            }
+        } catch (IOException e) {
+            log.error("Could not close " + dataFile, e);
+        }
+    }
+
+    private void checkOpen() throws MegaMapException {
+        if (closed) {
+            throw new MegaMapException("LongMegaMap " + name + " has been shut down");
+        }
+    }
+
+    private void writeFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new EOFException("Unexpected end of " + dataFile);
+            }
+            position += read;
+        }
+    }
+
+    private static void skipFully(DataInputStream in, int length) throws IOException {
+        while (length > 0) {
+            int skipped = in.skipBytes(length);
+            if (skipped <= 0) {
+                throw new EOFException();
+            }
+            length -= skipped;
+        }
+    }
+
+    private byte[] serialize(Serializable value) throws MegaMapException {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(VALUE_FORMAT);
+            valueCodec.encode(value, out);
+            out.close();
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new MegaMapException("Could not serialize " + value, e);
+        }
+    }
+
+    private Object deserialize(byte[] bytes) throws MegaMapException {
+        try {
+            if (bytes.length > 0 && bytes[0] == VALUE_FORMAT) {
+                return valueCodec.decode(new DataInputStream(new ByteArrayInputStream(bytes, 1, bytes.length - 1)));
+            }
+            ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes));
+            try {
+                return in.readObject();
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            throw new MegaMapException("Could not deserialize a value", e);
+        } catch (ClassNotFoundException e) {
+            throw new MegaMapException("Could not deserialize a value", e);
+        }
+    }
+
+}
@@ -18,85 +18,196 @@ package com.larvalabs.megamap;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.apache.commons.collections.map.ReferenceMap;
-import org.apache.commons.collections.buffer.UnboundedFifoBuffer;
 import net.sf.ehcache.CacheManager;
 import net.sf.ehcache.Cache;
 import net.sf.ehcache.Element;
 import net.sf.ehcache.CacheException;
+import net.sf.ehcache.codec.Codec;
+import net.sf.ehcache.codec.Compressor;
 
+import java.util.AbstractCollection;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
 import java.util.HashSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.Serializable;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
 
 /**
  * An efficient, unbounded map (hashtable) that can optionally persist between VM invocations.
  * Keys are stored in memory, but values may be extremely large. They will be persisted to disk as required by the
- * garbage collector of the VM.
+ * garbage collector of the VM. Values too large to hold in memory at all can be written and read as streams (see
+ * {@link #putStream}).
+ * <p/>
+ * MegaMap is threadsafe. Reads ({@link #get}, {@link #hasKey} and {@link #getKeys}) do not take any lock, and
+ * writes only lock one of a fixed number of stripes chosen by the hash of the key, so operations on different keys
+ * proceed in parallel.
+ * <p/>
+ * MegaMap implements {@link ConcurrentMap}. The atomic operations ({@link #putIfAbsent}, {@link #replace},
+ * {@link #computeIfAbsent}, {@link #merge} and friends) hold the stripe of their key while they look the current
+ * value up, first in memory and then on disk, and store the result, so each of them is a single pass over the
+ * memory and disk caches. The functions given to them are run while the stripe is held, and must not modify
+ * the MegaMap. Neither keys nor values may be <code>null</code>.
+ * <p/>
+ * To honour the {@link Map} contract, {@link #put} and {@link #remove} return the previous value, which may have
+ * to be read back from disk. Use {@link #set} and {@link #delete} when the previous value is not needed.
+ * <p/>
+ * Unlike most {@link Map} implementations, equality is identity: comparing contents would load every value from
+ * disk.
+ * <p/>
+ * Writes are applied to the disk cache in the background, by the scheduler shared by all the MegaMaps of the
+ * {@link MegaMapManager}. Keys are split by hash between persistence queues that are drained concurrently, each
+ * in order, so writes to any one key are still applied in order (see
+ * {@link MegaMapManager#setPersistenceThreads}). The queues of pending writes hold on to the values until they
+ * are written, so they are bounded in size (see {@link #setPersistenceQueueLimit}). What happens
+ * to a write that does not fit is decided by the overflow policy (see {@link #setOverflowPolicy}).
+ * Repeated writes to a key that are still waiting in the queue are coalesced, so only the latest one is written
+ * (see {@link #getCoalescedWrites}).
+ * <p/>
+ * A value is encoded for the disk store once, when it is put, by the codecs of the {@link MegaMapManager}. The
+ * encoded bytes travel through the persistence queue and the disk store spool, and are written to the data file
+ * as they are.
+ * <p/>
+ * By default values are held in memory by soft references, and leave memory when the garbage collector clears
+ * them. A MegaMap whose memory is limited by its {@link MegaMapManager} holds them in a bounded cache instead,
+ * which keeps the values used most often and evicts the others without waiting for the garbage collector (see
+ * {@link MegaMapManager#setMaxValuesInMemory}). Either way, a value is held in memory until it has been written.
+ * <p/>
+ * {@link #getAsync}, {@link #putAsync} and {@link #removeAsync} return {@link CompletableFuture}s for callers that
+ * must not block on the disk: reads that miss memory run on the I/O executor of the manager, and writes complete
+ * once they have reached the disk store file.
  *
  * @author John Watkinson
  */
-public class MegaMap implements Runnable {
+public class MegaMap<K extends Serializable, V extends Serializable> implements ConcurrentMap<K, V> {
 
     static Log log = LogFactory.getLog(MegaMap.class);
 
+    /**
+     * Overflow policy: a write that does not fit in the persistence queue waits until the persistence queue has
+     * made room for it. This is the default.
+     */
+    public static final int OVERFLOW_BLOCK = 1;
+
+    /**
+     * Overflow policy: a write that does not fit in the persistence queue applies the oldest queued actions to the
+     * disk cache itself, on the calling thread, until it fits.
+     */
+    public static final int OVERFLOW_CALLER_RUNS = 2;
+
+    /**
+     * Overflow policy: a write that does not fit in the persistence queue fails with a {@link MegaMapException},
+     * leaving the MegaMap unchanged.
+     */
+    public static final int OVERFLOW_FAIL = 3;
+
+    /**
+     * The number of lock stripes guarding writes. Must be a power of two.
+     */
+    private static final int LOCK_STRIPES = 64;
+
     private String storeName;
     private Cache cache;
-    private ReferenceMap softMap;
-    private Set keySet;
-    private UnboundedFifoBuffer cacheQueue;
-    private boolean running = false;
-    private boolean finishedRunning = false;
+    private ConcurrentHashMap<K, SoftValue<K, V>> softMap;
+    private ReferenceQueue<V> softQueue;
 
     /**
-     * Stores a cache instruction for later action.
+     * The bounded cache that holds values in memory instead of {@link #softMap}, if the memory of the MegaMap is
+     * limited. Values it evicts before they are written stay in {@link #pending}.
      */
-    private static class CacheAction {
+    private ValueCache<K, V> valueCache;
 
-        public static final int ACTION_TYPE_PUT = 1;
-        public static final int ACTION_TYPE_REMOVE = 2;
+    /**
+     * The values that have been stored but not yet written to the disk store, if there is a value cache.
+     */
+    private ConcurrentHashMap<K, V> pending;
+
+    /**
+     * Counts the writes to each lock stripe, so that a value read from disk is not cached if its key was written
+     * meanwhile.
+     */
+    private AtomicLongArray writeCounts;
+    private final LongAdder memoryHits = new LongAdder();
+    private final LongAdder memoryMisses = new LongAdder();
+    private Set<K> keySet;
+    private ReentrantLock[] locks;
+    private PersistenceQueue[] queues;
+    private Executor ioExecutor;
+    private volatile long persistenceQueueLimit = Runtime.getRuntime().maxMemory() / 4;
+    private volatile int overflowPolicy = OVERFLOW_BLOCK;
 
-        private int actionType;
-        private Serializable key;
-        private Serializable value;
+    private Set<K> keySetView;
+    private Collection<V> valuesView;
+    private Set<Map.Entry<K, V>> entrySetView;
 
-        public static CacheAction createPutAction(Serializable key, Serializable value) {
-            CacheAction ca = new CacheAction();
-            ca.key = key;
-            ca.value = value;
-            ca.actionType = ACTION_TYPE_PUT;
-            return ca;
-        }
+    /**
+     * A soft reference to a value in the memory cache that remembers its key, so that it can be purged from
+     * {@link MegaMap#softMap} once the garbage collector has cleared it.
+     * <p/>
+     * A value cannot be cleared while its {@link CacheAction} is waiting in the persistence queue, which holds it
+     * strongly. Once the action is applied, the disk store has the encoded record of the value, either in its
+     * spool, which reads look in before the data file, or already in the data file. The value may then be cleared,
+     * and a read that misses the soft map decodes it again from that record. So a read never finds an older value
+     * on disk.
+     * <p/>
+     * Soft values are only used when the memory of the MegaMap is not limited. Otherwise the values waiting to be
+     * written are held by {@link MegaMap#pending} instead, until the disk store has their records.
+     */
+    private static class SoftValue<K, V> extends SoftReference<V> {
 
-        public static CacheAction createRemoveAction(Serializable key) {
-            CacheAction ca = new CacheAction();
-            ca.key = key;
-            ca.actionType = ACTION_TYPE_REMOVE;
-            return ca;
-        }
+        private final K key;
 
-        public int getActionType() {
-            return actionType;
+        public SoftValue(K key, V value, ReferenceQueue<V> queue) {
+            super(value, queue);
+            this.key = key;
         }
 
-        public Serializable getKey() {
+        public K getKey() {
             return key;
         }
 
-        public Serializable getValue() {
-            return value;
-        }
-
     }
 
     /**
      * This constructor cannot be called directly, use {@link MegaMapManager#createMegaMap(java.lang.String, boolean, boolean)}
      * or {@link MegaMapManager#createMegaMap(java.lang.String, java.lang.String, boolean, boolean)}.
      */
-    MegaMap(String mapName, CacheManager manager, boolean persistent) throws MegaMapException {
+    MegaMap(String mapName, CacheManager manager, boolean persistent, int persistenceThreads,
+            ScheduledExecutorService scheduler, Executor persistenceExecutor, Executor ioExecutor,
+            boolean offHeapKeyIndex, boolean bloomFilter, long valueLimit, boolean valueLimitInBytes,
+            Codec keyCodec, Codec valueCodec, Compressor compressor, boolean memoryMapped, boolean logStructured)
+            throws MegaMapException {
         this.storeName = mapName;
+        this.ioExecutor = ioExecutor;
+        if (valueLimit > 0) {
+            valueCache = new ValueCache<K, V>(valueLimit, valueLimitInBytes);
+            pending = new ConcurrentHashMap<K, V>();
+            writeCounts = new AtomicLongArray(LOCK_STRIPES);
+        }
         try {
-            init(manager, persistent);
+            init(manager, persistent, persistenceThreads, scheduler, persistenceExecutor, offHeapKeyIndex, bloomFilter,
+                    keyCodec, valueCodec, compressor, memoryMapped, logStructured);
         } catch (CacheException ce) {
             throw new MegaMapException("Error in initialization of MegaMap", ce);
         }
@@ -105,16 +216,168 @@ public class MegaMap implements Runnable {
     /**
      * Put a value in the MegaMap. Both the key and value must be Serializable objects.
      * If there is already a value stored for this key, it will be over-written.
+     *
+     * @return the previous value for the key, or <code>null</code> if there was none. If the previous value is no
+     *         longer in memory it is read from disk.
+     * @throws MegaMapException if the previous value could not be read from disk.
+     * @see #set(java.io.Serializable, java.io.Serializable)
+     */
+    public V put(K key, V value) throws MegaMapException {
+        checkNotNull(key, value);
+        ReentrantLock lock = lockFor(key);
+        lock.lock();
+        try {
+            V oldValue = load(key);
+            store(key, value);
+            return oldValue;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Put a value in the MegaMap without looking up the previous value.
+     * If there is already a value stored for this key, it will be over-written.
+     */
+    public void set(K key, V value) {
+        checkNotNull(key, value);
+        ReentrantLock lock = lockFor(key);
+        lock.lock();
+        try {
+            store(key, value);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Copies all of the mappings from the given map into the MegaMap. Previous values are not looked up.
+     * <p/>
+     * The whole batch is applied under one acquisition of the stripes of its keys. Each persistence queue is
+     * handed its share of the batch as a single action, which it writes to disk as one batch.
+     * <p/>
+     * The shares are queued all together or not at all: if the overflow policy rejects the batch, the MegaMap is
+     * left unchanged.
+     */
+    public void putAll(Map<? extends K, ? extends V> map) {
+        if (map.isEmpty()) {
+            return;
+        }
+        List<CacheAction>[] puts = new List[queues.length];
+        for (Map.Entry<? extends K, ? extends V> entry : map.entrySet()) {
+            K key = entry.getKey();
+            V value = entry.getValue();
+            checkNotNull(key, value);
+            int partition = partitionOf(key);
+            if (puts[partition] == null) {
+                puts[partition] = new ArrayList<CacheAction>();
+            }
+            puts[partition].add(CacheAction.createPutAction(key, value, encode(key, value)));
+        }
+        CacheAction[] shares = new CacheAction[queues.length];
+        for (int i = 0; i < queues.length; i++) {
+            if (puts[i] != null) {
+                shares[i] = CacheAction.createBatchAction(puts[i], new ArrayList<Serializable>(0));
+            }
+        }
+        long stripes = lockAll(map.keySet());
+        try {
+            PersistenceQueue.addAll(queues, shares);
+            purge();
+            for (int i = 0; i < queues.length; i++) {
+                if (puts[i] == null) {
+                    continue;
+                }
+                for (CacheAction put : puts[i]) {
+                    K key = (K) put.getKey();
+                    remember(key, (V) put.getValue());
+                    keySet.add(key);
+                }
+            }
+        } finally {
+            unlockAll(stripes);
+        }
+    }
+
+    /**
+     * Gets the values for a batch of keys. Values still in memory are returned directly, the others are read from
+     * disk in one pass.
+     *
+     * @return a map of key to value, containing only the keys that were found.
+     * @throws MegaMapException if the values could not be read from disk.
+     */
+    public Map<K, V> getAll(Collection<? extends K> keys) throws MegaMapException {
+        Map<K, V> values = new HashMap<K, V>();
+        List<K> misses = new ArrayList<K>();
+        for (K key : keys) {
+            if (!keySet.contains(key)) {
+                continue;
+            }
+            V value = getFromMemory(key);
+            if (value != null) {
+                values.put(key, value);
+            } else {
+                misses.add(key);
+            }
+        }
+        if (!misses.isEmpty()) {
+            try {
+                Map elements = cache.getAll(misses);
+                for (Iterator iterator = elements.values().iterator(); iterator.hasNext();) {
+                    Element element = (Element) iterator.next();
+                    values.put((K) element.getKey(), (V) element.getValue());
+                }
+            } catch (CacheException ce) {
+                throw new MegaMapException("Exception while getting", ce);
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Removes a batch of keys. Previous values are not looked up.
+     * <p/>
+     * The whole batch is applied under one acquisition of the stripes of its keys. Each persistence queue is
+     * handed its share of the batch as a single action.
+     * <p/>
+     * The shares are queued all together or not at all: if the overflow policy rejects the batch, the MegaMap is
+     * left unchanged.
      */
-    public void put(Serializable key, Serializable value) {
-        synchronized (this) {
-            softMap.put(key, value);
-            keySet.add(key);
+    public void removeAll(Collection<? extends K> keys) {
+        Set<K> distinctKeys = new LinkedHashSet<K>(keys);
+        if (distinctKeys.isEmpty()) {
+            return;
+        }
+        List<K>[] removes = new List[queues.length];
+        for (K key : distinctKeys) {
+            int partition = partitionOf(key);
+            if (removes[partition] == null) {
+                removes[partition] = new ArrayList<K>();
+            }
+            removes[partition].add(key);
+        }
+        CacheAction[] shares = new CacheAction[queues.length];
+        for (int i = 0; i < queues.length; i++) {
+            if (removes[i] != null) {
+                shares[i] = CacheAction.createBatchAction(new ArrayList<CacheAction>(0),
+                        new ArrayList<Serializable>(removes[i]));
+            }
         }
-        CacheAction action = CacheAction.createPutAction(key, value);
-        synchronized (cacheQueue) {
-            cacheQueue.add(action);
-            cacheQueue.notify();
+        long stripes = lockAll(distinctKeys);
+        try {
+            PersistenceQueue.addAll(queues, shares);
+            purge();
+            for (int i = 0; i < queues.length; i++) {
+                if (removes[i] == null) {
+                    continue;
+                }
+                for (K key : removes[i]) {
+                    forget(key);
+                    keySet.remove(key);
+                }
+            }
+        } finally {
+            unlockAll(stripes);
         }
     }
 
@@ -122,143 +385,1186 @@ public class MegaMap implements Runnable {
      * Gets the value for the given key.
      *
      * @param key
+     * @return the value, or <code>null</code> if there is none.
+     * @throws MegaMapException if the value could not be read from disk.
      * @see #hasKey(java.io.Serializable)
      */
-    public Serializable get(Serializable key) throws MegaMapException {
+    public V get(Object key) throws MegaMapException {
+        return load(key);
+    }
+
+    /**
+     * Removes the value for the given key.
+     *
+     * @param key
+     * @return the removed value, or <code>null</code> if there was none. If the value is no longer in memory it is
+     *         read from disk.
+     * @throws MegaMapException if the removed value could not be read from disk.
+     * @see #delete(java.io.Serializable)
+     */
+    public V remove(Object key) throws MegaMapException {
+        if (!keySet.contains(key)) {
+            return null;
+        }
+        K k = (K) key;
+        ReentrantLock lock = lockFor(k);
+        lock.lock();
         try {
-            Serializable value = null;
-            synchronized (this) {
-                value = (Serializable) softMap.get(key);
-            }
-            if (value == null) {
-                Element element = cache.get(key);
-                if (element != null) {
-                    log.trace("Found in disk cache.");
-                    value = element.getValue();
-                }
-            } else {
-                log.trace("Found in memory cache.");
+            V oldValue = load(k);
+            if (keySet.contains(k)) {
+                erase(k);
             }
-            return value;
-        } catch (CacheException ce) {
-            throw new MegaMapException("Exception while getting", ce);
+            return oldValue;
+        } finally {
+            lock.unlock();
         }
     }
 
     /**
-     * Removes the value for the given key.
+     * Removes the value for the given key without looking it up.
      *
      * @param key
      */
-    public void remove(Serializable key) {
-        synchronized (this) {
-            softMap.remove(key);
-            keySet.remove(key);
+    public void delete(K key) {
+        ReentrantLock lock = lockFor(key);
+        lock.lock();
+        try {
+            erase(key);
+        } finally {
+            lock.unlock();
         }
-        CacheAction action = CacheAction.createRemoveAction(key);
-        synchronized (cacheQueue) {
-            cacheQueue.add(action);
-            cacheQueue.notify();
+    }
+
+    /**
+     * Gets the value for the given key without blocking the caller. A value still in memory is returned in an
+     * already completed future, otherwise it is read from disk on the I/O executor of the
+     * {@link MegaMapManager}.
+     *
+     * @return a future of the value, or of <code>null</code> if there is none. It completes exceptionally with a
+     *         {@link MegaMapException} if the value could not be read from disk.
+     */
+    public CompletableFuture<V> getAsync(K key) {
+        if (!keySet.contains(key)) {
+            return CompletableFuture.completedFuture(null);
+        }
+        V value = getFromMemory(key);
+        if (value != null) {
+            return CompletableFuture.completedFuture(value);
+        }
+        // Completed by hand rather than by supplyAsync, which would wrap the exception in a CompletionException
+        CompletableFuture<V> completion = new CompletableFuture<V>();
+        ioExecutor.execute(() -> {
+            try {
+                completion.complete(load(key));
+            } catch (RuntimeException e) {
+                completion.completeExceptionally(e);
+            }
+        });
+        return completion;
+    }
+
+    /**
+     * Puts a value in the MegaMap, as {@link #set} does, and returns a future that completes once the value has
+     * been written to the disk store file. Writes still waiting to be written are flushed together, so many
+     * concurrent callers share a flush.
+     * <p/>
+     * The value is visible to readers as soon as this method returns. The overflow policy applies as for any other
+     * write: with {@link #OVERFLOW_BLOCK} the caller may wait for room in the persistence queue.
+     *
+     * @return a future that completes exceptionally with a {@link MegaMapException} if the value could not be
+     *         queued or written.
+     */
+    public CompletableFuture<Void> putAsync(K key, V value) {
+        checkNotNull(key, value);
+        CompletableFuture<Void> completion = new CompletableFuture<Void>();
+        ReentrantLock lock = lockFor(key);
+        lock.lock();
+        try {
+            store(key, value, completion);
+        } catch (MegaMapException e) {
+            completion.completeExceptionally(e);
+        } finally {
+            lock.unlock();
+        }
+        return completion;
+    }
+
+    /**
+     * Removes the value for the given key, as {@link #delete} does, and returns a future that completes once the
+     * removal has reached the disk store.
+     *
+     * @return a future that completes exceptionally with a {@link MegaMapException} if the removal could not be
+     *         queued or applied.
+     */
+    public CompletableFuture<Void> removeAsync(K key) {
+        CompletableFuture<Void> completion = new CompletableFuture<Void>();
+        ReentrantLock lock = lockFor(key);
+        lock.lock();
+        try {
+            erase(key, completion);
+        } catch (MegaMapException e) {
+            completion.completeExceptionally(e);
+        } finally {
+            lock.unlock();
         }
+        return completion;
     }
 
     /**
      * Checks if there is a value stored in the MegaMap for the given key.
-     * This method should be used to check for the existence of keys instead of {@link #get(java.io.Serializable)} as
-     * it could be far more efficient than {@link #get(java.io.Serializable)}.
+     * This method should be used to check for the existence of keys instead of {@link #get(java.lang.Object)} as
+     * it could be far more efficient than {@link #get(java.lang.Object)}.
      * This is because<code>get</code> may have to load the object from disk.
      *
      * @param key the key to search for.
      * @return <code>true</code> if there is a value stored for the given key, <code>false</code> otherwise.
      */
     public boolean hasKey(Serializable key) {
-        synchronized (this) {
-            return keySet.contains(key);
+        return keySet.contains(key);
+    }
+
+    /**
+     * Same as {@link #hasKey(java.io.Serializable)}.
+     */
+    public boolean containsKey(Object key) {
+        return keySet.contains(key);
+    }
+
+    /**
+     * Checks whether any key maps to the given value.
+     * <b>Note</b>: this loads every value that is no longer in memory from disk.
+     */
+    public boolean containsValue(Object value) {
+        if (value == null) {
+            throw new NullPointerException();
+        }
+        for (V v : values()) {
+            if (value.equals(v)) {
+                return true;
+            }
         }
+        return false;
     }
 
-    private void init(CacheManager manager, boolean persistent) throws CacheException {
-        cacheQueue = new UnboundedFifoBuffer();
-        softMap = new ReferenceMap();
-        keySet = new HashSet();
-        cache = new Cache(storeName, 1, true, true, 0L, 0L, persistent, 2147483647L);
-        manager.addCache(cache);
-        running = true;
-        Thread thread = new Thread(this, "MegaMap-" + storeName);
-        thread.setDaemon(false);
-        thread.start();
+    /**
+     * Returns the number of keys stored in the MegaMap.
+     */
+    public int size() {
+        return keySet.size();
+    }
+
+    public boolean isEmpty() {
+        return keySet.isEmpty();
     }
 
     /**
-     * Cannot be called directly. Use {@link MegaMapManager#removeMegaMap(java.lang.String)} to shut down a
-     * specific MegaMap cleanly or {@link MegaMapManager#shutdown()} to shutdown all MegaMaps cleanly.
+     * Removes all keys from the MegaMap.
      */
-    synchronized void shutdown() {
-        synchronized (cacheQueue) {
-            running = false;
-            cacheQueue.notify();
+    public void clear() {
+        for (K key : keySet) {
+            delete(key);
         }
+    }
+
+    /**
+     * If the key is not already associated with a value, associates it with the given value.
+     *
+     * @return the current value, or <code>null</code> if there was none and the given value was stored.
+     * @throws MegaMapException if the current value could not be read from disk.
+     */
+    public V putIfAbsent(K key, V value) throws MegaMapException {
+        checkNotNull(key, value);
+        ReentrantLock lock = lockFor(key);
+        lock.lock();
         try {
-            while (!finishedRunning) {
-                wait();
+            V oldValue = load(key);
+            if (oldValue == null) {
+                store(key, value);
             }
-        } catch (InterruptedException ie) {
-            // Ignore
+            return oldValue;
+        } finally {
+            lock.unlock();
         }
     }
 
+    /**
+     * Removes the entry for a key only if it is currently mapped to the given value.
+     *
+     * @throws MegaMapException if the current value could not be read from disk.
+     */
+    public boolean remove(Object key, Object value) throws MegaMapException {
+        if (value == null || !keySet.contains(key)) {
+            return false;
+        }
+        K k = (K) key;
+        ReentrantLock lock = lockFor(k);
+        lock.lock();
+        try {
+            V oldValue = load(k);
+            if (oldValue != null && oldValue.equals(value)) {
+                erase(k);
+                return true;
+            }
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
 
     /**
-     * Gets all the keys stored in the MegaMap.
+     * Replaces the entry for a key only if it is currently mapped to the given value.
      *
-     * @return a set of all Keys. This set is not "live", it may be modified without fear of damaging the MegaMap.
+     * @throws MegaMapException if the current value could not be read from disk.
      */
-    public Set getKeys() {
-        synchronized (this) {
-            return new HashSet(keySet);
+    public boolean replace(K key, V oldValue, V newValue) throws MegaMapException {
+        checkNotNull(key, newValue);
+        if (oldValue == null) {
+            throw new NullPointerException();
+        }
+        ReentrantLock lock = lockFor(key);
+        lock.lock();
+        try {
+            V currentValue = load(key);
+            if (currentValue != null && currentValue.equals(oldValue)) {
+                store(key, newValue);
+                return true;
+            }
+            return false;
+        } finally {
+            lock.unlock();
         }
     }
 
     /**
-     * Called by the thread that managed the MegaMap disk persistence. Do not use directly.
+     * Replaces the entry for a key only if it is currently mapped to some value.
+     *
+     * @return the previous value, or <code>null</code> if there was none.
+     * @throws MegaMapException if the current value could not be read from disk.
      */
-    public void run() {
-        log.info("MegaMap-" + storeName + " persistence thread started.");
+    public V replace(K key, V value) throws MegaMapException {
+        checkNotNull(key, value);
+        ReentrantLock lock = lockFor(key);
+        lock.lock();
         try {
-            while (true) {
-                CacheAction action = null;
-                synchronized (cacheQueue) {
-                    while (cacheQueue.isEmpty() && running) {
-                        cacheQueue.wait();
-                    }
-                    if (!running && cacheQueue.isEmpty()) {
-                        // shut down!
-                        break;
-                    } else {
-                        action = (CacheAction) cacheQueue.remove();
-                    }
-                }
-                // Element will be null if store was shutdown.
-                if (action != null) {
-                    log.trace("Background thread is running an action...");
-                    if (action.getActionType() == CacheAction.ACTION_TYPE_PUT) {
-                        Element element = new Element(action.getKey(), action.getValue());
-                        cache.put(element);
-                        log.trace("Put object in disk cache: '" + action.getKey() + "'.");
-                    } else {
-                        cache.remove(action.getKey());
-                        log.trace("Removed object from disk cache: '" + action.getKey() + "'.");
-                    }
-                    log.trace("... background thread action complete.");
+            V oldValue = load(key);
+            if (oldValue != null) {
+                store(key, value);
+            }
+            return oldValue;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * If the key is not already associated with a value, computes one and stores it.
+     *
+     * @throws MegaMapException if the current value could not be read from disk.
+     */
+    public V computeIfAbsent(K key, Function<? super K, ? extends V> mappingFunction) throws MegaMapException {
+        if (key == null || mappingFunction == null) {
+            throw new NullPointerException();
+        }
+        ReentrantLock lock = lockFor(key);
+        lock.lock();
+        try {
+            V value = load(key);
+            if (value == null) {
+                value = mappingFunction.apply(key);
+                if (value != null) {
+                    store(key, value);
                 }
             }
-        } catch (InterruptedException e) {
-            log.warn("MegaMap-" + storeName + " persistence thread interrupted.", e);
+            return value;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * If the key is associated with a value, computes a new one from it. The entry is removed if the function
+     * returns <code>null</code>.
+     *
+     * @throws MegaMapException if the current value could not be read from disk.
+     */
+    public V computeIfPresent(K key, BiFunction<? super K, ? super V, ? extends V> remappingFunction)
+            throws MegaMapException {
+        if (key == null || remappingFunction == null) {
+            throw new NullPointerException();
+        }
+        if (!keySet.contains(key)) {
+            return null;
+        }
+        ReentrantLock lock = lockFor(key);
+        lock.lock();
+        try {
+            V oldValue = load(key);
+            if (oldValue == null) {
+                return null;
+            }
+            return update(key, remappingFunction.apply(key, oldValue));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Computes a new value for the key from its current value (or <code>null</code> if there is none).
+     * The entry is removed if the function returns <code>null</code>.
+     *
+     * @throws MegaMapException if the current value could not be read from disk.
+     */
+    public V compute(K key, BiFunction<? super K, ? super V, ? extends V> remappingFunction)
+            throws MegaMapException {
+        if (key == null || remappingFunction == null) {
+            throw new NullPointerException();
+        }
+        ReentrantLock lock = lockFor(key);
+        lock.lock();
+        try {
+            V oldValue = load(key);
+            V newValue = remappingFunction.apply(key, oldValue);
+            if (newValue == null && oldValue == null) {
+                return null;
+            }
+            return update(key, newValue);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stores the given value if the key is not associated with a value, otherwise combines the current value with
+     * it. The entry is removed if the function returns <code>null</code>.
+     *
+     * @throws MegaMapException if the current value could not be read from disk.
+     */
+    public V merge(K key, V value, BiFunction<? super V, ? super V, ? extends V> remappingFunction)
+            throws MegaMapException {
+        checkNotNull(key, value);
+        if (remappingFunction == null) {
+            throw new NullPointerException();
+        }
+        ReentrantLock lock = lockFor(key);
+        lock.lock();
+        try {
+            V oldValue = load(key);
+            V newValue = (oldValue == null) ? value : remappingFunction.apply(oldValue, value);
+            return update(key, newValue);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns a live view of the keys. Removing from the view removes from the MegaMap; adding is not supported.
+     *
+     * @see #getKeys()
+     */
+    public Set<K> keySet() {
+        if (keySetView == null) {
+            keySetView = new KeySetView();
+        }
+        return keySetView;
+    }
+
+    /**
+     * Returns a live view of the values. Iterating over it loads every value that is no longer in memory from disk.
+     */
+    public Collection<V> values() {
+        if (valuesView == null) {
+            valuesView = new ValuesView();
+        }
+        return valuesView;
+    }
+
+    /**
+     * Returns a live view of the mappings. Iterating over it loads every value that is no longer in memory from
+     * disk.
+     */
+    public Set<Map.Entry<K, V>> entrySet() {
+        if (entrySetView == null) {
+            entrySetView = new EntrySetView();
+        }
+        return entrySetView;
+    }
+
+    /**
+     * Gets the value for the given key if it is still held in memory.
+     *
+     * @return the value, or <code>null</code> if it is not in memory (either never stored or cleared by the garbage
+     *         collector).
+     */
+    private V getFromMemory(Object key) {
+        if (valueCache != null) {
+            V value = valueCache.get(key);
+            if (value == null) {
+                value = pending.get(key);
+            }
+            return value;
+        }
+        SoftValue<K, V> ref = softMap.get(key);
+        if (ref == null) {
+            return null;
+        }
+        return ref.get();
+    }
+
+    /**
+     * Keeps a value that has just been stored in memory. Must be called with the stripe of the key held.
+     */
+    private void remember(K key, V value) {
+        if (valueCache != null) {
+            pending.put(key, value);
+            valueCache.put(key, value);
+            writeCounts.incrementAndGet(stripeOf(key));
+        } else {
+            softMap.put(key, new SoftValue<K, V>(key, value, softQueue));
+        }
+    }
+
+    /**
+     * Drops the value of a key that has just been removed from memory. Must be called with the stripe of the key
+     * held.
+     */
+    private void forget(K key) {
+        if (valueCache != null) {
+            pending.remove(key);
+            valueCache.remove(key);
+            writeCounts.incrementAndGet(stripeOf(key));
+        } else {
+            softMap.remove(key);
+        }
+    }
+
+    /**
+     * Puts a value read from disk into the value cache, unless its key has been written since the read started,
+     * in which case the value may be out of date.
+     *
+     * @param writeCount the write count of the stripe of the key before the read.
+     */
+    private void admit(K key, V value, long writeCount) {
+        ReentrantLock lock = lockFor(key);
+        lock.lock();
+        try {
+            if (writeCounts.get(stripeOf(key)) == writeCount) {
+                valueCache.put(key, value);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gets the value for the given key from the disk cache. Only reached once the value has been written, see
+     * {@link SoftValue} and {@link #pending}: a value still queued is always found in memory.
+     */
+    private V getFromDisk(Object key) throws MegaMapException {
+        if (!(key instanceof Serializable)) {
+            return null;
+        }
+        try {
+            Element element = cache.get((Serializable) key);
+            if (element != null) {
+                log.trace("Found in disk cache.");
+                return (V) element.getValue();
+            }
+            return null;
+        } catch (CacheException ce) {
+            throw new MegaMapException("Exception while getting", ce);
+        }
+    }
+
+    /**
+     * Gets the current value for a key, from memory if possible and otherwise from disk.
+     * The disk is not touched if the key is not stored.
+     */
+    private V load(Object key) throws MegaMapException {
+        if (!keySet.contains(key)) {
+            return null;
+        }
+        long writeCount = valueCache == null ? 0 : writeCounts.get(stripeOf(key));
+        V value = getFromMemory(key);
+        if (value == null) {
+            memoryMisses.increment();
+            value = getFromDisk(key);
+            if (value != null && valueCache != null) {
+                admit((K) key, value, writeCount);
+            }
+        } else {
+            memoryHits.increment();
+            log.trace("Found in memory cache.");
         }
-        log.info("MegaMap-" + storeName + " persistence thread shutting down.");
-        synchronized (this) {
-            finishedRunning = true;
-            notify();
+        return value;
+    }
+
+    /**
+     * Stores a new value, or removes the key if it is <code>null</code>. Must be called with the stripe of the
+     * key held.
+     *
+     * @return the new value.
+     */
+    private V update(K key, V newValue) {
+        if (newValue == null) {
+            erase(key);
+        } else {
+            store(key, newValue);
+        }
+        return newValue;
+    }
+
+    /**
+     * Encodes a new value for the disk store. This is the only time the value is encoded: the bytes are written to
+     * the data file as they are.
+     *
+     * @throws MegaMapException if the key or value cannot be encoded.
+     */
+    private byte[] encode(K key, V value) throws MegaMapException {
+        try {
+            return cache.encode(key, value);
+        } catch (CacheException ce) {
+            throw new MegaMapException("Exception while encoding", ce);
+        }
+    }
+
+    /**
+     * Stores a value in memory and hands it to its persistence queue. Must be called with the stripe of the key
+     * held.
+     */
+    private void store(K key, V value) {
+        store(key, value, null);
+    }
+
+    /**
+     * Stores a value as {@link #store(Serializable, Serializable)} does, completing the given future, if any, once
+     * the value has been written to the disk store file.
+     */
+    private void store(K key, V value, CompletableFuture<Void> completion) {
+        CacheAction action = CacheAction.createPutAction(key, value, encode(key, value));
+        if (completion != null) {
+            action.addCompletion(completion);
+        }
+        // Enqueue while still holding the stripe so that actions on a key reach the queue in order, and before
+        // touching memory so that a rejected write leaves the MegaMap unchanged
+        queueFor(key).add(action);
+        purge();
+        remember(key, value);
+        keySet.add(key);
+    }
+
+    /**
+     * Removes a key from memory and hands the removal to its persistence queue. Must be called with the stripe of
+     * the key held.
+     */
+    private void erase(K key) {
+        erase(key, null);
+    }
+
+    /**
+     * Removes a key as {@link #erase(Serializable)} does, completing the given future, if any, once the removal
+     * has reached the disk store.
+     */
+    private void erase(K key, CompletableFuture<Void> completion) {
+        CacheAction action = CacheAction.createRemoveAction(key);
+        if (completion != null) {
+            action.addCompletion(completion);
+        }
+        queueFor(key).add(action);
+        purge();
+        forget(key);
+        keySet.remove(key);
+    }
+
+    /**
+     * Removes the entries whose values have been cleared by the garbage collector from the memory cache.
+     * The key is only removed if it still maps to the cleared reference, so a concurrent put is never lost.
+     */
+    private void purge() {
+        SoftValue<K, V> ref;
+        while ((ref = (SoftValue<K, V>) softQueue.poll()) != null) {
+            softMap.remove(ref.getKey(), ref);
+        }
+    }
+
+    /**
+     * Gets the lock stripe guarding writes to the given key.
+     */
+    private ReentrantLock lockFor(K key) {
+        return locks[stripeOf(key)];
+    }
+
+    private static int stripeOf(Object key) {
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return h & (LOCK_STRIPES - 1);
+    }
+
+    /**
+     * Gets the persistence queue that writes to the given key go through. All the keys of a stripe share a queue.
+     */
+    private PersistenceQueue queueFor(K key) {
+        return queues[partitionOf(key)];
+    }
+
+    private int partitionOf(Object key) {
+        return stripeOf(key) % queues.length;
+    }
+
+    /**
+     * Locks the stripes of all the given keys, in stripe order so that two batches cannot deadlock.
+     *
+     * @return the set of stripes locked, as a bit mask to pass to {@link #unlockAll}.
+     */
+    private long lockAll(Collection<? extends K> keys) {
+        long stripes = 0L;
+        for (K key : keys) {
+            stripes |= 1L << stripeOf(key);
+        }
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            if ((stripes & (1L << i)) != 0) {
+                locks[i].lock();
+            }
+        }
+        return stripes;
+    }
+
+    private void unlockAll(long stripes) {
+        for (int i = LOCK_STRIPES - 1; i >= 0; i--) {
+            if ((stripes & (1L << i)) != 0) {
+                locks[i].unlock();
+            }
+        }
+    }
+
+    private static void checkNotNull(Object key, Object value) {
+        if (key == null || value == null) {
+            throw new NullPointerException();
+        }
+    }
+
+    private void init(CacheManager manager, boolean persistent, int persistenceThreads,
+            ScheduledExecutorService scheduler, Executor persistenceExecutor, boolean offHeapKeyIndex,
+            boolean bloomFilter, Codec keyCodec, Codec valueCodec, Compressor compressor, boolean memoryMapped,
+            boolean logStructured) throws CacheException {
+        queues = new PersistenceQueue[persistenceThreads];
+        for (int i = 0; i < persistenceThreads; i++) {
+            queues[i] = new PersistenceQueue(this, persistenceExecutor);
+        }
+        softMap = new ConcurrentHashMap<K, SoftValue<K, V>>();
+        softQueue = new ReferenceQueue<V>();
+        if (offHeapKeyIndex) {
+            keySet = new OffHeapKeySet<K>(bloomFilter, keyCodec);
+        } else {
+            keySet = ConcurrentHashMap.newKeySet();
+        }
+        locks = new ReentrantLock[LOCK_STRIPES];
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            locks[i] = new ReentrantLock();
+        }
+        // No memory store: values are kept in memory by the soft map, and a disk-only cache lets the persistence
+        // queues write to the disk store without contending for the cache lock
+        cache = new Cache(storeName, 0, true, true, 0L, 0L, persistent, 2147483647L);
+        cache.setExecutor(scheduler);
+        cache.setOffHeapIndex(offHeapKeyIndex);
+        cache.setBloomFilter(bloomFilter);
+        cache.setKeyCodec(keyCodec);
+        cache.setValueCodec(valueCodec);
+        cache.setCompressor(compressor);
+        cache.setMemoryMapped(memoryMapped);
+        cache.setLogStructured(logStructured);
+        manager.addCache(cache);
+        if (persistent) {
+            // Keys persisted by a previous VM are only known to the disk cache. They are streamed into the key set
+            // rather than copied through a list, so an off-heap key set is filled without the keys piling up
+            cache.visitDiskStoreKeys(key -> keySet.add((K) key));
+        }
+    }
+
+    /**
+     * Cannot be called directly. Use {@link MegaMapManager#removeMegaMap(java.lang.String)} to shut down a
+     * specific MegaMap cleanly or {@link MegaMapManager#shutdown()} to shutdown all MegaMaps cleanly.
+     */
+    synchronized void shutdown() {
+        try {
+            for (int i = 0; i < queues.length; i++) {
+                queues[i].awaitDrained();
+            }
+        } catch (InterruptedException ie) {
+            // Ignore
+        }
+    }
+
+
+    /**
+     * Gets all the keys stored in the MegaMap.
+     * <p/>
+     * The keys are copied into a new set on the heap, which takes time and memory in proportion to the size of
+     * the MegaMap, even if its keys are held off the heap. Use {@link #keySet()} to walk the keys without copying
+     * them.
+     *
+     * @return a set of all Keys. This set is not "live", it may be modified without fear of damaging the MegaMap.
+     * @see #keySet()
+     */
+    public Set<K> getKeys() {
+        return new HashSet<K>(keySet);
+    }
+
+    /**
+     * Gets the name of the MegaMap.
+     */
+    public String getName() {
+        return storeName;
+    }
+
+    /**
+     * Gets the limit on the encoded size of the values waiting to be written to disk. The limit is shared
+     * equally between the persistence queues.
+     *
+     * @return the limit in bytes, or <code>0</code> if the queue is unbounded.
+     */
+    public long getPersistenceQueueLimit() {
+        return persistenceQueueLimit;
+    }
+
+    /**
+     * Sets the limit on the encoded size of the values waiting to be written to disk. Defaults to a quarter of
+     * the maximum heap size.
+     * <p/>
+     * Puts are counted by the size of the keys and values as encoded for the disk store, removes by the estimated
+     * size of their keys.
+     *
+     * @param limit the limit in bytes, or <code>0</code> for an unbounded queue.
+     */
+    public void setPersistenceQueueLimit(long limit) {
+        persistenceQueueLimit = limit;
+        limitChanged();
+    }
+
+    /**
+     * Gets the policy applied to writes that do not fit in the persistence queue.
+     *
+     * @return one of {@link #OVERFLOW_BLOCK}, {@link #OVERFLOW_CALLER_RUNS} or {@link #OVERFLOW_FAIL}.
+     */
+    public int getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    /**
+     * Sets the policy applied to writes that do not fit in the persistence queue.
+     *
+     * @param policy one of {@link #OVERFLOW_BLOCK}, {@link #OVERFLOW_CALLER_RUNS} or {@link #OVERFLOW_FAIL}.
+     */
+    public void setOverflowPolicy(int policy) {
+        if (policy != OVERFLOW_BLOCK && policy != OVERFLOW_CALLER_RUNS && policy != OVERFLOW_FAIL) {
+            throw new IllegalArgumentException("Unknown overflow policy " + policy);
+        }
+        overflowPolicy = policy;
+        limitChanged();
+    }
+
+    private void limitChanged() {
+        for (int i = 0; i < queues.length; i++) {
+            queues[i].limitChanged();
+        }
+    }
+
+    /**
+     * Stores the contents of a stream under a key, for values too large to hold in memory. The stream is written
+     * straight to disk as it is read, through a bounded buffer, and is not queued like the values of the map.
+     * <p/>
+     * Streams are kept apart from the values of the map: a key may have both a value and a stream, and streams are
+     * not counted by {@link #size}. Read them back with {@link #openStream} or {@link #getRange}.
+     *
+     * @param in the stream, which is read to its end but not closed.
+     * @return the number of bytes stored.
+     * @throws MegaMapException if the stream could not be read or written to disk.
+     */
+    public long putStream(K key, InputStream in) throws MegaMapException {
+        if (key == null || in == null) {
+            throw new NullPointerException();
+        }
+        try {
+            return cache.putStream(key, in);
+        } catch (IOException e) {
+            throw new MegaMapException("Exception while storing a stream", e);
+        } catch (CacheException ce) {
+            throw new MegaMapException("Exception while storing a stream", ce);
+        }
+    }
+
+    /**
+     * Opens a stream stored with {@link #putStream}. It is read from disk a block at a time as it is consumed.
+     * Reading it fails if the stream is replaced or removed meanwhile.
+     *
+     * @return the stream, or <code>null</code> if there is no stream under the key.
+     */
+    public InputStream openStream(K key) throws MegaMapException {
+        try {
+            return cache.openStream(key);
+        } catch (CacheException ce) {
+            throw new MegaMapException("Exception while opening a stream", ce);
+        }
+    }
+
+    /**
+     * Reads part of a stream stored with {@link #putStream}.
+     *
+     * @param offset the offset in the stream of the first byte to read.
+     * @param length the number of bytes to read.
+     * @return the bytes, fewer than asked for if the stream ends first, or <code>null</code> if there is no
+     *         stream under the key.
+     */
+    public byte[] getRange(K key, long offset, int length) throws MegaMapException {
+        try {
+            return cache.getRange(key, offset, length);
+        } catch (IOException e) {
+            throw new MegaMapException("Exception while reading a stream", e);
+        } catch (CacheException ce) {
+            throw new MegaMapException("Exception while reading a stream", ce);
+        }
+    }
+
+    /**
+     * Gets the length of a stream stored with {@link #putStream}.
+     *
+     * @return the length in bytes, or -1 if there is no stream under the key.
+     */
+    public long getStreamLength(K key) throws MegaMapException {
+        try {
+            return cache.getStreamLength(key);
+        } catch (CacheException ce) {
+            throw new MegaMapException("Exception while reading a stream", ce);
+        }
+    }
+
+    /**
+     * Removes a stream stored with {@link #putStream}.
+     *
+     * @return <code>true</code> if there was a stream under the key.
+     */
+    public boolean removeStream(K key) throws MegaMapException {
+        try {
+            return cache.removeStream(key);
+        } catch (CacheException ce) {
+            throw new MegaMapException("Exception while removing a stream", ce);
+        }
+    }
+
+    /**
+     * Gets the number of persistence queues of this MegaMap, which is the number of threads that may write it to
+     * disk at once.
+     */
+    public int getPersistenceThreads() {
+        return queues.length;
+    }
+
+    /**
+     * Gets the number of actions waiting to be applied to the disk cache.
+     */
+    public int getPersistenceBacklog() {
+        int backlog = 0;
+        for (int i = 0; i < queues.length; i++) {
+            backlog += queues[i].size();
+        }
+        return backlog;
+    }
+
+    /**
+     * Gets the size, in bytes, of the encoded keys and values waiting to be written to the disk cache.
+     */
+    public long getPersistenceBacklogBytes() {
+        long bytes = 0;
+        for (int i = 0; i < queues.length; i++) {
+            bytes += queues[i].getBytes();
+        }
+        return bytes;
+    }
+
+    /**
+     * Gets the number of writes that never reached the disk cache because a newer put or remove of the same key
+     * replaced them while they were waiting in the persistence queue.
+     */
+    public long getCoalescedWrites() {
+        long coalesced = 0;
+        for (int i = 0; i < queues.length; i++) {
+            coalesced += queues[i].getCoalescedWrites();
+        }
+        return coalesced;
+    }
+
+    /**
+     * Gets the number of lookups of stored keys that found the value in memory.
+     */
+    public long getMemoryHitCount() {
+        return memoryHits.sum();
+    }
+
+    /**
+     * Gets the number of lookups of stored keys that had to read the value from disk.
+     */
+    public long getMemoryMissCount() {
+        return memoryMisses.sum();
+    }
+
+    /**
+     * Gets the compression ratio of the values written to disk: their encoded size divided by their compressed
+     * size (see {@link MegaMapManager#setCompressor}).
+     *
+     * @return the ratio, 1 if the MegaMap does not compress.
+     */
+    public double getCompressionRatio() {
+        return cache.getCompressionRatio();
+    }
+
+    /**
+     * Gets the weight of the values held in memory by a MegaMap whose memory is limited: their number, or their
+     * estimated size in bytes, depending on the limit (see {@link MegaMapManager#setMaxValuesInMemory} and
+     * {@link MegaMapManager#setMaxValueBytesInMemory}). Values waiting to be written are not counted.
+     *
+     * @return the weight, or -1 if the memory of the MegaMap is not limited.
+     */
+    public long getMemoryWeight() {
+        return valueCache == null ? -1 : valueCache.getWeight();
+    }
+
+    /**
+     * Writes the elements waiting in the disk store spool to the disk store file. Called by the
+     * {@link PersistenceQueue} before completing the futures of the actions it has applied.
+     */
+    void flush() {
+        try {
+            cache.flush();
+        } catch (CacheException ce) {
+            throw new MegaMapException("Exception while flushing to disk", ce);
+        }
+    }
+
+    /**
+     * Releases a value that has reached the disk store, and so can be read back from it even if the value cache
+     * has evicted it. The value is only released if it has not been replaced since.
+     */
+    private void written(CacheAction put) {
+        if (pending != null) {
+            pending.remove(put.getKey(), put.getValue());
+        }
+    }
+
+    /**
+     * Applies a queued action to the disk cache. Called by the {@link PersistenceQueue}, one action at a time.
+     * <p/>
+     * Puts carry their elements already encoded, and the encoded bytes are spooled and written as they are.
+     */
+    void apply(CacheAction action) {
+        log.trace("Background thread is running an action...");
+        if (action.getActionType() == CacheAction.ACTION_TYPE_PUT) {
+            try {
+                cache.putEncoded(action.getKey(), action.getRecord());
+            } catch (CacheException ce) {
+                throw new MegaMapException("Exception while writing to disk", ce);
+            }
+            written(action);
+            log.trace("Put object in disk cache: '" + action.getKey() + "'.");
+        } else if (action.getActionType() == CacheAction.ACTION_TYPE_BATCH) {
+            if (!action.getBatchRemoves().isEmpty()) {
+                try {
+                    cache.removeAll(action.getBatchRemoves());
+                } catch (CacheException ce) {
+                    throw new MegaMapException("Exception while removing from disk", ce);
+                }
+            }
+            if (!action.getBatchPuts().isEmpty()) {
+                Map<Serializable, byte[]> records = new HashMap<Serializable, byte[]>();
+                for (CacheAction put : action.getBatchPuts()) {
+                    records.put(put.getKey(), put.getRecord());
+                }
+                try {
+                    cache.putAllEncoded(records);
+                } catch (CacheException ce) {
+                    throw new MegaMapException("Exception while writing to disk", ce);
+                }
+                for (CacheAction put : action.getBatchPuts()) {
+                    written(put);
+                }
+            }
+            log.trace("Applied batch of " + action.getBatchPuts().size() + " puts and "
+                    + action.getBatchRemoves().size() + " removes to disk cache.");
+        } else {
+            try {
+                cache.remove(action.getKey());
+            } catch (CacheException ce) {
+                throw new MegaMapException("Exception while removing from disk", ce);
+            }
+            log.trace("Removed object from disk cache: '" + action.getKey() + "'.");
+        }
+        log.trace("... background thread action complete.");
+    }
+
+    /**
+     * Iterates over the live key set, removing through the MegaMap.
+     */
+    private class KeyIterator implements Iterator<K> {
+
+        private final Iterator<K> iterator = keySet.iterator();
+        private K lastKey;
+
+        public boolean hasNext() {
+            return iterator.hasNext();
+        }
+
+        public K next() {
+            lastKey = iterator.next();
+            return lastKey;
+        }
+
+        public void remove() {
+            if (lastKey == null) {
+                throw new IllegalStateException();
+            }
+            delete(lastKey);
+            lastKey = null;
+        }
+    }
+
+    /**
+     * Iterates over the mappings, loading each value as it is reached. Keys removed since the iteration started
+     * are skipped.
+     */
+    private class EntryIterator implements Iterator<Map.Entry<K, V>> {
+
+        private final KeyIterator keys = new KeyIterator();
+        private Map.Entry<K, V> nextEntry;
+        private K lastKey;
+
+        public boolean hasNext() {
+            while (nextEntry == null && keys.hasNext()) {
+                K key = keys.next();
+                V value = get(key);
+                if (value != null) {
+                    nextEntry = new MegaMapEntry(key, value);
+                }
+            }
+            return nextEntry != null;
+        }
+
+        public Map.Entry<K, V> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Map.Entry<K, V> entry = nextEntry;
+            nextEntry = null;
+            lastKey = entry.getKey();
+            return entry;
+        }
+
+        public void remove() {
+            // The key iterator may already have moved past the key of the last entry returned
+            if (lastKey == null) {
+                throw new IllegalStateException();
+            }
+            delete(lastKey);
+            lastKey = null;
+        }
+    }
+
+    /**
+     * A mapping whose {@link #setValue} writes through to the MegaMap.
+     */
+    private class MegaMapEntry extends AbstractMap.SimpleEntry<K, V> {
+
+        public MegaMapEntry(K key, V value) {
+            super(key, value);
+        }
+
+        public V setValue(V value) {
+            set(getKey(), value);
+            return super.setValue(value);
+        }
+    }
+
+    private class KeySetView extends AbstractSet<K> {
+
+        public Iterator<K> iterator() {
+            return new KeyIterator();
+        }
+
+        public int size() {
+            return MegaMap.this.size();
+        }
+
+        public boolean contains(Object o) {
+            return containsKey(o);
+        }
+
+        public boolean remove(Object o) {
+            if (!containsKey(o)) {
+                return false;
+            }
+            delete((K) o);
+            return true;
+        }
+
+        public void clear() {
+            MegaMap.this.clear();
+        }
+    }
+
+    private class ValuesView extends AbstractCollection<V> {
+
+        public Iterator<V> iterator() {
+            final EntryIterator entries = new EntryIterator();
+            return new Iterator<V>() {
+                public boolean hasNext() {
+                    return entries.hasNext();
+                }
+
+                public V next() {
+                    return entries.next().getValue();
+                }
+
+                public void remove() {
+                    entries.remove();
+                }
+            };
+        }
+
+        public int size() {
+            return MegaMap.this.size();
+        }
+
+        public void clear() {
+            MegaMap.this.clear();
+        }
+    }
+
+    private class EntrySetView extends AbstractSet<Map.Entry<K, V>> {
+
+        public Iterator<Map.Entry<K, V>> iterator() {
+            return new EntryIterator();
+        }
+
+        public int size() {
+            return MegaMap.this.size();
+        }
+
+        public boolean contains(Object o) {
+            if (!(o instanceof Map.Entry)) {
+                return false;
+            }
+            Map.Entry<?, ?> entry = (Map.Entry<?, ?>) o;
+            V value = get(entry.getKey());
+            return value != null && value.equals(entry.getValue());
+        }
+
+        public boolean remove(Object o) {
+            if (!(o instanceof Map.Entry)) {
+                return false;
+            }
+            Map.Entry<?, ?> entry = (Map.Entry<?, ?>) o;
+            return MegaMap.this.remove(entry.getKey(), entry.getValue());
+        }
+
+        public void clear() {
+            MegaMap.this.clear();
         }
     }
 
@@ -17,13 +17,13 @@
 package com.larvalabs.megamap;
 
 /**
- * Created by IntelliJ IDEA.
- * User: jwat
- * Date: Jan 24, 2005
- * Time: 3:15:33 PM
- * To change this template use File | Settings | File Templates.
+ * Thrown when a MegaMap cannot be created or its disk cache cannot be read.
+ * <p/>
+ * This is an unchecked exception so that {@link MegaMap} can implement {@link java.util.Map}.
+ *
+ * @author John Watkinson
  */
-public class MegaMapException extends Exception {
+public class MegaMapException extends RuntimeException {
 
     public MegaMapException(String s) {
         super(s);
@@ -16,17 +16,42 @@
 
 package com.larvalabs.megamap;
 
+import net.sf.ehcache.Cache;
 import net.sf.ehcache.CacheManager;
 import net.sf.ehcache.CacheException;
+import net.sf.ehcache.codec.Codec;
+import net.sf.ehcache.codec.Compressor;
+import net.sf.ehcache.codec.TaggedCodec;
+import net.sf.ehcache.store.DiskStore;
+import net.sf.ehcache.store.LogStore;
 
 import java.util.Map;
 import java.util.HashMap;
 import java.util.Collection;
 import java.util.Iterator;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.io.File;
+import java.io.Serializable;
 
 /**
  * This the user's entry point to creating and managing MegaMaps.
+ * <p/>
+ * All the MegaMaps of the manager share one bounded pool of threads, which writes them to disk and expires their
+ * disk stores (see {@link #setSchedulerPoolSize}). Work is queued in the order it arrives and each MegaMap gives
+ * its thread back after a short batch of writes, so the pool is shared fairly between busy MegaMaps.
+ * <p/>
+ * On Java 21 and later, MegaMaps may instead be written to disk by virtual threads (see {@link #setVirtualThreads}).
+ * <p/>
+ * Maps keyed by <code>long</code>s or <code>int</code>s are better created as a {@link LongMegaMap} or an
+ * {@link IntMegaMap}, which keep their keys unboxed. They share the names of MegaMaps, so no two maps of any kind
+ * may have the same name.
  *
  * @see #createMegaMap(String, boolean, boolean)
  * @see #createMegaMap(String, String, boolean, boolean)
@@ -37,6 +62,7 @@ public class MegaMapManager {
 
     private static final String STORE_SUFFIX = ".data";
     private static final String INDEX_SUFFIX = ".index";
+    private static final String DELTA_SUFFIX = ".delta";
 
     private static MegaMapManager instance;
     private static final String SYSTEM_TEMP_DIR = "java.io.tmpdir";
@@ -56,10 +82,28 @@ public class MegaMapManager {
     }
 
     private Map maps;
+    private Map longMaps;
     private CacheManager manager;
+    private int persistenceThreads = 1;
+    private int schedulerPoolSize = Math.max(2, Runtime.getRuntime().availableProcessors());
+    private ScheduledThreadPoolExecutor scheduler;
+    private boolean virtualThreads;
+    private boolean offHeapKeyIndex;
+    private boolean bloomFilter;
+    private long valueLimit;
+    private boolean valueLimitInBytes;
+    private Codec keyCodec = new TaggedCodec();
+    private Codec valueCodec = new TaggedCodec();
+    private Compressor compressor;
+    private boolean memoryMapped;
+    private boolean logStructured;
+    private ExecutorService virtualThreadExecutor;
+    private int ioPoolSize = Math.max(4, 2 * Runtime.getRuntime().availableProcessors());
+    private ThreadPoolExecutor ioExecutor;
 
     private MegaMapManager() throws MegaMapException {
         maps = new HashMap();
+        longMaps = new HashMap();
         try {
             manager = CacheManager.create();
         } catch (CacheException e) {
@@ -76,6 +120,342 @@ public class MegaMapManager {
         manager.setDiskStorePath(diskStorePath);
     }
 
+    /**
+     * Sets the number of threads of the shared pool that may write each MegaMap to disk at once. Keys are split
+     * between them by hash, so writes to different keys are serialized and written in parallel while writes to the
+     * same key stay in order. Only applies to MegaMaps created after the call. Defaults to 1.
+     *
+     * @throws IllegalArgumentException if <code>persistenceThreads</code> is less than 1.
+     */
+    public synchronized void setPersistenceThreads(int persistenceThreads) {
+        if (persistenceThreads < 1) {
+            throw new IllegalArgumentException("A MegaMap needs at least one persistence thread");
+        }
+        this.persistenceThreads = persistenceThreads;
+    }
+
+    /**
+     * Gets the number of threads that will write each newly created MegaMap to disk.
+     */
+    public synchronized int getPersistenceThreads() {
+        return persistenceThreads;
+    }
+
+    /**
+     * Sets the number of threads in the pool shared by all the MegaMaps of the manager. May be changed at any time.
+     * Defaults to the number of processors, and at least 2.
+     *
+     * @throws IllegalArgumentException if <code>poolSize</code> is less than 1.
+     */
+    public synchronized void setSchedulerPoolSize(int poolSize) {
+        if (poolSize < 1) {
+            throw new IllegalArgumentException("The scheduler needs at least one thread");
+        }
+        schedulerPoolSize = poolSize;
+        if (scheduler != null) {
+            scheduler.setCorePoolSize(poolSize);
+        }
+    }
+
+    /**
+     * Gets the number of threads in the pool shared by all the MegaMaps of the manager.
+     */
+    public synchronized int getSchedulerPoolSize() {
+        return schedulerPoolSize;
+    }
+
+    /**
+     * Sets whether MegaMaps are written to disk by virtual threads rather than by the shared pool. Only applies to
+     * MegaMaps created after the call. Disk store spooling and expiry stay on the shared pool. Defaults to
+     * <code>false</code>.
+     * <p/>
+     * The disk path of a MegaMap is guarded by locks rather than monitors, so application threads reading a
+     * MegaMap from virtual threads park while they wait for the disk instead of pinning their carrier thread.
+     *
+     * @throws UnsupportedOperationException if <code>virtualThreads</code> is <code>true</code> and the JVM does
+     *                                       not have virtual threads (they need Java 21 or later).
+     */
+    public synchronized void setVirtualThreads(boolean virtualThreads) {
+        if (virtualThreads && !VirtualThreads.isSupported()) {
+            throw new UnsupportedOperationException("Virtual threads need Java 21 or later");
+        }
+        this.virtualThreads = virtualThreads;
+    }
+
+    /**
+     * Gets whether newly created MegaMaps are written to disk by virtual threads.
+     */
+    public synchronized boolean isVirtualThreads() {
+        return virtualThreads;
+    }
+
+    /**
+     * Sets whether MegaMaps keep their keys outside the Java heap, both the set of keys of the MegaMap and the
+     * index of its disk store, so that a MegaMap can hold far more keys than the heap could. Only applies to
+     * MegaMaps created after the call. Defaults to <code>false</code>.
+     * <p/>
+     * Keys are held serialized and matched by their serialized form, so equal keys must serialize to the same
+     * bytes, as Strings and boxed primitives do. Every lookup serializes its key. The off-heap memory used is
+     * bounded by <code>-XX:MaxDirectMemorySize</code>.
+     */
+    public synchronized void setOffHeapKeyIndex(boolean offHeapKeyIndex) {
+        this.offHeapKeyIndex = offHeapKeyIndex;
+    }
+
+    /**
+     * Gets whether newly created MegaMaps keep their keys outside the Java heap.
+     */
+    public synchronized boolean isOffHeapKeyIndex() {
+        return offHeapKeyIndex;
+    }
+
+    /**
+     * Sets whether MegaMaps keep Bloom filters of their keys, which tell that a key is absent without a lookup.
+     * Only applies to MegaMaps created after the call. Defaults to <code>false</code>.
+     * <p/>
+     * The disk store of a MegaMap gets a filter, saved with its index (see {@link Cache#setBloomFilter}). With
+     * {@link #setOffHeapKeyIndex off-heap keys}, the key set gets one too, so that looking up an absent key does not
+     * have to serialize it. The in-memory key set already answers for absent keys without touching the disk.
+     * <p/>
+     * Filters are built from the <code>hashCode</code>s of keys, which for persistent MegaMaps must be the same in
+     * every VM, as they are for Strings and boxed primitives.
+     */
+    public synchronized void setBloomFilter(boolean bloomFilter) {
+        this.bloomFilter = bloomFilter;
+    }
+
+    /**
+     * Gets whether newly created MegaMaps keep Bloom filters of their keys.
+     */
+    public synchronized boolean isBloomFilter() {
+        return bloomFilter;
+    }
+
+    /**
+     * Sets the codec with which MegaMaps write their keys to disk, in place of Java serialization. Only applies to
+     * MegaMaps created after the call. Defaults to a {@link TaggedCodec}, which writes Strings, byte arrays and boxed
+     * primitives directly and other keys with Java serialization.
+     * <p/>
+     * A persistent MegaMap must be loaded with the codecs that wrote it (see {@link Cache#setKeyCodec}).
+     */
+    public synchronized void setKeyCodec(Codec keyCodec) {
+        this.keyCodec = keyCodec;
+    }
+
+    /**
+     * Gets the codec with which newly created MegaMaps write their keys.
+     */
+    public synchronized Codec getKeyCodec() {
+        return keyCodec;
+    }
+
+    /**
+     * Sets the codec with which MegaMaps, LongMegaMaps and IntMegaMaps write their values to disk. Only applies to
+     * maps created after the call. Defaults to a {@link TaggedCodec}.
+     *
+     * @see #setKeyCodec
+     */
+    public synchronized void setValueCodec(Codec valueCodec) {
+        this.valueCodec = valueCodec;
+    }
+
+    /**
+     * Gets the codec with which newly created maps write their values.
+     */
+    public synchronized Codec getValueCodec() {
+        return valueCodec;
+    }
+
+    /**
+     * Sets the compressor with which MegaMaps compress the records of their disk stores, for instance a
+     * {@link net.sf.ehcache.codec.DeflateCompressor}. Only applies to MegaMaps created after the call. Defaults to
+     * <code>null</code>, no compression.
+     * <p/>
+     * Records that do not shrink by at least an eighth are stored uncompressed (see {@link Cache#setCompressor}).
+     * A persistent MegaMap holding compressed records must be loaded with the same compressor.
+     *
+     * @see MegaMap#getCompressionRatio
+     */
+    public synchronized void setCompressor(Compressor compressor) {
+        this.compressor = compressor;
+    }
+
+    /**
+     * Gets the compressor of newly created MegaMaps, or <code>null</code> if they do not compress.
+     */
+    public synchronized Compressor getCompressor() {
+        return compressor;
+    }
+
+    /**
+     * Sets whether MegaMaps map the data files of their disk stores into memory, so that values are read from disk
+     * without locking the store (see {@link Cache#setMemoryMapped}). Only applies to MegaMaps created after the
+     * call. Defaults to <code>false</code>.
+     */
+    public synchronized void setMemoryMapped(boolean memoryMapped) {
+        this.memoryMapped = memoryMapped;
+    }
+
+    /**
+     * Gets whether newly created MegaMaps map their data files into memory.
+     */
+    public synchronized boolean isMemoryMapped() {
+        return memoryMapped;
+    }
+
+    /**
+     * Sets whether MegaMaps keep their values in an append-only log, merged in the background, rather than in a
+     * data file rewritten in place (see {@link Cache#setLogStructured}). Only applies to MegaMaps created after the
+     * call. Defaults to <code>false</code>.
+     */
+    public synchronized void setLogStructured(boolean logStructured) {
+        this.logStructured = logStructured;
+    }
+
+    /**
+     * Gets whether newly created MegaMaps keep their values in a log.
+     */
+    public synchronized boolean isLogStructured() {
+        return logStructured;
+    }
+
+    /**
+     * Limits the number of values each MegaMap holds in memory. Rather than holding values by soft references until
+     * the garbage collector clears them, a MegaMap with a limit keeps them in a bounded cache, which admits and
+     * evicts values by how often their keys are used (W-TinyLFU), so its hit ratio does not depend on the garbage
+     * collector. Values that have not been written yet are held in memory as well, within the persistence queue
+     * limit. Only applies to MegaMaps created after the call. Replaces any limit in bytes.
+     *
+     * @param maxValues the maximum number of values, or 0 to hold values by soft references, the default.
+     * @throws IllegalArgumentException if <code>maxValues</code> is negative.
+     * @see #setMaxValueBytesInMemory
+     */
+    public synchronized void setMaxValuesInMemory(long maxValues) {
+        if (maxValues < 0) {
+            throw new IllegalArgumentException("The number of values in memory cannot be negative");
+        }
+        valueLimit = maxValues;
+        valueLimitInBytes = false;
+    }
+
+    /**
+     * Limits the estimated size in bytes of the keys and values each MegaMap holds in memory, as
+     * {@link #setMaxValuesInMemory} limits their number. Only applies to MegaMaps created after the call. Replaces
+     * any limit in number of values.
+     *
+     * @param maxBytes the maximum estimated size, or 0 to hold values by soft references, the default.
+     * @throws IllegalArgumentException if <code>maxBytes</code> is negative.
+     */
+    public synchronized void setMaxValueBytesInMemory(long maxBytes) {
+        if (maxBytes < 0) {
+            throw new IllegalArgumentException("The size of the values in memory cannot be negative");
+        }
+        valueLimit = maxBytes;
+        valueLimitInBytes = true;
+    }
+
+    /**
+     * Gets the maximum number of values newly created MegaMaps hold in memory, or 0 if they are not limited or are
+     * limited in bytes.
+     */
+    public synchronized long getMaxValuesInMemory() {
+        return valueLimitInBytes ? 0 : valueLimit;
+    }
+
+    /**
+     * Gets the maximum estimated size of the values newly created MegaMaps hold in memory, or 0 if they are not
+     * limited or are limited in number.
+     */
+    public synchronized long getMaxValueBytesInMemory() {
+        return valueLimitInBytes ? valueLimit : 0;
+    }
+
+    /**
+     * Sets the number of threads that read values from disk for {@link MegaMap#getAsync}. May be changed at any
+     * time. Defaults to twice the number of processors, and at least 4. Unused when MegaMaps are created with
+     * virtual threads, which then also do the reads.
+     *
+     * @throws IllegalArgumentException if <code>poolSize</code> is less than 1.
+     */
+    public synchronized void setIoPoolSize(int poolSize) {
+        if (poolSize < 1) {
+            throw new IllegalArgumentException("The I/O pool needs at least one thread");
+        }
+        ioPoolSize = poolSize;
+        if (ioExecutor != null) {
+            if (poolSize > ioExecutor.getMaximumPoolSize()) {
+                ioExecutor.setMaximumPoolSize(poolSize);
+                ioExecutor.setCorePoolSize(poolSize);
+            } else {
+                ioExecutor.setCorePoolSize(poolSize);
+                ioExecutor.setMaximumPoolSize(poolSize);
+            }
+        }
+    }
+
+    /**
+     * Gets the number of threads that read values from disk for {@link MegaMap#getAsync}.
+     */
+    public synchronized int getIoPoolSize() {
+        return ioPoolSize;
+    }
+
+    /**
+     * Gets the executor that reads values from disk for a newly created MegaMap. Its threads are daemons, as they
+     * hold no writes.
+     */
+    private Executor getIoExecutor() {
+        if (virtualThreads) {
+            return getPersistenceExecutor();
+        }
+        if (ioExecutor == null) {
+            final AtomicInteger threadNumber = new AtomicInteger();
+            ioExecutor = new ThreadPoolExecutor(ioPoolSize, ioPoolSize, 60L, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "MegaMap-io-" + threadNumber.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            ioExecutor.allowCoreThreadTimeOut(true);
+        }
+        return ioExecutor;
+    }
+
+    /**
+     * Gets the executor that runs the persistence of a newly created MegaMap.
+     */
+    private Executor getPersistenceExecutor() {
+        if (!virtualThreads) {
+            return getScheduler();
+        }
+        if (virtualThreadExecutor == null) {
+            virtualThreadExecutor = VirtualThreads.newExecutor();
+        }
+        return virtualThreadExecutor;
+    }
+
+    /**
+     * Gets the pool shared by all the MegaMaps, starting it if this is the first MegaMap.
+     * The threads are not daemons, so that writes still queued are not lost if the application exits without
+     * calling {@link #shutdown}.
+     */
+    private ScheduledThreadPoolExecutor getScheduler() {
+        if (scheduler == null) {
+            final AtomicInteger threadNumber = new AtomicInteger();
+            scheduler = new ScheduledThreadPoolExecutor(schedulerPoolSize, new ThreadFactory() {
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "MegaMap-scheduler-" + threadNumber.incrementAndGet());
+                    thread.setDaemon(false);
+                    return thread;
+                }
+            });
+            scheduler.setRemoveOnCancelPolicy(true);
+        }
+        return scheduler;
+    }
+
     /**
      * Throws an exception if the cache name is invalid.
      */
@@ -111,7 +491,8 @@ public class MegaMapManager {
      * @throws MegaMapException if a MegaMap by the name given already exists,
      * if the name given is invalid, or if the MegaMap is unable to write to the disk.
      */
-    public synchronized MegaMap createMegaMap(String name, boolean persistent, boolean overwriteOld) throws MegaMapException {
+    public synchronized <K extends Serializable, V extends Serializable> MegaMap<K, V> createMegaMap(String name,
+            boolean persistent, boolean overwriteOld) throws MegaMapException {
         return createMegaMap(name, null, persistent, overwriteOld);
     }
 
@@ -129,13 +510,12 @@ public class MegaMapManager {
      * @throws MegaMapException if a MegaMap by the name given already exists,
      * if the name given is invalid, or if the MegaMap is unable to write to the disk.
      */
-    public synchronized MegaMap createMegaMap(String name, String path, boolean persistent, boolean overwriteOld) throws MegaMapException {
+    public synchronized <K extends Serializable, V extends Serializable> MegaMap<K, V> createMegaMap(String name,
+            String path, boolean persistent, boolean overwriteOld) throws MegaMapException {
         // Validate name
         name = validateCacheName(name);
         // Ensure that it is not already in use
-        if (maps.get(name) != null) {
-            throw new MegaMapException("MegaMap with name '" + name + "' already exists!");
-        }
+        checkNameFree(name);
         // Overwrite old cache if necessary
         if (persistent && overwriteOld) {
             deleteMapFiles(path, name);
@@ -144,7 +524,9 @@ public class MegaMapManager {
         if (path != null) {
             manager.setDiskStorePath(path);
         }
-        MegaMap megaMap = new MegaMap(name, manager, persistent);
+        MegaMap<K, V> megaMap = new MegaMap<K, V>(name, manager, persistent, persistenceThreads,
+                getScheduler(), getPersistenceExecutor(), getIoExecutor(), offHeapKeyIndex, bloomFilter,
+                valueLimit, valueLimitInBytes, keyCodec, valueCodec, compressor, memoryMapped, logStructured);
         if (path != null) {
             manager.setDiskStorePath(oldPath);
         }
@@ -152,40 +534,146 @@ public class MegaMapManager {
         return megaMap;
     }
 
+    /**
+     * Creates a new LongMegaMap (or loads a persisted LongMegaMap from disk).
+     *
+     * @param name       the name of the LongMegaMap. Must consist of letters,
+     *                   numbers and the underscore character only (A-Z, a-z, 1-9, _).
+     * @param persistent if <code>true</code>, then will persist the map to disk between VM invocations.
+     *                   {@link #shutdown} should be called upon shutdown of the application, so that buffered
+     *                   writes reach the disk.
+     * @return the created LongMegaMap.
+     * @throws MegaMapException if a map by the name given already exists,
+     * if the name given is invalid, or if the LongMegaMap is unable to write to the disk.
+     */
+    public synchronized <V extends Serializable> LongMegaMap<V> createLongMegaMap(String name, boolean persistent,
+            boolean overwriteOld) throws MegaMapException {
+        return createLongMegaMap(name, null, persistent, overwriteOld);
+    }
+
+    /**
+     * Creates a new LongMegaMap (or loads a persisted LongMegaMap from disk) using the specified path for writing
+     * the LongMegaMap file.
+     *
+     * @param path the directory in which to write the LongMegaMap file.
+     * @see #createLongMegaMap(String, boolean, boolean)
+     */
+    public synchronized <V extends Serializable> LongMegaMap<V> createLongMegaMap(String name, String path,
+            boolean persistent, boolean overwriteOld) throws MegaMapException {
+        name = validateCacheName(name);
+        checkNameFree(name);
+        if (persistent && overwriteOld) {
+            deleteMapFiles(path, name);
+        }
+        LongMegaMap<V> longMegaMap = new LongMegaMap<V>(name, new File(getMapDirectory(path)), persistent,
+                valueCodec);
+        longMaps.put(name, longMegaMap);
+        return longMegaMap;
+    }
+
+    /**
+     * Creates a new IntMegaMap (or loads a persisted IntMegaMap from disk).
+     *
+     * @see #createLongMegaMap(String, boolean, boolean)
+     */
+    public synchronized <V extends Serializable> IntMegaMap<V> createIntMegaMap(String name, boolean persistent,
+            boolean overwriteOld) throws MegaMapException {
+        return createIntMegaMap(name, null, persistent, overwriteOld);
+    }
+
+    /**
+     * Creates a new IntMegaMap (or loads a persisted IntMegaMap from disk) using the specified path for writing
+     * the IntMegaMap file.
+     *
+     * @see #createLongMegaMap(String, String, boolean, boolean)
+     */
+    public synchronized <V extends Serializable> IntMegaMap<V> createIntMegaMap(String name, String path,
+            boolean persistent, boolean overwriteOld) throws MegaMapException {
+        return new IntMegaMap<V>(this.<V>createLongMegaMap(name, path, persistent, overwriteOld));
+    }
+
+    /**
+     * Retrieves a previously-created LongMegaMap.
+     * @param name the name of the LongMegaMap.
+     */
+    public synchronized <V extends Serializable> LongMegaMap<V> getLongMegaMap(String name) {
+        try {
+            name = validateCacheName(name);
+        } catch (MegaMapException e) {
+            return null;
+        }
+        return (LongMegaMap<V>) longMaps.get(name);
+    }
+
+    /**
+     * Retrieves a previously-created IntMegaMap.
+     * @param name the name of the IntMegaMap.
+     */
+    public synchronized <V extends Serializable> IntMegaMap<V> getIntMegaMap(String name) {
+        LongMegaMap<V> longMegaMap = getLongMegaMap(name);
+        return longMegaMap == null ? null : new IntMegaMap<V>(longMegaMap);
+    }
+
+    /**
+     * Throws an exception if a map of any kind already has the name.
+     */
+    private void checkNameFree(String validatedName) throws MegaMapException {
+        if (maps.get(validatedName) != null || longMaps.get(validatedName) != null) {
+            throw new MegaMapException("MegaMap with name '" + validatedName + "' already exists!");
+        }
+    }
+
+    /**
+     * Gets the directory of the files of a map: the given path, or else the disk store path, or else the system
+     * temp directory.
+     */
+    private String getMapDirectory(String path) {
+        if (path != null) {
+            return path;
+        }
+        String filePath = manager.getDiskStorePath();
+        if (filePath == null) {
+            filePath = System.getProperty(SYSTEM_TEMP_DIR);
+        }
+        return filePath;
+    }
+
     private void deleteMapFiles(String path, String validatedName) throws MegaMapException {
         // Delete the files if they are there
-        String filePath;
-        if (path == null) {
-            filePath = manager.getDiskStorePath();
-            if (filePath == null) {
-                filePath = System.getProperty(SYSTEM_TEMP_DIR);
-            }
-        } else {
-            filePath = path;
-        }
+        String filePath = getMapDirectory(path);
         File storeFile = new File(filePath, validatedName + STORE_SUFFIX);
         storeFile.delete();
+        File compactFile = new File(filePath, validatedName + STORE_SUFFIX + LongMegaMap.COMPACT_SUFFIX);
+        compactFile.delete();
         File indexFile = new File(filePath, validatedName + INDEX_SUFFIX);
         indexFile.delete();
+        new File(filePath, validatedName + INDEX_SUFFIX + DiskStore.TEMPORARY_INDEX_SUFFIX).delete();
+        new File(filePath, validatedName + INDEX_SUFFIX + DiskStore.UNLOCKED_INDEX_SUFFIX).delete();
+        File deltaFile = new File(filePath, validatedName + DELTA_SUFFIX);
+        deltaFile.delete();
+        File[] segmentFiles = LogStore.listSegmentFiles(new File(filePath), validatedName);
+        for (int i = 0; i < segmentFiles.length; i++) {
+            segmentFiles[i].delete();
+        }
     }
 
     /**
      * Retrieves a previously-created MegaMap.
      * @param name the name of the MegaMap.
      */
-    public synchronized MegaMap getMegaMap(String name) {
+    public synchronized <K extends Serializable, V extends Serializable> MegaMap<K, V> getMegaMap(String name) {
         try {
             name = validateCacheName(name);
         } catch (MegaMapException e) {
             return null;
         }
-        MegaMap megaMap = (MegaMap) maps.get(name);
+        MegaMap<K, V> megaMap = (MegaMap<K, V>) maps.get(name);
         return megaMap;
     }
 
     /**
      * Removes a MegaMap from the manager.
-     * This causes the map to be flushed to disk (if persistent) and its supporting thread to be shut down.
+     * This causes the map to be flushed to disk (if persistent) and its background work to be stopped.
      * <b>Note:</b> This does not result in the deletion of a persistent cache. See {@link #deletePersistedMegaMap(String)}
      * and {@link #deletePersistedMegaMap(String, String)} for that functionality.
      * @param name the name of the cache to remove from management.
@@ -197,8 +685,14 @@ public class MegaMapManager {
             return;
         }
         MegaMap megaMap = (MegaMap) maps.remove(name);
-        megaMap.shutdown();
-        manager.removeCache(name);
+        if (megaMap != null) {
+            megaMap.shutdown();
+            manager.removeCache(name);
+        }
+        LongMegaMap longMegaMap = (LongMegaMap) longMaps.remove(name);
+        if (longMegaMap != null) {
+            longMegaMap.shutdown();
+        }
     }
 
     /**
@@ -220,7 +714,7 @@ public class MegaMapManager {
      */
     public synchronized void deletePersistedMegaMap(String name, String path) throws MegaMapException {
         name = validateCacheName(name);
-        if (maps.get(name) != null) {
+        if (maps.get(name) != null || longMaps.get(name) != null) {
             throw new MegaMapException("Could not delete MegaMap '" + name + "' because it is active!");
         } else {
             deleteMapFiles(path, name);
@@ -242,8 +736,24 @@ public class MegaMapManager {
             MegaMap megaMap = (MegaMap) iterator.next();
             megaMap.shutdown();
         }
+        for (Iterator iterator = longMaps.values().iterator(); iterator.hasNext();) {
+            LongMegaMap longMegaMap = (LongMegaMap) iterator.next();
+            longMegaMap.shutdown();
+        }
         manager.shutdown();
         manager = null;
+        if (scheduler != null) {
+            scheduler.shutdown();
+            scheduler = null;
+        }
+        if (ioExecutor != null) {
+            ioExecutor.shutdown();
+            ioExecutor = null;
+        }
+        if (virtualThreadExecutor != null) {
+            virtualThreadExecutor.shutdown();
+            virtualThreadExecutor = null;
+        }
         instance = null;
     }
 
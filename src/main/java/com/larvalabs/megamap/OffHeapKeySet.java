@@ -0,0 +1,213 @@
+/*
+ *   Copyright 2005 John Watkinson
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.larvalabs.megamap;
+
+import net.sf.ehcache.codec.Codec;
+import net.sf.ehcache.store.BloomFilter;
+import net.sf.ehcache.store.OffHeapKeyTable;
+
+import java.io.Serializable;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A thread safe set of keys held outside the Java heap, used by a MegaMap in place of its in-memory key set when
+ * {@link MegaMapManager#setOffHeapKeyIndex(boolean)} is on.
+ * <p/>
+ * Keys are kept encoded by the key codec of the map in an {@link OffHeapKeyTable}, so equal keys must encode to the
+ * same bytes. Each lookup encodes its key, and iteration decodes each key it returns.
+ * <p/>
+ * Optionally, a Bloom filter of the keys answers most lookups of absent keys before they are encoded.
+ * <p/>
+ * Iterators are weakly consistent: they never fail, and removing keys while iterating is safe, but keys added
+ * during an iteration may or may not be returned, and if the set has to grow meanwhile some keys may be returned
+ * twice or missed.
+ */
+class OffHeapKeySet<K extends Serializable> extends AbstractSet<K> {
+
+    private static final int MIN_BLOOM_FILTER_CAPACITY = 1024;
+
+    private final OffHeapKeyTable table = new OffHeapKeyTable(0);
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Codec keyCodec;
+
+    /**
+     * Changed with the write lock held, read without locking.
+     */
+    private volatile BloomFilter bloomFilter;
+
+    OffHeapKeySet(boolean bloomFilter, Codec keyCodec) {
+        this.keyCodec = keyCodec;
+        if (bloomFilter) {
+            this.bloomFilter = new BloomFilter(MIN_BLOOM_FILTER_CAPACITY);
+        }
+    }
+
+    public boolean contains(Object key) {
+        BloomFilter filter = bloomFilter;
+        if (filter != null && !filter.mightContain(key)) {
+            return false;
+        }
+        byte[] bytes = OffHeapKeyTable.encodeKey(key, keyCodec);
+        lock.readLock().lock();
+        try {
+            return table.find(bytes) >= 0;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public boolean add(K key) {
+        byte[] bytes = OffHeapKeyTable.encodeKey(key, keyCodec);
+        lock.writeLock().lock();
+        try {
+            long size = table.size();
+            table.insert(bytes);
+            if (table.size() == size) {
+                return false;
+            }
+            BloomFilter filter = bloomFilter;
+            if (filter != null) {
+                filter.add(key);
+                if (filter.isOverloaded()) {
+                    rebuildBloomFilter();
+                }
+            }
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public boolean remove(Object key) {
+        byte[] bytes = OffHeapKeyTable.encodeKey(key, keyCodec);
+        lock.writeLock().lock();
+        try {
+            return removeBytes(key, bytes);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes a key, given both as an object and encoded. Must be called with the write lock held.
+     */
+    private boolean removeBytes(Object key, byte[] bytes) {
+        if (!table.remove(bytes)) {
+            return false;
+        }
+        BloomFilter filter = bloomFilter;
+        if (filter != null) {
+            filter.remove(key);
+        }
+        return true;
+    }
+
+    /**
+     * Builds a Bloom filter of the keys sized for twice as many, which means decoding every key. Must be
+     * called with the write lock held.
+     */
+    private void rebuildBloomFilter() {
+        BloomFilter filter = new BloomFilter((int) Math.min(Integer.MAX_VALUE / BloomFilter.COUNTERS_PER_KEY,
+                Math.max(MIN_BLOOM_FILTER_CAPACITY, 2 * table.size())));
+        for (long slot = table.nextSlot(0); slot >= 0; slot = table.nextSlot(slot + 1)) {
+            filter.add(OffHeapKeyTable.decodeKey(table.keyAt(slot), keyCodec));
+        }
+        bloomFilter = filter;
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return (int) Math.min(Integer.MAX_VALUE, table.size());
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public void clear() {
+        lock.writeLock().lock();
+        try {
+            table.clear();
+            if (bloomFilter != null) {
+                bloomFilter = new BloomFilter(MIN_BLOOM_FILTER_CAPACITY);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public Iterator<K> iterator() {
+        return new KeyIterator();
+    }
+
+    /**
+     * Walks the slots of the table, taking the read lock for each step only.
+     */
+    private class KeyIterator implements Iterator<K> {
+
+        private long slot = -1;
+        private byte[] next;
+        private byte[] last;
+        private K lastKey;
+
+        KeyIterator() {
+            advance();
+        }
+
+        private void advance() {
+            lock.readLock().lock();
+            try {
+                slot = table.nextSlot(slot + 1);
+                next = slot < 0 ? null : table.keyAt(slot);
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @SuppressWarnings("unchecked")
+        public K next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            last = next;
+            advance();
+            lastKey = (K) OffHeapKeyTable.decodeKey(last, keyCodec);
+            return lastKey;
+        }
+
+        public void remove() {
+            if (last == null) {
+                throw new IllegalStateException();
+            }
+            lock.writeLock().lock();
+            try {
+                removeBytes(lastKey, last);
+            } finally {
+                lock.writeLock().unlock();
+            }
+            last = null;
+            lastKey = null;
+        }
+    }
+}
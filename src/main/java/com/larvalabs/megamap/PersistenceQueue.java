@@ -0,0 +1,426 @@
+/*
+ *   Copyright 2005 John Watkinson
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.larvalabs.megamap;
+
+import net.sf.ehcache.Element;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A queue of {@link CacheAction}s waiting to be applied to the disk cache of a {@link MegaMap}. A MegaMap has one
+ * queue per persistence thread (see {@link MegaMap#getPersistenceThreads}), and the writes to a given key always go
+ * through the same queue.
+ * <p/>
+ * The queue is bounded by the number of bytes its actions hold, its share of the limit of the
+ * MegaMap. When an action does not fit,
+ * the overflow policy of the MegaMap decides whether the caller blocks, applies the oldest actions itself until it
+ * fits, or fails with a {@link MegaMapException}. An action is always accepted by an empty queue, however large.
+ * <p/>
+ * The queue is drained by tasks run on the scheduler shared by all the MegaMaps of a {@link MegaMapManager}. At most
+ * one drain task is scheduled per queue, and it gives its thread back after {@link #DRAIN_BATCH} actions by
+ * rescheduling itself behind the tasks of the other queues, so a busy MegaMap cannot starve the others. If the
+ * scheduler rejects a drain task, the actions waiting in the queue are dropped and their futures fail, rather than
+ * being left for a drain that never comes.
+ * <p/>
+ * Some actions carry futures to complete once they have been written to the disk store file. A drain task flushes
+ * the disk store once for all such actions of its batch, then completes their futures together.
+ * <p/>
+ * Actions are applied one at a time, under the apply lock, whether by a drain task or by a caller, so they reach
+ * the disk cache in the order they were queued. Actions from different queues are applied concurrently.
+ * <p/>
+ * Writes to the same key are coalesced: while a put or remove for a key is still waiting in the queue, a newer put
+ * or remove for that key replaces it in place instead of being queued behind it. Only the latest put, or a trailing
+ * remove, reaches the disk cache. A batch is never coalesced into, and its keys stop being coalesced into earlier
+ * actions, so that nothing is reordered across it.
+ */
+class PersistenceQueue {
+
+    /**
+     * The number of actions a drain task applies before letting the tasks of other queues run.
+     */
+    static final int DRAIN_BATCH = 64;
+
+    private final MegaMap<?, ?> owner;
+    private final Executor executor;
+    private final ArrayDeque<CacheAction> actions = new ArrayDeque<CacheAction>();
+    private final Map<Object, CacheAction> pendingByKey = new HashMap<Object, CacheAction>();
+    private final ReentrantLock applyLock = new ReentrantLock();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private long bytes;
+    private long coalescedWrites;
+    private boolean drainScheduled;
+
+    PersistenceQueue(MegaMap<?, ?> owner, Executor executor) {
+        this.owner = owner;
+        this.executor = executor;
+    }
+
+    /**
+     * Queues an action, applying the overflow policy of the MegaMap if the queue is full.
+     *
+     * @throws MegaMapException if the policy is {@link MegaMap#OVERFLOW_FAIL} and the action does not fit, or
+     *                          if the caller is interrupted while blocked.
+     */
+    void add(CacheAction action) throws MegaMapException {
+        while (true) {
+            lock.lock();
+            try {
+                if (fits(action)) {
+                    enqueue(action);
+                    return;
+                }
+                if (!awaitRoom()) {
+                    continue;
+                }
+            } finally {
+                lock.unlock();
+            }
+            makeRoom();
+        }
+    }
+
+    /**
+     * Queues the shares of a batch on their queues, all together or not at all. The share at each index goes to
+     * the queue at that index, and <code>null</code> shares are skipped. If a share does not fit, the overflow
+     * policy is applied to its queue and the whole batch is tried again, so that a batch that fails leaves every
+     * queue unchanged.
+     *
+     * @throws MegaMapException if the policy is {@link MegaMap#OVERFLOW_FAIL} and a share does not fit, or
+     *                          if the caller is interrupted while blocked.
+     */
+    static void addAll(PersistenceQueue[] queues, CacheAction[] shares) throws MegaMapException {
+        while (true) {
+            PersistenceQueue full = null;
+            int locked = 0;
+            try {
+                // Queue locks are only ever held together here, and always taken in index order
+                for (; locked < queues.length; locked++) {
+                    if (shares[locked] != null) {
+                        queues[locked].lock.lock();
+                        if (full == null && !queues[locked].fits(shares[locked])) {
+                            full = queues[locked];
+                        }
+                    }
+                }
+                if (full == null) {
+                    for (int i = 0; i < queues.length; i++) {
+                        if (shares[i] != null) {
+                            queues[i].enqueue(shares[i]);
+                        }
+                    }
+                    return;
+                }
+            } finally {
+                for (int i = locked - 1; i >= 0; i--) {
+                    if (shares[i] != null && queues[i] != full) {
+                        queues[i].lock.unlock();
+                    }
+                }
+            }
+            // Only the lock of the full queue is still held
+            boolean callerRuns;
+            try {
+                callerRuns = full.awaitRoom();
+            } finally {
+                full.lock.unlock();
+            }
+            if (callerRuns) {
+                full.makeRoom();
+            }
+        }
+    }
+
+    /**
+     * Tells whether an action fits in the queue. Must be called with the queue lock held.
+     */
+    private boolean fits(CacheAction action) {
+        long growth = growthOf(action);
+        long limit = owner.getPersistenceQueueLimit();
+        if (limit > 0) {
+            limit = Math.max(1, limit / owner.getPersistenceThreads());
+        }
+        return actions.isEmpty() || limit <= 0 || growth <= 0 || bytes + growth <= limit;
+    }
+
+    /**
+     * The number of bytes an action adds to the queue, less those of the pending action it would replace.
+     * Must be called with the queue lock held.
+     */
+    private long growthOf(CacheAction action) {
+        CacheAction pending = action.isBatch() ? null : pendingByKey.get(action.getKey());
+        long growth = action.getEstimatedSize();
+        if (pending != null) {
+            growth -= pending.getEstimatedSize();
+        }
+        return growth;
+    }
+
+    /**
+     * Queues an action that fits, coalescing it into the pending action for its key if there is one.
+     * Must be called with the queue lock held.
+     */
+    private void enqueue(CacheAction action) {
+        CacheAction pending = action.isBatch() ? null : pendingByKey.get(action.getKey());
+        bytes += growthOf(action);
+        if (pending != null) {
+            pending.supersede(action);
+            coalescedWrites++;
+        } else {
+            actions.addLast(action);
+            track(action);
+        }
+        scheduleDrain();
+    }
+
+    /**
+     * Applies the overflow policy to an action that does not fit. Must be called with the queue lock held.
+     *
+     * @return <code>true</code> if the caller should make room with {@link #makeRoom} once it has released the
+     *         lock, <code>false</code> if it has waited and should try again.
+     * @throws MegaMapException if the policy is {@link MegaMap#OVERFLOW_FAIL}, or if the caller is interrupted
+     *                          while waiting.
+     */
+    private boolean awaitRoom() throws MegaMapException {
+        int policy = owner.getOverflowPolicy();
+        if (policy == MegaMap.OVERFLOW_FAIL) {
+            throw new MegaMapException("Persistence queue of MegaMap-" + owner.getName() + " is full ("
+                    + actions.size() + " actions, " + bytes + " bytes)");
+        } else if (policy == MegaMap.OVERFLOW_BLOCK) {
+            try {
+                changed.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new MegaMapException("Interrupted while waiting for the persistence queue of MegaMap-"
+                        + owner.getName(), e);
+            }
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Caller runs: makes room by applying the oldest action on the calling thread.
+     */
+    private void makeRoom() {
+        CacheAction applied = runNext();
+        if (applied != null && applied.hasCompletions()) {
+            List<CacheAction> durable = new ArrayList<CacheAction>(1);
+            durable.add(applied);
+            flushAndComplete(durable);
+        }
+    }
+
+    /**
+     * Schedules a drain task, unless one is already scheduled. Must be called with the queue lock held.
+     */
+    private void scheduleDrain() {
+        if (!drainScheduled) {
+            drainScheduled = true;
+            try {
+                executor.execute(this::drain);
+            } catch (RejectedExecutionException e) {
+                drainScheduled = false;
+                discardAll(e);
+            }
+        }
+    }
+
+    /**
+     * Drops the queued actions, which nothing will apply, and fails their futures. Must be called with the queue
+     * lock held.
+     */
+    private void discardAll(RejectedExecutionException e) {
+        MegaMap.log.error("Could not schedule the persistence of MegaMap-" + owner.getName() + ", dropping "
+                + actions.size() + " actions", e);
+        CacheAction action;
+        while ((action = actions.pollFirst()) != null) {
+            action.complete(e);
+        }
+        pendingByKey.clear();
+        bytes = 0;
+        changed.signalAll();
+    }
+
+    /**
+     * Applies up to {@link #DRAIN_BATCH} actions, then reschedules itself if there are more.
+     */
+    private void drain() {
+        List<CacheAction> durable = null;
+        try {
+            for (int i = 0; i < DRAIN_BATCH; i++) {
+                CacheAction applied = runNext();
+                if (applied == null) {
+                    break;
+                }
+                if (applied.hasCompletions()) {
+                    if (durable == null) {
+                        durable = new ArrayList<CacheAction>();
+                    }
+                    durable.add(applied);
+                }
+            }
+        } catch (RuntimeException e) {
+            MegaMap.log.error("Could not apply an action to the disk cache of MegaMap-" + owner.getName(), e);
+        } finally {
+            if (durable != null) {
+                flushAndComplete(durable);
+            }
+            lock.lock();
+            try {
+                drainScheduled = false;
+                if (!actions.isEmpty()) {
+                    scheduleDrain();
+                }
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Flushes the disk store, then completes the futures of actions applied before the flush.
+     */
+    private void flushAndComplete(List<CacheAction> applied) {
+        Throwable failure = null;
+        try {
+            owner.flush();
+        } catch (RuntimeException e) {
+            MegaMap.log.error("Could not flush the disk cache of MegaMap-" + owner.getName(), e);
+            failure = e;
+        }
+        for (int i = 0; i < applied.size(); i++) {
+            applied.get(i).complete(failure);
+        }
+    }
+
+    /**
+     * Applies the oldest action, if there is one. If applying it fails, its futures are completed exceptionally.
+     *
+     * @return the action applied, or <code>null</code> if the queue was empty.
+     */
+    private CacheAction runNext() {
+        applyLock.lock();
+        try {
+            CacheAction action;
+            lock.lock();
+            try {
+                action = actions.pollFirst();
+                if (action == null) {
+                    return null;
+                }
+                if (!action.isBatch()) {
+                    pendingByKey.remove(action.getKey(), action);
+                }
+                bytes -= action.getEstimatedSize();
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+            try {
+                owner.apply(action);
+            } catch (RuntimeException e) {
+                action.complete(e);
+                throw e;
+            }
+            return action;
+        } finally {
+            applyLock.unlock();
+        }
+    }
+
+    /**
+     * Records a newly queued action in the index of actions that later writes may be coalesced into.
+     * Must be called with the queue lock held.
+     */
+    private void track(CacheAction action) {
+        if (!action.isBatch()) {
+            pendingByKey.put(action.getKey(), action);
+            return;
+        }
+        List<CacheAction> puts = action.getBatchPuts();
+        for (int i = 0; i < puts.size(); i++) {
+            pendingByKey.remove(puts.get(i).getKey());
+        }
+        List<?> removes = action.getBatchRemoves();
+        for (int i = 0; i < removes.size(); i++) {
+            pendingByKey.remove(removes.get(i));
+        }
+    }
+
+    /**
+     * Waits until every action queued so far has been applied.
+     */
+    void awaitDrained() throws InterruptedException {
+        lock.lock();
+        try {
+            while (!actions.isEmpty() || drainScheduled) {
+                changed.await();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Wakes up callers blocked on a full queue, so that they re-check a limit that has changed.
+     */
+    void limitChanged() {
+        lock.lock();
+        try {
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int size() {
+        lock.lock();
+        try {
+            return actions.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long getBytes() {
+        lock.lock();
+        try {
+            return bytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long getCoalescedWrites() {
+        lock.lock();
+        try {
+            return coalescedWrites;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
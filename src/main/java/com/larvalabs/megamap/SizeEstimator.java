@@ -0,0 +1,63 @@
+/*
+ *   Copyright 2005 John Watkinson
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.larvalabs.megamap;
+
+/**
+ * Cheaply estimates the heap footprint of keys and values.
+ * <p/>
+ * Strings, arrays of primitives and boxed primitives are sized from their contents. Any other object is
+ * assumed to be {@link #DEFAULT_OBJECT_SIZE} bytes, as measuring an arbitrary object graph would cost as much as
+ * serializing it.
+ */
+final class SizeEstimator {
+
+    /**
+     * The size assumed for objects whose size cannot be estimated from their contents.
+     */
+    static final long DEFAULT_OBJECT_SIZE = 256;
+
+    private static final long OBJECT_HEADER = 16;
+    private static final long ARRAY_HEADER = 16;
+
+    private SizeEstimator() {
+    }
+
+    /**
+     * Estimates the number of bytes of heap held by the given object.
+     */
+    static long estimate(Object object) {
+        if (object == null) {
+            return 0;
+        } else if (object instanceof String) {
+            return OBJECT_HEADER + 8 + ARRAY_HEADER + 2L * ((String) object).length();
+        } else if (object instanceof byte[]) {
+            return ARRAY_HEADER + ((byte[]) object).length;
+        } else if (object instanceof char[]) {
+            return ARRAY_HEADER + 2L * ((char[]) object).length;
+        } else if (object instanceof int[]) {
+            return ARRAY_HEADER + 4L * ((int[]) object).length;
+        } else if (object instanceof long[]) {
+            return ARRAY_HEADER + 8L * ((long[]) object).length;
+        } else if (object instanceof double[]) {
+            return ARRAY_HEADER + 8L * ((double[]) object).length;
+        } else if (object instanceof Number || object instanceof Boolean || object instanceof Character) {
+            return OBJECT_HEADER + 8;
+        } else {
+            return DEFAULT_OBJECT_SIZE;
+        }
+    }
+}
@@ -0,0 +1,276 @@
+/*
+ *   Copyright 2005 John Watkinson
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.larvalabs.megamap;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded cache of the values of a MegaMap, used in place of soft references when the memory of a MegaMap is
+ * limited (see {@link MegaMapManager#setMaxValuesInMemory} and {@link MegaMapManager#setMaxValueBytesInMemory}).
+ * <p/>
+ * Values are admitted and evicted by W-TinyLFU: a new value enters a small LRU window, and when it leaves the
+ * window it only replaces the least recently used value of the main space if its key has been used more often,
+ * according to a {@link FrequencySketch} of recent accesses. The main space is a segmented LRU, in which values
+ * used again are protected from values used only once. So a scan of many keys cannot flush out the values that
+ * are used all the time, and the hit ratio does not depend on when the garbage collector runs.
+ * <p/>
+ * Lookups do not block: a hit is recorded only if the lock is free, so under contention the order of the LRU
+ * lists is approximate. Insertions and removals take the lock.
+ */
+class ValueCache<K, V> {
+
+    private static final int WINDOW = 0;
+    private static final int PROBATION = 1;
+    private static final int PROTECTED = 2;
+
+    /**
+     * The share of the maximum weight given to the window, in percent.
+     */
+    private static final int WINDOW_PERCENT = 1;
+
+    /**
+     * The share of the main space given to the protected segment, in percent.
+     */
+    private static final int PROTECTED_PERCENT = 80;
+
+    private final ConcurrentHashMap<K, Node<K, V>> data = new ConcurrentHashMap<K, Node<K, V>>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final boolean weighBytes;
+    private final long maximum;
+    private final long windowMaximum;
+    private final long protectedMaximum;
+    private final Node<K, V>[] heads;
+    private final long[] weights = new long[3];
+    private FrequencySketch sketch;
+
+    /**
+     * An entry, linked into the LRU list of its segment. The links are only used with the lock held.
+     */
+    private static final class Node<K, V> {
+        private final K key;
+        private volatile V value;
+        private long weight;
+        private int segment;
+        private Node<K, V> previous;
+        private Node<K, V> next;
+
+        private Node(K key, V value) {
+            this.key = key;
+            this.value = value;
+        }
+    }
+
+    /**
+     * Creates an empty cache.
+     *
+     * @param maximum    the maximum number of values, or of estimated bytes of keys and values.
+     * @param weighBytes whether the maximum is in estimated bytes rather than in values.
+     */
+    ValueCache(long maximum, boolean weighBytes) {
+        this.maximum = maximum;
+        this.weighBytes = weighBytes;
+        windowMaximum = Math.max(1, maximum * WINDOW_PERCENT / 100);
+        protectedMaximum = (maximum - windowMaximum) * PROTECTED_PERCENT / 100;
+        heads = new Node[3];
+        for (int i = 0; i < heads.length; i++) {
+            heads[i] = new Node<K, V>(null, null);
+            heads[i].previous = heads[i];
+            heads[i].next = heads[i];
+        }
+        sketch = new FrequencySketch(weighBytes ? 1024 : (int) Math.min(maximum, 1 << 30));
+    }
+
+    /**
+     * Gets a value, recording the access if the lock is free.
+     *
+     * @return the value, or <code>null</code> if it is not in the cache.
+     */
+    V get(Object key) {
+        Node<K, V> node = data.get(key);
+        if (lock.tryLock()) {
+            try {
+                if (node == null) {
+                    // Misses count too, so that a key read often can win its way in when it is next loaded
+                    sketch.increment(key);
+                } else if (node.segment >= 0) {
+                    onAccess(node);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+        return node == null ? null : node.value;
+    }
+
+    /**
+     * Puts a value in the cache, which may evict it straight away if its key is used less often than the others.
+     */
+    void put(K key, V value) {
+        lock.lock();
+        try {
+            Node<K, V> node = data.get(key);
+            if (node != null) {
+                node.value = value;
+                long weight = weigh(key, value);
+                weights[node.segment] += weight - node.weight;
+                node.weight = weight;
+                onAccess(node);
+            } else {
+                node = new Node<K, V>(key, value);
+                node.weight = weigh(key, value);
+                data.put(key, node);
+                sketch.increment(key);
+                link(node, WINDOW);
+                if (data.size() > sketch.getCapacity()) {
+                    sketch = new FrequencySketch(data.size() * 2);
+                }
+            }
+            evict();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes a value from the cache.
+     */
+    void remove(Object key) {
+        lock.lock();
+        try {
+            Node<K, V> node = data.remove(key);
+            if (node != null) {
+                unlink(node);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of values in the cache.
+     */
+    int size() {
+        return data.size();
+    }
+
+    /**
+     * @return the total weight of the values in the cache, in values or in estimated bytes.
+     */
+    long getWeight() {
+        lock.lock();
+        try {
+            return weights[WINDOW] + weights[PROBATION] + weights[PROTECTED];
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private long weigh(K key, V value) {
+        return weighBytes ? SizeEstimator.estimate(key) + SizeEstimator.estimate(value) : 1;
+    }
+
+    /**
+     * Moves an entry that has been used again to the most recently used end of its segment, promoting it from
+     * probation to the protected segment.
+     */
+    private void onAccess(Node<K, V> node) {
+        sketch.increment(node.key);
+        if (node.segment == PROBATION) {
+            unlink(node);
+            link(node, PROTECTED);
+            while (weights[PROTECTED] > protectedMaximum) {
+                Node<K, V> demoted = heads[PROTECTED].next;
+                unlink(demoted);
+                link(demoted, PROBATION);
+            }
+        } else {
+            int segment = node.segment;
+            unlink(node);
+            link(node, segment);
+        }
+    }
+
+    /**
+     * Moves the entries that overflow the window to probation, and then evicts until the cache is within its
+     * maximum. Each entry that has left the window competes with the least recently used entry of probation, and
+     * the one whose key is used less often is evicted.
+     */
+    private void evict() {
+        Node<K, V> candidate = null;
+        while (weights[WINDOW] > windowMaximum) {
+            Node<K, V> node = heads[WINDOW].next;
+            unlink(node);
+            link(node, PROBATION);
+            if (candidate == null) {
+                candidate = node;
+            }
+        }
+        while (weights[WINDOW] + weights[PROBATION] + weights[PROTECTED] > maximum) {
+            Node<K, V> victim = heads[PROBATION].next;
+            if (victim == heads[PROBATION]) {
+                victim = heads[PROTECTED].next;
+                if (victim == heads[PROTECTED]) {
+                    victim = heads[WINDOW].next;
+                }
+                evict(victim);
+            } else if (candidate == null || candidate == victim) {
+                if (candidate == victim) {
+                    candidate = next(candidate);
+                }
+                evict(victim);
+            } else if (sketch.frequency(candidate.key) > sketch.frequency(victim.key)) {
+                evict(victim);
+            } else {
+                Node<K, V> rejected = candidate;
+                candidate = next(candidate);
+                evict(rejected);
+            }
+        }
+    }
+
+    /**
+     * @return the next, more recent, entry of probation, or <code>null</code> if there is none.
+     */
+    private Node<K, V> next(Node<K, V> node) {
+        return node.next == heads[PROBATION] ? null : node.next;
+    }
+
+    private void evict(Node<K, V> node) {
+        unlink(node);
+        data.remove(node.key, node);
+    }
+
+    private void link(Node<K, V> node, int segment) {
+        Node<K, V> head = heads[segment];
+        node.segment = segment;
+        node.previous = head.previous;
+        node.next = head;
+        head.previous.next = node;
+        head.previous = node;
+        weights[segment] += node.weight;
+    }
+
+    private void unlink(Node<K, V> node) {
+        node.previous.next = node.next;
+        node.next.previous = node.previous;
+        node.previous = null;
+        node.next = null;
+        weights[node.segment] -= node.weight;
+        node.segment = -1;
+    }
+}
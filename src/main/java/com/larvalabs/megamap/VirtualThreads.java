@@ -0,0 +1,64 @@
+/*
+ *   Copyright 2005 John Watkinson
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.larvalabs.megamap;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Access to the virtual threads of Java 21 and later. They are looked up reflectively, so that MegaMap still builds
+ * and runs on older JDKs, where they are simply reported as unsupported.
+ */
+final class VirtualThreads {
+
+    private static final Method NEW_EXECUTOR = findNewExecutor();
+
+    private VirtualThreads() {
+    }
+
+    private static Method findNewExecutor() {
+        try {
+            return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Whether the running JVM has virtual threads.
+     */
+    static boolean isSupported() {
+        return NEW_EXECUTOR != null;
+    }
+
+    /**
+     * Creates an executor that runs each task on a new virtual thread.
+     *
+     * @throws UnsupportedOperationException if the running JVM does not have virtual threads.
+     */
+    static ExecutorService newExecutor() {
+        if (NEW_EXECUTOR == null) {
+            throw new UnsupportedOperationException("Virtual threads need Java 21 or later");
+        }
+        try {
+            return (ExecutorService) NEW_EXECUTOR.invoke(null);
+        } catch (Exception e) {
+            throw new UnsupportedOperationException("Could not create a virtual thread executor", e);
+        }
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ *   Copyright 2005 John Watkinson
+ *
+ *   Licensed under the Apache License, Version 2.0 (the "License");
+ *   you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ */
+
+package com.larvalabs.megamap.test;
+
+import com.larvalabs.megamap.LongMegaMap;
+import com.larvalabs.megamap.MegaMap;
+import com.larvalabs.megamap.MegaMapManager;
+
+/**
+ *
+ * Benchmark of a {@link LongMegaMap} against a generic MegaMap keyed by <code>Long</code>s: the heap used per key,
+ * and puts, gets and key checks per second.
+ *
+ * Every key maps to the same value, so that the heap used is that of the keys, of the maps themselves and of the
+ * soft references that keep the values in memory.
+ * Run with a heap large enough for the generic map, for example:
+ * <pre>java -Xmx2g com.larvalabs.megamap.test.LongMegaTest 1000000</pre>
+ */
+public class LongMegaTest {
+
+    private static final String VALUE = "value";
+
+    public static void main(String[] args) {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        try {
+            MegaMapManager mmm = MegaMapManager.getMegaMapManager();
+            mmm.setDiskStorePath(".");
+            System.out.println(count + " keys");
+            System.out.println("map            bytes/key     puts/s     gets/s  hasKey/s");
+            {
+                long before = usedMemory();
+                LongMegaMap<String> map = mmm.createLongMegaMap("longBench", false, true);
+                long start = System.nanoTime();
+                for (long i = 0; i < count; i++) {
+                    map.put(scramble(i), VALUE);
+                }
+                map.flush();
+                long puts = System.nanoTime() - start;
+                long bytes = usedMemory() - before;
+                start = System.nanoTime();
+                for (long i = 0; i < count; i++) {
+                    map.get(scramble(i));
+                }
+                long gets = System.nanoTime() - start;
+                start = System.nanoTime();
+                for (long i = 0; i < count; i++) {
+                    map.hasKey(scramble(i));
+                }
+                long hasKeys = System.nanoTime() - start;
+                report("LongMegaMap", count, bytes, puts, gets, hasKeys);
+                mmm.removeMegaMap("longBench");
+            }
+            {
+                long before = usedMemory();
+                MegaMap<Long, String> map = mmm.createMegaMap("genericBench", false, true);
+                long start = System.nanoTime();
+                for (long i = 0; i < count; i++) {
+                    map.set(scramble(i), VALUE);
+                }
+                while (map.getPersistenceBacklog() > 0) {
+                    Thread.sleep(10);
+                }
+                long puts = System.nanoTime() - start;
+                long bytes = usedMemory() - before;
+                start = System.nanoTime();
+                for (long i = 0; i < count; i++) {
+                    map.get(scramble(i));
+                }
+                long gets = System.nanoTime() - start;
+                start = System.nanoTime();
+                for (long i = 0; i < count; i++) {
+                    map.hasKey(scramble(i));
+                }
+                long hasKeys = System.nanoTime() - start;
+                report("MegaMap<Long>", count, bytes, puts, gets, hasKeys);
+                mmm.removeMegaMap("genericBench");
+            }
+            mmm.shutdown();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Spreads the keys like IDs rather than a sequence.
+     */
+    private static long scramble(long i) {
+        return i * 0x9e3779b97f4a7c15L;
+    }
+
+    private static long usedMemory() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static void report(String name, int count, long bytes, long puts, long gets, long hasKeys) {
+        System.out.println(pad(name, 14) + pad(String.valueOf(bytes / count), 10) + pad(rate(count, puts), 11)
+                + pad(rate(count, gets), 11) + pad(rate(count, hasKeys), 10));
+    }
+
+    private static String rate(int count, long nanos) {
+        return String.valueOf((long) (count * 1e9 / nanos));
+    }
+
+    private static String pad(String s, int width) {
+        StringBuffer sb = new StringBuffer();
+        for (int i = s.length(); i < width; i++) {
+            sb.append(' ');
+        }
+        return width > 12 ? s + sb : sb + s;
+    }
+}
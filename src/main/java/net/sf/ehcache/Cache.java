@@ -54,19 +54,34 @@
 
 package net.sf.ehcache;
 
+import net.sf.ehcache.codec.Codec;
+import net.sf.ehcache.codec.Compressor;
+import net.sf.ehcache.codec.TaggedCodec;
 import net.sf.ehcache.config.Configuration;
 import net.sf.ehcache.store.DiskStore;
+import net.sf.ehcache.store.LogStore;
 import net.sf.ehcache.store.MemoryStore;
+import net.sf.ehcache.store.OverflowStore;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Cache is the central class in ehcache. Caches have {@link Element}s and are managed
@@ -114,9 +129,15 @@ public class Cache implements Cloneable {
 
     private String name;
 
-    private DiskStore diskStore;
+    private OverflowStore diskStore;
 
-    private int status;
+    private volatile int status;
+
+    /**
+     * Guards the cache. A lock rather than the monitor of the cache, so that a virtual thread reading from the disk
+     * store while holding it does not pin its carrier thread.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
 
     private final int maxElementsInMemory;
 
@@ -154,13 +175,48 @@ public class Cache implements Cloneable {
      */
     private final long timeToIdleSeconds;
 
+    /**
+     * Runs the spooling and expiry of the disk store, if set. Otherwise the disk store starts threads of its own.
+     */
+    private ScheduledExecutorService executor;
+
+    /**
+     * Whether the disk store keeps its index of keys outside the Java heap.
+     */
+    private boolean offHeapIndex;
+
+    /**
+     * Whether the disk store keeps a Bloom filter of its keys, so that misses need not look in it.
+     */
+    private boolean bloomFilter;
+
+    /**
+     * The codecs that write keys and values to the disk store.
+     */
+    private Codec keyCodec = new TaggedCodec();
+    private Codec valueCodec = new TaggedCodec();
+
+    /**
+     * Compresses disk store records, if not null.
+     */
+    private Compressor compressor;
+
+    /**
+     * Whether the disk store reads its data file through memory mappings.
+     */
+    private boolean memoryMapped;
+
+    /**
+     * Whether the cache overflows to a {@link LogStore} rather than a {@link DiskStore}.
+     */
+    private boolean logStructured;
 
     // Statistics
 
     /**
      * Cache hit count
      */
-    private int hitCount;
+    private final AtomicInteger hitCount = new AtomicInteger();
 
     /**
      * Memory cache hit count
@@ -170,17 +226,22 @@ public class Cache implements Cloneable {
     /**
      * Auxiliary hit counts broken down by auxiliary
      */
-    private int diskStoreHitCount;
+    private final AtomicInteger diskStoreHitCount = new AtomicInteger();
 
     /**
      * Count of misses where element was not found
      */
-    private int missCountNotFound;
+    private final AtomicInteger missCountNotFound = new AtomicInteger();
+
+    /**
+     * Misses of a disk only cache answered by the Bloom filter of the disk store, without taking the lock
+     */
+    private final AtomicInteger filteredMissCount = new AtomicInteger();
 
     /**
      * Count of misses where element was expired
      */
-    private int missCountExpired;
+    private final AtomicInteger missCountExpired = new AtomicInteger();
 
     /**
      * The {@link MemoryStore} of this {@link Cache}. All caches have a memory store.
@@ -251,32 +312,39 @@ public class Cache implements Cloneable {
      * <p/>
      * This method creates those and makes the cache ready to accept elements
      */
-    synchronized void initialise(Configuration configuration) {
-        if (status != STATUS_UNINITIALISED) {
-            throw new IllegalStateException("Cannot initialise the " + name
-                    + " cache because its status is not STATUS_UNINITIALISED");
-        }
-        if (configuration == null) {
-            throw new IllegalArgumentException("Cannot intialise caches without a configuration");
-        }
-        if (maxElementsInMemory == 0) {
-            if (LOG.isWarnEnabled()) {
-                LOG.warn("Cache: " + name + " has a maxElementsInMemory of 0. It is strongly recommended to " +
-                        "have a maximumSize of at least 1. Performance is halved by not using a MemoryStore.");
+    void initialise(Configuration configuration) {
+        lock.lock();
+        try {
+            if (status != STATUS_UNINITIALISED) {
+                throw new IllegalStateException("Cannot initialise the " + name
+                        + " cache because its status is not STATUS_UNINITIALISED");
+            }
+            if (configuration == null) {
+                throw new IllegalArgumentException("Cannot intialise caches without a configuration");
+            }
+            if (maxElementsInMemory == 0 && !overflowToDisk) {
+                if (LOG.isWarnEnabled()) {
+                    LOG.warn("Cache: " + name + " has a maxElementsInMemory of 0. It is strongly recommended to " +
+                            "have a maximumSize of at least 1. Performance is halved by not using a MemoryStore.");
+                }
+            }
+            if (overflowToDisk && logStructured) {
+                diskStore = new LogStore(this, configuration.getDiskCachePath());
+            } else if (overflowToDisk) {
+                diskStore = new DiskStore(this, configuration.getDiskCachePath());
+            }
+            memoryStore = new MemoryStore(this, diskStore);
+            if (diskPersistent) {
+                addShutdownHook();
+            }
+            status = STATUS_ALIVE;
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Initialised cache: " + name);
             }
-        }
-        if (overflowToDisk) {
-            diskStore = new DiskStore(this, configuration.getDiskCachePath());
-        }
-        memoryStore = new MemoryStore(this, diskStore);
-        if (diskPersistent) {
-            addShutdownHook();
-        }
-        status = STATUS_ALIVE;
-        if (LOG.isDebugEnabled()) {
-            LOG.debug("Initialised cache: " + name);
-        }
 
+        } finally {
+            lock.unlock();
+        }
     }
 
 
@@ -287,12 +355,15 @@ public class Cache implements Cloneable {
     private void addShutdownHook() {
         Runtime.getRuntime().addShutdownHook(new Thread() {
             public void run() {
-                synchronized (this) {
+                lock.lock();
+                try {
                     if (status == STATUS_ALIVE) {
                         LOG.info("VM shutting down with the disk store for " + name
                                 + " still active. The disk store is persistent. Calling dispose...");
                         dispose();
                     }
+                } finally {
+                    lock.unlock();
                 }
             }
         });
@@ -309,14 +380,121 @@ public class Cache implements Cloneable {
      * @throws IllegalStateException    if the cache is not {@link #STATUS_ALIVE}
      * @throws IllegalArgumentException if the element is null
      */
-    public synchronized void put(Element element) throws IllegalArgumentException, IllegalStateException {
+    public void put(Element element) throws IllegalArgumentException, IllegalStateException {
         checkStatus();
         if (element == null) {
             throw new IllegalArgumentException("Element cannot be null");
         }
         element.resetAccessStatistics();
-        memoryStore.put(element);
-        return;
+        putInStores(element);
+    }
+
+    /**
+     * Puts a batch of elements in the cache. Elements that overflow to disk are spooled as one batch.
+     * <p/>
+     * Resets the access statistics on the elements, as {@link #put} does.
+     *
+     * @param elements a Collection of {@link Element}s
+     * @throws IllegalStateException    if the cache is not {@link #STATUS_ALIVE}, or the elements could not be
+     *                                  written to disk
+     * @throws IllegalArgumentException if any element is null
+     */
+    public void putAll(Collection elements) throws IllegalArgumentException, IllegalStateException {
+        checkStatus();
+        for (Iterator iterator = elements.iterator(); iterator.hasNext();) {
+            Element element = (Element) iterator.next();
+            if (element == null) {
+                throw new IllegalArgumentException("Element cannot be null");
+            }
+            element.resetAccessStatistics();
+        }
+        if (isDiskOnly()) {
+            try {
+                diskStore.putAll(elements);
+            } catch (IOException e) {
+                LOG.error("Failure writing to Disk Cache", e);
+                throw new IllegalStateException(e.getMessage());
+            }
+            return;
+        }
+        lock.lock();
+        try {
+            memoryStore.putAll(elements);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Encodes a new element with the codecs of the cache, for {@link #putEncoded}. The element itself is not
+     * created.
+     *
+     * @return the encoded element
+     * @throws CacheException if the key or value cannot be encoded
+     */
+    public byte[] encode(Serializable key, Serializable value) throws CacheException {
+        try {
+            return Element.encode(key, value, keyCodec, valueCodec);
+        } catch (IOException e) {
+            throw new CacheException("Could not encode the value of " + key + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Puts an element encoded by {@link #encode} in the cache. A disk only cache spools the bytes as they are, so
+     * that they are written to the data file without the element being created or encoded again. Other caches
+     * decode the element and {@link #put} it.
+     *
+     * @param key    the key of the element
+     * @param record the encoded element
+     * @throws IllegalStateException    if the cache is not {@link #STATUS_ALIVE}
+     * @throws CacheException           if the element cannot be decoded, or cannot be written to disk
+     */
+    public void putEncoded(Serializable key, byte[] record) throws IllegalStateException, CacheException {
+        checkStatus();
+        if (isDiskOnly()) {
+            try {
+                diskStore.putEncoded(key, record);
+            } catch (IOException e) {
+                throw new CacheException("Failure writing to Disk Cache: " + e.getMessage(), e);
+            }
+            return;
+        }
+        put(decode(record));
+    }
+
+    /**
+     * Puts a batch of elements encoded by {@link #encode} in the cache, as {@link #putEncoded} does.
+     *
+     * @param records a Map of key to encoded element
+     * @throws IllegalStateException    if the cache is not {@link #STATUS_ALIVE}
+     * @throws CacheException           if an element cannot be decoded, or the batch cannot be written to disk
+     */
+    public void putAllEncoded(Map records) throws IllegalStateException, CacheException {
+        checkStatus();
+        if (isDiskOnly()) {
+            try {
+                diskStore.putAllEncoded(records);
+            } catch (IOException e) {
+                throw new CacheException("Failure writing to Disk Cache: " + e.getMessage(), e);
+            }
+            return;
+        }
+        List elements = new ArrayList(records.size());
+        for (Iterator iterator = records.values().iterator(); iterator.hasNext();) {
+            elements.add(decode((byte[]) iterator.next()));
+        }
+        putAll(elements);
+    }
+
+    private Element decode(byte[] record) throws CacheException {
+        try {
+            return Element.read(new DataInputStream(new ByteArrayInputStream(record)), keyCodec, valueCodec);
+        } catch (IOException e) {
+            throw new CacheException("Could not decode an element: " + e.getMessage(), e);
+        } catch (ClassNotFoundException e) {
+            throw new CacheException("Could not decode an element: " + e.getMessage(), e);
+        }
     }
 
     /**
@@ -330,13 +508,43 @@ public class Cache implements Cloneable {
      * @throws IllegalStateException    if the cache is not {@link #STATUS_ALIVE}
      * @throws IllegalArgumentException if the element is null
      */
-    public synchronized void putQuiet(Element element) throws IllegalArgumentException, IllegalStateException {
+    public void putQuiet(Element element) throws IllegalArgumentException, IllegalStateException {
         checkStatus();
         if (element == null) {
             throw new IllegalArgumentException("Element cannot be null");
         }
-        memoryStore.put(element);
-        return;
+        putInStores(element);
+    }
+
+    /**
+     * Puts an element in the memory store, or straight in the disk store if the cache has no memory store.
+     * <p/>
+     * The disk store is not reached through the cache lock, so that several threads writing to a disk-only
+     * cache serialize their elements in parallel.
+     */
+    private void putInStores(Element element) {
+        if (isDiskOnly()) {
+            try {
+                diskStore.put(element);
+            } catch (IOException e) {
+                LOG.error("Failure writing to Disk Cache", e);
+                throw new IllegalStateException(e.getMessage());
+            }
+            return;
+        }
+        lock.lock();
+        try {
+            memoryStore.put(element);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * A cache with a <code>maxElementsInMemory</code> of 0 that overflows to disk keeps its elements on disk only.
+     */
+    private boolean isDiskOnly() {
+        return maxElementsInMemory == 0 && overflowToDisk;
     }
 
 
@@ -351,28 +559,26 @@ public class Cache implements Cloneable {
      * @throws IllegalStateException if the cache is not {@link #STATUS_ALIVE}
      * @see #isExpired
      */
-    public synchronized Element get(Serializable key) throws IllegalStateException, CacheException {
-        checkStatus();
-        Element element = null;
-
-        element = searchInMemoryStore(key, true);
-        if (element == null && overflowToDisk) {
-            try {
-                element = searchInDiskStore(key, true);
-            } catch (IOException e) {
-                throw new CacheException(e.getMessage());
-            }
+    public Element get(Serializable key) throws IllegalStateException, CacheException {
+        if (isDiskOnly()) {
+            return getFromDiskOnly(key, true);
         }
-
-        if (element == null) {
-            missCountNotFound++;
-            if (LOG.isTraceEnabled()) {
-                LOG.trace(name + " cache - Miss");
+        lock.lock();
+        try {
+            checkStatus();
+            Element element = null;
+
+            element = searchInMemoryStore(key, true);
+            if (element == null && overflowToDisk) {
+                try {
+                    element = searchInDiskStore(key, true);
+                } catch (IOException e) {
+                    throw new CacheException(e.getMessage());
+                }
             }
-            return null;
-        } else {
-            hitCount++;
-            return element;
+            return countHitOrMiss(element);
+        } finally {
+            lock.unlock();
         }
     }
 
@@ -386,28 +592,115 @@ public class Cache implements Cloneable {
      * @throws IllegalStateException if the cache is not {@link #STATUS_ALIVE}
      * @see #isExpired
      */
-    public synchronized Element getQuiet(Serializable key) throws IllegalStateException, CacheException {
-        checkStatus();
-        Element element = null;
-
-        element = searchInMemoryStore(key, false);
-        if (element == null && overflowToDisk) {
-            try {
-                element = searchInDiskStore(key, false);
-            } catch (IOException e) {
-                throw new CacheException(e.getMessage());
+    public Element getQuiet(Serializable key) throws IllegalStateException, CacheException {
+        if (isDiskOnly()) {
+            return getFromDiskOnly(key, false);
+        }
+        lock.lock();
+        try {
+            checkStatus();
+            Element element = null;
+
+            element = searchInMemoryStore(key, false);
+            if (element == null && overflowToDisk) {
+                try {
+                    element = searchInDiskStore(key, false);
+                } catch (IOException e) {
+                    throw new CacheException(e.getMessage());
+                }
             }
+            return countHitOrMiss(element);
+        } finally {
+            lock.unlock();
         }
+    }
 
+    /**
+     * Gets an element from a disk-only cache. The disk store is not reached through the cache lock, so that
+     * several threads read from it in parallel.
+     */
+    private Element getFromDiskOnly(Serializable key, boolean updateStatistics) throws CacheException {
+        checkStatus();
+        if (bloomFilter && !diskStore.mightContain(key)) {
+            filteredMissCount.incrementAndGet();
+            return null;
+        }
+        Element element;
+        try {
+            element = searchInDiskStore(key, updateStatistics);
+        } catch (IOException e) {
+            throw new CacheException(e.getMessage());
+        }
+        return countHitOrMiss(element);
+    }
+
+    /**
+     * Counts a get as a hit or a miss.
+     *
+     * @return the element
+     */
+    private Element countHitOrMiss(Element element) {
         if (element == null) {
-            missCountNotFound++;
+            missCountNotFound.incrementAndGet();
             if (LOG.isTraceEnabled()) {
                 LOG.trace(name + " cache - Miss");
             }
             return null;
-        } else {
-            hitCount++;
-            return element;
+        }
+        hitCount.incrementAndGet();
+        return element;
+    }
+
+    /**
+     * Gets a batch of elements from the cache, without updating Element statistics. Cache statistics are
+     * still updated.
+     * <p/>
+     * Elements that are not in the memory store are read from the disk store in one pass, in file order.
+     * Unlike {@link #get}, elements found on disk are not put back into the memory store, so a bulk read
+     * does not push the rest of the cache out of memory.
+     *
+     * @param keys a Collection of {@link Serializable} keys
+     * @return a Map of key to {@link Element}, containing only the keys that were found and not expired
+     * @throws IllegalStateException if the cache is not {@link #STATUS_ALIVE}
+     */
+    public Map getAll(Collection keys) throws IllegalStateException, CacheException {
+        lock.lock();
+        try {
+            checkStatus();
+            Map elements = new HashMap();
+            List misses = new ArrayList();
+            for (Iterator iterator = keys.iterator(); iterator.hasNext();) {
+                Serializable key = (Serializable) iterator.next();
+                Element element = searchInMemoryStore(key, false);
+                if (element != null) {
+                    elements.put(key, element);
+                } else {
+                    misses.add(key);
+                }
+            }
+            if (overflowToDisk && misses.size() > 0) {
+                Map diskElements;
+                try {
+                    diskElements = diskStore.getAll(misses);
+                } catch (IOException e) {
+                    throw new CacheException(e.getMessage());
+                }
+                for (Iterator iterator = diskElements.values().iterator(); iterator.hasNext();) {
+                    Element element = (Element) iterator.next();
+                    if (isExpired(element)) {
+                        missCountExpired.incrementAndGet();
+                        remove(element.getKey());
+                    } else {
+                        diskStoreHitCount.incrementAndGet();
+                        elements.put(element.getKey(), element);
+                    }
+                }
+            }
+            hitCount.addAndGet(elements.size());
+            missCountNotFound.addAndGet(keys.size() - elements.size());
+            return elements;
+        } finally {
+            lock.unlock();
         }
     }
 
@@ -424,30 +717,35 @@ public class Cache implements Cloneable {
      * @return a list of {@link Serializable} keys
      * @throws IllegalStateException if the cache is not {@link #STATUS_ALIVE}
      */
-    public synchronized List getKeys() throws IllegalStateException, CacheException {
-        checkStatus();
-        /* An element with the same key can exist in both the memory store and the
-           disk store at the same time. Because the memory store is always searched first
-           these duplicates do not cause problems when getting elements/
-
-           This method removes these duplicates before returning the list of keys*/
-        List allKeyList = new ArrayList();
-        List keyList = Arrays.asList(memoryStore.getKeyArray());
-        allKeyList.addAll(keyList);
-        if (overflowToDisk) {
-            Set allKeys = new HashSet();
-            //within the store keys will be unique
-            allKeys.addAll(keyList);
-            Object[] diskKeys = diskStore.getKeyArray();
-            for (int i = 0; i < diskKeys.length; i++) {
-                Object diskKey = diskKeys[i];
-                if (allKeys.add(diskKey)) {
-                    //Unique, so add it to the list
-                    allKeyList.add(diskKey);
+    public List getKeys() throws IllegalStateException, CacheException {
+        lock.lock();
+        try {
+            checkStatus();
+            /* An element with the same key can exist in both the memory store and the
+               disk store at the same time. Because the memory store is always searched first
+               these duplicates do not cause problems when getting elements/
+
+               This method removes these duplicates before returning the list of keys*/
+            List allKeyList = new ArrayList();
+            List keyList = Arrays.asList(memoryStore.getKeyArray());
+            allKeyList.addAll(keyList);
+            if (overflowToDisk) {
+                Set allKeys = new HashSet();
+                //within the store keys will be unique
+                allKeys.addAll(keyList);
+                Object[] diskKeys = diskStore.getKeyArray();
+                for (int i = 0; i < diskKeys.length; i++) {
+                    Object diskKey = diskKeys[i];
+                    if (allKeys.add(diskKey)) {
+                        //Unique, so add it to the list
+                        allKeyList.add(diskKey);
+                    }
                 }
             }
+            return allKeyList;
+        } finally {
+            lock.unlock();
         }
-        return allKeyList;
     }
 
     /**
@@ -505,19 +803,38 @@ public class Cache implements Cloneable {
      * @return a list of {@link Serializable} keys
      * @throws IllegalStateException if the cache is not {@link #STATUS_ALIVE}
      */
-    public synchronized List getKeysNoDuplicateCheck() throws IllegalStateException {
+    public List getKeysNoDuplicateCheck() throws IllegalStateException {
+        lock.lock();
+        try {
+            checkStatus();
+            ArrayList allKeys = new ArrayList();
+            List memoryKeySet = Arrays.asList(memoryStore.getKeyArray());
+            allKeys.addAll(memoryKeySet);
+            if (overflowToDisk) {
+                List diskKeySet = Arrays.asList(diskStore.getKeyArray());
+                allKeys.addAll(diskKeySet);
+            }
+            return allKeys;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gives the keys of the elements in the disk store to a visitor, one at a time. Unlike {@link #getKeys()}, the
+     * keys are not collected on the heap first, so a large disk store with an off-heap index can be walked in
+     * constant memory. Keys held only in the memory store are not given.
+     *
+     * @throws IllegalStateException if the cache is not {@link #STATUS_ALIVE}
+     */
+    public void visitDiskStoreKeys(OverflowStore.KeyVisitor visitor) throws IllegalStateException {
         checkStatus();
-        ArrayList allKeys = new ArrayList();
-        List memoryKeySet = Arrays.asList(memoryStore.getKeyArray());
-        allKeys.addAll(memoryKeySet);
         if (overflowToDisk) {
-            List diskKeySet = Arrays.asList(diskStore.getKeyArray());
-            allKeys.addAll(diskKeySet);
+            diskStore.visitKeys(visitor);
         }
-        return allKeys;
     }
 
-    private Element searchInMemoryStore(Serializable key, boolean updateStatistics) {
+    private Element searchInMemoryStore(Serializable key, boolean updateStatistics) throws CacheException {
         Element element = null;
         if (updateStatistics) {
             element = memoryStore.get(key);
@@ -529,7 +846,7 @@ public class Cache implements Cloneable {
                 if (LOG.isDebugEnabled()) {
                     LOG.debug(name + " Memory cache hit, but element expired");
                 }
-                missCountExpired++;
+                missCountExpired.incrementAndGet();
                 remove(key);
                 element = null;
             } else {
@@ -539,7 +856,11 @@ public class Cache implements Cloneable {
         return element;
     }
 
-    private Element searchInDiskStore(Serializable key, boolean updateStatistics) throws IOException {
+    private Element searchInDiskStore(Serializable key, boolean updateStatistics)
+            throws IOException, CacheException {
+        if (!diskStore.mightContain(key)) {
+            return null;
+        }
         Element element = null;
         if (updateStatistics) {
             element = diskStore.get(key);
@@ -551,13 +872,15 @@ public class Cache implements Cloneable {
                 if (LOG.isDebugEnabled()) {
                     LOG.debug(name + " cache - Disk Store hit, but element expired");
                 }
-                missCountExpired++;
+                missCountExpired.incrementAndGet();
                 remove(key);
                 element = null;
             } else {
-                diskStoreHitCount++;
+                diskStoreHitCount.incrementAndGet();
                 //Put the item back into memory to preserve LRU algorithm across the cache
-                memoryStore.put(element);
+                if (!isDiskOnly()) {
+                    memoryStore.put(element);
+                }
             }
         }
         return element;
@@ -571,11 +894,19 @@ public class Cache implements Cloneable {
      * @param key
      * @return true if the element was removed, false if it was not found in the cache
      * @throws IllegalStateException if the cache is not {@link #STATUS_ALIVE}
+     * @throws CacheException        if the element could not be removed from the disk store
      */
-    public synchronized boolean remove(Serializable key) throws IllegalStateException {
+    public boolean remove(Serializable key) throws IllegalStateException, CacheException {
         checkStatus();
         boolean removedFromMemory = false;
-        removedFromMemory = memoryStore.remove(key);
+        if (!isDiskOnly()) {
+            lock.lock();
+            try {
+                removedFromMemory = memoryStore.remove(key);
+            } finally {
+                lock.unlock();
+            }
+        }
         if (LOG.isDebugEnabled() && removedFromMemory) {
             LOG.debug("Removing " + key + " from memoryStore");
         }
@@ -588,22 +919,156 @@ public class Cache implements Cloneable {
                     LOG.debug("Removing " + key + " from diskStore");
                 }
             } catch (IOException e) {
-                LOG.error("Failure removing from Disk Cache", e);
+                throw new CacheException("Failure removing from Disk Cache: " + e.getMessage(), e);
             }
         }
         return (removedFromMemory || removedFromDisk);
     }
 
     /**
-     * Removes all cached items.
+     * Removes a batch of {@link Element}s from the Cache. This also removes them from any
+     * stores they may be in.
      *
+     * @param keys a Collection of {@link Serializable} keys
+     * @return the number of store entries removed. A key held by both stores is counted twice.
      * @throws IllegalStateException if the cache is not {@link #STATUS_ALIVE}
+     * @throws CacheException        if the elements could not be removed from the disk store
      */
-    public synchronized void removeAll() throws IllegalStateException, IOException {
+    public int removeAll(Collection keys) throws IllegalStateException, CacheException {
         checkStatus();
-        memoryStore.removeAll();
+        int removed = 0;
+        if (!isDiskOnly()) {
+            lock.lock();
+            try {
+                removed = memoryStore.removeAll(keys);
+            } finally {
+                lock.unlock();
+            }
+        }
         if (overflowToDisk) {
-            diskStore.removeAll();
+            try {
+                removed += diskStore.removeAll(keys);
+            } catch (IOException e) {
+                throw new CacheException("Failure removing from Disk Cache: " + e.getMessage(), e);
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Writes the elements waiting in the disk store spool to the disk file, on the calling thread, instead of
+     * leaving them for the spool thread. Elements held in the memory store are not written.
+     *
+     * @throws IllegalStateException if the cache is not {@link #STATUS_ALIVE}
+     * @throws CacheException        if the spool could not be written
+     */
+    public void flush() throws IllegalStateException, CacheException {
+        checkStatus();
+        if (overflowToDisk) {
+            try {
+                diskStore.flush();
+            } catch (IOException e) {
+                throw new CacheException(e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Stores the contents of a stream in the disk store, under a key. Streams are kept apart from elements: a key
+     * may have both an element and a stream, and streams never expire. The stream is written to disk as it is
+     * read, through a bounded buffer, so it may be larger than the heap.
+     *
+     * @param key the key
+     * @param in  the stream, which is read to its end but not closed
+     * @return the number of bytes stored
+     * @throws IllegalStateException if the cache is not {@link #STATUS_ALIVE}
+     * @throws IOException           if the stream cannot be read or written
+     * @throws CacheException        if the cache does not overflow to disk
+     * @see DiskStore#putStream
+     */
+    public long putStream(Serializable key, InputStream in) throws IllegalStateException, IOException, CacheException {
+        checkStatus();
+        checkDiskStore();
+        return diskStore.putStream(key, in);
+    }
+
+    /**
+     * Opens a stream stored with {@link #putStream}. The stream is read from disk as it is consumed.
+     *
+     * @return the stream, or null if there is no stream under the key
+     * @throws IllegalStateException if the cache is not {@link #STATUS_ALIVE}
+     * @throws CacheException        if the cache does not overflow to disk
+     */
+    public InputStream openStream(Serializable key) throws IllegalStateException, CacheException {
+        checkStatus();
+        checkDiskStore();
+        return diskStore.openStream(key);
+    }
+
+    /**
+     * Reads part of a stream stored with {@link #putStream}.
+     *
+     * @param offset the offset of the first byte to read
+     * @param length the number of bytes to read
+     * @return the bytes, fewer than asked for if the stream ends first, or null if there is no stream under the key
+     * @throws IllegalStateException if the cache is not {@link #STATUS_ALIVE}
+     * @throws IOException           if the stream cannot be read
+     * @throws CacheException        if the cache does not overflow to disk
+     */
+    public byte[] getRange(Serializable key, long offset, int length)
+            throws IllegalStateException, IOException, CacheException {
+        checkStatus();
+        checkDiskStore();
+        return diskStore.getRange(key, offset, length);
+    }
+
+    /**
+     * Gets the length of a stream stored with {@link #putStream}.
+     *
+     * @return the length in bytes, or -1 if there is no stream under the key
+     * @throws IllegalStateException if the cache is not {@link #STATUS_ALIVE}
+     * @throws CacheException        if the cache does not overflow to disk
+     */
+    public long getStreamLength(Serializable key) throws IllegalStateException, CacheException {
+        checkStatus();
+        checkDiskStore();
+        return diskStore.getStreamLength(key);
+    }
+
+    /**
+     * Removes a stream stored with {@link #putStream}.
+     *
+     * @return true if there was a stream under the key
+     * @throws IllegalStateException if the cache is not {@link #STATUS_ALIVE}
+     * @throws CacheException        if the cache does not overflow to disk
+     */
+    public boolean removeStream(Serializable key) throws IllegalStateException, CacheException {
+        checkStatus();
+        checkDiskStore();
+        return diskStore.removeStream(key);
+    }
+
+    private void checkDiskStore() throws CacheException {
+        if (!overflowToDisk) {
+            throw new CacheException("The " + name + " Cache does not overflow to disk, so cannot store streams");
+        }
+    }
+
+    /**
+     * Removes all cached items.
+     *
+     * @throws IllegalStateException if the cache is not {@link #STATUS_ALIVE}
+     */
+    public void removeAll() throws IllegalStateException, IOException {
+        lock.lock();
+        try {
+            checkStatus();
+            memoryStore.removeAll();
+            if (overflowToDisk) {
+                diskStore.removeAll();
+            }
+        } finally {
+            lock.unlock();
         }
     }
 
@@ -614,15 +1079,20 @@ public class Cache implements Cloneable {
      *
      * @throws IllegalStateException if the cache is not {@link #STATUS_ALIVE}
      */
-    synchronized void dispose() throws IllegalStateException {
-        checkStatus();
-        memoryStore.dispose();
-        memoryStore = null;
-        if (overflowToDisk) {
-            diskStore.dispose();
-            diskStore = null;
+    void dispose() throws IllegalStateException {
+        lock.lock();
+        try {
+            checkStatus();
+            memoryStore.dispose();
+            memoryStore = null;
+            if (overflowToDisk) {
+                diskStore.dispose();
+                diskStore = null;
+            }
+            status = STATUS_DISPOSED;
+        } finally {
+            lock.unlock();
         }
-        status = STATUS_DISPOSED;
     }
 
 
@@ -651,11 +1121,16 @@ public class Cache implements Cloneable {
      * @return The size value
      * @throws IllegalStateException if the cache is not {@link #STATUS_ALIVE}
      */
-    public synchronized int getSize() throws IllegalStateException, CacheException {
-        checkStatus();
-        /* The memory store and the disk store can simultaneously contain elements with the same key
-           Cache size is the size of the union of the two key sets.*/
-        return getKeys().size();
+    public int getSize() throws IllegalStateException, CacheException {
+        lock.lock();
+        try {
+            checkStatus();
+            /* The memory store and the disk store can simultaneously contain elements with the same key
+               Cache size is the size of the union of the two key sets.*/
+            return getKeys().size();
+        } finally {
+            lock.unlock();
+        }
     }
 
     /**
@@ -669,9 +1144,14 @@ public class Cache implements Cloneable {
      * @return the size of the memory store in bytes
      * @throws IllegalStateException
      */
-    public synchronized long calculateInMemorySize() throws IllegalStateException, CacheException {
-        checkStatus();
-        return memoryStore.getSizeInBytes();
+    public long calculateInMemorySize() throws IllegalStateException, CacheException {
+        lock.lock();
+        try {
+            checkStatus();
+            return memoryStore.getSizeInBytes();
+        } finally {
+            lock.unlock();
+        }
     }
 
 
@@ -699,6 +1179,23 @@ public class Cache implements Cloneable {
         }
     }
 
+    /**
+     * Gets the compression ratio of the elements written to the disk store: their encoded size divided by their
+     * size once compressed. Elements that were not worth compressing count at their full size.
+     *
+     * @return the ratio, 1 if the cache does not compress or has no disk store
+     * @throws IllegalStateException if the cache is not {@link #STATUS_ALIVE}
+     * @see #setCompressor
+     */
+    public double getCompressionRatio() throws IllegalStateException {
+        checkStatus();
+        if (overflowToDisk) {
+            return diskStore.getCompressionRatio();
+        } else {
+            return 1;
+        }
+    }
+
     /**
      * Gets the status attribute of the Store object
      *
@@ -722,7 +1219,7 @@ public class Cache implements Cloneable {
     public int getHitCount()
             throws IllegalStateException {
         checkStatus();
-        return hitCount;
+        return hitCount.get();
     }
 
     /**
@@ -742,7 +1239,7 @@ public class Cache implements Cloneable {
      */
     public int getDiskStoreHitCount() throws IllegalStateException {
         checkStatus();
-        return diskStoreHitCount;
+        return diskStoreHitCount.get();
     }
 
     /**
@@ -754,7 +1251,7 @@ public class Cache implements Cloneable {
      */
     public int getMissCountNotFound() throws IllegalStateException {
         checkStatus();
-        return missCountNotFound;
+        return missCountNotFound.get() + filteredMissCount.get();
     }
 
     /**
@@ -764,7 +1261,7 @@ public class Cache implements Cloneable {
      */
     public int getMissCountExpired() throws IllegalStateException {
         checkStatus();
-        return missCountExpired;
+        return missCountExpired.get();
     }
 
     /**
@@ -832,11 +1329,11 @@ public class Cache implements Cloneable {
                 .append(" timeToIdleSeconds = ").append(timeToIdleSeconds)
                 .append(" diskPersistent = ").append(diskPersistent)
                 .append(" diskExpiryThreadIntervalSeconds = ").append(diskExpiryThreadIntervalSeconds)
-                .append(" hitCount = ").append(hitCount)
+                .append(" hitCount = ").append(hitCount.get())
                 .append(" memoryStoreHitCount = ").append(memoryStoreHitCount)
-                .append(" diskStoreHitCount = ").append(diskStoreHitCount)
-                .append(" missCountNotFound = ").append(missCountNotFound)
-                .append(" missCountExpired = ").append(missCountExpired)
+                .append(" diskStoreHitCount = ").append(diskStoreHitCount.get())
+                .append(" missCountNotFound = ").append(missCountNotFound.get() + filteredMissCount.get())
+                .append(" missCountExpired = ").append(missCountExpired.get())
                 .append(" ]");
 
         return dump.toString();
@@ -930,7 +1427,7 @@ public class Cache implements Cloneable {
      *
      * @throws IllegalStateException if the cache is not {@link #STATUS_ALIVE}
      */
-    DiskStore getDiskStore() throws IllegalStateException {
+    OverflowStore getDiskStore() throws IllegalStateException {
         checkStatus();
         return diskStore;
     }
@@ -960,4 +1457,241 @@ public class Cache implements Cloneable {
     public long getDiskExpiryThreadIntervalSeconds() {
         return diskExpiryThreadIntervalSeconds;
     }
+
+    /**
+     * Sets an executor to run the spooling and expiry of the disk store, so that many caches can share a few
+     * threads instead of each starting a spool thread and an expiry thread.
+     * <p/>
+     * Must be called before the cache is added to a {@link CacheManager}. The executor must outlive the cache.
+     *
+     * @throws IllegalStateException if the cache has already been initialised
+     */
+    public void setExecutor(ScheduledExecutorService executor) throws IllegalStateException {
+        lock.lock();
+        try {
+            if (status != STATUS_UNINITIALISED) {
+                throw new IllegalStateException("The executor of the " + name + " cache must be set before it is initialised");
+            }
+            this.executor = executor;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the executor that runs the spooling and expiry of the disk store, or null if it runs its own threads
+     */
+    public ScheduledExecutorService getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Sets whether the disk store keeps its index of keys and their places in the data file outside the Java heap,
+     * as serialized keys in direct buffers, rather than in a <code>HashMap</code>. This lets a disk store hold far
+     * more keys than the heap could, at the cost of serializing the key on every disk store lookup.
+     * <p/>
+     * Keys are matched by their serialized form, so equal keys must serialize to the same bytes.
+     * <p/>
+     * Must be called before the cache is added to a {@link CacheManager}.
+     *
+     * @throws IllegalStateException if the cache has already been initialised
+     */
+    public void setOffHeapIndex(boolean offHeapIndex) throws IllegalStateException {
+        lock.lock();
+        try {
+            if (status != STATUS_UNINITIALISED) {
+                throw new IllegalStateException("The index of the " + name + " cache must be chosen before it is initialised");
+            }
+            this.offHeapIndex = offHeapIndex;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return true if the disk store keeps its index outside the Java heap
+     */
+    public boolean isOffHeapIndex() {
+        return offHeapIndex;
+    }
+
+    /**
+     * Sets whether the disk store keeps a counting Bloom filter of its keys, which answers most lookups of absent
+     * keys without looking in the store. A disk only cache answers them without even taking its lock. The filter
+     * takes about 5 bytes of heap per key, and is saved with the index of a persistent store so that it does not
+     * have to be rebuilt from the keys on the next start.
+     * <p/>
+     * The filter is built from the <code>hashCode</code>s of the keys. For a persistent store, these must be the
+     * same in every VM, as they are for Strings and boxed primitives.
+     * <p/>
+     * Must be called before the cache is added to a {@link CacheManager}.
+     *
+     * @throws IllegalStateException if the cache has already been initialised
+     */
+    public void setBloomFilter(boolean bloomFilter) throws IllegalStateException {
+        lock.lock();
+        try {
+            if (status != STATUS_UNINITIALISED) {
+                throw new IllegalStateException("The Bloom filter of the " + name + " cache must be chosen before it is initialised");
+            }
+            this.bloomFilter = bloomFilter;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return true if the disk store keeps a Bloom filter of its keys
+     */
+    public boolean isBloomFilter() {
+        return bloomFilter;
+    }
+
+    /**
+     * Sets the codec with which the disk store writes keys. The default is a {@link TaggedCodec}, which writes
+     * Strings, byte arrays and boxed primitives directly and other keys with Java serialization.
+     * <p/>
+     * A persistent store must be read with the codecs that wrote it. Elements written by earlier versions, which
+     * serialized each element whole, are still read.
+     * <p/>
+     * Must be called before the cache is added to a {@link CacheManager}.
+     *
+     * @throws IllegalStateException if the cache has already been initialised
+     */
+    public void setKeyCodec(Codec keyCodec) throws IllegalStateException {
+        lock.lock();
+        try {
+            if (status != STATUS_UNINITIALISED) {
+                throw new IllegalStateException("The key codec of the " + name + " cache must be chosen before it is initialised");
+            }
+            this.keyCodec = keyCodec;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the codec with which the disk store writes keys
+     */
+    public Codec getKeyCodec() {
+        return keyCodec;
+    }
+
+    /**
+     * Sets the codec with which the disk store writes values.
+     * <p/>
+     * Must be called before the cache is added to a {@link CacheManager}.
+     *
+     * @throws IllegalStateException if the cache has already been initialised
+     * @see #setKeyCodec
+     */
+    public void setValueCodec(Codec valueCodec) throws IllegalStateException {
+        lock.lock();
+        try {
+            if (status != STATUS_UNINITIALISED) {
+                throw new IllegalStateException("The value codec of the " + name + " cache must be chosen before it is initialised");
+            }
+            this.valueCodec = valueCodec;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the codec with which the disk store writes values
+     */
+    public Codec getValueCodec() {
+        return valueCodec;
+    }
+
+    /**
+     * Sets the compressor with which the disk store compresses the keys and values of its records, such as a
+     * {@link net.sf.ehcache.codec.DeflateCompressor}. Defaults to <code>null</code>, no compression.
+     * <p/>
+     * Each record is compressed on its own, and kept compressed only if that makes it at least an eighth smaller.
+     * Records are marked as compressed in their header, so they are decompressed as they are read, and a store
+     * may hold both kinds. A persistent store holding compressed records must be read with the same compressor.
+     * See {@link #getCompressionRatio}.
+     * <p/>
+     * Must be called before the cache is added to a {@link CacheManager}.
+     *
+     * @throws IllegalStateException if the cache has already been initialised
+     */
+    public void setCompressor(Compressor compressor) throws IllegalStateException {
+        lock.lock();
+        try {
+            if (status != STATUS_UNINITIALISED) {
+                throw new IllegalStateException("The compressor of the " + name + " cache must be chosen before it is initialised");
+            }
+            this.compressor = compressor;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the compressor with which the disk store compresses its records, or <code>null</code>
+     */
+    public Compressor getCompressor() {
+        return compressor;
+    }
+
+    /**
+     * Sets whether the disk store maps its data file into memory, in segments of 64MB. Elements are then read by
+     * copying them from the mapping, with the store only locked while the key is looked up, so that reads proceed
+     * in parallel. Writes still go through the file. The mapped segments take address space, not heap, and the file
+     * is extended to the end of the last segment while the store is open.
+     * <p/>
+     * Must be called before the cache is added to a {@link CacheManager}.
+     *
+     * @throws IllegalStateException if the cache has already been initialised
+     */
+    public void setMemoryMapped(boolean memoryMapped) throws IllegalStateException {
+        lock.lock();
+        try {
+            if (status != STATUS_UNINITIALISED) {
+                throw new IllegalStateException("The memory mapped mode of the " + name + " cache must be chosen before it is initialised");
+            }
+            this.memoryMapped = memoryMapped;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return true if the disk store maps its data file into memory
+     */
+    public boolean isMemoryMapped() {
+        return memoryMapped;
+    }
+
+    /**
+     * Sets whether the cache overflows to a {@link LogStore}, which appends every put and remove to a log and
+     * merges the old segments of the log in the background, rather than to a {@link DiskStore}, which rewrites
+     * blocks of its data file in place. A log store writes sequentially, and rebuilds its index from the log when
+     * it starts, but cannot store streams. The memory mapped mode, the off-heap index and the Bloom filter only
+     * apply to a disk store.
+     * <p/>
+     * Must be called before the cache is added to a {@link CacheManager}.
+     *
+     * @throws IllegalStateException if the cache has already been initialised
+     */
+    public void setLogStructured(boolean logStructured) throws IllegalStateException {
+        lock.lock();
+        try {
+            if (status != STATUS_UNINITIALISED) {
+                throw new IllegalStateException("The disk store of the " + name + " cache must be chosen before it is initialised");
+            }
+            this.logStructured = logStructured;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return true if the cache overflows to a {@link LogStore}
+     */
+    public boolean isLogStructured() {
+        return logStructured;
+    }
 }
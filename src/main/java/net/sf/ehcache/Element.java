@@ -55,11 +55,15 @@
 
 package net.sf.ehcache;
 
+import net.sf.ehcache.codec.Codec;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
@@ -79,6 +83,23 @@ public class Element implements Serializable, Cloneable {
 
     private static final Log LOG = LogFactory.getLog(Element.class.getName());
 
+    /**
+     * The first byte of an element written by {@link #write}. Java serialization streams start with 0xAC instead.
+     */
+    public static final int RECORD_FORMAT = 0x01;
+
+    /**
+     * The first byte of an element written by {@link #write} whose key and value a disk store has compressed.
+     * The version and access statistics are left as they were.
+     */
+    public static final int COMPRESSED_RECORD_FORMAT = 0x02;
+
+    /**
+     * The length of the format byte, version and access statistics that start an element written by
+     * {@link #write}, before its key and value.
+     */
+    public static final int RECORD_HEADER_SIZE = 41;
+
 
 
     /**
@@ -281,6 +302,95 @@ public class Element implements Serializable, Cloneable {
         return element;
     }
 
+    /**
+     * Writes this element in a compact form: the {@link #RECORD_FORMAT} byte, the version and access statistics,
+     * then the key and value as written by the given codecs. Read it back with {@link #read}.
+     */
+    public void write(DataOutput out, Codec keyCodec, Codec valueCodec) throws IOException {
+        write(out, key, value, version, creationTime, lastAccessTime, nextToLastAccessTime, hitCount,
+                keyCodec, valueCodec);
+    }
+
+    /**
+     * Encodes a new element, exactly as {@link #write} would write <code>new Element(key, value)</code>, without
+     * creating the element.
+     *
+     * @return the encoded element, which can be read back with {@link #read}
+     */
+    public static byte[] encode(Serializable key, Serializable value, Codec keyCodec, Codec valueCodec)
+            throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        write(out, key, value, 1L, System.currentTimeMillis(), 0, 0, 0, keyCodec, valueCodec);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    private static void write(DataOutput out, Serializable key, Serializable value, long version, long creationTime,
+            long lastAccessTime, long nextToLastAccessTime, long hitCount, Codec keyCodec, Codec valueCodec)
+            throws IOException {
+        out.writeByte(RECORD_FORMAT);
+        out.writeLong(version);
+        out.writeLong(creationTime);
+        out.writeLong(lastAccessTime);
+        out.writeLong(nextToLastAccessTime);
+        out.writeLong(hitCount);
+        keyCodec.encode(key, out);
+        valueCodec.encode(value, out);
+    }
+
+    /**
+     * Gets the creation time of an element written by {@link #write}, without reading the element.
+     */
+    public static long getCreationTime(byte[] record) {
+        return readLong(record, 9);
+    }
+
+    /**
+     * Gets the last access time of an element written by {@link #write}, without reading the element.
+     */
+    public static long getLastAccessTime(byte[] record) {
+        return readLong(record, 17);
+    }
+
+    private static long readLong(byte[] bytes, int offset) {
+        long value = 0;
+        for (int i = offset; i < offset + 8; i++) {
+            value = (value << 8) | (bytes[i] & 0xFF);
+        }
+        return value;
+    }
+
+    /**
+     * Reads an element written by {@link #write}, with the same codecs.
+     *
+     * @throws IOException if the record is not in the form written by {@link #write}, or cannot be read
+     * @throws ClassNotFoundException if the class of the key or value cannot be found
+     */
+    public static Element read(DataInput in, Codec keyCodec, Codec valueCodec)
+            throws IOException, ClassNotFoundException {
+        final int format = in.readUnsignedByte();
+        if (format != RECORD_FORMAT) {
+            throw new IOException("Unknown element format " + format);
+        }
+        final long version = in.readLong();
+        final long creationTime = in.readLong();
+        final long lastAccessTime = in.readLong();
+        final long nextToLastAccessTime = in.readLong();
+        final long hitCount = in.readLong();
+        Object key = keyCodec.decode(in);
+        Object value = valueCodec.decode(in);
+        if (!(key instanceof Serializable) || (value != null && !(value instanceof Serializable))) {
+            throw new IOException("Decoded key or value is not Serializable");
+        }
+        Element element = new Element((Serializable) key, (Serializable) value, version);
+        element.creationTime = creationTime;
+        element.lastAccessTime = lastAccessTime;
+        element.nextToLastAccessTime = nextToLastAccessTime;
+        element.hitCount = hitCount;
+        return element;
+    }
+
     private Serializable deepCopy(Serializable oldValue) {
         Serializable newValue = null;
         ByteArrayOutputStream bout = new ByteArrayOutputStream();
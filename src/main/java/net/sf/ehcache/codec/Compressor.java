@@ -0,0 +1,93 @@
+/* ====================================================================
+ * The Apache Software License, Version 1.1
+ *
+ * Copyright (c) 2003 - 2004 Greg Luck.  All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ * 3. The end-user documentation included with the redistribution, if
+ *    any, must include the following acknowlegement:
+ *       "This product includes software developed by Greg Luck
+ *       (http://sourceforge.net/users/gregluck) and contributors.
+ *       See http://sourceforge.net/project/memberlist.php?group_id=93232
+ *       for a list of contributors"
+ *    Alternately, this acknowledgement may appear in the software itself,
+ *    if and wherever such third-party acknowlegements normally appear.
+ *
+ * 4. The names "EHCache" must not be used to endorse or promote products
+ *    derived from this software without prior written permission. For written
+ *    permission, please contact Greg Luck (gregluck at users.sourceforge.net).
+ *
+ * 5. Products derived from this software may not be called "EHCache"
+ *    nor may "EHCache" appear in their names without prior written
+ *    permission of Greg Luck.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED.  IN NO EVENT SHALL GREG LUCK OR OTHER
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ * USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ * OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by contributors
+ * individuals on behalf of the EHCache project.  For more
+ * information on EHCache, please see <http://ehcache.sourceforge.net/>.
+ *
+ */
+
+
+package net.sf.ehcache.codec;
+
+import java.io.IOException;
+
+/**
+ * Compresses the encoded keys and values of disk store records (see
+ * {@link net.sf.ehcache.Cache#setCompressor}).
+ * <p/>
+ * The disk store decides record by record whether the compressed form is worth keeping, and remembers the length
+ * of the uncompressed bytes, so a compressor does not have to record it. A compressor may be used by several
+ * threads at once.
+ */
+public interface Compressor {
+
+    /**
+     * Compresses bytes.
+     *
+     * @param data   the array holding the bytes
+     * @param offset the offset of the bytes in the array
+     * @param length the number of bytes
+     * @return the compressed bytes
+     */
+    byte[] compress(byte[] data, int offset, int length) throws IOException;
+
+    /**
+     * Decompresses bytes written by {@link #compress}.
+     *
+     * @param data      the array holding the compressed bytes
+     * @param offset    the offset of the compressed bytes in the array
+     * @param length    the number of compressed bytes
+     * @param out       the array to decompress into
+     * @param outOffset the offset in <code>out</code> at which to start
+     * @param outLength the number of bytes that were compressed, which must all be restored
+     * @throws IOException if the compressed bytes are corrupt
+     */
+    void decompress(byte[] data, int offset, int length, byte[] out, int outOffset, int outLength)
+            throws IOException;
+}
@@ -0,0 +1,162 @@
+/* ====================================================================
+ * The Apache Software License, Version 1.1
+ *
+ * Copyright (c) 2003 - 2004 Greg Luck.  All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ * 3. The end-user documentation included with the redistribution, if
+ *    any, must include the following acknowlegement:
+ *       "This product includes software developed by Greg Luck
+ *       (http://sourceforge.net/users/gregluck) and contributors.
+ *       See http://sourceforge.net/project/memberlist.php?group_id=93232
+ *       for a list of contributors"
+ *    Alternately, this acknowledgement may appear in the software itself,
+ *    if and wherever such third-party acknowlegements normally appear.
+ *
+ * 4. The names "EHCache" must not be used to endorse or promote products
+ *    derived from this software without prior written permission. For written
+ *    permission, please contact Greg Luck (gregluck at users.sourceforge.net).
+ *
+ * 5. Products derived from this software may not be called "EHCache"
+ *    nor may "EHCache" appear in their names without prior written
+ *    permission of Greg Luck.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED.  IN NO EVENT SHALL GREG LUCK OR OTHER
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ * USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ * OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by contributors
+ * individuals on behalf of the EHCache project.  For more
+ * information on EHCache, please see <http://ehcache.sourceforge.net/>.
+ *
+ */
+
+
+package net.sf.ehcache.codec;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A {@link Compressor} using <code>java.util.zip</code>, in the raw deflate format without a zlib header.
+ * <p/>
+ * {@link Deflater}s and {@link Inflater}s hold native memory that is expensive to allocate for every record, so a
+ * few of each are kept in pools shared by all threads, rather than one per thread, which would be thrown away with
+ * every virtual thread. A thread that finds a pool empty makes a new one, and one returned to a full pool is ended.
+ */
+public class DeflateCompressor implements Compressor {
+
+    /**
+     * The number of deflaters and of inflaters kept, about as many as may be busy at once.
+     */
+    private static final int POOL_SIZE = 2 * Runtime.getRuntime().availableProcessors();
+
+    private final int level;
+
+    private final BlockingQueue deflaters = new ArrayBlockingQueue(POOL_SIZE);
+
+    private final BlockingQueue inflaters = new ArrayBlockingQueue(POOL_SIZE);
+
+    /**
+     * Creates a compressor that favours speed, {@link Deflater#BEST_SPEED}.
+     */
+    public DeflateCompressor() {
+        this(Deflater.BEST_SPEED);
+    }
+
+    /**
+     * Creates a compressor.
+     *
+     * @param level the compression level, from 1, {@link Deflater#BEST_SPEED}, to 9,
+     *              {@link Deflater#BEST_COMPRESSION}
+     */
+    public DeflateCompressor(int level) {
+        if (level < Deflater.BEST_SPEED || level > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("Compression level " + level + " is not between 1 and 9");
+        }
+        this.level = level;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public byte[] compress(final byte[] data, final int offset, final int length) {
+        Deflater deflater = (Deflater) deflaters.poll();
+        if (deflater == null) {
+            deflater = new Deflater(level, true);
+        }
+        try {
+            deflater.setInput(data, offset, length);
+            deflater.finish();
+            final ByteArrayOutputStream out = new ByteArrayOutputStream(length / 2 + 16);
+            final byte[] chunk = new byte[Math.min(Math.max(length, 64), 8192)];
+            while (!deflater.finished()) {
+                out.write(chunk, 0, deflater.deflate(chunk));
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.reset();
+            if (!deflaters.offer(deflater)) {
+                deflater.end();
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void decompress(final byte[] data, final int offset, final int length, final byte[] out,
+                           final int outOffset, final int outLength) throws IOException {
+        Inflater inflater = (Inflater) inflaters.poll();
+        if (inflater == null) {
+            inflater = new Inflater(true);
+        }
+        inflater.setInput(data, offset, length);
+        try {
+            int inflated = 0;
+            while (inflated < outLength) {
+                final int count = inflater.inflate(out, outOffset + inflated, outLength - inflated);
+                if (count == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                inflated += count;
+            }
+            if (inflated != outLength) {
+                throw new IOException("Compressed record holds " + inflated + " bytes rather than " + outLength);
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed record: " + e.getMessage());
+        } finally {
+            inflater.reset();
+            if (!inflaters.offer(inflater)) {
+                inflater.end();
+            }
+        }
+    }
+}
@@ -0,0 +1,232 @@
+/* ====================================================================
+ * The Apache Software License, Version 1.1
+ *
+ * Copyright (c) 2003 - 2004 Greg Luck.  All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ * 3. The end-user documentation included with the redistribution, if
+ *    any, must include the following acknowlegement:
+ *       "This product includes software developed by Greg Luck
+ *       (http://sourceforge.net/users/gregluck) and contributors.
+ *       See http://sourceforge.net/project/memberlist.php?group_id=93232
+ *       for a list of contributors"
+ *    Alternately, this acknowledgement may appear in the software itself,
+ *    if and wherever such third-party acknowlegements normally appear.
+ *
+ * 4. The names "EHCache" must not be used to endorse or promote products
+ *    derived from this software without prior written permission. For written
+ *    permission, please contact Greg Luck (gregluck at users.sourceforge.net).
+ *
+ * 5. Products derived from this software may not be called "EHCache"
+ *    nor may "EHCache" appear in their names without prior written
+ *    permission of Greg Luck.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED.  IN NO EVENT SHALL GREG LUCK OR OTHER
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ * USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ * OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by contributors
+ * individuals on behalf of the EHCache project.  For more
+ * information on EHCache, please see <http://ehcache.sourceforge.net/>.
+ *
+ */
+
+
+package net.sf.ehcache.codec;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The default {@link Codec}. Each object is written as a tag byte naming its type, followed by its contents:
+ * <code>byte[]</code>s, Strings (in UTF-8) and boxed primitives are written directly, and other objects with Java
+ * serialization.
+ * <p/>
+ * Codecs for further types can be registered with {@link #register}, for instance to write a class field by field
+ * as <code>Externalizable</code> would, without the class descriptors of Java serialization. Types are matched by
+ * their exact class, not by their superclasses. Register codecs before the codec is given to a cache, and register
+ * the same ones, with the same tags, whenever the cache is loaded from disk.
+ */
+public class TaggedCodec implements Codec {
+
+    /**
+     * The smallest tag that may be given to a registered type. Smaller tags are reserved for the built in types.
+     */
+    public static final int MIN_USER_TAG = 64;
+
+    private static final int NULL = 0;
+    private static final int BYTES = 1;
+    private static final int STRING = 2;
+    private static final int INTEGER = 3;
+    private static final int LONG = 4;
+    private static final int SHORT = 5;
+    private static final int BYTE = 6;
+    private static final int DOUBLE = 7;
+    private static final int FLOAT = 8;
+    private static final int BOOLEAN = 9;
+    private static final int CHARACTER = 10;
+    private static final int SERIALIZED = 11;
+
+    private static final Map BUILT_IN_TAGS = new HashMap();
+
+    static {
+        BUILT_IN_TAGS.put(byte[].class, Integer.valueOf(BYTES));
+        BUILT_IN_TAGS.put(String.class, Integer.valueOf(STRING));
+        BUILT_IN_TAGS.put(Integer.class, Integer.valueOf(INTEGER));
+        BUILT_IN_TAGS.put(Long.class, Integer.valueOf(LONG));
+        BUILT_IN_TAGS.put(Short.class, Integer.valueOf(SHORT));
+        BUILT_IN_TAGS.put(Byte.class, Integer.valueOf(BYTE));
+        BUILT_IN_TAGS.put(Double.class, Integer.valueOf(DOUBLE));
+        BUILT_IN_TAGS.put(Float.class, Integer.valueOf(FLOAT));
+        BUILT_IN_TAGS.put(Boolean.class, Integer.valueOf(BOOLEAN));
+        BUILT_IN_TAGS.put(Character.class, Integer.valueOf(CHARACTER));
+    }
+
+    private final SerializationCodec serializationCodec = new SerializationCodec();
+    private final Map userTags = new HashMap();
+    private final Codec[] userCodecs = new Codec[256];
+
+    /**
+     * Registers a codec for the objects of a class.
+     *
+     * @param tag   the tag written before each object of the class, from {@link #MIN_USER_TAG} to 255
+     * @param type  the class
+     * @param codec the codec that writes the contents of the objects
+     * @return this codec
+     * @throws IllegalArgumentException if the tag is out of range or already taken
+     */
+    public TaggedCodec register(final int tag, final Class type, final Codec codec) {
+        if (tag < MIN_USER_TAG || tag > 255) {
+            throw new IllegalArgumentException("Tag " + tag + " is not between " + MIN_USER_TAG + " and 255");
+        }
+        if (userCodecs[tag] != null) {
+            throw new IllegalArgumentException("Tag " + tag + " is already registered");
+        }
+        userCodecs[tag] = codec;
+        userTags.put(type, Integer.valueOf(tag));
+        return this;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void encode(final Object object, final DataOutput out) throws IOException {
+        if (object == null) {
+            out.writeByte(NULL);
+            return;
+        }
+        Integer tag = (Integer) userTags.get(object.getClass());
+        if (tag != null) {
+            out.writeByte(tag.intValue());
+            userCodecs[tag.intValue()].encode(object, out);
+            return;
+        }
+        tag = (Integer) BUILT_IN_TAGS.get(object.getClass());
+        final int type = tag == null ? SERIALIZED : tag.intValue();
+        out.writeByte(type);
+        switch (type) {
+            case BYTES:
+                final byte[] bytes = (byte[]) object;
+                out.writeInt(bytes.length);
+                out.write(bytes);
+                break;
+            case STRING:
+                final byte[] utf8 = ((String) object).getBytes("UTF-8");
+                out.writeInt(utf8.length);
+                out.write(utf8);
+                break;
+            case INTEGER:
+                out.writeInt(((Integer) object).intValue());
+                break;
+            case LONG:
+                out.writeLong(((Long) object).longValue());
+                break;
+            case SHORT:
+                out.writeShort(((Short) object).shortValue());
+                break;
+            case BYTE:
+                out.writeByte(((Byte) object).byteValue());
+                break;
+            case DOUBLE:
+                out.writeDouble(((Double) object).doubleValue());
+                break;
+            case FLOAT:
+                out.writeFloat(((Float) object).floatValue());
+                break;
+            case BOOLEAN:
+                out.writeBoolean(((Boolean) object).booleanValue());
+                break;
+            case CHARACTER:
+                out.writeChar(((Character) object).charValue());
+                break;
+            default:
+                serializationCodec.encode(object, out);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Object decode(final DataInput in) throws IOException, ClassNotFoundException {
+        final int tag = in.readUnsignedByte();
+        switch (tag) {
+            case NULL:
+                return null;
+            case BYTES:
+                final byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                return bytes;
+            case STRING:
+                final byte[] utf8 = new byte[in.readInt()];
+                in.readFully(utf8);
+                return new String(utf8, "UTF-8");
+            case INTEGER:
+                return Integer.valueOf(in.readInt());
+            case LONG:
+                return Long.valueOf(in.readLong());
+            case SHORT:
+                return Short.valueOf(in.readShort());
+            case BYTE:
+                return Byte.valueOf(in.readByte());
+            case DOUBLE:
+                return Double.valueOf(in.readDouble());
+            case FLOAT:
+                return Float.valueOf(in.readFloat());
+            case BOOLEAN:
+                return Boolean.valueOf(in.readBoolean());
+            case CHARACTER:
+                return Character.valueOf(in.readChar());
+            case SERIALIZED:
+                return serializationCodec.decode(in);
+            default:
+                if (userCodecs[tag] == null) {
+                    throw new IOException("No codec is registered for tag " + tag);
+                }
+                return userCodecs[tag].decode(in);
+        }
+    }
+}
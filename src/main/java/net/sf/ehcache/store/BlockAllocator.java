@@ -0,0 +1,263 @@
+/* ====================================================================
+ * The Apache Software License, Version 1.1
+ *
+ * Copyright (c) 2003 - 2004 Greg Luck.  All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ * 3. The end-user documentation included with the redistribution, if
+ *    any, must include the following acknowlegement:
+ *       "This product includes software developed by Greg Luck
+ *       (http://sourceforge.net/users/gregluck) and contributors.
+ *       See http://sourceforge.net/project/memberlist.php?group_id=93232
+ *       for a list of contributors"
+ *    Alternately, this acknowledgement may appear in the software itself,
+ *    if and wherever such third-party acknowlegements normally appear.
+ *
+ * 4. The names "EHCache" must not be used to endorse or promote products
+ *    derived from this software without prior written permission. For written
+ *    permission, please contact Greg Luck (gregluck at users.sourceforge.net).
+ *
+ * 5. Products derived from this software may not be called "EHCache"
+ *    nor may "EHCache" appear in their names without prior written
+ *    permission of Greg Luck.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED.  IN NO EVENT SHALL GREG LUCK OR OTHER
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ * USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ * OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by contributors
+ * individuals on behalf of the EHCache project.  For more
+ * information on EHCache, please see <http://ehcache.sourceforge.net/>.
+ *
+ */
+
+
+
+
+package net.sf.ehcache.store;
+
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * The free blocks of the data file of a {@link DiskStore}.
+ * <p/>
+ * Free blocks are kept in two trees: one ordered by size, in which a block is allocated by best fit, and one
+ * ordered by position, in which a freed block finds the free blocks next to it and is merged with them. Both
+ * allocating and freeing a block take O(log n) in the number of free blocks.
+ * <p/>
+ * A block is split when it is allocated, unless what would be left is smaller than {@link #MIN_SPLIT_SIZE}, so the
+ * space wasted inside allocated blocks is bounded. Not thread safe: the store calls it with the store lock held.
+ */
+final class BlockAllocator {
+
+    /**
+     * The smallest block split off an allocated block. A smaller remainder is left in the allocated block.
+     */
+    static final int MIN_SPLIT_SIZE = 64;
+
+    /**
+     * Free blocks by size, then position.
+     */
+    private final TreeSet bySize = new TreeSet(new Comparator() {
+        public int compare(Object o1, Object o2) {
+            final Block b1 = (Block) o1;
+            final Block b2 = (Block) o2;
+            if (b1.size != b2.size) {
+                return b1.size < b2.size ? -1 : 1;
+            }
+            return b1.position < b2.position ? -1 : (b1.position == b2.position ? 0 : 1);
+        }
+    });
+
+    /**
+     * Free blocks by position.
+     */
+    private final TreeMap byPosition = new TreeMap();
+
+    private long freeBytes;
+
+    /**
+     * Allocates the smallest free block of at least <code>length</code> bytes, split to the length if enough is
+     * left over.
+     *
+     * @return a {@link DiskStore.DiskElement} with the position and size of the block, or null if no free block is
+     *         large enough
+     */
+    DiskStore.DiskElement allocate(final int length) {
+        final Block block = (Block) bySize.ceiling(new Block(Long.MIN_VALUE, length));
+        if (block == null) {
+            return null;
+        }
+        return allocate(block, length);
+    }
+
+    /**
+     * Allocates the first free block of at least <code>length</code> bytes that starts at or before a position, to
+     * move an element towards the start of the file. Unlike {@link #allocate(int)}, it may look at every free block
+     * before the position.
+     *
+     * @return a {@link DiskStore.DiskElement} with the position and size of the block, or null if there is none
+     */
+    DiskStore.DiskElement allocateFirstFit(final int length, final long limit) {
+        final Iterator iterator = byPosition.headMap(Long.valueOf(limit), true).values().iterator();
+        while (iterator.hasNext()) {
+            final Block block = (Block) iterator.next();
+            if (block.size >= length) {
+                return allocate(block, length);
+            }
+        }
+        return null;
+    }
+
+    private DiskStore.DiskElement allocate(final Block block, final int length) {
+        remove(block);
+        int blockSize = (int) Math.min(block.size, Integer.MAX_VALUE);
+        if (block.size - length >= MIN_SPLIT_SIZE) {
+            add(new Block(block.position + length, block.size - length));
+            blockSize = length;
+        }
+        final DiskStore.DiskElement element = new DiskStore.DiskElement();
+        element.position = block.position;
+        element.blockSize = blockSize;
+        return element;
+    }
+
+    /**
+     * Frees a block, merging it with the free blocks just before and after it.
+     */
+    void free(final long position, final long size) {
+        if (size <= 0) {
+            return;
+        }
+        long start = position;
+        long end = position + size;
+        final Map.Entry before = byPosition.floorEntry(Long.valueOf(position));
+        if (before != null) {
+            final Block previous = (Block) before.getValue();
+            if (previous.position + previous.size == position) {
+                remove(previous);
+                start = previous.position;
+            }
+        }
+        final Block next = (Block) byPosition.get(Long.valueOf(end));
+        if (next != null) {
+            remove(next);
+            end = next.position + next.size;
+        }
+        add(new Block(start, end - start));
+    }
+
+    /**
+     * Takes back a region that has just been freed, as when a move of an element is undone. The region must lie
+     * within a free block, which is split around it.
+     */
+    void reserve(final long position, final long size) {
+        final Block block = (Block) byPosition.floorEntry(Long.valueOf(position)).getValue();
+        remove(block);
+        if (position > block.position) {
+            add(new Block(block.position, position - block.position));
+        }
+        final long end = position + size;
+        if (block.position + block.size > end) {
+            add(new Block(end, block.position + block.size - end));
+        }
+    }
+
+    /**
+     * Removes the free block that ends where the data ends, if there is one, so that the file can be truncated.
+     *
+     * @param end the end of the data
+     * @return where the data ends without that block
+     */
+    long releaseTail(final long end) {
+        final Map.Entry last = byPosition.lastEntry();
+        if (last != null) {
+            final Block block = (Block) last.getValue();
+            if (block.position + block.size == end) {
+                remove(block);
+                return block.position;
+            }
+        }
+        return end;
+    }
+
+    /**
+     * Forgets all free blocks.
+     */
+    void clear() {
+        bySize.clear();
+        byPosition.clear();
+        freeBytes = 0;
+    }
+
+    /**
+     * @return the position of the first free block, or {@link Long#MAX_VALUE} if there is none
+     */
+    long getLowestFreePosition() {
+        return byPosition.isEmpty() ? Long.MAX_VALUE : ((Long) byPosition.firstKey()).longValue();
+    }
+
+    /**
+     * @return the number of free blocks
+     */
+    int size() {
+        return byPosition.size();
+    }
+
+    /**
+     * @return the total size of the free blocks
+     */
+    long getFreeBytes() {
+        return freeBytes;
+    }
+
+    private void add(final Block block) {
+        bySize.add(block);
+        byPosition.put(Long.valueOf(block.position), block);
+        freeBytes += block.size;
+    }
+
+    private void remove(final Block block) {
+        bySize.remove(block);
+        byPosition.remove(Long.valueOf(block.position));
+        freeBytes -= block.size;
+    }
+
+    /**
+     * A free block. Its size may exceed that of a {@link DiskStore.DiskElement}.
+     */
+    private static final class Block {
+        private final long position;
+        private final long size;
+
+        private Block(final long position, final long size) {
+            this.position = position;
+            this.size = size;
+        }
+    }
+}
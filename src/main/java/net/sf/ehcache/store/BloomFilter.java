@@ -0,0 +1,282 @@
+/* ====================================================================
+ * The Apache Software License, Version 1.1
+ *
+ * Copyright (c) 2003 - 2004 Greg Luck.  All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ * 3. The end-user documentation included with the redistribution, if
+ *    any, must include the following acknowlegement:
+ *       "This product includes software developed by Greg Luck
+ *       (http://sourceforge.net/users/gregluck) and contributors.
+ *       See http://sourceforge.net/project/memberlist.php?group_id=93232
+ *       for a list of contributors"
+ *    Alternately, this acknowledgement may appear in the software itself,
+ *    if and wherever such third-party acknowlegements normally appear.
+ *
+ * 4. The names "EHCache" must not be used to endorse or promote products
+ *    derived from this software without prior written permission. For written
+ *    permission, please contact Greg Luck (gregluck at users.sourceforge.net).
+ *
+ * 5. Products derived from this software may not be called "EHCache"
+ *    nor may "EHCache" appear in their names without prior written
+ *    permission of Greg Luck.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED.  IN NO EVENT SHALL GREG LUCK OR OTHER
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ * USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ * OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by contributors
+ * individuals on behalf of the EHCache project.  For more
+ * information on EHCache, please see <http://ehcache.sourceforge.net/>.
+ *
+ */
+
+
+package net.sf.ehcache.store;
+
+import net.sf.ehcache.codec.Codec;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counting Bloom filter of keys, which can tell that a key is certainly not in a store without looking in it.
+ * <p/>
+ * Each key sets {@link #HASHES} of the counters, chosen from a hash of the key. A key whose counters are all
+ * non-zero may be in the store; one with a zero counter is certainly not. Counters count down as keys are removed,
+ * so removed keys do not clutter the filter, but a counter that reaches 15 sticks there, so that a key is never
+ * lost. With {@link #COUNTERS_PER_KEY} counters of four bits per key, a filter holding as many keys as its
+ * capacity takes 5 bytes per key and answers "maybe" for about 1% of absent keys. Beyond its capacity, the filter
+ * still works but answers "maybe" more often, and should be rebuilt larger.
+ * <p/>
+ * {@link #mightContain} may be called from any thread, without locking, while one thread at a time adds and
+ * removes keys. A key added before a call is always found by it.
+ * <p/>
+ * The key is hashed either from its <code>hashCode</code>, by {@link #add(Object)} and friends, or from its
+ * bytes as encoded by a {@link Codec}, by {@link #hash(Object, Codec)} and the methods that take a hash. A filter
+ * must only ever be given one kind of hash.
+ * <p/>
+ * The filter is serializable, so that it can be saved with the index of a persistent store. Hash codes may change
+ * from one VM to the next, as those of enums and of keys that do not override <code>hashCode</code> do, so only a
+ * filter of encoded keys (see {@link #hashesEncodedKeys}) is valid in another VM.
+ */
+public final class BloomFilter implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The number of counters set by each key.
+     */
+    public static final int HASHES = 5;
+
+    /**
+     * The number of counters allocated for each key of the capacity.
+     */
+    public static final int COUNTERS_PER_KEY = 10;
+
+    private static final int MAX_COUNT = 15;
+
+    private final AtomicLongArray counters;
+    private final long counterCount;
+    private final int capacity;
+    private final boolean encodedKeys;
+    private int size;
+
+    /**
+     * Creates an empty filter of keys hashed from their <code>hashCode</code>.
+     *
+     * @param capacity the number of keys the filter is sized for
+     */
+    public BloomFilter(final int capacity) {
+        this(capacity, false);
+    }
+
+    /**
+     * Creates an empty filter.
+     *
+     * @param capacity    the number of keys the filter is sized for
+     * @param encodedKeys whether the filter is given hashes of encoded keys, from {@link #hash(Object, Codec)}
+     */
+    public BloomFilter(final int capacity, final boolean encodedKeys) {
+        this.encodedKeys = encodedKeys;
+        this.capacity = Math.max(capacity, 1);
+        final long words = ((long) this.capacity * COUNTERS_PER_KEY + 15) / 16;
+        if (words > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("A Bloom filter cannot hold " + capacity + " keys");
+        }
+        counters = new AtomicLongArray((int) words);
+        counterCount = words * 16;
+    }
+
+    /**
+     * Hashes a key from its bytes as encoded by a codec, so that the hash is the same in every VM.
+     *
+     * @throws IllegalArgumentException if the key cannot be encoded
+     */
+    public static long hash(final Object key, final Codec codec) {
+        final HashingStream hashingStream = new HashingStream();
+        try {
+            final DataOutputStream out = new DataOutputStream(hashingStream);
+            codec.encode(key, out);
+            out.flush();
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Could not encode key " + key + ": " + e.getMessage());
+        }
+        return mix(hashingStream.hash);
+    }
+
+    /**
+     * @return false if the key is certainly not in the filter
+     */
+    public boolean mightContain(final Object key) {
+        return mightContainHash(hash(key));
+    }
+
+    /**
+     * @return false if the key with the given hash is certainly not in the filter
+     */
+    public boolean mightContainHash(final long hash) {
+        final long h1 = hash >>> 32;
+        final long h2 = (hash & 0xffffffffL) | 1;
+        for (int i = 0; i < HASHES; i++) {
+            if (getCounter((h1 + i * h2) % counterCount) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Adds a key. Must only be called for a key that is not already in the store the filter describes.
+     */
+    public void add(final Object key) {
+        addHash(hash(key));
+    }
+
+    /**
+     * Adds a key by its hash, as {@link #add(Object)} does.
+     */
+    public void addHash(final long hash) {
+        final long h1 = hash >>> 32;
+        final long h2 = (hash & 0xffffffffL) | 1;
+        for (int i = 0; i < HASHES; i++) {
+            final long index = (h1 + i * h2) % counterCount;
+            final int count = getCounter(index);
+            if (count < MAX_COUNT) {
+                setCounter(index, count + 1);
+            }
+        }
+        size++;
+    }
+
+    /**
+     * Removes a key. Must only be called for a key that was added and has since left the store.
+     */
+    public void remove(final Object key) {
+        removeHash(hash(key));
+    }
+
+    /**
+     * Removes a key by its hash, as {@link #remove(Object)} does.
+     */
+    public void removeHash(final long hash) {
+        final long h1 = hash >>> 32;
+        final long h2 = (hash & 0xffffffffL) | 1;
+        for (int i = 0; i < HASHES; i++) {
+            final long index = (h1 + i * h2) % counterCount;
+            final int count = getCounter(index);
+            if (count > 0 && count < MAX_COUNT) {
+                setCounter(index, count - 1);
+            }
+        }
+        size--;
+    }
+
+    /**
+     * @return the number of keys in the filter
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the number of keys the filter is sized for
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return true if the filter is given hashes of encoded keys, and so may be used in another VM. Filters saved
+     *         by earlier versions hashed <code>hashCode</code>s, and read back as false.
+     */
+    public boolean hashesEncodedKeys() {
+        return encodedKeys;
+    }
+
+    /**
+     * @return true if the filter holds more keys than it is sized for, and should be rebuilt larger
+     */
+    public boolean isOverloaded() {
+        return size > capacity;
+    }
+
+    private int getCounter(final long index) {
+        return (int) (counters.get((int) (index >>> 4)) >>> ((index & 15) << 2)) & MAX_COUNT;
+    }
+
+    private void setCounter(final long index, final int count) {
+        final int word = (int) (index >>> 4);
+        final int shift = (int) (index & 15) << 2;
+        counters.set(word, (counters.get(word) & ~((long) MAX_COUNT << shift)) | ((long) count << shift));
+    }
+
+    private static long hash(final Object key) {
+        return mix(key.hashCode());
+    }
+
+    private static long mix(final long hash) {
+        long h = hash * 0x9e3779b97f4a7c15L;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * Hashes the bytes written to it, FNV-1a style, without keeping them.
+     */
+    private static final class HashingStream extends OutputStream {
+        private long hash = 0xcbf29ce484222325L;
+
+        public void write(final int b) {
+            hash = (hash ^ (b & 0xFF)) * 0x100000001b3L;
+        }
+    }
+}
@@ -0,0 +1,273 @@
+/* ====================================================================
+ * The Apache Software License, Version 1.1
+ *
+ * Copyright (c) 2003 - 2004 Greg Luck.  All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ * 3. The end-user documentation included with the redistribution, if
+ *    any, must include the following acknowlegement:
+ *       "This product includes software developed by Greg Luck
+ *       (http://sourceforge.net/users/gregluck) and contributors.
+ *       See http://sourceforge.net/project/memberlist.php?group_id=93232
+ *       for a list of contributors"
+ *    Alternately, this acknowledgement may appear in the software itself,
+ *    if and wherever such third-party acknowlegements normally appear.
+ *
+ * 4. The names "EHCache" must not be used to endorse or promote products
+ *    derived from this software without prior written permission. For written
+ *    permission, please contact Greg Luck (gregluck at users.sourceforge.net).
+ *
+ * 5. Products derived from this software may not be called "EHCache"
+ *    nor may "EHCache" appear in their names without prior written
+ *    permission of Greg Luck.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED.  IN NO EVENT SHALL GREG LUCK OR OTHER
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ * USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ * OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by contributors
+ * individuals on behalf of the EHCache project.  For more
+ * information on EHCache, please see <http://ehcache.sourceforge.net/>.
+ *
+ */
+
+
+
+
+package net.sf.ehcache.store;
+
+import net.sf.ehcache.Element;
+import net.sf.ehcache.codec.Codec;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.zip.CRC32;
+
+/**
+ * Scans regions of the data file of a persistent {@link DiskStore} for the records written with a
+ * {@link RecordHeader}, to rebuild the index of a store that was not shut down cleanly.
+ * <p/>
+ * The scan reads each region in order. Where it finds a header whose checksum matches, it takes the record, and
+ * carries on after it. Anywhere else, such as in free blocks, in the slack at the end of a block, in stream extents
+ * or in a record that was torn by the crash, it moves on one byte at a time until it finds the next header. A record
+ * whose header starts in the region is found, even if it ends in the next one.
+ */
+final class DataFileScanner implements Callable {
+
+    private static final Log LOG = LogFactory.getLog(DataFileScanner.class.getName());
+
+    /**
+     * The size of the reads from the data file.
+     */
+    private static final int WINDOW_SIZE = 1024 * 1024;
+
+    private final String name;
+    private final File dataFile;
+    private final long[] starts;
+    private final long[] ends;
+    private final Codec keyCodec;
+    private final RecordCompression compression;
+
+    private RandomAccessFile file;
+    private long fileLength;
+    private final byte[] window = new byte[WINDOW_SIZE];
+    private long windowStart;
+    private int windowLength;
+
+    /**
+     * @param name        the name of the cache, for messages
+     * @param dataFile    the data file
+     * @param starts      the positions at which the regions start, in order
+     * @param ends        the positions at which the regions end
+     * @param keyCodec    the codec with which keys were written
+     * @param compression the compression with which records were written
+     */
+    DataFileScanner(final String name, final File dataFile, final long[] starts, final long[] ends,
+            final Codec keyCodec, final RecordCompression compression) {
+        this.name = name;
+        this.dataFile = dataFile;
+        this.starts = starts;
+        this.ends = ends;
+        this.keyCodec = keyCodec;
+        this.compression = compression;
+    }
+
+    /**
+     * Scans the regions.
+     *
+     * @return the {@link Found} records whose header starts in a region, in order of position
+     */
+    public Object call() throws IOException {
+        final List found = new ArrayList();
+        file = new RandomAccessFile(dataFile, "r");
+        try {
+            fileLength = file.length();
+            long position = 0;
+            for (int i = 0; i < starts.length; i++) {
+                position = scan(Math.max(position, starts[i]), ends[i], found);
+            }
+        } finally {
+            file.close();
+        }
+        return found;
+    }
+
+    /**
+     * Scans a region.
+     *
+     * @return the position after the last record found, which may be past the end of the region
+     */
+    private long scan(long position, final long end, final List found) throws IOException {
+        while (position < end && fill(position, RecordHeader.SIZE)) {
+            final int offset = (int) (position - windowStart);
+            if (!RecordHeader.isHeader(window, offset)) {
+                position++;
+                continue;
+            }
+            final int length = RecordHeader.getLength(window, offset);
+            final long recordStart = position + RecordHeader.SIZE;
+            if (recordStart + length > fileLength) {
+                position++;
+                continue;
+            }
+            final byte[] header = new byte[RecordHeader.SIZE];
+            System.arraycopy(window, offset, header, 0, RecordHeader.SIZE);
+            if (!checksumMatches(header, recordStart, length)) {
+                position++;
+                continue;
+            }
+            if (RecordHeader.getState(header, 0) == RecordHeader.FREE) {
+                // The rest of a freed block may have been written again
+                position = recordStart;
+                continue;
+            }
+            final byte[] record = read(recordStart, length);
+            try {
+                found.add(new Found(readKey(record), position, RecordHeader.SIZE + length,
+                        RecordHeader.getSequence(header, 0), Element.getCreationTime(record),
+                        Element.getLastAccessTime(record)));
+            } catch (Exception e) {
+                LOG.error(name + "Cache: Could not read the key of the record at " + position
+                        + " in the data file", e);
+            }
+            position = recordStart + length;
+        }
+        return position;
+    }
+
+    /**
+     * Checks the record after a header against its checksum, a window at a time, so that nothing is allocated for
+     * a length read from bytes that only looked like a header.
+     */
+    private boolean checksumMatches(final byte[] header, final long recordStart, final int length)
+            throws IOException {
+        final CRC32 crc = RecordHeader.startChecksum(header, 0);
+        long position = recordStart;
+        int left = length;
+        while (left > 0) {
+            final int count = Math.min(left, WINDOW_SIZE);
+            fill(position, count);
+            crc.update(window, (int) (position - windowStart), count);
+            position += count;
+            left -= count;
+        }
+        return (int) crc.getValue() == RecordHeader.getChecksum(header, 0);
+    }
+
+    /**
+     * Decodes the key of a record, without its value.
+     */
+    private Object readKey(final byte[] record) throws IOException, ClassNotFoundException {
+        final byte[] decompressed = compression.decompress(record);
+        if (decompressed[0] != Element.RECORD_FORMAT) {
+            throw new IOException("Unknown element format " + decompressed[0]);
+        }
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(decompressed,
+                Element.RECORD_HEADER_SIZE, decompressed.length - Element.RECORD_HEADER_SIZE));
+        return keyCodec.decode(in);
+    }
+
+    /**
+     * Makes sure the window holds <code>length</code> bytes from a position, reading from the file if it does not.
+     *
+     * @return false if the file ends first
+     */
+    private boolean fill(final long position, final int length) throws IOException {
+        if (position >= windowStart && position + length <= windowStart + windowLength) {
+            return true;
+        }
+        if (position + length > fileLength) {
+            return false;
+        }
+        windowStart = position;
+        windowLength = (int) Math.min(WINDOW_SIZE, fileLength - position);
+        file.seek(position);
+        file.readFully(window, 0, windowLength);
+        return true;
+    }
+
+    /**
+     * Reads bytes, from the window if it holds them.
+     */
+    private byte[] read(final long position, final int length) throws IOException {
+        final byte[] bytes = new byte[length];
+        if (length <= WINDOW_SIZE && fill(position, length)) {
+            System.arraycopy(window, (int) (position - windowStart), bytes, 0, length);
+        } else {
+            file.seek(position);
+            file.readFully(bytes);
+        }
+        return bytes;
+    }
+
+    /**
+     * A record found by a scan.
+     */
+    static final class Found {
+        final Object key;
+        final long position;
+        final int size;
+        final long sequence;
+        final long creationTime;
+        final long lastAccessTime;
+
+        private Found(final Object key, final long position, final int size, final long sequence,
+                final long creationTime, final long lastAccessTime) {
+            this.key = key;
+            this.position = position;
+            this.size = size;
+            this.sequence = sequence;
+            this.creationTime = creationTime;
+            this.lastAccessTime = lastAccessTime;
+        }
+    }
+}
@@ -0,0 +1,236 @@
+/* ====================================================================
+ * The Apache Software License, Version 1.1
+ *
+ * Copyright (c) 2003 - 2004 Greg Luck.  All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ * 3. The end-user documentation included with the redistribution, if
+ *    any, must include the following acknowlegement:
+ *       "This product includes software developed by Greg Luck
+ *       (http://sourceforge.net/users/gregluck) and contributors.
+ *       See http://sourceforge.net/project/memberlist.php?group_id=93232
+ *       for a list of contributors"
+ *    Alternately, this acknowledgement may appear in the software itself,
+ *    if and wherever such third-party acknowlegements normally appear.
+ *
+ * 4. The names "EHCache" must not be used to endorse or promote products
+ *    derived from this software without prior written permission. For written
+ *    permission, please contact Greg Luck (gregluck at users.sourceforge.net).
+ *
+ * 5. Products derived from this software may not be called "EHCache"
+ *    nor may "EHCache" appear in their names without prior written
+ *    permission of Greg Luck.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED.  IN NO EVENT SHALL GREG LUCK OR OTHER
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ * USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ * OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by contributors
+ * individuals on behalf of the EHCache project.  For more
+ * information on EHCache, please see <http://ehcache.sourceforge.net/>.
+ *
+ */
+
+
+
+package net.sf.ehcache.store;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * The log of the checkpoints of the index of a persistent {@link DiskStore}: the changes made to the index since the
+ * index file was last written, one {@link Delta} per checkpoint.
+ * <p/>
+ * Each delta is appended as its length, a CRC32 checksum and the serialized delta, and forced to disk. A delta torn
+ * by a crash does not match its checksum, and is cut off with anything after it when the log is read.
+ */
+final class DeltaLog {
+
+    private static final Log LOG = LogFactory.getLog(DeltaLog.class.getName());
+
+    /**
+     * The size of the length and checksum before each delta.
+     */
+    private static final int FRAME_HEADER_SIZE = 8;
+
+    private final File file;
+
+    /**
+     * @param file the log file, which is created when the first delta is appended
+     */
+    DeltaLog(final File file) {
+        this.file = file;
+    }
+
+    /**
+     * Appends a delta, and forces it to disk.
+     */
+    void append(final Delta delta) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final ObjectOutputStream objectOutputStream = new ObjectOutputStream(bytes);
+        objectOutputStream.writeObject(delta);
+        objectOutputStream.close();
+        final byte[] payload = bytes.toByteArray();
+        final CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+
+        final FileOutputStream fout = new FileOutputStream(file, true);
+        try {
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fout));
+            out.writeInt(payload.length);
+            out.writeInt((int) crc.getValue());
+            out.write(payload);
+            out.flush();
+            fout.getFD().sync();
+        } finally {
+            fout.close();
+        }
+    }
+
+    /**
+     * Reads the deltas in the log, in the order they were appended. A delta that is torn or cannot be read ends the
+     * log, and is cut off it with anything after it, so that the next delta is appended after the last good one.
+     *
+     * @return the {@link Delta}s, empty if there is no log
+     */
+    List read() throws IOException {
+        final List deltas = new ArrayList();
+        if (!file.exists()) {
+            return deltas;
+        }
+        final RandomAccessFile in = new RandomAccessFile(file, "rw");
+        try {
+            final long length = in.length();
+            long end = 0;
+            while (length - end >= FRAME_HEADER_SIZE) {
+                in.seek(end);
+                final int size = in.readInt();
+                final int checksum = in.readInt();
+                if (size < 0 || size > length - end - FRAME_HEADER_SIZE) {
+                    break;
+                }
+                final byte[] payload = new byte[size];
+                in.readFully(payload);
+                final CRC32 crc = new CRC32();
+                crc.update(payload, 0, size);
+                if ((int) crc.getValue() != checksum) {
+                    break;
+                }
+                try {
+                    final ObjectInputStream objectInputStream =
+                            new ObjectInputStream(new ByteArrayInputStream(payload));
+                    deltas.add(objectInputStream.readObject());
+                } catch (ClassNotFoundException e) {
+                    LOG.error("Class loading problem reading the index checkpoint log " + file, e);
+                    break;
+                }
+                end += FRAME_HEADER_SIZE + size;
+            }
+            if (end < length) {
+                LOG.warn("Cutting " + (length - end) + " torn or unreadable bytes off the index checkpoint log "
+                        + file);
+                in.setLength(end);
+            }
+        } finally {
+            in.close();
+        }
+        return deltas;
+    }
+
+    /**
+     * Empties the log, once a new index file holds all it held.
+     */
+    void clear() throws IOException {
+        new FileOutputStream(file).close();
+    }
+
+    /**
+     * Deletes the log.
+     */
+    void delete() {
+        file.delete();
+    }
+
+    /**
+     * @return the length of the log file in bytes
+     */
+    long length() {
+        return file.length();
+    }
+
+    /**
+     * The changes made to the index between two checkpoints.
+     */
+    static final class Delta implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * The number of the checkpoint, one more than that of the one before
+         */
+        long checkpoint;
+
+        /**
+         * The sequence number of the last record written before the checkpoint
+         */
+        long sequence;
+
+        /**
+         * Whether the store was shut down cleanly after the checkpoint
+         */
+        boolean clean;
+
+        /**
+         * The {@link DiskStore.DiskElement} of each key written since the previous checkpoint, or null for a key
+         * removed since
+         */
+        HashMap changes;
+
+        /**
+         * All the streams, if any changed since the previous checkpoint, or null
+         */
+        HashMap streams;
+
+        /**
+         * The Bloom filter of the keys, if the store was shut down cleanly and has one, or null
+         */
+        BloomFilter bloomFilter;
+    }
+}
@@ -58,26 +58,52 @@ package net.sf.ehcache.store;
 import net.sf.ehcache.Cache;
 import net.sf.ehcache.Element;
 import net.sf.ehcache.CacheException;
+import net.sf.ehcache.codec.Codec;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.RandomAccessFile;
 import java.io.Serializable;
 import java.io.StreamCorruptedException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * A disk cache implementation.
@@ -86,24 +112,181 @@ import java.util.Set;
  * @author Greg Luck
  * @version $Id: DiskStore.java,v 1.1.1.1 2005/01/27 18:15:03 pents90 Exp $
  */
-public class DiskStore implements Store {
+public class DiskStore implements OverflowStore {
     private static final Log LOG = LogFactory.getLog(DiskStore.class.getName());
     private static final int MS_PER_SECOND = 1000;
 
+    /**
+     * Added to the name of the index file for the temporary file a new index is written to under the store lock,
+     * before it replaces the index file.
+     */
+    public static final String TEMPORARY_INDEX_SUFFIX = ".tmp";
+
+    /**
+     * Added to the name of the index file for the temporary file a new index is written to without the store lock.
+     * A shutdown may write an index while it is written, so the two have their own files.
+     */
+    public static final String UNLOCKED_INDEX_SUFFIX = ".unlocked.tmp";
+
+    /**
+     * Written at the start of an index file in place of the elements Map when the keys were saved straight from an
+     * {@link OffHeapDiskIndex}, encoded with the key codec.
+     */
+    private static final String OFF_HEAP_INDEX_FORMAT = "EncodedOffHeapDiskIndex";
+
+    /**
+     * Written in place of {@link #OFF_HEAP_INDEX_FORMAT} by off-heap indexes that serialized their keys. Still read.
+     */
+    private static final String SERIALIZED_OFF_HEAP_INDEX_FORMAT = "OffHeapDiskIndex";
+
+    /**
+     * Written after the free space in an index file, followed by the Map of streams, when the store holds streams.
+     */
+    private static final String STREAMS_FORMAT = "Streams";
+
+    /**
+     * Written after the free space in an index file, followed by the sequence number of the last record written.
+     */
+    private static final String SEQUENCE_FORMAT = "Sequence";
+
+    /**
+     * Written after the sequence number in an index file, followed by the number of the checkpoint the index file
+     * was written at, and by whether the store was shut down cleanly after writing it. An index file without it was
+     * written by an earlier version, which only kept the index file of a clean shutdown.
+     */
+    private static final String CHECKPOINT_FORMAT = "Checkpoint";
+
+    /**
+     * The smallest region of the data file scanned by each thread when the index is rebuilt from the data file.
+     */
+    private static final long MIN_RECOVERY_REGION_SIZE = 64L * 1024 * 1024;
+
+    /**
+     * Written over the state byte of a {@link RecordHeader} when its block is freed.
+     */
+    private static final byte[] FREE_STATE = {RecordHeader.FREE};
+
+    /**
+     * The size of the extents in which streams are written, and of the buffers through which they are written and
+     * read.
+     */
+    private static final int STREAM_CHUNK_SIZE = 64 * 1024;
+
+    /**
+     * The number of keys a new Bloom filter is sized for.
+     */
+    private static final int MIN_BLOOM_FILTER_CAPACITY = 1024;
+
+    /**
+     * The expiry thread compacts the data file once more than this share of it is free.
+     */
+    private static final double COMPACTION_THRESHOLD = 0.5;
+
+    /**
+     * A compaction moves elements in batches of about this many bytes, locking the store once per batch, so that
+     * gets, puts and removes are only held up briefly.
+     */
+    private static final int COMPACTION_BATCH_SIZE = 1024 * 1024;
+
     private final String name;
-    private boolean active;
+    private volatile boolean active;
+
+    /**
+     * Guards the store. A lock rather than the monitor of the store, so that a virtual thread blocked on disk I/O
+     * while holding it does not pin its carrier thread.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition spoolActivity = lock.newCondition();
     private RandomAccessFile randomAccessFile;
 
-    private HashMap diskElements;
-    private ArrayList freeSpace;
+    /**
+     * A channel of its own on the data file, for positional reads, which do not move the file pointer the writes
+     * use and so may run in parallel with each other and with writes. Not used in memory mapped mode.
+     */
+    private ReadChannel readChannel;
+
+    /**
+     * The mapped data file, in memory mapped mode, or null
+     */
+    private MappedDataFile mappedFile;
+
+    /**
+     * The end of the data in the data file. In memory mapped mode the file is longer, up to the end of the last
+     * mapped segment.
+     */
+    private volatile long dataLength;
+
+    /**
+     * Readers copying a block from the data file outside the store lock hold the read lock. The write lock is
+     * taken, with the store lock held, to rewrite a block that may be being read, or to truncate or close the file.
+     */
+    private final ReentrantReadWriteLock blockLock = new ReentrantReadWriteLock();
+
+    /**
+     * Taken while the data file is compacted, so that one compaction runs at a time. A semaphore rather than a
+     * lock, as a compaction run by the shared executor moves from one thread to another between batches.
+     */
+    private final Semaphore compactionPermit = new Semaphore(1);
+
+    /**
+     * Set while the data file is compacted, so that new elements are written towards the start of the file.
+     * Guarded by the store lock.
+     */
+    private boolean compacting;
+
+    /**
+     * The index of the data file, read without the store lock when the cache has no memory store.
+     */
+    private volatile Map diskElements;
+    private BlockAllocator freeSpace;
     private final Map spool;
 
+    /**
+     * The values put with {@link #putStream}, by key. They are kept apart from the elements.
+     */
+    private HashMap streams = new HashMap();
+
+    /**
+     * The blocks of stream extents freed since the last checkpoint, while one is saved or being written. The last
+     * checkpoint may still refer to them, so they are only given back to the free space once the next one is
+     * written, and the streams it holds can be restored after a crash. Guarded by the store lock.
+     */
+    private List heldExtents = new ArrayList();
+
+    /**
+     * The keys in the spool or on disk, if the cache asks for a filter. Read without locking.
+     */
+    private volatile BloomFilter bloomFilter;
+
     private Thread spoolThread;
     private Thread expiryThread;
     private long expiryThreadInterval;
 
+    /**
+     * The executor shared with other caches, if the cache has one, used instead of the spool and expiry threads.
+     */
+    private final ScheduledExecutorService executor;
+    private boolean spoolFlushScheduled;
+
+    /**
+     * The failure of the last flush of the spool in the background, kept until {@link #flush} reports it.
+     */
+    private IOException spoolFailure;
+
+    private ScheduledFuture expiryTask;
+
     private final Cache cache;
 
+    /**
+     * The codecs that write keys and values to the data file
+     */
+    private final Codec keyCodec;
+    private final Codec valueCodec;
+
+    /**
+     * Compresses the keys and values of records, if the cache has a compressor
+     */
+    private final RecordCompression compression;
 
     /**
      * If persistent, the disk file will be kept
@@ -129,6 +312,69 @@ public class DiskStore implements Store {
      */
     private long totalSize;
 
+    /**
+     * The sequence number of the last record written with a {@link RecordHeader}. Guarded by the store lock.
+     */
+    private long sequence;
+
+    /**
+     * The changes to the index since the last checkpoint, written by the next one
+     */
+    private DeltaLog deltaLog;
+
+    /**
+     * The keys whose index entries changed since the last checkpoint. Guarded by the store lock.
+     */
+    private final HashSet changedKeys = new HashSet();
+
+    /**
+     * Whether any stream changed since the last checkpoint. Guarded by the store lock.
+     */
+    private boolean streamsChanged;
+
+    /**
+     * The number of the last checkpoint, counted from the first one written to the index file. Guarded by the
+     * store lock.
+     */
+    private long checkpointNumber;
+
+    /**
+     * The number of index entries in the delta log. Guarded by the store lock.
+     */
+    private long deltaEntries;
+
+    /**
+     * Set when the next checkpoint has to write the whole index, because the index file is missing or the delta
+     * log does not lead on from it. Guarded by the store lock.
+     */
+    private boolean indexNeeded;
+
+    /**
+     * Set while the whole index is written without the store lock. Guarded by the store lock.
+     */
+    private boolean writingIndex;
+
+    /**
+     * Set while the index file holds a checkpoint that would be read after a crash. Guarded by the store lock.
+     */
+    private boolean checkpointSaved;
+
+    /**
+     * Counts the times the store was emptied, so that an index file being written as it is emptied is dropped.
+     * Guarded by the store lock.
+     */
+    private int indexGeneration;
+
+    /**
+     * Whether the index read when the store started was that of a clean shutdown
+     */
+    private boolean indexClean;
+
+    /**
+     * Held while a checkpoint is written, so that one is written at a time.
+     */
+    private final ReentrantLock checkpointLock = new ReentrantLock();
+
     /**
      * Creates a disk store.
      *
@@ -140,24 +386,38 @@ public class DiskStore implements Store {
         this.cache = cache;
         name = cache.getName();
         this.diskPath = diskPath;
-        diskElements = new HashMap();
-        freeSpace = new ArrayList();
-        spool = new HashMap();
+        keyCodec = cache.getKeyCodec();
+        diskElements = createIndex();
+        freeSpace = new BlockAllocator();
+        spool = new ConcurrentHashMap();
         this.expiryThreadInterval = cache.getDiskExpiryThreadIntervalSeconds();
         this.persistent = cache.isDiskPersistent();
+        this.executor = cache.getExecutor();
+        valueCodec = cache.getValueCodec();
+        compression = new RecordCompression(name, cache.getCompressor());
 
 
         try {
             initialiseFiles();
+            if (cache.isBloomFilter() && bloomFilter == null) {
+                rebuildBloomFilter();
+            }
 
             active = true;
 
-            // Start up the spool thread
-            spoolThread = new SpoolThread();
-            spoolThread.start();
+            if (executor != null) {
+                // The spool is flushed by tasks scheduled as elements are spooled
+                expiryTask = executor.scheduleWithFixedDelay(new Runnable() {
+                    public void run() {
+                        maintain();
+                    }
+                }, expiryThreadInterval, expiryThreadInterval, TimeUnit.SECONDS);
+            } else {
+                // Start up the spool thread
+                spoolThread = new SpoolThread();
+                spoolThread.start();
 
-            // Start up the expiry thread if not eternal
-            if (!cache.isEternal()) {
+                // Start up the expiry thread, which also compacts the data file of an eternal cache
                 expiryThread = new ExpiryThread();
                 expiryThread.start();
             }
@@ -171,6 +431,18 @@ public class DiskStore implements Store {
     }
 
 
+    /**
+     * Creates an empty index, off the heap if the cache asks for it. An index on the heap may be read without the
+     * store lock.
+     */
+    private Map createIndex() {
+        if (cache.isOffHeapIndex()) {
+            return new OffHeapDiskIndex(keyCodec);
+        } else {
+            return new ConcurrentHashMap();
+        }
+    }
+
     private void initialiseFiles() throws Exception {
         // Make sure the cache directory exists
         final File diskDir = new File(diskPath);
@@ -183,12 +455,18 @@ public class DiskStore implements Store {
 
         dataFile = new File(diskDir, getDataFileName());
 
+        boolean recover = false;
+        boolean verify = false;
         if (persistent) {
             indexFile = new File(diskDir, getIndexFileName());
-            readIndex();
-            if (diskElements == null) {
-                LOG.debug("Index file dirty or empty. Deleting data file " + getDataFileName());
-                dataFile.delete();
+            deltaLog = new DeltaLog(new File(diskDir, getDeltaFileName()));
+            if (readIndex()) {
+                // Unless the store was shut down cleanly, the index is as it was at the last checkpoint
+                verify = !indexClean;
+            } else {
+                // Missing or unreadable index, so the elements are found again in the data file
+                recover = dataFile.length() > 0;
+                indexNeeded = true;
             }
         } else {
             LOG.debug("Deleting data file " + getDataFileName());
@@ -197,6 +475,24 @@ public class DiskStore implements Store {
 
         // Open the data file as random access. The dataFile is created if necessary.
         randomAccessFile = new RandomAccessFile(dataFile, "rw");
+        if (recover) {
+            recoverIndex();
+        } else if (verify) {
+            recoverFromCheckpoint();
+        } else if (persistent) {
+            rebuildFreeSpace();
+        }
+        if (persistent && !indexNeeded) {
+            // Until the next checkpoint, the checkpoints no longer reflect a clean shutdown
+            appendDelta(false);
+        }
+        dataLength = randomAccessFile.length();
+        if (cache.isMemoryMapped()) {
+            mappedFile = new MappedDataFile(randomAccessFile.getChannel());
+            mappedFile.ensureMapped(dataLength);
+        } else {
+            readChannel = new ReadChannel(dataFile);
+        }
     }
 
     /**
@@ -225,8 +521,13 @@ public class DiskStore implements Store {
     /**
      * Returns the cache status.
      */
-    public synchronized int getStatus() {
-        return Store.STATUS_ALIVE;
+    public int getStatus() {
+        lock.lock();
+        try {
+            return Store.STATUS_ALIVE;
+        } finally {
+            lock.unlock();
+        }
     }
 
     /**
@@ -234,32 +535,12 @@ public class DiskStore implements Store {
      *
      * @return The element
      */
-    public synchronized Element get(final Serializable key) throws IOException {
+    public Element get(final Serializable key) throws IOException {
         try {
-            checkActive();
-
-            // Check in the spool.  Remove if present
-            Element element = (Element) spool.remove(key);
+            final Element element = load(key);
             if (element != null) {
                 element.updateAccessStatistics();
-                return element;
-            }
-
-            // Check if the element is on disk
-            final DiskElement diskElement = (DiskElement) diskElements.get(key);
-            if (diskElement == null) {
-                // Not on disk
-                return null;
             }
-
-            // Load the element
-            randomAccessFile.seek(diskElement.position);
-            final byte[] buffer = new byte[diskElement.payloadSize];
-            randomAccessFile.readFully(buffer);
-            final ByteArrayInputStream instr = new ByteArrayInputStream(buffer);
-            final ObjectInputStream objstr = new ObjectInputStream(instr);
-            element = (Element) objstr.readObject();
-            element.updateAccessStatistics();
             return element;
         } catch (Exception e) {
             LOG.error(name + "Cache: Could not read disk store element for key " + key, e);
@@ -272,362 +553,2216 @@ public class DiskStore implements Store {
      *
      * @return The element
      */
-    public synchronized Element getQuiet(final Serializable key) throws IOException {
+    public Element getQuiet(final Serializable key) throws IOException {
+        try {
+            return load(key);
+        } catch (Exception e) {
+            LOG.error(name + "Cache: Could not read disk store element for key " + key, e);
+        }
+        return null;
+    }
+
+    /**
+     * Gets an element from the spool or the data file.
+     * <p/>
+     * The store is at most locked to look the key up: the element is copied from the data file and decoded after
+     * the store lock has been released, so that reads proceed in parallel with each other and with spooling. When
+     * the cache has no memory store, elements are not moved out of the spool as they are read, and the lookup
+     * itself does not lock the store either.
+     */
+    private Element load(final Serializable key) throws Exception {
+        if (cache.getMaxElementsInMemory() == 0 && diskElements instanceof ConcurrentHashMap) {
+            return loadUnlocked(key);
+        }
+        final DiskElement diskElement;
+        lock.lock();
         try {
             checkActive();
 
-            // Check in the spool.  Remove if present
-            Element element = (Element) spool.remove(key);
+            // Check in the spool
+            final Element element = takeFromSpool(key);
             if (element != null) {
-                //element.updateAccessStatistics(); Don't update statistics
                 return element;
             }
 
             // Check if the element is on disk
-            final DiskElement diskElement = (DiskElement) diskElements.get(key);
+            diskElement = (DiskElement) diskElements.get(key);
             if (diskElement == null) {
                 // Not on disk
                 return null;
             }
 
-            // Load the element
-            randomAccessFile.seek(diskElement.position);
-            final byte[] buffer = new byte[diskElement.payloadSize];
-            randomAccessFile.readFully(buffer);
-            final ByteArrayInputStream instr = new ByteArrayInputStream(buffer);
-            final ObjectInputStream objstr = new ObjectInputStream(instr);
-            element = (Element) objstr.readObject();
-            //element.updateAccessStatistics(); Don't update statistics
-            return element;
-        } catch (Exception e) {
-            LOG.error(name + "Cache: Could not read disk store element for key " + key, e);
+            // No writer can be waiting for the block lock while the store lock is held, so this does not block
+            blockLock.readLock().lock();
+        } finally {
+            lock.unlock();
         }
-        return null;
+        final byte[] buffer = new byte[diskElement.payloadSize];
+        try {
+            readData(diskElement.position, buffer, 0, buffer.length);
+        } finally {
+            blockLock.readLock().unlock();
+        }
+        return decodeRecord(buffer);
     }
 
+    /**
+     * Gets an element from the spool or the data file without locking the store.
+     * <p/>
+     * The spool keeps an element until it has been written, and the index only loses a block before the block is
+     * rewritten, which waits for the readers holding the read lock of the block lock. So a block that is still in
+     * the index once the read lock is held can be copied safely.
+     */
+    private Element loadUnlocked(final Serializable key) throws Exception {
+        while (true) {
+            checkActive();
+            final SpoolEntry entry = (SpoolEntry) spool.get(key);
+            if (entry != null) {
+                return entry.getElement();
+            }
+            final Map index = diskElements;
+            final DiskElement diskElement = (DiskElement) index.get(key);
+            if (diskElement == null) {
+                return null;
+            }
+            final byte[] buffer;
+            blockLock.readLock().lock();
+            try {
+                checkActive();
+                if (index != diskElements || index.get(key) != diskElement) {
+                    // Written again, or removed, since it was looked up
+                    continue;
+                }
+                buffer = new byte[diskElement.payloadSize];
+                readData(diskElement.position, buffer, 0, buffer.length);
+            } finally {
+                blockLock.readLock().unlock();
+            }
+            return decodeRecord(buffer);
+        }
+    }
 
     /**
-     * Gets an Array of the keys for all elements in the disk store.
-     *
-     * @return An Object[] of {@link Serializable} keys
+     * Gets an element from the spool. The element is removed from the spool, as the cache will put it back in the
+     * memory store, unless the cache has no memory store to put it in.
+     * Relies on being called with the store lock held.
      */
-    public synchronized Object[] getKeyArray() {
-        Set elementKeySet = diskElements.keySet();
-        Set spoolKeySet = spool.keySet();
-        Set allKeysSet = new HashSet(elementKeySet.size() + spoolKeySet.size());
-        allKeysSet.addAll(elementKeySet);
-        allKeysSet.addAll(spoolKeySet);
-        return allKeysSet.toArray();
+    private Element takeFromSpool(final Serializable key) throws IOException, ClassNotFoundException {
+        final SpoolEntry entry;
+        if (cache.getMaxElementsInMemory() > 0) {
+            entry = (SpoolEntry) spool.remove(key);
+            if (entry != null && !diskElements.containsKey(key)) {
+                // The element moves to the memory store
+                keyLeft(key);
+            }
+        } else {
+            entry = (SpoolEntry) spool.get(key);
+        }
+        if (entry == null) {
+            return null;
+        }
+        return entry.getElement();
     }
 
     /**
-     * Returns the current store size.
+     * Gets a batch of {@link Element}s from the Disk Store, without updating statistics.
+     * <p/>
+     * Unlike {@link #get}, elements found in the spool are left there. Elements on disk are read in file order,
+     * holding the store lock once for the whole batch.
+     *
+     * @param keys the keys to look up
+     * @return a Map of key to {@link Element}, for the keys that were found
      */
-    public synchronized int getSize() {
+    public Map getAll(final Collection keys) throws IOException {
+        lock.lock();
         try {
-            checkActive();
-            return diskElements.size() + spool.size();
-        } catch (Exception e) {
-            LOG.error(name + "Cache: Could not determine size of disk store.", e);
-            return 0;
+            final Map elements = new HashMap();
+            try {
+                checkActive();
+
+                final List onDisk = new ArrayList();
+                for (Iterator iterator = keys.iterator(); iterator.hasNext();) {
+                    final Serializable key = (Serializable) iterator.next();
+                    final SpoolEntry entry = (SpoolEntry) spool.get(key);
+                    if (entry != null) {
+                        elements.put(key, entry.getElement());
+                        continue;
+                    }
+                    final DiskElement diskElement = (DiskElement) diskElements.get(key);
+                    if (diskElement != null) {
+                        onDisk.add(new Object[]{key, diskElement});
+                    }
+                }
+
+                // Read in file order, so the disk head only moves forward
+                Collections.sort(onDisk, new Comparator() {
+                    public int compare(Object o1, Object o2) {
+                        long p1 = ((DiskElement) ((Object[]) o1)[1]).position;
+                        long p2 = ((DiskElement) ((Object[]) o2)[1]).position;
+                        return p1 < p2 ? -1 : (p1 == p2 ? 0 : 1);
+                    }
+                });
+                for (int i = 0; i < onDisk.size(); i++) {
+                    final Object[] pair = (Object[]) onDisk.get(i);
+                    final Serializable key = (Serializable) pair[0];
+                    try {
+                        elements.put(key, readElement((DiskElement) pair[1]));
+                    } catch (Exception e) {
+                        LOG.error(name + "Cache: Could not read disk store element for key " + key, e);
+                    }
+                }
+            } catch (Exception e) {
+                LOG.error(name + "Cache: Could not read disk store elements", e);
+            }
+            return elements;
+        } finally {
+            lock.unlock();
         }
     }
 
     /**
-     * Puts an item into the cache.
+     * Reads and decodes an element from the data file.
+     * Relies on being called with the store lock held.
+     * <p/>
+     * Elements written by earlier versions were serialized whole, and are still read with Java serialization.
      */
-    public synchronized void put(final Element entry) throws IOException {
-        try {
-            checkActive();
+    private Element readElement(final DiskElement diskElement) throws IOException, ClassNotFoundException {
+        final byte[] buffer = new byte[diskElement.payloadSize];
+        readData(diskElement.position, buffer, 0, buffer.length);
+        return decodeRecord(buffer);
+    }
 
-            // Spool the entry
-            spool.put(entry.getKey(), entry);
-            notifyAll();
-        } catch (Exception e) {
-            LOG.error(name + "Cache: Could not write disk store element for " + entry.getKey(), e);
+    /**
+     * Decodes an element read from the data file, in whichever form it was written. The checksum of a record
+     * written with a {@link RecordHeader} is checked.
+     */
+    private Element decodeRecord(final byte[] block) throws IOException, ClassNotFoundException {
+        final byte[] buffer = RecordHeader.isFramed(block) ? RecordHeader.unframe(block) : block;
+        if (buffer.length > 0 && (buffer[0] == Element.RECORD_FORMAT || buffer[0] == Element.COMPRESSED_RECORD_FORMAT)) {
+            return decode(buffer);
         }
+        final ByteArrayInputStream instr = new ByteArrayInputStream(buffer);
+        final ObjectInputStream objstr = new ObjectInputStream(instr);
+        return (Element) objstr.readObject();
     }
 
     /**
-     * Removes an item from the cache.
+     * Reads bytes from the data file. Relies on being called with the store lock or the read lock of the block lock
+     * held.
      */
-    public synchronized boolean remove(final Serializable key) throws IOException {
-        try {
-            checkActive();
+    private void readData(final long position, final byte[] bytes, final int offset, final int length)
+            throws IOException {
+        if (mappedFile != null) {
+            mappedFile.read(position, bytes, offset, length);
+        } else {
+            readChannel.read(position, bytes, offset, length);
+        }
+    }
 
-            // Remove the entry from the spool
-            final Object spoolValue = spool.remove(key);
-            if (spoolValue != null) {
-                return true;
+    /**
+     * Writes bytes to the data file. A block that already held data, which a reader may be copying, is only
+     * rewritten once the readers are done. In memory mapped mode, the file is mapped far enough first.
+     * Relies on being called with the store lock held.
+     */
+    private void writeData(final long position, final byte[] bytes, final int offset, final int length)
+            throws IOException {
+        if (mappedFile != null) {
+            mappedFile.ensureMapped(position + length);
+        }
+        if (position < dataLength) {
+            blockLock.writeLock().lock();
+            try {
+                randomAccessFile.seek(position);
+                randomAccessFile.write(bytes, offset, length);
+                dataLength = Math.max(dataLength, position + length);
+            } finally {
+                blockLock.writeLock().unlock();
             }
+        } else {
+            randomAccessFile.seek(position);
+            randomAccessFile.write(bytes, offset, length);
+            dataLength = position + length;
+        }
+    }
 
-            // Remove the entry from the file
-            final DiskElement element = (DiskElement) diskElements.remove(key);
-            if (element != null) {
-                freeBlock(element);
-                return true;
+    /**
+     * @return the end of the data in the data file, where new blocks are appended. Relies on being called with the
+     *         store lock held.
+     */
+    private long getDataEnd() {
+        return dataLength;
+    }
+
+    /**
+     * Decodes a record written by {@link Element#write}, decompressing it first if it was compressed.
+     */
+    private Element decode(final byte[] record) throws IOException, ClassNotFoundException {
+        final byte[] buffer = compression.decompress(record);
+        return Element.read(new DataInputStream(new ByteArrayInputStream(buffer)), keyCodec, valueCodec);
+    }
+
+    /**
+     * Gets the compression ratio of the records spooled since the store was created: their size before
+     * compression divided by their size after. Records that were not compressed count at their full size.
+     *
+     * @return the ratio, 1 if no records have been spooled or the cache has no compressor
+     */
+    public double getCompressionRatio() {
+        return compression.getRatio();
+    }
+
+    /**
+     * Writes the spooled elements to the data file now, on the calling thread.
+     *
+     * @throws IOException if they could not be written, or if a flush of the spool in the background has failed
+     *                     since the last call
+     */
+    public void flush() throws IOException, CacheException {
+        lock.lock();
+        try {
+            checkActive();
+            final IOException failure = spoolFailure;
+            spoolFailure = null;
+            if (spool.size() > 0) {
+                flushSpool();
             }
-        } catch (Exception e) {
-            LOG.error(name + "Cache: Could not remove disk store entry for " + key, e);
+            if (failure != null) {
+                throw failure;
+            }
+        } finally {
+            lock.unlock();
         }
-        return false;
     }
 
     /**
-     * Marks a block as free.
+     * Gets an Array of the keys for all elements in the disk store.
+     *
+     * @return An Object[] of {@link Serializable} keys
      */
-    private void freeBlock(final DiskElement element) {
-        totalSize -= element.payloadSize;
-        element.payloadSize = 0;
-        freeSpace.add(element);
+    public Object[] getKeyArray() {
+        lock.lock();
+        try {
+            Set elementKeySet = diskElements.keySet();
+            Set spoolKeySet = spool.keySet();
+            Set allKeysSet = new HashSet(elementKeySet.size() + spoolKeySet.size());
+            allKeysSet.addAll(elementKeySet);
+            allKeysSet.addAll(spoolKeySet);
+            return allKeysSet.toArray();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gives the keys of all the elements in the disk store to a visitor. The keys of the index are given as they
+     * are iterated, so that an index held off the heap is not copied onto it. The store is locked meanwhile.
+     */
+    public void visitKeys(final KeyVisitor visitor) {
+        lock.lock();
+        try {
+            for (Iterator iterator = diskElements.keySet().iterator(); iterator.hasNext();) {
+                visitor.visit((Serializable) iterator.next());
+            }
+            for (Iterator iterator = spool.keySet().iterator(); iterator.hasNext();) {
+                final Serializable key = (Serializable) iterator.next();
+                if (!diskElements.containsKey(key)) {
+                    visitor.visit(key);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the current store size.
+     */
+    public int getSize() {
+        lock.lock();
+        try {
+            try {
+                checkActive();
+                return diskElements.size() + spool.size();
+            } catch (Exception e) {
+                LOG.error(name + "Cache: Could not determine size of disk store.", e);
+                return 0;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Puts an item into the cache.
+     * <p/>
+     * The element is serialized on the calling thread, before the store is locked, so that several threads
+     * putting elements serialize them in parallel. The spool thread only has to write the bytes.
+     */
+    public void put(final Element entry) throws IOException {
+        try {
+            final SpoolEntry spoolEntry = new SpoolEntry(entry);
+            lock.lock();
+            try {
+                checkActive();
+
+                // Spool the entry
+                final Object previous = spool.put(entry.getKey(), spoolEntry);
+                if (previous == null) {
+                    keyMayHaveArrived(entry.getKey());
+                }
+                spoolChanged();
+            } finally {
+                lock.unlock();
+            }
+        } catch (CacheException e) {
+            throw new IOException(e.getMessage());
+        }
+    }
+
+    /**
+     * Puts an item that has already been encoded, by {@link Element#encode} or {@link Element#write} with the codecs
+     * of the cache, into the cache. The bytes are written to the data file as they are, and only decoded if the
+     * item is read back before they are.
+     */
+    public void putEncoded(final Serializable key, final byte[] record) throws IOException {
+        try {
+            final SpoolEntry spoolEntry = new SpoolEntry(key, record);
+            lock.lock();
+            try {
+                checkActive();
+                if (spool.put(key, spoolEntry) == null) {
+                    keyMayHaveArrived(key);
+                }
+                spoolChanged();
+            } finally {
+                lock.unlock();
+            }
+        } catch (CacheException e) {
+            throw new IOException(e.getMessage());
+        }
+    }
+
+    /**
+     * Puts a batch of encoded items into the cache, as {@link #putEncoded} and {@link #putAll} do.
+     *
+     * @param records a Map of key to encoded item
+     */
+    public void putAllEncoded(final Map records) throws IOException {
+        try {
+            final List spoolEntries = new ArrayList(records.size());
+            for (Iterator iterator = records.entrySet().iterator(); iterator.hasNext();) {
+                final Map.Entry entry = (Map.Entry) iterator.next();
+                spoolEntries.add(new SpoolEntry((Serializable) entry.getKey(), (byte[]) entry.getValue()));
+            }
+            lock.lock();
+            try {
+                checkActive();
+
+                for (int i = 0; i < spoolEntries.size(); i++) {
+                    final SpoolEntry spoolEntry = (SpoolEntry) spoolEntries.get(i);
+                    if (spool.put(spoolEntry.key, spoolEntry) == null) {
+                        keyMayHaveArrived(spoolEntry.key);
+                    }
+                }
+                spoolChanged();
+            } finally {
+                lock.unlock();
+            }
+        } catch (CacheException e) {
+            throw new IOException(e.getMessage());
+        }
+    }
+
+    /**
+     * Puts a batch of items into the cache. The spool thread is only woken once, so the batch is
+     * written to disk by a single {@link #flushSpool}.
+     * <p/>
+     * As for {@link #put}, the elements are serialized before the store is locked.
+     */
+    public void putAll(final Collection elements) throws IOException {
+        try {
+            final List spoolEntries = new ArrayList(elements.size());
+            for (Iterator iterator = elements.iterator(); iterator.hasNext();) {
+                spoolEntries.add(new SpoolEntry((Element) iterator.next()));
+            }
+            lock.lock();
+            try {
+                checkActive();
+
+                for (int i = 0; i < spoolEntries.size(); i++) {
+                    final SpoolEntry spoolEntry = (SpoolEntry) spoolEntries.get(i);
+                    if (spool.put(spoolEntry.key, spoolEntry) == null) {
+                        keyMayHaveArrived(spoolEntry.key);
+                    }
+                }
+                spoolChanged();
+            } finally {
+                lock.unlock();
+            }
+        } catch (CacheException e) {
+            throw new IOException(e.getMessage());
+        }
+    }
+
+    /**
+     * Stores the contents of a stream under a key, replacing any stream stored under it. Streams are kept apart
+     * from elements: a key may have both an element and a stream, and streams never expire.
+     * <p/>
+     * The stream is read through a buffer of {@link #STREAM_CHUNK_SIZE} bytes, and each buffer is written to its
+     * own extent of the data file, so a stream may be larger than the heap and than 2GB. The store is only locked
+     * while each extent is written. The new contents replace the old ones once the whole stream has been written;
+     * if reading the stream fails, the old contents are kept.
+     *
+     * @param key the key
+     * @param in  the stream, which is read to its end but not closed
+     * @return the number of bytes stored
+     * @throws IOException if the stream cannot be read or the data file cannot be written
+     */
+    public long putStream(final Serializable key, final InputStream in) throws IOException, CacheException {
+        final StreamValue value = new StreamValue();
+        final byte[] buffer = new byte[STREAM_CHUNK_SIZE];
+        boolean stored = false;
+        try {
+            int count;
+            do {
+                count = readChunk(in, buffer);
+                if (count > 0) {
+                    writeChunk(value, buffer, count);
+                }
+            } while (count == buffer.length);
+
+            lock.lock();
+            try {
+                checkActive();
+                removeStreamValue(key);
+                streams.put(key, value);
+                streamsChanged = true;
+                stored = true;
+            } finally {
+                lock.unlock();
+            }
+            return value.length;
+        } finally {
+            if (!stored) {
+                lock.lock();
+                try {
+                    freeChunks(value, false);
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads from a stream until the buffer is full or the stream ends.
+     *
+     * @return the number of bytes read
+     */
+    private static int readChunk(final InputStream in, final byte[] buffer) throws IOException {
+        int count = 0;
+        while (count < buffer.length) {
+            final int read = in.read(buffer, count, buffer.length - count);
+            if (read < 0) {
+                break;
+            }
+            count += read;
+        }
+        return count;
+    }
+
+    /**
+     * Writes an extent of a stream to a free block, or to the end of the data file.
+     */
+    private void writeChunk(final StreamValue value, final byte[] buffer, final int count)
+            throws IOException, CacheException {
+        lock.lock();
+        try {
+            checkActive();
+            DiskElement chunk = allocateBlock(count);
+            if (chunk == null) {
+                chunk = new DiskElement();
+                chunk.position = getDataEnd();
+                chunk.blockSize = count;
+            }
+            writeData(chunk.position, buffer, 0, count);
+            chunk.payloadSize = count;
+            chunk.expiryTime = Long.MAX_VALUE;
+            totalSize += count;
+            value.chunks.add(chunk);
+            value.length += count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Opens the stream stored under a key. The stream reads one extent at a time, only locking the store while it
+     * reads each one. If the stream of the key is replaced or removed while it is being read, or the store is
+     * disposed, the next read fails.
+     *
+     * @return the stream, or null if there is no stream under the key
+     */
+    public InputStream openStream(final Serializable key) throws CacheException {
+        lock.lock();
+        try {
+            checkActive();
+            final StreamValue value = (StreamValue) streams.get(key);
+            return value == null ? null : new ChunkInputStream(value);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Reads part of the stream stored under a key.
+     *
+     * @param offset the offset of the first byte to read
+     * @param length the number of bytes to read
+     * @return the bytes, fewer than asked for if the stream ends first, or null if there is no stream under the
+     *         key
+     */
+    public byte[] getRange(final Serializable key, final long offset, final int length)
+            throws IOException, CacheException {
+        if (offset < 0 || length < 0) {
+            throw new IllegalArgumentException("Negative offset or length");
+        }
+        lock.lock();
+        try {
+            checkActive();
+            final StreamValue value = (StreamValue) streams.get(key);
+            if (value == null) {
+                return null;
+            }
+            final byte[] bytes = new byte[(int) Math.max(0, Math.min(length, value.length - offset))];
+            long chunkStart = 0;
+            int copied = 0;
+            for (int i = 0; i < value.chunks.size() && copied < bytes.length; i++) {
+                final DiskElement chunk = (DiskElement) value.chunks.get(i);
+                final long chunkEnd = chunkStart + chunk.payloadSize;
+                if (offset + copied < chunkEnd) {
+                    final int from = (int) (offset + copied - chunkStart);
+                    final int count = Math.min(chunk.payloadSize - from, bytes.length - copied);
+                    readData(chunk.position + from, bytes, copied, count);
+                    copied += count;
+                }
+                chunkStart = chunkEnd;
+            }
+            return bytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the length of the stream stored under a key, or -1 if there is none
+     */
+    public long getStreamLength(final Serializable key) throws CacheException {
+        lock.lock();
+        try {
+            checkActive();
+            final StreamValue value = (StreamValue) streams.get(key);
+            return value == null ? -1 : value.length;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes the stream stored under a key.
+     *
+     * @return true if there was a stream under the key
+     */
+    public boolean removeStream(final Serializable key) throws CacheException {
+        lock.lock();
+        try {
+            checkActive();
+            return removeStreamValue(key);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes a stream and frees its extents. Must be called with the lock held.
+     */
+    private boolean removeStreamValue(final Object key) {
+        final StreamValue value = (StreamValue) streams.remove(key);
+        if (value == null) {
+            return false;
+        }
+        streamsChanged = true;
+        freeChunks(value, true);
+        return true;
+    }
+
+    /**
+     * Frees the extents of a stream, so that open readers of it fail rather than read what is written there next.
+     * Must be called with the lock held.
+     *
+     * @param checkpointed whether the stream was stored, so that a checkpoint may refer to its extents
+     */
+    private void freeChunks(final StreamValue value, final boolean checkpointed) {
+        value.removed = true;
+        for (int i = 0; i < value.chunks.size(); i++) {
+            final DiskElement chunk = (DiskElement) value.chunks.get(i);
+            if (checkpointed && holdsExtents()) {
+                totalSize -= chunk.payloadSize;
+                heldExtents.add(chunk);
+            } else {
+                freeBlock(chunk);
+            }
+        }
+        value.chunks.clear();
+        releaseFreeTail();
+    }
+
+    /**
+     * Tells whether freed stream extents have to be held, as a checkpoint that may refer to them is saved or being
+     * written. Relies on being called with the store lock held.
+     */
+    private boolean holdsExtents() {
+        return persistent && (checkpointSaved || writingIndex);
+    }
+
+    /**
+     * Gives the blocks of stream extents that no checkpoint refers to any more back to the free space. Relies on
+     * being called with the store lock held.
+     */
+    private void releaseExtents(final List extents) {
+        for (int i = 0; i < extents.size(); i++) {
+            final DiskElement extent = (DiskElement) extents.get(i);
+            freeSpace.free(extent.position, extent.blockSize);
+        }
+        releaseFreeTail();
+    }
+
+    /**
+     * Forgets all streams, whose extents are being discarded with the rest of the data file. Must be called with
+     * the lock held.
+     */
+    private void clearStreams() {
+        for (Iterator iterator = streams.values().iterator(); iterator.hasNext();) {
+            ((StreamValue) iterator.next()).removed = true;
+        }
+        streams.clear();
+        streamsChanged = true;
+    }
+
+    /**
+     * Removes an item from the cache.
+     *
+     * @throws IOException if the record of the item could not be marked as free, in which case the item is left
+     *                     in the store
+     */
+    public boolean remove(final Serializable key) throws IOException {
+        lock.lock();
+        try {
+            try {
+                checkActive();
+
+                // Remove the entry from the file. A spooled entry may be replacing an older one on disk, which must
+                // not survive it
+                final DiskElement element = (DiskElement) diskElements.get(key);
+                if (element != null) {
+                    markRecordFree(element);
+                    diskElements.remove(key);
+                    freeBlock(element);
+                    indexChanged(key);
+                    releaseFreeTail();
+                }
+
+                // Remove the entry from the spool
+                final Object spoolValue = spool.remove(key);
+                if (element != null || spoolValue != null) {
+                    keyLeft(key);
+                    return true;
+                }
+                return false;
+            } catch (CacheException e) {
+                throw new IOException(e.getMessage());
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes a batch of items from the cache.
+     *
+     * @return the number of items removed
+     * @throws IOException if the record of an item could not be marked as free, in which case that item and the
+     *                     ones after it are left in the store
+     */
+    public int removeAll(final Collection keys) throws IOException {
+        lock.lock();
+        try {
+            int removed = 0;
+            try {
+                checkActive();
+
+                for (Iterator iterator = keys.iterator(); iterator.hasNext();) {
+                    final Object key = iterator.next();
+                    final DiskElement element = (DiskElement) diskElements.get(key);
+                    if (element != null) {
+                        markRecordFree(element);
+                        diskElements.remove(key);
+                        freeBlock(element);
+                        indexChanged(key);
+                    }
+                    if (spool.remove(key) != null || element != null) {
+                        keyLeft(key);
+                        removed++;
+                    }
+                }
+                return removed;
+            } catch (CacheException e) {
+                throw new IOException(e.getMessage());
+            } finally {
+                releaseFreeTail();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Truncates the data file, once no reader is copying from it. In memory mapped mode, the mapping is dropped
+     * first. Relies on being called with the store lock held.
+     */
+    private void truncate(final long length) throws IOException {
+        blockLock.writeLock().lock();
+        try {
+            if (mappedFile != null) {
+                mappedFile.clear();
+            }
+            randomAccessFile.setLength(length);
+            dataLength = length;
+        } finally {
+            blockLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Closes the read channel, once no reader is copying from it. Relies on being called with the store lock held.
+     */
+    private void closeReadChannel() throws IOException {
+        blockLock.writeLock().lock();
+        try {
+            if (readChannel != null) {
+                readChannel.close();
+            }
+        } finally {
+            blockLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Records that the index entry of a key changed, so that the next checkpoint writes it. Relies on being called
+     * with the store lock held.
+     */
+    private void indexChanged(final Object key) {
+        if (persistent) {
+            changedKeys.add(key);
+        }
+    }
+
+    /**
+     * Marks a block as free. The {@link DiskElement} itself is left as it is, as readers outside the store lock may
+     * still be looking at it.
+     */
+    private void freeBlock(final DiskElement element) {
+        totalSize -= element.payloadSize;
+        freeSpace.free(element.position, element.blockSize);
+    }
+
+    /**
+     * Compacts the data file. Elements are moved towards the start of the file, over the free blocks before them,
+     * and the free space left at the end is given back to the file system. Reads and writes continue while it
+     * runs.
+     * <p/>
+     * In memory mapped mode, the file is only shrunk down to the end of the mapped segment holding the end of the
+     * data.
+     */
+    public void compact() throws IOException, CacheException {
+        compact(0);
+    }
+
+    /**
+     * Compacts the data file, if more than a share of it is free, on the calling thread.
+     * <p/>
+     * The elements and stream extents are listed in the order of their blocks, and moved in that order, in batches,
+     * from the first free block on. Each is freed, and then written to the first free block that fits it, which is
+     * never after where it was: an element too large for the free blocks before it slides down over the free space
+     * just before it. While a checkpoint is saved, a stream extent is only moved to a free block wholly before it,
+     * and its old block is held until the next checkpoint. Each batch locks the store, and is followed by a pause as
+     * long as the batch took, so that compaction takes at most about half of the time of the store. A compaction
+     * stops early if the store is disposed or the thread is interrupted.
+     *
+     * @param threshold the share of the data file that must be free
+     */
+    private void compact(final double threshold) throws IOException, CacheException {
+        compactionPermit.acquireUninterruptibly();
+        Compaction compaction = null;
+        try {
+            compaction = startCompaction(threshold);
+            while (compaction != null && compactBatch(compaction)) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(compaction.batchTime);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        } finally {
+            finishCompaction(compaction);
+        }
+    }
+
+    /**
+     * Compacts the data file, if more than a share of it is free, as {@link #compact(double)} does but on the
+     * shared executor. Rather than holding a thread of the executor through its pauses, each batch schedules the
+     * next one to run once the pause is over. Does nothing if a compaction is already running.
+     *
+     * @param threshold the share of the data file that must be free
+     */
+    private void scheduleCompaction(final double threshold) throws CacheException {
+        if (!compactionPermit.tryAcquire()) {
+            return;
+        }
+        final Compaction compaction;
+        try {
+            compaction = startCompaction(threshold);
+        } catch (CacheException e) {
+            finishCompaction(null);
+            throw e;
+        }
+        if (compaction == null) {
+            finishCompaction(null);
+            return;
+        }
+        executor.execute(new Runnable() {
+            public void run() {
+                runCompactionBatch(compaction, this);
+            }
+        });
+    }
+
+    /**
+     * Moves one batch of a compaction run by the shared executor, then schedules the next batch, or ends the
+     * compaction.
+     */
+    private void runCompactionBatch(final Compaction compaction, final Runnable task) {
+        boolean more = false;
+        try {
+            more = compactBatch(compaction);
+        } catch (Exception e) {
+            LOG.error(name + "Cache: Could not compact the data file", e);
+        }
+        if (more) {
+            try {
+                executor.schedule(task, compaction.batchTime, TimeUnit.NANOSECONDS);
+                return;
+            } catch (RejectedExecutionException e) {
+                // The executor is shutting down
+            }
+        }
+        finishCompaction(compaction);
+    }
+
+    /**
+     * Lists the blocks to move, if more than a share of the data file is free. Must be called with the compaction
+     * permit.
+     *
+     * @return the compaction, or null if the data file does not need compacting
+     */
+    private Compaction startCompaction(final double threshold) throws CacheException {
+        lock.lock();
+        try {
+            checkActive();
+            if (freeSpace.size() == 0 || freeSpace.getFreeBytes() <= threshold * dataLength) {
+                return null;
+            }
+            final Compaction compaction = new Compaction();
+            compaction.blocks = listLiveBlocks();
+            compacting = true;
+            return compaction;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Moves the next batch of blocks of a compaction, under the store lock. After the last batch, writes a
+     * checkpoint if stream extents were held, and unmaps the segments no longer needed.
+     *
+     * @return true if there are blocks left to move
+     */
+    private boolean compactBatch(final Compaction compaction) throws IOException {
+        final long start = System.nanoTime();
+        lock.lock();
+        try {
+            if (!active) {
+                return false;
+            }
+            final List blocks = compaction.blocks;
+            long batch = 0;
+            while (compaction.next < blocks.size() && batch < COMPACTION_BATCH_SIZE) {
+                final LiveBlock block = (LiveBlock) blocks.get(compaction.next++);
+                // Blocks with no free block before them stay where they are
+                if (block.position > freeSpace.getLowestFreePosition()) {
+                    batch += moveBlock(block);
+                }
+            }
+            releaseFreeTail();
+            compaction.moved += batch;
+            if (compaction.next < blocks.size()) {
+                compaction.batchTime = System.nanoTime() - start;
+                return true;
+            }
+            if (!heldExtents.isEmpty() && !indexNeeded && !writingIndex) {
+                // A checkpoint of the extents moved, so that the blocks they left can be given back
+                appendDelta(false);
+            }
+            shrinkMapping();
+        } finally {
+            lock.unlock();
+        }
+        if (LOG.isDebugEnabled()) {
+            LOG.debug(name + "Cache: Compacted the data file, moving " + compaction.moved + " bytes");
+        }
+        return false;
+    }
+
+    /**
+     * Ends a compaction, whether or not it has moved all its blocks, and gives back the compaction permit.
+     *
+     * @param compaction the compaction, or null if none was started
+     */
+    private void finishCompaction(final Compaction compaction) {
+        if (compaction != null) {
+            lock.lock();
+            try {
+                compacting = false;
+            } finally {
+                lock.unlock();
+            }
+        }
+        compactionPermit.release();
+    }
+
+    /**
+     * Allocates a free block for a new element or stream extent. While the data file is compacted, the first free
+     * block that fits is taken, so that new elements are not written where the compaction has yet to reach.
+     * Relies on being called with the store lock held.
+     *
+     * @return the block, or null if no free block is large enough
+     */
+    private DiskElement allocateBlock(final int length) {
+        if (compacting) {
+            return freeSpace.allocateFirstFit(length, Long.MAX_VALUE);
+        } else {
+            return freeSpace.allocate(length);
+        }
+    }
+
+    /**
+     * Lists the blocks of the elements and stream extents in the data file, in order of position. Relies on being
+     * called with the store lock held.
+     */
+    private List listLiveBlocks() {
+        final List blocks = new ArrayList(diskElements.size());
+        for (Iterator iterator = diskElements.entrySet().iterator(); iterator.hasNext();) {
+            final Map.Entry entry = (Map.Entry) iterator.next();
+            final LiveBlock block = new LiveBlock();
+            block.position = ((DiskElement) entry.getValue()).position;
+            block.key = entry.getKey();
+            blocks.add(block);
+        }
+        for (Iterator iterator = streams.entrySet().iterator(); iterator.hasNext();) {
+            final Map.Entry entry = (Map.Entry) iterator.next();
+            final StreamValue value = (StreamValue) entry.getValue();
+            for (int i = 0; i < value.chunks.size(); i++) {
+                final LiveBlock block = new LiveBlock();
+                block.position = ((DiskElement) value.chunks.get(i)).position;
+                block.key = entry.getKey();
+                block.stream = value;
+                block.chunk = i;
+                blocks.add(block);
+            }
+        }
+        Collections.sort(blocks, new Comparator() {
+            public int compare(Object o1, Object o2) {
+                final long position1 = ((LiveBlock) o1).position;
+                final long position2 = ((LiveBlock) o2).position;
+                return position1 < position2 ? -1 : (position1 == position2 ? 0 : 1);
+            }
+        });
+        return blocks;
+    }
+
+    /**
+     * Moves a block listed for compaction to the first free block that fits it, if it is still where it was listed.
+     * The new block may overlap the old one, so the bytes are written, and the index pointed at them, once no reader
+     * is copying from the old block. Relies on being called with the store lock held.
+     *
+     * @return the number of bytes moved
+     */
+    private int moveBlock(final LiveBlock block) throws IOException {
+        final DiskElement current;
+        if (block.stream == null) {
+            current = (DiskElement) diskElements.get(block.key);
+        } else if (!block.stream.removed && block.chunk < block.stream.chunks.size()) {
+            current = (DiskElement) block.stream.chunks.get(block.chunk);
+        } else {
+            current = null;
+        }
+        if (current == null || current.position != block.position) {
+            return 0;
+        }
+        // The last checkpoint may refer to the old extent of a stream, so it is held rather than freed
+        final boolean hold = block.stream != null && holdsExtents();
+        final byte[] buffer = new byte[current.payloadSize];
+        readData(current.position, buffer, 0, buffer.length);
+        if (!hold) {
+            freeSpace.free(current.position, current.blockSize);
+        }
+        final DiskElement moved = freeSpace.allocateFirstFit(current.payloadSize, current.position);
+        if (moved == null) {
+            return 0;
+        }
+        moved.payloadSize = current.payloadSize;
+        moved.expiryTime = current.expiryTime;
+        blockLock.writeLock().lock();
+        try {
+            if (moved.position != current.position) {
+                if (persistent && block.stream == null && RecordHeader.isFramed(buffer)) {
+                    // A new sequence number, so that the record is found as written since the last checkpoint
+                    RecordHeader.setSequence(buffer, ++sequence);
+                }
+                try {
+                    writeData(moved.position, buffer, 0, buffer.length);
+                } catch (IOException e) {
+                    abandonMove(block, current, moved, hold);
+                    throw e;
+                }
+                // The old record is only left behind if the new one did not overwrite its state
+                final long oldState = current.position + RecordHeader.STATE_OFFSET;
+                if (persistent && block.stream == null && moved.position + buffer.length <= oldState) {
+                    try {
+                        writeData(oldState, FREE_STATE, 0, FREE_STATE.length);
+                    } catch (IOException e) {
+                        LOG.error(name + "Cache: Could not mark a record in the data file as free", e);
+                    }
+                }
+            }
+            publishMovedBlock(block, moved);
+            if (hold) {
+                heldExtents.add(current);
+            }
+        } finally {
+            blockLock.writeLock().unlock();
+        }
+        return moved.position != current.position ? current.payloadSize : 0;
+    }
+
+    /**
+     * Deals with a move whose write failed. If the new block lies wholly before the old one, the old block is
+     * intact, so it is taken back, unless it was never freed, and the element or extent stays where it was.
+     * Otherwise the old block may have been partly overwritten, and the element, or the whole stream, is dropped.
+     * Relies on being called with the store lock held.
+     *
+     * @param held whether the old block was held for the last checkpoint, rather than freed
+     */
+    private void abandonMove(final LiveBlock block, final DiskElement current, final DiskElement moved,
+            final boolean held) {
+        if (held) {
+            freeSpace.free(moved.position, moved.blockSize);
+            return;
+        }
+        if (moved.position + current.payloadSize <= current.position) {
+            freeSpace.free(moved.position, moved.blockSize);
+            freeSpace.reserve(current.position, current.blockSize);
+            return;
+        }
+        publishMovedBlock(block, moved);
+        if (block.stream == null) {
+            diskElements.remove(block.key);
+            freeBlock(moved);
+            keyLeft(block.key);
+        } else {
+            removeStreamValue(block.key);
+        }
+    }
+
+    /**
+     * Points the index, or the stream, at the new block of an element or extent.
+     */
+    private void publishMovedBlock(final LiveBlock block, final DiskElement moved) {
+        if (block.stream == null) {
+            diskElements.put(block.key, moved);
+            indexChanged(block.key);
+        } else {
+            block.stream.chunks.set(block.chunk, moved);
+            streamsChanged = true;
+        }
+    }
+
+    /**
+     * Unmaps the segments past the end of the data in memory mapped mode, and shrinks the file to the end of the
+     * last segment still needed. Relies on being called with the store lock held.
+     */
+    private void shrinkMapping() throws IOException {
+        if (mappedFile == null || mappedFile.getMappedLength() - dataLength < MappedDataFile.SEGMENT_SIZE) {
+            return;
+        }
+        blockLock.writeLock().lock();
+        try {
+            mappedFile.clear();
+            randomAccessFile.setLength(dataLength);
+            mappedFile.ensureMapped(dataLength);
+        } finally {
+            blockLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Marks the block of an element as free, and in a persistent store marks its record as free too, so that the
+     * element does not come back if the index has to be rebuilt from the data file. Relies on being called with the
+     * store lock held.
+     */
+    private void freeRecord(final DiskElement element) {
+        try {
+            markRecordFree(element);
+        } catch (IOException e) {
+            LOG.error(name + "Cache: Could not mark a record in the data file as free", e);
+        }
+        freeBlock(element);
+    }
+
+    /**
+     * Marks the record of an element as free in a persistent store, before its block is freed. Relies on being
+     * called with the store lock held.
+     */
+    private void markRecordFree(final DiskElement element) throws IOException {
+        if (persistent) {
+            writeData(element.position + RecordHeader.STATE_OFFSET, FREE_STATE, 0, FREE_STATE.length);
+        }
+    }
+
+    /**
+     * Gives the free block at the end of the data file, if there is one, back to the file system, so that free
+     * space does not pile up behind the last element. The block is dropped once no reader is copying from it. In
+     * memory mapped mode, the file is not shrunk under its mapping: only the end of the data moves, and the file is
+     * truncated to it on dispose. Relies on being called with the store lock held.
+     */
+    private void releaseFreeTail() {
+        final long end = freeSpace.releaseTail(dataLength);
+        if (end == dataLength) {
+            return;
+        }
+        blockLock.writeLock().lock();
+        try {
+            if (mappedFile == null) {
+                randomAccessFile.setLength(end);
+            }
+            dataLength = end;
+        } catch (IOException e) {
+            LOG.error(name + "Cache: Could not truncate the data file", e);
+            freeSpace.free(end, dataLength - end);
+        } finally {
+            blockLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes all cached items from the cache.
+     * <p/>
+     */
+    public void removeAll() throws IOException {
+        lock.lock();
+        try {
+            try {
+                checkActive();
+
+                // Ditch all the elements, and truncate the file
+                spool.clear();
+                diskElements.clear();
+                freeSpace.clear();
+                heldExtents.clear();
+                clearStreams();
+                if (bloomFilter != null) {
+                    bloomFilter = new BloomFilter(MIN_BLOOM_FILTER_CAPACITY, true);
+                }
+                totalSize = 0;
+                truncate(0);
+                if (persistent) {
+                    // The checkpoints refer to nothing that is left
+                    indexFile.delete();
+                    deltaLog.delete();
+                    changedKeys.clear();
+                    streamsChanged = false;
+                    deltaEntries = 0;
+                    indexNeeded = true;
+                    indexGeneration++;
+                    checkpointSaved = false;
+                }
+            } catch (Exception e) {
+                // Clean up
+                LOG.error(name + " Cache: Could not rebuild disk store", e);
+                dispose();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Shuts down the disk store in preparation for cache shutdown
+     * <p/>
+     * A persistent store writes a last checkpoint, marked as that of a clean shutdown, which normally only holds the
+     * changes to the index since the one before, and the Bloom filter. If a VM crash happens, the shutdown hook will
+     * not run, and the index is recovered on the next start from the last checkpoint and the records written since.
+     */
+    public void dispose() {
+        lock.lock();
+        try {
+
+            if (!active) {
+                return;
+            }
+
+            // Close the cache
+            try {
+                if (expiryThread != null) {
+                    expiryThread.interrupt();
+                }
+                if (expiryTask != null) {
+                    expiryTask.cancel(false);
+                }
+
+                //Flush the spool if persistent, so we don't lose any data.
+                if (persistent) {
+                    flushSpool();
+                    // Each clean shutdown logs a Bloom filter, so the log is folded into the index once it outgrows it
+                    if (indexNeeded || writingIndex || deltaLog.length() > indexFile.length()) {
+                        writeIndex(true);
+                    } else {
+                        appendDelta(true);
+                    }
+                }
+
+                //Clear in-memory data structures
+                spool.clear();
+                diskElements.clear();
+                freeSpace.clear();
+                heldExtents.clear();
+                clearStreams();
+                if (randomAccessFile != null) {
+                    if (mappedFile != null) {
+                        // Drop the padding up to the end of the last mapped segment
+                        truncate(dataLength);
+                    }
+                    closeReadChannel();
+                    randomAccessFile.close();
+                }
+                if (!persistent) {
+                    LOG.debug("Deleting file " + dataFile.getName());
+                    dataFile.delete();
+                }
+            } catch (Exception e) {
+                LOG.error(name + "Cache: Could not shut down disk cache", e);
+            } finally {
+                active = false;
+                randomAccessFile = null;
+                spoolActivity.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Whether there are any elements waiting to be spooled to disk.
+     *
+     * @return false if there are elements waiting, otherwise true
+     */
+    public boolean isSpoolEmpty() {
+        lock.lock();
+        try {
+            return (!active || spool.size() == 0);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Wakes up the spool thread or, with a shared executor, schedules a flush of the spool unless one is already
+     * scheduled. Relies on being called with the store lock held.
+     */
+    private void spoolChanged() {
+        if (executor == null) {
+            spoolActivity.signalAll();
+        } else if (!spoolFlushScheduled) {
+            spoolFlushScheduled = true;
+            executor.execute(new Runnable() {
+                public void run() {
+                    spoolTaskMain();
+                }
+            });
+        }
+    }
+
+    /**
+     * Flushes the spool on behalf of a shared executor. Elements spooled while the flush runs are picked up by the
+     * next task.
+     */
+    private void spoolTaskMain() {
+        lock.lock();
+        try {
+            spoolFlushScheduled = false;
+            if (!active || spool.size() == 0) {
+                return;
+            }
+            try {
+                flushSpool();
+            } catch (IOException e) {
+                LOG.error(name + "Cache: Could not write elements to disk cache", e);
+                spoolFailure = e;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Main method for the spool thread.
+     * <p/>
+     * Note that the spool thread locks the cache for the entire time it is writing elements to the disk.
+     * TODO - Give cache lookups preference to writes
+     */
+    private void spoolThreadMain() {
+        lock.lock();
+        try {
+            while (true) {
+                // Wait for elements in the spool
+                while (active && spool.size() == 0) {
+                    try {
+                        spoolActivity.await();
+                    } catch (InterruptedException e) {
+                        // Bail
+                        return;
+                    }
+                }
+                if (!active) {
+                    return;
+                }
+
+                // Write elements to disk
+                try {
+                    flushSpool();
+                } catch (IOException e) {
+                    LOG.error(name + "Cache: Could not write elements to disk cache", e);
+                    spoolFailure = e;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Flushes all spooled elements to disk.
+     * Note that the cache is locked for the entire time that the spool is being flushed.
+     * <p/>
+     * Elements that fit in a free block are written in place. All the others are laid out one after another at the
+     * end of the data file and written there with a single write, so a batch of new elements is stored as one
+     * contiguous region.
+     */
+    private void flushSpool() throws IOException {
+        lock.lock();
+        try {
+            try {
+                final long appendStart = getDataEnd();
+                long appendPosition = appendStart;
+                final ByteArrayOutputStream appendBuffer = new ByteArrayOutputStream();
+
+                // Write elements to the DB
+                for (Iterator iterator = spool.values().iterator(); iterator.hasNext();) {
+                    final SpoolEntry spoolEntry = (SpoolEntry) iterator.next();
+                    final Serializable key = spoolEntry.key;
+
+                    // Remove the old entry, if any
+                    final DiskElement oldBlock = (DiskElement) diskElements.remove(key);
+                    if (oldBlock != null) {
+                        freeRecord(oldBlock);
+                    }
+
+                    // The entry was serialised when it was spooled. A persistent store frames it with a header, so
+                    // that it can be found again if the index is lost
+                    final byte[] buffer = persistent ? RecordHeader.frame(++sequence, spoolEntry.buffer)
+                            : spoolEntry.buffer;
+
+                    // Check for a free block
+                    DiskElement diskElement = allocateBlock(buffer.length);
+                    if (diskElement == null) {
+                        // Append, the actual write is done below with the rest of the batch
+                        diskElement = new DiskElement();
+                        diskElement.position = appendPosition;
+                        diskElement.blockSize = buffer.length;
+                        appendBuffer.write(buffer);
+                        appendPosition += buffer.length;
+                    } else {
+                        // TODO - cleanup block on failure
+                        // Write the record
+                        writeData(diskElement.position, buffer, 0, buffer.length);
+                    }
+
+                    diskElement.expiryTime = getExpiryTime(spoolEntry.getCreationTime(),
+                            spoolEntry.getLastAccessTime());
+
+                    // Add to index, update stats
+                    diskElement.payloadSize = buffer.length;
+                    totalSize += buffer.length;
+                    diskElements.put(key, diskElement);
+                    indexChanged(key);
+                }
+
+                // Write all the appended elements in one go
+                if (appendBuffer.size() > 0) {
+                    writeData(appendStart, appendBuffer.toByteArray(), 0, appendBuffer.size());
+                }
+                releaseFreeTail();
+            } finally {
+                // Clear the spool.  Do this regardless of whether the writes failed - just ditch the elements
+                spool.clear();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes a checkpoint of the index of a persistent store: the index entries changed since the last checkpoint,
+     * appended to the delta log. If the index file is missing or out of date, or once the delta log holds as many
+     * entries as the index, the whole index is written to the index file instead, and the delta log is emptied.
+     * <p/>
+     * The expiry thread writes a checkpoint every time it runs. If the store is not shut down cleanly, the index is
+     * recovered on the next start from the last checkpoint, and from the records written since.
+     */
+    public void checkpoint() throws IOException, CacheException {
+        if (!persistent) {
+            return;
+        }
+        checkpointLock.lock();
+        try {
+            lock.lock();
+            try {
+                checkActive();
+                if (!indexNeeded && deltaEntries + changedKeys.size() <= diskElements.size()) {
+                    if (!changedKeys.isEmpty() || streamsChanged) {
+                        appendDelta(false);
+                    }
+                    return;
+                }
+            } finally {
+                lock.unlock();
+            }
+            writeIndex(false);
+        } finally {
+            checkpointLock.unlock();
+        }
+    }
+
+    /**
+     * Appends the index entries changed since the last checkpoint, and the streams if any of them changed, to the
+     * delta log. Relies on being called with the store lock held.
+     *
+     * @param clean whether the store is being shut down
+     */
+    private void appendDelta(final boolean clean) throws IOException {
+        final DeltaLog.Delta delta = new DeltaLog.Delta();
+        delta.checkpoint = checkpointNumber + 1;
+        delta.sequence = sequence;
+        delta.clean = clean;
+        delta.changes = new HashMap();
+        for (Iterator iterator = changedKeys.iterator(); iterator.hasNext();) {
+            final Object key = iterator.next();
+            delta.changes.put(key, diskElements.get(key));
+        }
+        if (streamsChanged) {
+            delta.streams = copyStreams();
+        }
+        if (clean) {
+            // The keys do not change again before the store is shut down
+            delta.bloomFilter = bloomFilter;
+        }
+        try {
+            deltaLog.append(delta);
+        } catch (IOException e) {
+            // The log may end with a torn delta, so it is started again from a new index file
+            indexNeeded = true;
+            throw e;
+        }
+        checkpointNumber = delta.checkpoint;
+        checkpointSaved = true;
+        deltaEntries += delta.changes.size();
+        changedKeys.clear();
+        streamsChanged = false;
+        releaseExtents(heldExtents);
+        heldExtents = new ArrayList();
+    }
+
+    /**
+     * Writes the whole index to the index file, and empties the delta log.
+     * <p/>
+     * The index is written to a temporary file, which then replaces the index file. An index on the heap is written
+     * without holding the store lock, unless the store is being shut down: entries that change while it is written
+     * are left for the next delta, which is applied over it when it is read. The free space is not written, but
+     * worked out from the blocks in use when the index is read.
+     *
+     * @param clean whether the store is being shut down
+     */
+    private void writeIndex(final boolean clean) throws IOException {
+        final boolean unlocked = !clean && diskElements instanceof ConcurrentHashMap;
+        final File temporary = new File(indexFile.getParentFile(),
+                getIndexFileName() + (unlocked ? UNLOCKED_INDEX_SUFFIX : TEMPORARY_INDEX_SUFFIX));
+        lock.lock();
+        boolean locked = true;
+        try {
+            final Map index = diskElements;
+            final HashMap streamsCopy = copyStreams();
+            final long checkpoint = checkpointNumber + 1;
+            final long checkpointSequence = sequence;
+            final int generation = indexGeneration;
+            final List released = heldExtents;
+            // Changes from here on go in the next delta
+            heldExtents = new ArrayList();
+            changedKeys.clear();
+            streamsChanged = false;
+            indexNeeded = true;
+            writingIndex = true;
+            if (unlocked) {
+                lock.unlock();
+                locked = false;
+            }
+
+            boolean written = false;
+            try {
+                final FileOutputStream fout = new FileOutputStream(temporary);
+                final ObjectOutputStream objectOutputStream =
+                        new ObjectOutputStream(new BufferedOutputStream(fout));
+                try {
+                    if (index instanceof OffHeapDiskIndex) {
+                        objectOutputStream.writeObject(OFF_HEAP_INDEX_FORMAT);
+                        ((OffHeapDiskIndex) index).writeEntries(objectOutputStream);
+                    } else {
+                        objectOutputStream.writeObject(index);
+                    }
+                    // In place of the free space, which is worked out from the blocks in use
+                    objectOutputStream.writeObject(new ArrayList());
+                    objectOutputStream.writeObject(SEQUENCE_FORMAT);
+                    objectOutputStream.writeObject(Long.valueOf(checkpointSequence));
+                    objectOutputStream.writeObject(CHECKPOINT_FORMAT);
+                    objectOutputStream.writeObject(Long.valueOf(checkpoint));
+                    objectOutputStream.writeObject(Boolean.valueOf(clean));
+                    if (!streamsCopy.isEmpty()) {
+                        objectOutputStream.writeObject(STREAMS_FORMAT);
+                        objectOutputStream.writeObject(streamsCopy);
+                    }
+                    // Only a Bloom filter written with the store locked matches the index
+                    if (clean && bloomFilter != null) {
+                        objectOutputStream.writeObject(bloomFilter);
+                    }
+                    objectOutputStream.flush();
+                    fout.getFD().sync();
+                } finally {
+                    objectOutputStream.close();
+                }
+                written = true;
+            } finally {
+                if (!locked) {
+                    lock.lock();
+                    locked = true;
+                }
+                writingIndex = false;
+                if (!written || !active || generation != indexGeneration) {
+                    // Failed, or overtaken by a shutdown or by the store being emptied
+                    temporary.delete();
+                }
+                if (!written && active && generation == indexGeneration) {
+                    heldExtents.addAll(released);
+                }
+            }
+            if (temporary.exists()) {
+                try {
+                    replaceIndexFile(temporary);
+                } catch (IOException e) {
+                    temporary.delete();
+                    heldExtents.addAll(released);
+                    throw new IOException("Index file " + indexFile + " could not be replaced.", e);
+                }
+                checkpointNumber = checkpoint;
+                checkpointSaved = true;
+                deltaLog.clear();
+                deltaEntries = 0;
+                indexNeeded = false;
+                releaseExtents(released);
+            }
+        } finally {
+            if (locked) {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Moves a new index over the index file, atomically where the file system allows it.
+     */
+    private void replaceIndexFile(final File temporary) throws IOException {
+        try {
+            Files.move(temporary.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temporary.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Copies the streams, so that they can be written while their extents move. Relies on being called with the
+     * store lock held.
+     */
+    private HashMap copyStreams() {
+        final HashMap copy = new HashMap();
+        for (Iterator iterator = streams.entrySet().iterator(); iterator.hasNext();) {
+            final Map.Entry entry = (Map.Entry) iterator.next();
+            final StreamValue value = (StreamValue) entry.getValue();
+            final StreamValue valueCopy = new StreamValue();
+            valueCopy.length = value.length;
+            valueCopy.chunks.addAll(value.chunks);
+            copy.put(entry.getKey(), valueCopy);
+        }
+        return copy;
+    }
+
+    /**
+     * Reads the index on startup: the index file, and then the deltas logged since it was written.
+     * <p/>
+     * Note that the cache is locked for the entire time that the index is being read
+     *
+     * @return true if the index was read, false if it was missing, empty or could not be read
+     */
+    private boolean readIndex() throws IOException {
+        lock.lock();
+        try {
+            if (!indexFile.exists() || indexFile.length() == 0) {
+                return false;
+            }
+            ObjectInputStream objectInputStream = null;
+            FileInputStream fin = null;
+            try {
+                fin = new FileInputStream(indexFile);
+                objectInputStream = new ObjectInputStream(new BufferedInputStream(fin));
+                // Either index format can be read into either kind of index
+                final Object elements = objectInputStream.readObject();
+                final Map index = createIndex();
+                if (OFF_HEAP_INDEX_FORMAT.equals(elements)) {
+                    OffHeapDiskIndex.readEntries(objectInputStream, index, keyCodec, false);
+                } else if (SERIALIZED_OFF_HEAP_INDEX_FORMAT.equals(elements)) {
+                    OffHeapDiskIndex.readEntries(objectInputStream, index, keyCodec, true);
+                } else {
+                    index.putAll((Map) elements);
+                }
+                // The free space is worked out from the blocks in use
+                objectInputStream.readObject();
+                diskElements = index;
+                readIndexTrailer(objectInputStream);
+            } catch (StreamCorruptedException e) {
+                LOG.error("Corrupt index file. Creating new index.");
+                return false;
+            } catch (IOException e) {
+                LOG.error("IOException reading index. Creating new index. ");
+                return false;
+            } catch (ClassNotFoundException e) {
+                LOG.error("Class loading problem reading index. Creating new index. ", e);
+                return false;
+            } finally {
+                try {
+                    if (objectInputStream != null) {
+                        objectInputStream.close();
+                    } else if (fin != null) {
+                        fin.close();
+                    }
+                } catch (IOException e) {
+                    LOG.error("Problem closing the index file.");
+                }
+            }
+            readDeltas();
+            checkpointSaved = true;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Applies the deltas logged since the index file was written over the index, in order. Deltas logged before
+     * it, which it already holds, are skipped.
+     */
+    private void readDeltas() throws IOException {
+        final List deltas = deltaLog.read();
+        for (int i = 0; i < deltas.size(); i++) {
+            final DeltaLog.Delta delta = (DeltaLog.Delta) deltas.get(i);
+            if (delta.checkpoint <= checkpointNumber) {
+                continue;
+            }
+            for (Iterator iterator = delta.changes.entrySet().iterator(); iterator.hasNext();) {
+                final Map.Entry entry = (Map.Entry) iterator.next();
+                if (entry.getValue() == null) {
+                    diskElements.remove(entry.getKey());
+                } else {
+                    diskElements.put(entry.getKey(), entry.getValue());
+                }
+            }
+            if (delta.streams != null) {
+                streams = delta.streams;
+            }
+            sequence = delta.sequence;
+            checkpointNumber = delta.checkpoint;
+            deltaEntries += delta.changes.size();
+            indexClean = delta.clean;
+            // The Bloom filter saved before no longer matches the index, unless a clean shutdown saved one with it
+            bloomFilter = delta.clean ? usableBloomFilter(delta.bloomFilter) : null;
+        }
+    }
+
+    /**
+     * Works out the free space and the size of the elements from the blocks of the elements and stream extents in
+     * the index, and truncates the data file after the last of them. Relies on being called with the store lock
+     * held.
+     */
+    private void rebuildFreeSpace() throws IOException {
+        final List blocks = new ArrayList(diskElements.values());
+        for (Iterator iterator = streams.values().iterator(); iterator.hasNext();) {
+            blocks.addAll(((StreamValue) iterator.next()).chunks);
+        }
+        Collections.sort(blocks, new Comparator() {
+            public int compare(Object o1, Object o2) {
+                final long position1 = ((DiskElement) o1).position;
+                final long position2 = ((DiskElement) o2).position;
+                return position1 < position2 ? -1 : (position1 == position2 ? 0 : 1);
+            }
+        });
+        final BlockAllocator free = new BlockAllocator();
+        long position = 0;
+        long size = 0;
+        for (int i = 0; i < blocks.size(); i++) {
+            final DiskElement block = (DiskElement) blocks.get(i);
+            if (block.position > position) {
+                free.free(position, block.position - position);
+            }
+            position = Math.max(position, block.position + block.blockSize);
+            size += block.payloadSize;
+        }
+        if (randomAccessFile.length() > position) {
+            randomAccessFile.setLength(position);
+        }
+        freeSpace = free;
+        totalSize = size;
     }
 
     /**
-     * Removes all cached items from the cache.
+     * Rebuilds the index and the free space from the records in the data file, when there is no index file to read.
      * <p/>
+     * Where a key was found more than once, the record with the highest sequence number is kept, and the others are
+     * marked as free. Expired elements are dropped. Everything between the records kept is free space, and the file
+     * is truncated after the last one. Records written by earlier versions, without a header, and streams, cannot
+     * be found and are lost.
      */
-    public synchronized void removeAll() throws IOException {
-        try {
-            checkActive();
+    private void recoverIndex() throws Exception {
+        final long length = randomAccessFile.length();
+        final List records = scanDataFile(new long[]{0}, new long[]{length});
+        final Map latest = new HashMap();
+        for (int i = 0; i < records.size(); i++) {
+            final DataFileScanner.Found record = (DataFileScanner.Found) records.get(i);
+            sequence = Math.max(sequence, record.sequence);
+            final DataFileScanner.Found previous = (DataFileScanner.Found) latest.get(record.key);
+            if (previous == null || previous.sequence <= record.sequence) {
+                latest.put(record.key, record);
+            }
+        }
 
-            // Ditch all the elements, and truncate the file
-            spool.clear();
-            diskElements.clear();
-            freeSpace.clear();
-            totalSize = 0;
-            randomAccessFile.setLength(0);
-            if (persistent) {
-                indexFile.delete();
-                indexFile.createNewFile();
+        final Map index = createIndex();
+        final long now = System.currentTimeMillis();
+        for (int i = 0; i < records.size(); i++) {
+            final DataFileScanner.Found record = (DataFileScanner.Found) records.get(i);
+            final long expiryTime = getExpiryTime(record.creationTime, record.lastAccessTime);
+            if (latest.get(record.key) != record || now >= expiryTime) {
+                markFree(record.position);
+            } else {
+                index.put(record.key, createDiskElement(record, expiryTime));
             }
-        } catch (Exception e) {
-            // Clean up
-            LOG.error(name + " Cache: Could not rebuild disk store", e);
-            dispose();
         }
+        diskElements = index;
+        streams = new HashMap();
+        rebuildFreeSpace();
+        LOG.warn(name + "Cache: Index file missing or unreadable. Rebuilt the index from the data file, finding "
+                + index.size() + " elements in " + records.size() + " records, and truncated it from " + length
+                + " to " + randomAccessFile.length() + " bytes");
     }
 
     /**
-     * Shuts down the disk store in preparation for cache shutdown
+     * Recovers the index of a store that was not shut down cleanly from the last checkpoint, which has been read
+     * into the index, and from the records written since.
      * <p/>
-     * If a VM crash happens, the shutdown hook will not run. The data file and the index file
-     * will be out of synchronisation. At initialisation we always delete the index file
-     * after we have read the elements, so that it has a zero length. On a dirty restart, it still will have
-     * and the data file will automatically be deleted, thus preserving safety.
+     * An entry of the checkpoint is kept if its block still starts with the header of a live record of the same
+     * length, written no later than the checkpoint. A block is only written again after it is freed, freeing the
+     * block of an element marks its record as free, and records written or moved after the checkpoint have higher
+     * sequence numbers, so an element removed, replaced or moved since is dropped. Only the rest of the data file,
+     * which was free at the checkpoint or has been written since, is scanned for records, as {@link #recoverIndex}
+     * scans the whole file, and the records written after the checkpoint replace the entries kept.
+     * <p/>
+     * The extents of streams have no header to check, but the blocks of those the checkpoint refers to are held
+     * until the next one is written, so the streams of the checkpoint are kept, unless the data file ends before
+     * one of their extents. Their extents are not scanned.
      */
-    public synchronized void dispose() {
+    private void recoverFromCheckpoint() throws Exception {
+        final long length = randomAccessFile.length();
+        final long checkpointSequence = sequence;
+        final int checkpointSize = diskElements.size();
 
-        if (!active) {
-            return;
+        final HashMap keptStreams = new HashMap();
+        for (Iterator iterator = streams.entrySet().iterator(); iterator.hasNext();) {
+            final Map.Entry entry = (Map.Entry) iterator.next();
+            final StreamValue value = (StreamValue) entry.getValue();
+            boolean inFile = true;
+            for (int i = 0; i < value.chunks.size() && inFile; i++) {
+                final DiskElement chunk = (DiskElement) value.chunks.get(i);
+                inFile = chunk.position + chunk.payloadSize <= length;
+            }
+            if (inFile) {
+                keptStreams.put(entry.getKey(), value);
+            }
         }
 
-        // Close the cache
-        try {
-            if (expiryThread != null) {
-                expiryThread.interrupt();
+        final Map index = createIndex();
+        final List kept = new ArrayList();
+        final byte[] header = new byte[RecordHeader.SIZE];
+        final List blocks = listLiveBlocks();
+        for (int i = 0; i < blocks.size(); i++) {
+            final LiveBlock block = (LiveBlock) blocks.get(i);
+            if (block.stream != null) {
+                if (keptStreams.get(block.key) == block.stream) {
+                    kept.add(block.stream.chunks.get(block.chunk));
+                }
+                continue;
+            }
+            final DiskElement diskElement = (DiskElement) diskElements.get(block.key);
+            if (diskElement.payloadSize < RecordHeader.SIZE
+                    || diskElement.position + diskElement.payloadSize > length) {
+                continue;
+            }
+            randomAccessFile.seek(diskElement.position);
+            randomAccessFile.readFully(header);
+            if (RecordHeader.isHeader(header, 0) && RecordHeader.getState(header, 0) == RecordHeader.LIVE
+                    && RecordHeader.getLength(header, 0) == diskElement.payloadSize - RecordHeader.SIZE
+                    && RecordHeader.getSequence(header, 0) <= checkpointSequence) {
+                index.put(block.key, diskElement);
+                kept.add(diskElement);
+            }
+        }
+        final int keptElements = index.size();
+
+        // Scan around the blocks kept
+        final List starts = new ArrayList();
+        final List ends = new ArrayList();
+        long position = 0;
+        for (int i = 0; i <= kept.size(); i++) {
+            final long next = i < kept.size() ? ((DiskElement) kept.get(i)).position : length;
+            if (next > position) {
+                starts.add(Long.valueOf(position));
+                ends.add(Long.valueOf(next));
+            }
+            if (i < kept.size()) {
+                position = Math.max(position, next + ((DiskElement) kept.get(i)).blockSize);
             }
+        }
+        final long[] startPositions = new long[starts.size()];
+        final long[] endPositions = new long[ends.size()];
+        long scanned = 0;
+        for (int i = 0; i < startPositions.length; i++) {
+            startPositions[i] = ((Long) starts.get(i)).longValue();
+            endPositions[i] = ((Long) ends.get(i)).longValue();
+            scanned += endPositions[i] - startPositions[i];
+        }
+        final List records = scanDataFile(startPositions, endPositions);
+
+        // Records running into a block kept only look like ones, and the others from before the checkpoint are stale
+        final Map latest = new HashMap();
+        int nextKept = 0;
+        for (int i = 0; i < records.size(); i++) {
+            final DataFileScanner.Found record = (DataFileScanner.Found) records.get(i);
+            while (nextKept < kept.size() && ((DiskElement) kept.get(nextKept)).position < record.position) {
+                nextKept++;
+            }
+            if (nextKept < kept.size()
+                    && record.position + record.size > ((DiskElement) kept.get(nextKept)).position) {
+                continue;
+            }
+            sequence = Math.max(sequence, record.sequence);
+            final DataFileScanner.Found previous = (DataFileScanner.Found) latest.get(record.key);
+            if (record.sequence <= checkpointSequence) {
+                markFree(record.position);
+            } else if (previous == null || previous.sequence <= record.sequence) {
+                latest.put(record.key, record);
+            }
+        }
 
-            //Flush the spool if persistent, so we don't lose any data.
-            if (persistent) {
-                flushSpool();
-                writeIndex();
+        final long now = System.currentTimeMillis();
+        int written = 0;
+        for (int i = 0; i < records.size(); i++) {
+            final DataFileScanner.Found record = (DataFileScanner.Found) records.get(i);
+            if (record.sequence <= checkpointSequence) {
+                continue;
             }
+            final long expiryTime = getExpiryTime(record.creationTime, record.lastAccessTime);
+            if (latest.get(record.key) != record || now >= expiryTime) {
+                markFree(record.position);
+                continue;
+            }
+            final DiskElement replaced = (DiskElement) index.put(record.key, createDiskElement(record, expiryTime));
+            if (replaced != null) {
+                markFree(replaced.position);
+            }
+            written++;
+        }
+        final int checkpointStreams = streams.size();
+        diskElements = index;
+        streams = keptStreams;
+        rebuildFreeSpace();
+        indexNeeded = true;
+        LOG.warn(name + "Cache: Index not saved by a clean shutdown. Recovered it from the last checkpoint, keeping "
+                + keptElements + " of its " + checkpointSize + " elements and " + keptStreams.size() + " of its "
+                + checkpointStreams + " streams, and from " + written + " elements written since, found in "
+                + scanned + " bytes of the data file");
+    }
+
+    /**
+     * Scans regions of the data file for records, with as many {@link DataFileScanner}s in parallel as there are
+     * processors, as long as each has at least {@link #MIN_RECOVERY_REGION_SIZE} bytes to scan.
+     *
+     * @param starts the positions at which the regions start, in order
+     * @param ends   the positions at which the regions end
+     * @return the {@link DataFileScanner.Found} records, in order of position
+     */
+    private List scanDataFile(final long[] starts, final long[] ends) throws Exception {
+        long bytes = 0;
+        for (int i = 0; i < starts.length; i++) {
+            bytes += ends[i] - starts[i];
+        }
+        final int scannerCount = (int) Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(),
+                bytes / MIN_RECOVERY_REGION_SIZE));
+        final long share = Math.max(1, (bytes + scannerCount - 1) / scannerCount);
+
+        // Deal the regions out in order, splitting them where a share ends
+        final List scanners = new ArrayList(scannerCount);
+        final List shareStarts = new ArrayList();
+        final List shareEnds = new ArrayList();
+        long shareBytes = 0;
+        for (int i = 0; i < starts.length; i++) {
+            long start = starts[i];
+            while (start < ends[i]) {
+                final long end = Math.min(ends[i], start + share - shareBytes);
+                shareStarts.add(Long.valueOf(start));
+                shareEnds.add(Long.valueOf(end));
+                shareBytes += end - start;
+                start = end;
+                if (shareBytes == share) {
+                    scanners.add(createScanner(shareStarts, shareEnds));
+                    shareStarts.clear();
+                    shareEnds.clear();
+                    shareBytes = 0;
+                }
+            }
+        }
+        if (!shareStarts.isEmpty()) {
+            scanners.add(createScanner(shareStarts, shareEnds));
+        }
 
-            //Clear in-memory data structures
-            spool.clear();
-            diskElements.clear();
-            freeSpace.clear();
-            if (randomAccessFile != null) {
-                randomAccessFile.close();
+        final List found = new ArrayList();
+        if (scanners.isEmpty()) {
+            return found;
+        }
+        final ExecutorService executorService = Executors.newFixedThreadPool(scanners.size());
+        try {
+            final List futures = new ArrayList(scanners.size());
+            for (int i = 0; i < scanners.size(); i++) {
+                futures.add(executorService.submit((DataFileScanner) scanners.get(i)));
             }
-            if (!persistent) {
-                LOG.debug("Deleting file " + dataFile.getName());
-                dataFile.delete();
+            for (int i = 0; i < futures.size(); i++) {
+                found.addAll((List) ((Future) futures.get(i)).get());
             }
-        } catch (Exception e) {
-            LOG.error(name + "Cache: Could not shut down disk cache", e);
         } finally {
-            active = false;
-            randomAccessFile = null;
-            notifyAll();
+            executorService.shutdownNow();
         }
+
+        // The shares were scanned in order. A record inside one found before it only looks like one
+        final List records = new ArrayList(found.size());
+        long end = 0;
+        for (int i = 0; i < found.size(); i++) {
+            final DataFileScanner.Found record = (DataFileScanner.Found) found.get(i);
+            if (record.position >= end) {
+                records.add(record);
+                end = record.position + record.size;
+            }
+        }
+        return records;
+    }
+
+    private DataFileScanner createScanner(final List starts, final List ends) {
+        final long[] startPositions = new long[starts.size()];
+        final long[] endPositions = new long[ends.size()];
+        for (int i = 0; i < startPositions.length; i++) {
+            startPositions[i] = ((Long) starts.get(i)).longValue();
+            endPositions[i] = ((Long) ends.get(i)).longValue();
+        }
+        return new DataFileScanner(name, dataFile, startPositions, endPositions, keyCodec, compression);
     }
 
     /**
-     * Whether there are any elements waiting to be spooled to disk.
-     *
-     * @return false if there are elements waiting, otherwise true
+     * Creates the index entry of a record found in the data file.
      */
-    public synchronized boolean isSpoolEmpty() {
-        return (!active || spool.size() == 0);
+    private static DiskElement createDiskElement(final DataFileScanner.Found record, final long expiryTime) {
+        final DiskElement diskElement = new DiskElement();
+        diskElement.position = record.position;
+        diskElement.blockSize = record.size;
+        diskElement.payloadSize = record.size;
+        diskElement.expiryTime = expiryTime;
+        return diskElement;
     }
 
     /**
-     * Main method for the spool thread.
-     * <p/>
-     * Note that the spool thread locks the cache for the entire time it is writing elements to the disk.
-     * TODO - Give cache lookups preference to writes
+     * Marks a record found in the data file as free, while the index is recovered.
      */
-    private synchronized void spoolThreadMain() {
-        while (true) {
-            // Wait for elements in the spool
-            while (active && spool.size() == 0) {
-                try {
-                    wait();
-                } catch (InterruptedException e) {
-                    // Bail
-                    return;
-                }
-            }
-            if (!active) {
-                return;
-            }
+    private void markFree(final long position) throws IOException {
+        randomAccessFile.seek(position + RecordHeader.STATE_OFFSET);
+        randomAccessFile.write(FREE_STATE);
+    }
 
-            // Write elements to disk
-            try {
-                flushSpool();
-            } catch (IOException e) {
-                LOG.error(name + "Cache: Could not write elements to disk cache", e);
-            }
+    /**
+     * Calculates when an element written to the data file expires.
+     */
+    private long getExpiryTime(final long creationTime, final long lastAccessTime) {
+        if (cache.isEternal()) {
+            // Never expires
+            return Long.MAX_VALUE;
         }
+        final long timeToLive = creationTime + cache.getTimeToLiveSeconds() * MS_PER_SECOND;
+        final long timeToIdle = lastAccessTime + cache.getTimeToIdleSeconds() * MS_PER_SECOND;
+        return Math.max(timeToLive, timeToIdle);
     }
 
     /**
-     * Flushes all spooled elements to disk.
-     * Note that the cache is locked for the entire time that the spool is being flushed.
+     * Reads what may follow the free space in the index: the sequence number, the checkpoint, the streams, then the
+     * Bloom filter. The Bloom filter is only used if the cache wants one and it matches the index. Otherwise one is
+     * built from the keys when the store starts.
      */
-    private synchronized void flushSpool() throws IOException {
+    private void readIndexTrailer(final ObjectInputStream objectInputStream)
+            throws IOException, ClassNotFoundException {
+        // An index file without a checkpoint was only kept after a clean shutdown
+        indexClean = true;
         try {
-            // Write elements to the DB
-            for (Iterator iterator = spool.values().iterator(); iterator.hasNext();) {
-                final Element element = (Element) iterator.next();
-                final Serializable key = element.getKey();
-
-                // Remove the old entry, if any
-                final DiskElement oldBlock = (DiskElement) diskElements.remove(key);
-                if (oldBlock != null) {
-                    freeBlock(oldBlock);
-                }
-
-                // Serialise the entry
-                final ByteArrayOutputStream outstr = new ByteArrayOutputStream();
-                final ObjectOutputStream objstr = new ObjectOutputStream(outstr);
-                objstr.writeObject(element);
-                objstr.close();
-                final byte[] buffer = outstr.toByteArray();
-
-                // Check for a free block
-                DiskElement diskElement = findFreeBlock(buffer.length);
-                if (diskElement == null) {
-                    diskElement = new DiskElement();
-                    diskElement.position = randomAccessFile.length();
-                    diskElement.blockSize = buffer.length;
-                }
-
-                // TODO - cleanup block on failure
-                // Write the record
-                randomAccessFile.seek(diskElement.position);
-                //todo the free block algorithm will gradually leak disk space, due to
-                //payload size being less than block size
-                //this will be a problem for the persistent cache
-                randomAccessFile.write(buffer);
-
-                if (cache.isEternal()) {
-                    // Never expires
-                    diskElement.expiryTime = Long.MAX_VALUE;
-                } else {
-                    // Calculate expiry time
-                    long timeToLive = element.getCreationTime() + cache.getTimeToLiveSeconds() * MS_PER_SECOND;
-                    long timeToIdle = element.getLastAccessTime() + cache.getTimeToIdleSeconds() * MS_PER_SECOND;
-                    diskElement.expiryTime = Math.max(timeToLive, timeToIdle);
-                }
-
-                // Add to index, update stats
-                diskElement.payloadSize = buffer.length;
-                totalSize += buffer.length;
-                diskElements.put(key, diskElement);
+            Object next = objectInputStream.readObject();
+            if (SEQUENCE_FORMAT.equals(next)) {
+                sequence = ((Long) objectInputStream.readObject()).longValue();
+                next = objectInputStream.readObject();
             }
-        } finally {
-            // Clear the spool.  Do this regardless of whether the writes failed - just ditch the elements
-            spool.clear();
+            if (CHECKPOINT_FORMAT.equals(next)) {
+                checkpointNumber = ((Long) objectInputStream.readObject()).longValue();
+                indexClean = ((Boolean) objectInputStream.readObject()).booleanValue();
+                next = objectInputStream.readObject();
+            }
+            if (STREAMS_FORMAT.equals(next)) {
+                streams = (HashMap) objectInputStream.readObject();
+                next = objectInputStream.readObject();
+            }
+            bloomFilter = usableBloomFilter((BloomFilter) next);
+        } catch (EOFException e) {
+            LOG.debug(name + "Cache: No Bloom filter saved with the index");
         }
     }
 
     /**
-     * Writes the Index to disk on shutdown
-     * <p/>
-     * The index consists of the elements Map and the freeSpace List
-     * <p/>
-     * Note that the cache is locked for the entire time that the index is being written
+     * @return a Bloom filter read from the index or the delta log, if the cache wants one and it matches the index,
+     *         otherwise null
      */
-    private synchronized void writeIndex() throws IOException {
+    private BloomFilter usableBloomFilter(final BloomFilter filter) {
+        if (filter != null && cache.isBloomFilter() && filter.hashesEncodedKeys()
+                && filter.size() == diskElements.size()) {
+            return filter;
+        }
+        return null;
+    }
 
-        ObjectOutputStream objectOutputStream = null;
+    /**
+     * Builds a Bloom filter of the keys in the spool and on disk, sized for twice as many.
+     */
+    private void rebuildBloomFilter() {
+        lock.lock();
         try {
-            FileOutputStream fout = new FileOutputStream(indexFile);
-            objectOutputStream = new ObjectOutputStream(fout);
-            objectOutputStream.writeObject(diskElements);
-            objectOutputStream.writeObject(freeSpace);
+            final BloomFilter filter = new BloomFilter(Math.max(MIN_BLOOM_FILTER_CAPACITY,
+                    2 * (diskElements.size() + spool.size())), true);
+            for (Iterator iterator = diskElements.keySet().iterator(); iterator.hasNext();) {
+                filter.addHash(BloomFilter.hash(iterator.next(), keyCodec));
+            }
+            for (Iterator iterator = spool.keySet().iterator(); iterator.hasNext();) {
+                final Object key = iterator.next();
+                if (!diskElements.containsKey(key)) {
+                    filter.addHash(BloomFilter.hash(key, keyCodec));
+                }
+            }
+            bloomFilter = filter;
         } finally {
-            objectOutputStream.close();
+            lock.unlock();
         }
     }
 
     /**
-     * Reads Index to disk on startup.
-     * <p/>
-     * if the index file does not exist, it creates a new one.
-     * <p/>
-     * Note that the cache is locked for the entire time that the index is being written
+     * Adds a key that has just been spooled to the Bloom filter, unless it was already on disk. Must be called
+     * with the lock held.
      */
-    private synchronized void readIndex() throws IOException {
-        ObjectInputStream objectInputStream = null;
-        FileInputStream fin = null;
-        if (indexFile.exists()) {
-            try {
-                fin = new FileInputStream(indexFile);
-                objectInputStream = new ObjectInputStream(fin);
-                diskElements = (HashMap) objectInputStream.readObject();
-                freeSpace = (ArrayList) objectInputStream.readObject();
-            } catch (StreamCorruptedException e) {
-                LOG.error("Corrupt index file. Creating new index.");
-            } catch (IOException e) {
-                LOG.error("IOException reading index. Creating new index. ");
-            } catch (ClassNotFoundException e) {
-                LOG.error("Class loading problem reading index. Creating new index. ", e);
-            } finally {
-                try {
-                    if (objectInputStream != null) {
-                        objectInputStream.close();
-                    } else if (fin != null) {
-                        fin.close();
-                    }
-                } catch (IOException e) {
-                    LOG.error("Problem closing the index file.");
-                }
-
-                //Always zero out file. That way if there is a dirty shutdown, the file will still be empty
-                //the next time we start up and readIndex will automatically fail.
-                //If there was a problem reading the index this time we also want to zero it out.
-                createNewIndexFile();
+    private void keyMayHaveArrived(final Object key) {
+        final BloomFilter filter = bloomFilter;
+        if (filter != null && !diskElements.containsKey(key)) {
+            filter.addHash(BloomFilter.hash(key, keyCodec));
+            if (filter.isOverloaded()) {
+                rebuildBloomFilter();
             }
-        } else {
-            createNewIndexFile();
         }
     }
 
-    private void createNewIndexFile() throws IOException {
-        if (indexFile.exists()) {
-            indexFile.delete();
-            LOG.debug("Index file " + indexFile + " deleted.");
-        }
-        if (indexFile.createNewFile()) {
-            LOG.debug("Index file " + indexFile + " created successfully");
-        } else {
-            throw new IOException("Index file " + indexFile + " could not created.");
+    /**
+     * Removes a key that is no longer in the spool or on disk from the Bloom filter. Must be called with the lock
+     * held.
+     */
+    private void keyLeft(final Object key) {
+        final BloomFilter filter = bloomFilter;
+        if (filter != null) {
+            filter.removeHash(BloomFilter.hash(key, keyCodec));
         }
     }
 
+    /**
+     * Tells whether an element might be in the store, without locking it.
+     *
+     * @return false if the element is certainly neither in the spool nor on disk. Always true if the cache does
+     *         not have a Bloom filter.
+     */
+    public boolean mightContain(final Serializable key) {
+        final BloomFilter filter = bloomFilter;
+        return filter == null || filter.mightContainHash(BloomFilter.hash(key, keyCodec));
+    }
+
     /**
      * The main method for the expiry thread.
      * <p/>
@@ -639,9 +2774,7 @@ public class DiskStore implements Store {
         try {
             while (active) {
                 Thread.sleep(expiryThreadIntervalMillis);
-
-                //Expire the elements
-                expireElements();
+                maintain();
             }
         } catch (InterruptedException e) {
             // Bail on interruption
@@ -652,51 +2785,86 @@ public class DiskStore implements Store {
     }
 
     /**
-     * Removes expired elements.
-     * Note that the cache is locked for the entire time that elements are being expired.
+     * Expires elements, unless the cache is eternal, compacts the data file if too much of it is free, and writes
+     * a checkpoint of the index of a persistent store.
      */
-    private synchronized void expireElements() {
-        final long now = System.currentTimeMillis();
-
-        // Clean up the spool
-        for (Iterator iterator = spool.values().iterator(); iterator.hasNext();) {
-            final Element element = (Element) iterator.next();
-            if (cache.isExpired(element)) {
-                // An expired element
-                if (LOG.isDebugEnabled()) {
-                    LOG.debug(name + "Cache: Removing expired spool element " + element.getKey() + " from Disk Store");
-                }
-                iterator.remove();
-            }
+    private void maintain() {
+        if (!active) {
+            return;
         }
-
-        // Clean up disk elements
-        for (Iterator iterator = diskElements.entrySet().iterator(); iterator.hasNext();) {
-            final Map.Entry entry = (Map.Entry) iterator.next();
-            final DiskElement element = (DiskElement) entry.getValue();
-            if (now >= element.expiryTime) {
-                // An expired element
-                if (LOG.isDebugEnabled()) {
-                    LOG.debug(name + "Cache: Removing expired spool element " + entry.getKey() + " from Disk Store");
-                }
-                iterator.remove();
-                freeBlock(element);
+        if (!cache.isEternal()) {
+            expireElements();
+        }
+        try {
+            if (executor == null) {
+                compact(COMPACTION_THRESHOLD);
+            } else {
+                scheduleCompaction(COMPACTION_THRESHOLD);
             }
+        } catch (Exception e) {
+            LOG.error(name + "Cache: Could not compact the data file", e);
+        }
+        if (!persistent || !active) {
+            return;
+        }
+        try {
+            checkpoint();
+        } catch (Exception e) {
+            LOG.error(name + "Cache: Could not write a checkpoint of the index", e);
         }
     }
 
     /**
-     * Allocates a free block.
+     * Removes expired elements.
+     * Note that the cache is locked for the entire time that elements are being expired.
      */
-    private DiskElement findFreeBlock(final int length) {
-        for (int i = 0; i < freeSpace.size(); i++) {
-            final DiskElement element = (DiskElement) freeSpace.get(i);
-            if (element.blockSize >= length) {
-                freeSpace.remove(i);
-                return element;
+    private void expireElements() {
+        lock.lock();
+        try {
+            final long now = System.currentTimeMillis();
+
+            // Clean up the spool
+            for (Iterator iterator = spool.values().iterator(); iterator.hasNext();) {
+                final Element element;
+                try {
+                    element = ((SpoolEntry) iterator.next()).getElement();
+                } catch (Exception e) {
+                    LOG.error(name + "Cache: Could not decode spooled element", e);
+                    continue;
+                }
+                if (cache.isExpired(element)) {
+                    // An expired element
+                    if (LOG.isDebugEnabled()) {
+                        LOG.debug(name + "Cache: Removing expired spool element " + element.getKey() + " from Disk Store");
+                    }
+                    iterator.remove();
+                    if (!diskElements.containsKey(element.getKey())) {
+                        keyLeft(element.getKey());
+                    }
+                }
             }
+
+            // Clean up disk elements
+            for (Iterator iterator = diskElements.entrySet().iterator(); iterator.hasNext();) {
+                final Map.Entry entry = (Map.Entry) iterator.next();
+                final DiskElement element = (DiskElement) entry.getValue();
+                if (now >= element.expiryTime) {
+                    // An expired element
+                    if (LOG.isDebugEnabled()) {
+                        LOG.debug(name + "Cache: Removing expired spool element " + entry.getKey() + " from Disk Store");
+                    }
+                    iterator.remove();
+                    freeRecord(element);
+                    indexChanged(entry.getKey());
+                    if (!spool.containsKey(entry.getKey())) {
+                        keyLeft(entry.getKey());
+                    }
+                }
+            }
+            releaseFreeTail();
+        } finally {
+            lock.unlock();
         }
-        return null;
     }
 
     /**
@@ -716,27 +2884,209 @@ public class DiskStore implements Store {
     /**
      * A reference to an on-disk elements.
      */
-    private static class DiskElement implements Serializable {
+    static class DiskElement implements Serializable {
+        /**
+         * Fixed at the value computed for the class when it was private, so that old index files still load.
+         */
+        private static final long serialVersionUID = 4605690756105791294L;
+
         /**
          * the file pointer
          */
-        private long position;
+        long position;
 
         /**
          * The size used for data.
          */
-        private int payloadSize;
+        int payloadSize;
 
         /**
          * the size of this element.
          */
-        private int blockSize;
+        int blockSize;
 
         /**
          * The expiry time in milliseconds
          */
-        private long expiryTime;
+        long expiryTime;
+
+    }
+
+    /**
+     * A value put with {@link #putStream}: the extents of the data file that hold it, in order.
+     */
+    static final class StreamValue implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * The number of bytes in the stream
+         */
+        long length;
+
+        /**
+         * The {@link DiskElement}s of the extents
+         */
+        final ArrayList chunks = new ArrayList();
+
+        /**
+         * Set once the extents have been freed
+         */
+        transient boolean removed;
+    }
+
+    /**
+     * The progress of a compaction, from one batch to the next.
+     */
+    private static final class Compaction {
+
+        /**
+         * The {@link LiveBlock}s to move, in order of position
+         */
+        private List blocks;
 
+        /**
+         * The index of the next block to move
+         */
+        private int next;
+
+        /**
+         * The number of bytes moved so far
+         */
+        private long moved;
+
+        /**
+         * How long the last batch held the store, in nanoseconds, which is how long to pause before the next one
+         */
+        private long batchTime;
+    }
+
+    /**
+     * An element or stream extent listed for compaction, with the position its block had when it was listed.
+     */
+    private static final class LiveBlock {
+        private long position;
+
+        /**
+         * The key of the element, or of the stream
+         */
+        private Object key;
+
+        /**
+         * The stream, for a stream extent
+         */
+        private StreamValue stream;
+        private int chunk;
+    }
+
+    /**
+     * Reads a {@link StreamValue} one extent at a time.
+     */
+    private final class ChunkInputStream extends InputStream {
+        private final StreamValue value;
+        private int nextChunk;
+        private byte[] buffer = new byte[0];
+        private int bufferPosition;
+
+        private ChunkInputStream(final StreamValue value) {
+            this.value = value;
+        }
+
+        /**
+         * Loads the next extent, if the current one has been read.
+         *
+         * @return false at the end of the stream
+         */
+        private boolean fill() throws IOException {
+            while (bufferPosition == buffer.length) {
+                lock.lock();
+                try {
+                    if (!active || value.removed) {
+                        throw new IOException("The stream was replaced or removed, or the " + name
+                                + " cache was disposed, while it was being read");
+                    }
+                    if (nextChunk == value.chunks.size()) {
+                        return false;
+                    }
+                    final DiskElement chunk = (DiskElement) value.chunks.get(nextChunk++);
+                    if (buffer.length != chunk.payloadSize) {
+                        buffer = new byte[chunk.payloadSize];
+                    }
+                    readData(chunk.position, buffer, 0, buffer.length);
+                    bufferPosition = 0;
+                } finally {
+                    lock.unlock();
+                }
+            }
+            return true;
+        }
+
+        public int read() throws IOException {
+            if (!fill()) {
+                return -1;
+            }
+            return buffer[bufferPosition++] & 0xFF;
+        }
+
+        public int read(final byte[] bytes, final int offset, final int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            if (!fill()) {
+                return -1;
+            }
+            final int count = Math.min(length, buffer.length - bufferPosition);
+            System.arraycopy(buffer, bufferPosition, bytes, offset, count);
+            bufferPosition += count;
+            return count;
+        }
+
+        public int available() {
+            return buffer.length - bufferPosition;
+        }
+    }
+
+    /**
+     * An element waiting in the spool, together with its encoded form. An element put in encoded form is only
+     * decoded if it is read back before it is written.
+     */
+    private final class SpoolEntry {
+        private volatile Element element;
+        private final Serializable key;
+        private final byte[] buffer;
+
+        private SpoolEntry(final Element element) throws IOException {
+            this.element = element;
+            key = element.getKey();
+            final ByteArrayOutputStream outstr = new ByteArrayOutputStream();
+            final DataOutputStream datastr = new DataOutputStream(outstr);
+            element.write(datastr, keyCodec, valueCodec);
+            datastr.close();
+            buffer = compression.compress(outstr.toByteArray());
+        }
+
+        private SpoolEntry(final Serializable key, final byte[] record) throws IOException {
+            this.key = key;
+            buffer = compression.compress(record);
+        }
+
+        /**
+         * Gets the element, decoding it if it was put in encoded form. Readers racing to decode it each get an equal
+         * element.
+         */
+        private Element getElement() throws IOException, ClassNotFoundException {
+            if (element == null) {
+                element = decode(buffer);
+            }
+            return element;
+        }
+
+        private long getCreationTime() {
+            return element == null ? Element.getCreationTime(buffer) : element.getCreationTime();
+        }
+
+        private long getLastAccessTime() {
+            return element == null ? Element.getLastAccessTime(buffer) : element.getLastAccessTime();
+        }
     }
 
     /**
@@ -784,7 +3134,7 @@ public class DiskStore implements Store {
      * @return the size of the data file in bytes.
      */
     public long getDataFileSize() {
-        return dataFile.length();
+        return mappedFile != null ? dataLength : dataFile.length();
     }
 
     /**
@@ -809,13 +3159,13 @@ public class DiskStore implements Store {
     }
 
     /**
-     * @return the size of the index file, in bytes.
+     * @return the size of the index file and of the delta log, in bytes.
      */
     public long getIndexFileSize() {
         if (indexFile == null) {
             return 0;
         } else {
-            return indexFile.length();
+            return indexFile.length() + deltaLog.length();
         }
     }
 
@@ -841,17 +3191,29 @@ public class DiskStore implements Store {
         return name + ".index";
     }
 
+    /**
+     * @return the file name of the delta log, which holds the changes to the index since the index file was
+     *         written, without any path information.
+     */
+    public String getDeltaFileName() {
+        return name + ".delta";
+    }
+
 
     /**
-     * The expiry thread is started provided the cache is not eternal
+     * The expiry thread is started, or with a shared executor the expiry task is scheduled, when the store starts.
+     * For an eternal cache it only compacts the data file.
      * <p/>
      * If started it will continue to run until the {@link #dispose()} method is called,
      * at which time it should be interrupted and then die.
      *
-     * @return true if an expiryThread was created and is still alive.
+     * @return true if an expiryThread was created and is still alive, or, with a shared executor, if the expiry
+     *         task is still scheduled.
      */
     public boolean isExpiryThreadAlive() {
-        if (expiryThread == null) {
+        if (expiryTask != null) {
+            return !expiryTask.isDone();
+        } else if (expiryThread == null) {
             return false;
         } else {
             return expiryThread.isAlive();
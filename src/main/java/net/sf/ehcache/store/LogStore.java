@@ -0,0 +1,1399 @@
+/* ====================================================================
+ * The Apache Software License, Version 1.1
+ *
+ * Copyright (c) 2003 - 2004 Greg Luck.  All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ * 3. The end-user documentation included with the redistribution, if
+ *    any, must include the following acknowlegement:
+ *       "This product includes software developed by Greg Luck
+ *       (http://sourceforge.net/users/gregluck) and contributors.
+ *       See http://sourceforge.net/project/memberlist.php?group_id=93232
+ *       for a list of contributors"
+ *    Alternately, this acknowledgement may appear in the software itself,
+ *    if and wherever such third-party acknowlegements normally appear.
+ *
+ * 4. The names "EHCache" must not be used to endorse or promote products
+ *    derived from this software without prior written permission. For written
+ *    permission, please contact Greg Luck (gregluck at users.sourceforge.net).
+ *
+ * 5. Products derived from this software may not be called "EHCache"
+ *    nor may "EHCache" appear in their names without prior written
+ *    permission of Greg Luck.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED.  IN NO EVENT SHALL GREG LUCK OR OTHER
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ * USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ * OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by contributors
+ * individuals on behalf of the EHCache project.  For more
+ * information on EHCache, please see <http://ehcache.sourceforge.net/>.
+ *
+ */
+
+
+
+
+package net.sf.ehcache.store;
+
+import net.sf.ehcache.Cache;
+import net.sf.ehcache.CacheException;
+import net.sf.ehcache.Element;
+import net.sf.ehcache.codec.Codec;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+/**
+ * A disk store that appends every change to a log, in the manner of Bitcask.
+ * <p/>
+ * Elements are written one after another to the end of the active segment of the log, and never overwritten.
+ * Removing an element appends a tombstone. A directory in memory maps each key to the segment and position of its
+ * latest record, so a read is a lookup followed by a single positional read, and neither locks the store. Once the
+ * active segment has grown to {@link #SEGMENT_SIZE} bytes, a new one is started.
+ * <p/>
+ * The records that were replaced, removed or expired stay in their segments until those are merged: the live
+ * records of a segment are copied to the end of the log, and the segment is deleted. A background task merges the
+ * segments that are more than half dead; {@link #merge} merges all of them.
+ * <p/>
+ * A persistent log store has no index file: it rebuilds its directory by reading its segments in order when it
+ * starts, so it survives an unclean shutdown, losing at most the records being written. Each record carries a CRC32
+ * checksum, and a segment is cut short at the first record that is torn or does not match its checksum.
+ * <p/>
+ * Streams are not supported.
+ */
+public class LogStore implements OverflowStore {
+    private static final Log LOG = LogFactory.getLog(LogStore.class.getName());
+    private static final int MS_PER_SECOND = 1000;
+
+    /**
+     * The size at which the active segment is closed and a new one started.
+     */
+    public static final long SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    /**
+     * The suffix of segment files, which are named after the cache and numbered in the order they were started.
+     */
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    /**
+     * The type of a record that puts an element.
+     */
+    private static final byte PUT = 1;
+
+    /**
+     * The type of a record that removes an element.
+     */
+    private static final byte TOMBSTONE = 2;
+
+    /**
+     * The size of the header of a record: its type, the lengths of its key and of its element, and a CRC32 checksum
+     * of the type, the lengths, the key and the element.
+     */
+    private static final int HEADER_SIZE = 13;
+
+    /**
+     * The background task merges the segments in which at least this share of the bytes are dead.
+     */
+    private static final double MERGE_THRESHOLD = 0.5;
+
+    /**
+     * A merge copies the live records of a segment in batches of about this many bytes, locking the store once per
+     * batch, so that puts and removes are only held up briefly.
+     */
+    private static final int MERGE_BATCH_SIZE = 1024 * 1024;
+
+    private final String name;
+    private final Cache cache;
+    private final String diskPath;
+    private volatile boolean active;
+    private int status;
+
+    /**
+     * Guards appending to the log and changing the directory and the list of segments. Reads do not take it.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * Readers hold the read lock while they read from a segment. The write lock is taken to close segments.
+     */
+    private final ReentrantReadWriteLock segmentLock = new ReentrantReadWriteLock();
+
+    /**
+     * Only one merge runs at a time.
+     */
+    private final ReentrantLock mergeLock = new ReentrantLock();
+
+    /**
+     * The latest record of each key, as a {@link LogEntry}.
+     */
+    private final Map entries = new ConcurrentHashMap();
+
+    /**
+     * The segments, oldest first. The last one is the active segment.
+     */
+    private final List segments = new ArrayList();
+    private Segment activeSegment;
+    private int nextSegmentId;
+
+    private final Codec keyCodec;
+    private final Codec valueCodec;
+    private final RecordCompression compression;
+
+    /**
+     * If persistent, the log will be kept
+     */
+    private final boolean persistent;
+
+    /**
+     * The interval between runs of the background task, which expires elements and merges segments
+     */
+    private final long maintenanceInterval;
+
+    private final ScheduledExecutorService executor;
+    private ScheduledFuture maintenanceTask;
+    private MaintenanceThread maintenanceThread;
+
+    /**
+     * Creates a log store.
+     *
+     * @param cache    the {@link Cache} that the store is part of
+     * @param diskPath the directory in which to create the segments
+     */
+    public LogStore(Cache cache, String diskPath) {
+        status = Store.STATUS_UNINITIALISED;
+        this.cache = cache;
+        name = cache.getName();
+        this.diskPath = diskPath;
+        persistent = cache.isDiskPersistent();
+        maintenanceInterval = cache.getDiskExpiryThreadIntervalSeconds();
+        executor = cache.getExecutor();
+        keyCodec = cache.getKeyCodec();
+        valueCodec = cache.getValueCodec();
+        compression = new RecordCompression(name, cache.getCompressor());
+
+        try {
+            initialiseFiles();
+            active = true;
+
+            if (executor != null) {
+                maintenanceTask = executor.scheduleWithFixedDelay(new Runnable() {
+                    public void run() {
+                        maintain();
+                    }
+                }, maintenanceInterval, maintenanceInterval, TimeUnit.SECONDS);
+            } else {
+                maintenanceThread = new MaintenanceThread();
+                maintenanceThread.start();
+            }
+
+            status = Store.STATUS_ALIVE;
+        } catch (final Exception e) {
+            // Cleanup on error
+            dispose();
+            LOG.error(name + "Cache: Could not create log store", e);
+        }
+    }
+
+    private void initialiseFiles() throws Exception {
+        // Make sure the cache directory exists
+        final File diskDir = new File(diskPath);
+        if (diskDir.exists() && !diskDir.isDirectory()) {
+            throw new Exception("Store directory \"" + diskDir.getCanonicalPath() + "\" exists and is not a directory.");
+        }
+        if (!diskDir.exists() && !diskDir.mkdirs()) {
+            throw new Exception("Could not create cache directory \"" + diskDir.getCanonicalPath() + "\".");
+        }
+
+        final File[] files = listSegmentFiles(diskDir, name);
+        for (int i = 0; i < files.length; i++) {
+            if (persistent) {
+                final Segment segment = new Segment(segmentId(name, files[i].getName()), files[i]);
+                nextSegmentId = segment.id + 1;
+                recover(segment);
+                if (segment.length == 0) {
+                    files[i].delete();
+                } else {
+                    segment.open();
+                    segments.add(segment);
+                }
+            } else {
+                LOG.debug("Deleting segment " + files[i].getName());
+                files[i].delete();
+            }
+        }
+        startSegment();
+    }
+
+    /**
+     * Lists the segments of a log store, oldest first.
+     *
+     * @param directory the directory of the store
+     * @param name      the name of the cache
+     */
+    public static File[] listSegmentFiles(final File directory, final String name) {
+        final File[] files = directory.listFiles(new FilenameFilter() {
+            public boolean accept(File dir, String fileName) {
+                return segmentId(name, fileName) >= 0;
+            }
+        });
+        if (files == null) {
+            return new File[0];
+        }
+        Arrays.sort(files, new Comparator() {
+            public int compare(Object o1, Object o2) {
+                int id1 = segmentId(name, ((File) o1).getName());
+                int id2 = segmentId(name, ((File) o2).getName());
+                return id1 < id2 ? -1 : (id1 == id2 ? 0 : 1);
+            }
+        });
+        return files;
+    }
+
+    /**
+     * @return the number of a segment of the cache, from its file name, or -1 if the file is not one
+     */
+    private static int segmentId(final String name, final String fileName) {
+        final String prefix = name + ".";
+        if (!fileName.startsWith(prefix) || !fileName.endsWith(SEGMENT_SUFFIX)
+                || fileName.length() == prefix.length() + SEGMENT_SUFFIX.length()) {
+            return -1;
+        }
+        final String id = fileName.substring(prefix.length(), fileName.length() - SEGMENT_SUFFIX.length());
+        for (int i = 0; i < id.length(); i++) {
+            if (!Character.isDigit(id.charAt(i))) {
+                return -1;
+            }
+        }
+        try {
+            return Integer.parseInt(id);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Reads a segment from start to end, replaying its records into the directory. A record cut short by an
+     * unclean shutdown, and anything after it, is truncated away.
+     */
+    private void recover(final Segment segment) throws IOException {
+        final long length = segment.file.length();
+        final long now = System.currentTimeMillis();
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(segment.file),
+                MERGE_BATCH_SIZE));
+        long position = 0;
+        try {
+            while (position < length) {
+                final Record record = readRecord(in, position, length);
+                if (record == null) {
+                    LOG.warn(name + "Cache: Truncating segment " + segment.file.getName() + " at " + position
+                            + ", where a record was cut short or does not match its checksum");
+                    break;
+                }
+                if (record.type == PUT) {
+                    final LogEntry entry = new LogEntry(segment, position, record.key.length, record.record.length,
+                            expiryTime(record.record));
+                    entryReplaced(entries.put(record.getKey(), entry));
+                    if (now >= entry.expiryTime) {
+                        entries.remove(record.getKey());
+                        segment.deadBytes.addAndGet(entry.size());
+                    }
+                } else {
+                    entryReplaced(entries.remove(record.getKey()));
+                    segment.deadBytes.addAndGet(record.size());
+                }
+                position += record.size();
+            }
+        } finally {
+            in.close();
+        }
+        if (position < length) {
+            final RandomAccessFile file = new RandomAccessFile(segment.file, "rw");
+            try {
+                file.setLength(position);
+            } finally {
+                file.close();
+            }
+        }
+        segment.length = position;
+    }
+
+    /**
+     * Reads the record that starts at a position of a segment, and decodes its key. The checksum is checked before
+     * the key is decoded, so a key that cannot be decoded means the store has the wrong key codec, not a torn write.
+     *
+     * @return the record, or null if the segment ends before it does, it is not a record, or it does not match its
+     *         checksum
+     * @throws IOException if the segment cannot be read or the key cannot be decoded
+     */
+    private Record readRecord(final DataInputStream in, final long position, final long length)
+            throws IOException {
+        final byte type;
+        final byte[] key;
+        final byte[] record;
+        try {
+            type = in.readByte();
+            final int keyLength = in.readInt();
+            final int recordLength = in.readInt();
+            final int checksum = in.readInt();
+            if ((type != PUT && type != TOMBSTONE) || keyLength < 0 || recordLength < 0
+                    || position + HEADER_SIZE + keyLength + recordLength > length) {
+                return null;
+            }
+            key = new byte[keyLength];
+            in.readFully(key);
+            record = new byte[recordLength];
+            in.readFully(record);
+            if (checksum != checksum(type, key, record)) {
+                return null;
+            }
+        } catch (EOFException e) {
+            return null;
+        }
+        return new Record(type, position, key, record);
+    }
+
+    /**
+     * Calculates the checksum of a record, which covers its lengths so that a torn header is caught as well.
+     */
+    private static int checksum(final byte type, final byte[] key, final byte[] record) {
+        final byte[] header = new byte[HEADER_SIZE - 4];
+        header[0] = type;
+        writeInt(header, 1, key.length);
+        writeInt(header, 5, record.length);
+        final CRC32 crc = new CRC32();
+        crc.update(header, 0, header.length);
+        crc.update(key, 0, key.length);
+        crc.update(record, 0, record.length);
+        return (int) crc.getValue();
+    }
+
+    private static void writeInt(final byte[] bytes, final int offset, final int value) {
+        bytes[offset] = (byte) (value >>> 24);
+        bytes[offset + 1] = (byte) (value >>> 16);
+        bytes[offset + 2] = (byte) (value >>> 8);
+        bytes[offset + 3] = (byte) value;
+    }
+
+    /**
+     * Starts a new active segment, closing the current one to writes once it has been synced to the disk, as the
+     * records copied into it by a merge may be the only ones left. Relies on being called with the store lock held.
+     */
+    private void startSegment() throws IOException {
+        if (activeSegment != null) {
+            activeSegment.out.getFD().sync();
+            activeSegment.out.close();
+            activeSegment.out = null;
+        }
+        final File file = new File(diskPath, name + "." + nextSegmentId + SEGMENT_SUFFIX);
+        final Segment segment = new Segment(nextSegmentId++, file);
+        segment.out = new RandomAccessFile(file, "rw");
+        segment.out.setLength(0);
+        segment.open();
+        segments.add(segment);
+        activeSegment = segment;
+    }
+
+    /**
+     * Asserts that the store is active.
+     */
+    private void checkActive() throws CacheException {
+        if (!active) {
+            throw new CacheException(name + " Cache: The Log store is not active.");
+        }
+    }
+
+    /**
+     * Returns the store type.
+     */
+    public int getCacheType() {
+        return Store.DISK_CACHE;
+    }
+
+    /**
+     * Returns the cache name this log store is storing for
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Returns the cache status.
+     */
+    public int getStatus() {
+        return status;
+    }
+
+    /**
+     * Gets an {@link Element} from the Log Store.
+     *
+     * @return The element
+     */
+    public Element get(final Serializable key) throws IOException {
+        try {
+            final Element element = load(key);
+            if (element != null) {
+                element.updateAccessStatistics();
+            }
+            return element;
+        } catch (Exception e) {
+            LOG.error(name + "Cache: Could not read log store element for key " + key, e);
+        }
+        return null;
+    }
+
+    /**
+     * Gets an {@link Element} from the Log Store, without updating statistics
+     *
+     * @return The element
+     */
+    public Element getQuiet(final Serializable key) throws IOException {
+        try {
+            return load(key);
+        } catch (Exception e) {
+            LOG.error(name + "Cache: Could not read log store element for key " + key, e);
+        }
+        return null;
+    }
+
+    /**
+     * Gets a batch of {@link Element}s from the Log Store, without updating statistics. The elements are read in
+     * log order.
+     *
+     * @param keys the keys to look up
+     * @return a Map of key to {@link Element}, for the keys that were found
+     */
+    public Map getAll(final Collection keys) throws IOException {
+        final Map elements = new HashMap();
+        final List found = new ArrayList();
+        for (Iterator iterator = keys.iterator(); iterator.hasNext();) {
+            final Object key = iterator.next();
+            final LogEntry entry = (LogEntry) entries.get(key);
+            if (entry != null) {
+                found.add(new Object[]{key, entry});
+            }
+        }
+        Collections.sort(found, new Comparator() {
+            public int compare(Object o1, Object o2) {
+                return ((LogEntry) ((Object[]) o1)[1]).compareTo((LogEntry) ((Object[]) o2)[1]);
+            }
+        });
+        for (int i = 0; i < found.size(); i++) {
+            final Serializable key = (Serializable) ((Object[]) found.get(i))[0];
+            try {
+                final Element element = load(key);
+                if (element != null) {
+                    elements.put(key, element);
+                }
+            } catch (Exception e) {
+                LOG.error(name + "Cache: Could not read log store element for key " + key, e);
+            }
+        }
+        return elements;
+    }
+
+    /**
+     * Reads and decodes the latest record of a key, without locking the store. If the segment holding the record
+     * is merged away after the record was looked up, the key is looked up again.
+     */
+    private Element load(final Serializable key) throws Exception {
+        while (true) {
+            checkActive();
+            final LogEntry entry = (LogEntry) entries.get(key);
+            if (entry == null) {
+                return null;
+            }
+            final byte[] record = new byte[entry.recordLength];
+            segmentLock.readLock().lock();
+            try {
+                if (entry.segment.closed) {
+                    continue;
+                }
+                entry.segment.in.read(entry.position + HEADER_SIZE + entry.keyLength, record, 0, record.length);
+            } finally {
+                segmentLock.readLock().unlock();
+            }
+            return decode(record);
+        }
+    }
+
+    /**
+     * Decodes a record written by {@link Element#write}, decompressing it first if it was compressed.
+     */
+    private Element decode(final byte[] record) throws IOException, ClassNotFoundException {
+        final byte[] buffer = compression.decompress(record);
+        return Element.read(new DataInputStream(new ByteArrayInputStream(buffer)), keyCodec, valueCodec);
+    }
+
+    /**
+     * Gets the compression ratio of the records written since the store was created: their size before
+     * compression divided by their size after. Records that were not compressed count at their full size.
+     *
+     * @return the ratio, 1 if no records have been written or the cache has no compressor
+     */
+    public double getCompressionRatio() {
+        return compression.getRatio();
+    }
+
+    /**
+     * Does nothing but check that the store is active: elements are written to the log as they are put.
+     */
+    public void flush() throws IOException, CacheException {
+        checkActive();
+    }
+
+    /**
+     * Gets an Array of the keys for all elements in the log store.
+     *
+     * @return An Object[] of {@link Serializable} keys
+     */
+    public Object[] getKeyArray() {
+        return entries.keySet().toArray();
+    }
+
+    /**
+     * Gives the keys of all the elements in the log store to a visitor. Keys written while they are visited may or
+     * may not be given.
+     */
+    public void visitKeys(final KeyVisitor visitor) {
+        for (Iterator iterator = entries.keySet().iterator(); iterator.hasNext();) {
+            visitor.visit((Serializable) iterator.next());
+        }
+    }
+
+    /**
+     * Returns the current store size.
+     */
+    public int getSize() {
+        return entries.size();
+    }
+
+    /**
+     * Tells whether an element is in the store, without locking it.
+     *
+     * @return false if the element is not in the store
+     */
+    public boolean mightContain(final Serializable key) {
+        return entries.containsKey(key);
+    }
+
+    /**
+     * Puts an item into the cache, by appending it to the log.
+     * <p/>
+     * The element is serialized on the calling thread, before the store is locked.
+     */
+    public void put(final Element element) throws IOException {
+        try {
+            final List writes = new ArrayList(1);
+            writes.add(encodeElement(element));
+            append(writes);
+        } catch (CacheException e) {
+            throw new IOException(e.getMessage());
+        }
+    }
+
+    /**
+     * Puts an item that has already been encoded, by {@link Element#encode} or {@link Element#write} with the codecs
+     * of the cache, into the cache. The bytes are appended to the log as they are.
+     */
+    public void putEncoded(final Serializable key, final byte[] record) throws IOException {
+        try {
+            final List writes = new ArrayList(1);
+            writes.add(new Record(PUT, key, encodeKey(key), compression.compress(record)));
+            append(writes);
+        } catch (CacheException e) {
+            throw new IOException(e.getMessage());
+        }
+    }
+
+    /**
+     * Puts a batch of encoded items into the cache, with a single write to the log.
+     *
+     * @param records a Map of key to encoded item
+     */
+    public void putAllEncoded(final Map records) throws IOException {
+        try {
+            final List writes = new ArrayList(records.size());
+            for (Iterator iterator = records.entrySet().iterator(); iterator.hasNext();) {
+                final Map.Entry entry = (Map.Entry) iterator.next();
+                final Serializable key = (Serializable) entry.getKey();
+                writes.add(new Record(PUT, key, encodeKey(key), compression.compress((byte[]) entry.getValue())));
+            }
+            append(writes);
+        } catch (CacheException e) {
+            throw new IOException(e.getMessage());
+        }
+    }
+
+    /**
+     * Puts a batch of items into the cache, with a single write to the log.
+     */
+    public void putAll(final Collection elements) throws IOException {
+        try {
+            final List writes = new ArrayList(elements.size());
+            for (Iterator iterator = elements.iterator(); iterator.hasNext();) {
+                writes.add(encodeElement((Element) iterator.next()));
+            }
+            append(writes);
+        } catch (CacheException e) {
+            throw new IOException(e.getMessage());
+        }
+    }
+
+    /**
+     * Encodes an element as a record to be appended to the log.
+     */
+    private Record encodeElement(final Element element) throws IOException {
+        final ByteArrayOutputStream outstr = new ByteArrayOutputStream();
+        final DataOutputStream datastr = new DataOutputStream(outstr);
+        element.write(datastr, keyCodec, valueCodec);
+        datastr.close();
+        final Serializable key = element.getKey();
+        return new Record(PUT, key, encodeKey(key), compression.compress(outstr.toByteArray()));
+    }
+
+    /**
+     * Encodes a key with the key codec of the cache.
+     */
+    private byte[] encodeKey(final Serializable key) throws IOException {
+        final ByteArrayOutputStream outstr = new ByteArrayOutputStream();
+        final DataOutputStream datastr = new DataOutputStream(outstr);
+        keyCodec.encode(key, datastr);
+        datastr.close();
+        return outstr.toByteArray();
+    }
+
+    /**
+     * Appends records to the active segment with a single write, and points the directory at the ones that put
+     * elements. The tombstones are dead as soon as they are written: they are only kept for as long as an older
+     * segment may hold a record they remove.
+     * <p/>
+     * If the write fails, the segment is cut back to where it ended, and the directory is left as it was.
+     */
+    private void append(final List records) throws IOException, CacheException {
+        lock.lock();
+        try {
+            checkActive();
+            final Segment segment = activeSegment;
+            final long start = segment.length;
+            final ByteArrayOutputStream outstr = new ByteArrayOutputStream();
+            final DataOutputStream datastr = new DataOutputStream(outstr);
+            final LogEntry[] written = new LogEntry[records.size()];
+            for (int i = 0; i < records.size(); i++) {
+                final Record record = (Record) records.get(i);
+                final long position = start + datastr.size();
+                datastr.writeByte(record.type);
+                datastr.writeInt(record.key.length);
+                datastr.writeInt(record.record.length);
+                datastr.writeInt(checksum(record.type, record.key, record.record));
+                datastr.write(record.key);
+                datastr.write(record.record);
+                if (record.type == PUT) {
+                    written[i] = new LogEntry(segment, position, record.key.length, record.record.length,
+                            expiryTime(record.record));
+                }
+            }
+            datastr.close();
+            try {
+                segment.out.seek(start);
+                segment.out.write(outstr.toByteArray());
+            } catch (IOException e) {
+                segment.out.setLength(start);
+                throw e;
+            }
+            segment.length = start + outstr.size();
+
+            for (int i = 0; i < records.size(); i++) {
+                final Record record = (Record) records.get(i);
+                if (record.type == PUT) {
+                    entryReplaced(entries.put(record.getKey(), written[i]));
+                } else {
+                    segment.deadBytes.addAndGet(record.size());
+                }
+            }
+
+            if (segment.length >= SEGMENT_SIZE) {
+                startSegment();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Counts the record of an entry that was replaced or removed as dead.
+     */
+    private static void entryReplaced(final Object entry) {
+        if (entry != null) {
+            final LogEntry replaced = (LogEntry) entry;
+            replaced.segment.deadBytes.addAndGet(replaced.size());
+        }
+    }
+
+    /**
+     * Calculates when the element in a record expires.
+     */
+    private long expiryTime(final byte[] record) {
+        if (cache.isEternal()) {
+            // Never expires
+            return Long.MAX_VALUE;
+        }
+        long timeToLive = Element.getCreationTime(record) + cache.getTimeToLiveSeconds() * MS_PER_SECOND;
+        long timeToIdle = Element.getLastAccessTime(record) + cache.getTimeToIdleSeconds() * MS_PER_SECOND;
+        return Math.max(timeToLive, timeToIdle);
+    }
+
+    /**
+     * Removes an item from the cache, by appending a tombstone to the log.
+     */
+    public boolean remove(final Serializable key) throws IOException {
+        final List keys = new ArrayList(1);
+        keys.add(key);
+        return removeAll(keys) > 0;
+    }
+
+    /**
+     * Removes a batch of items from the cache, appending their tombstones with a single write.
+     *
+     * @return the number of items removed
+     */
+    public int removeAll(final Collection keys) throws IOException {
+        try {
+            final List tombstones = new ArrayList(keys.size());
+            for (Iterator iterator = keys.iterator(); iterator.hasNext();) {
+                final Serializable key = (Serializable) iterator.next();
+                if (entries.containsKey(key)) {
+                    tombstones.add(new Record(TOMBSTONE, key, encodeKey(key), new byte[0]));
+                }
+            }
+            if (tombstones.isEmpty()) {
+                return 0;
+            }
+            lock.lock();
+            try {
+                checkActive();
+                // Only the keys still there once the store is locked need a tombstone
+                for (Iterator iterator = tombstones.iterator(); iterator.hasNext();) {
+                    if (!entries.containsKey(((Record) iterator.next()).getKey())) {
+                        iterator.remove();
+                    }
+                }
+                if (tombstones.isEmpty()) {
+                    return 0;
+                }
+                append(tombstones);
+                for (int i = 0; i < tombstones.size(); i++) {
+                    entryReplaced(entries.remove(((Record) tombstones.get(i)).getKey()));
+                }
+                return tombstones.size();
+            } finally {
+                lock.unlock();
+            }
+        } catch (CacheException e) {
+            throw new IOException(e.getMessage());
+        }
+    }
+
+    /**
+     * Removes all cached items from the cache, deleting the whole log.
+     */
+    public void removeAll() throws IOException {
+        lock.lock();
+        try {
+            try {
+                checkActive();
+                entries.clear();
+                deleteSegments(new ArrayList(segments));
+                activeSegment = null;
+                startSegment();
+            } catch (Exception e) {
+                // Clean up
+                LOG.error(name + " Cache: Could not rebuild log store", e);
+                dispose();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Closes segments, once no reader is reading from them, and deletes their files. Relies on being called with
+     * the store lock held.
+     */
+    private void deleteSegments(final List deleted) throws IOException {
+        closeSegments(deleted);
+        for (int i = 0; i < deleted.size(); i++) {
+            final Segment segment = (Segment) deleted.get(i);
+            segments.remove(segment);
+            if (!segment.file.delete()) {
+                LOG.warn(name + "Cache: Could not delete segment " + segment.file.getName());
+            }
+        }
+    }
+
+    /**
+     * Closes segments, once no reader is reading from them. Relies on being called with the store lock held.
+     */
+    private void closeSegments(final List closed) throws IOException {
+        segmentLock.writeLock().lock();
+        try {
+            for (int i = 0; i < closed.size(); i++) {
+                final Segment segment = (Segment) closed.get(i);
+                if (!segment.closed) {
+                    segment.closed = true;
+                    segment.close();
+                }
+            }
+        } finally {
+            segmentLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Merges every segment that holds dead records, starting a new active segment first if the current one holds
+     * any. Once it returns, the log only holds the latest record of each element. Reads and writes continue while
+     * the merge runs.
+     */
+    public void merge() throws IOException, CacheException {
+        mergeLock.lock();
+        try {
+            lock.lock();
+            try {
+                checkActive();
+                if (activeSegment.deadBytes.get() > 0) {
+                    startSegment();
+                }
+            } finally {
+                lock.unlock();
+            }
+            merge(0);
+        } finally {
+            mergeLock.unlock();
+        }
+    }
+
+    /**
+     * Merges the segments, other than the active one, in which more than a share of the bytes are dead.
+     * <p/>
+     * Each segment is read from start to end, and its records that are still the latest of their key are appended
+     * to the log again. A tombstone is appended again if its key is still removed and an older segment that is not
+     * being merged may hold a record it removes. The merged segments are then deleted.
+     *
+     * @param threshold the share of dead bytes above which a segment is merged
+     */
+    private void merge(final double threshold) throws IOException, CacheException {
+        mergeLock.lock();
+        try {
+            final List merged = new ArrayList();
+            final List kept = new ArrayList();
+            lock.lock();
+            try {
+                checkActive();
+                for (int i = 0; i < segments.size(); i++) {
+                    final Segment segment = (Segment) segments.get(i);
+                    if (segment != activeSegment && segment.deadBytes.get() > threshold * segment.length) {
+                        merged.add(segment);
+                    } else if (segment != activeSegment) {
+                        kept.add(segment);
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+            if (merged.isEmpty()) {
+                return;
+            }
+
+            for (int i = 0; i < merged.size(); i++) {
+                final Segment segment = (Segment) merged.get(i);
+                final boolean keepTombstones = !kept.isEmpty() && ((Segment) kept.get(0)).id < segment.id;
+                mergeSegment(segment, keepTombstones);
+            }
+
+            lock.lock();
+            try {
+                checkActive();
+                // The copies must be on the disk before the records they were copied from are gone
+                activeSegment.out.getFD().sync();
+                deleteSegments(merged);
+            } finally {
+                lock.unlock();
+            }
+            if (LOG.isDebugEnabled()) {
+                LOG.debug(name + "Cache: Merged " + merged.size() + " segments of the log");
+            }
+        } finally {
+            mergeLock.unlock();
+        }
+    }
+
+    /**
+     * Copies the live records of a segment to the end of the log, a batch at a time.
+     */
+    private void mergeSegment(final Segment segment, final boolean keepTombstones)
+            throws IOException, CacheException {
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(segment.file),
+                MERGE_BATCH_SIZE));
+        try {
+            final List batch = new ArrayList();
+            long batchStart = 0;
+            long position = 0;
+            while (position < segment.length) {
+                final Record record = readRecord(in, position, segment.length);
+                if (record == null) {
+                    throw new IOException("Segment " + segment.file.getName() + " is corrupt at " + position);
+                }
+                batch.add(record);
+                position += record.size();
+                if (position - batchStart >= MERGE_BATCH_SIZE) {
+                    copyLiveRecords(segment, batch, keepTombstones);
+                    batch.clear();
+                    batchStart = position;
+                }
+            }
+            copyLiveRecords(segment, batch, keepTombstones);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Appends the records of a batch read from a segment that are still needed to the log.
+     */
+    private void copyLiveRecords(final Segment segment, final List batch, final boolean keepTombstones)
+            throws IOException, CacheException {
+        final List copies = new ArrayList(batch.size());
+        lock.lock();
+        try {
+            checkActive();
+            final long now = System.currentTimeMillis();
+            for (int i = 0; i < batch.size(); i++) {
+                final Record record = (Record) batch.get(i);
+                final LogEntry entry = (LogEntry) entries.get(record.getKey());
+                if (record.type == PUT) {
+                    if (entry != null && entry.segment == segment && entry.position == record.position) {
+                        if (now >= entry.expiryTime) {
+                            entries.remove(record.getKey());
+                        } else {
+                            copies.add(record);
+                        }
+                    }
+                } else if (keepTombstones && entry == null) {
+                    copies.add(record);
+                }
+            }
+            if (!copies.isEmpty()) {
+                append(copies);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes expired elements from the directory. Their records become dead, and go at the next merge.
+     */
+    private void expireElements() {
+        lock.lock();
+        try {
+            final long now = System.currentTimeMillis();
+            for (Iterator iterator = entries.entrySet().iterator(); iterator.hasNext();) {
+                final Map.Entry entry = (Map.Entry) iterator.next();
+                final LogEntry logEntry = (LogEntry) entry.getValue();
+                if (now >= logEntry.expiryTime) {
+                    // An expired element
+                    if (LOG.isDebugEnabled()) {
+                        LOG.debug(name + "Cache: Removing expired element " + entry.getKey() + " from Log Store");
+                    }
+                    iterator.remove();
+                    entryReplaced(logEntry);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Expires elements, unless the cache is eternal, and merges the segments that are mostly dead.
+     */
+    private void maintain() {
+        if (!active) {
+            return;
+        }
+        if (!cache.isEternal()) {
+            expireElements();
+        }
+        try {
+            merge(MERGE_THRESHOLD);
+        } catch (Exception e) {
+            LOG.error(name + "Cache: Could not merge the log", e);
+        }
+    }
+
+    /**
+     * The main method of the maintenance thread, which runs while the store is active.
+     */
+    private void maintenanceThreadMain() {
+        final long interval = maintenanceInterval * MS_PER_SECOND;
+        try {
+            while (active) {
+                Thread.sleep(interval);
+                maintain();
+            }
+        } catch (InterruptedException e) {
+            // Bail on interruption
+            if (LOG.isDebugEnabled()) {
+                LOG.debug(name + "Cache: Maintenance thread interrupted on Log Store.");
+            }
+        }
+    }
+
+    /**
+     * Shuts down the log store in preparation for cache shutdown. A persistent store keeps its segments, from
+     * which it rebuilds its directory when it starts again.
+     */
+    public void dispose() {
+        lock.lock();
+        try {
+            if (!active) {
+                return;
+            }
+            try {
+                if (maintenanceThread != null) {
+                    maintenanceThread.interrupt();
+                }
+                if (maintenanceTask != null) {
+                    maintenanceTask.cancel(false);
+                }
+                if (persistent) {
+                    closeSegments(segments);
+                } else {
+                    deleteSegments(new ArrayList(segments));
+                }
+            } catch (Exception e) {
+                LOG.error(name + "Cache: Could not shut down log store", e);
+            } finally {
+                active = false;
+                entries.clear();
+                segments.clear();
+                activeSegment = null;
+                status = Store.STATUS_DISPOSED;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Not supported: the log only holds elements.
+     */
+    public long putStream(final Serializable key, final InputStream in) throws IOException, CacheException {
+        throw streamsNotSupported();
+    }
+
+    /**
+     * Not supported: the log only holds elements.
+     */
+    public InputStream openStream(final Serializable key) throws CacheException {
+        throw streamsNotSupported();
+    }
+
+    /**
+     * Not supported: the log only holds elements.
+     */
+    public byte[] getRange(final Serializable key, final long offset, final int length)
+            throws IOException, CacheException {
+        throw streamsNotSupported();
+    }
+
+    /**
+     * Not supported: the log only holds elements.
+     */
+    public long getStreamLength(final Serializable key) throws CacheException {
+        throw streamsNotSupported();
+    }
+
+    /**
+     * Not supported: the log only holds elements.
+     */
+    public boolean removeStream(final Serializable key) throws CacheException {
+        throw streamsNotSupported();
+    }
+
+    private CacheException streamsNotSupported() {
+        return new CacheException("The " + name + " Cache keeps its elements in a log, which cannot store streams");
+    }
+
+    /**
+     * @return the size of all the segments in bytes
+     */
+    public long getDataFileSize() {
+        lock.lock();
+        try {
+            long size = 0;
+            for (int i = 0; i < segments.size(); i++) {
+                size += ((Segment) segments.get(i)).length;
+            }
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the share of the bytes of the log held by records that were replaced, removed or expired, and by
+     *         tombstones
+     */
+    public float calculateDataFileSparseness() {
+        lock.lock();
+        try {
+            long size = 0;
+            long dead = 0;
+            for (int i = 0; i < segments.size(); i++) {
+                final Segment segment = (Segment) segments.get(i);
+                size += segment.length;
+                dead += segment.deadBytes.get();
+            }
+            return size == 0 ? 0 : (float) dead / size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of segments in the log
+     */
+    public int getSegmentCount() {
+        lock.lock();
+        try {
+            return segments.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns a {@link String} representation of the {@link LogStore}
+     */
+    public String toString() {
+        StringBuffer sb = new StringBuffer();
+        sb.append("[ diskPath = ").append(diskPath)
+                .append(", active=").append(active)
+                .append(", segments=").append(getSegmentCount())
+                .append(", status=").append(status)
+                .append(" ]");
+        return sb.toString();
+    }
+
+    /**
+     * A segment of the log.
+     */
+    private static final class Segment {
+        private final int id;
+        private final File file;
+
+        /**
+         * The file to which records are appended, while the segment is active, or null
+         */
+        private RandomAccessFile out;
+
+        /**
+         * The channel records are read through
+         */
+        private ReadChannel in;
+
+        /**
+         * The length of the records written, which is the length of the file
+         */
+        private volatile long length;
+
+        /**
+         * The bytes of the records that were replaced, removed or expired, and of the tombstones
+         */
+        private final AtomicLong deadBytes = new AtomicLong();
+
+        /**
+         * Set, with the write lock of the segment lock held, once the segment has been closed
+         */
+        private volatile boolean closed;
+
+        private Segment(final int id, final File file) {
+            this.id = id;
+            this.file = file;
+        }
+
+        private void open() throws IOException {
+            in = new ReadChannel(file);
+        }
+
+        private void close() throws IOException {
+            if (out != null) {
+                out.close();
+                out = null;
+            }
+            if (in != null) {
+                in.close();
+            }
+        }
+    }
+
+    /**
+     * Where the latest record of a key is. Never changed once in the directory, so that readers need not lock.
+     */
+    private static final class LogEntry {
+        private final Segment segment;
+        private final long position;
+        private final int keyLength;
+        private final int recordLength;
+
+        /**
+         * The expiry time in milliseconds
+         */
+        private final long expiryTime;
+
+        private LogEntry(final Segment segment, final long position, final int keyLength, final int recordLength,
+                final long expiryTime) {
+            this.segment = segment;
+            this.position = position;
+            this.keyLength = keyLength;
+            this.recordLength = recordLength;
+            this.expiryTime = expiryTime;
+        }
+
+        private int size() {
+            return HEADER_SIZE + keyLength + recordLength;
+        }
+
+        /**
+         * Orders entries in log order.
+         */
+        private int compareTo(final LogEntry other) {
+            if (segment.id != other.segment.id) {
+                return segment.id < other.segment.id ? -1 : 1;
+            }
+            return position < other.position ? -1 : (position == other.position ? 0 : 1);
+        }
+    }
+
+    /**
+     * A record, read from a segment or about to be appended to the log.
+     */
+    private final class Record {
+        private final byte type;
+
+        /**
+         * The position in its segment of a record that was read, or -1
+         */
+        private final long position;
+
+        /**
+         * The encoded key
+         */
+        private final byte[] key;
+
+        /**
+         * The element, as {@link Element#encode} wrote it and possibly compressed, or nothing for a tombstone
+         */
+        private final byte[] record;
+
+        private final Serializable decodedKey;
+
+        private Record(final byte type, final Serializable decodedKey, final byte[] key, final byte[] record) {
+            this.type = type;
+            this.decodedKey = decodedKey;
+            this.key = key;
+            this.record = record;
+            position = -1;
+        }
+
+        private Record(final byte type, final long position, final byte[] key, final byte[] record)
+                throws IOException {
+            this.type = type;
+            this.position = position;
+            this.key = key;
+            this.record = record;
+            try {
+                decodedKey = (Serializable) keyCodec.decode(new DataInputStream(new ByteArrayInputStream(key)));
+            } catch (ClassNotFoundException e) {
+                throw new IOException("Could not decode a key: " + e.getMessage());
+            }
+        }
+
+        private Serializable getKey() {
+            return decodedKey;
+        }
+
+        private int size() {
+            return HEADER_SIZE + key.length + record.length;
+        }
+    }
+
+    /**
+     * A background thread that expires elements and merges segments.
+     */
+    private class MaintenanceThread extends Thread {
+        public MaintenanceThread() {
+            super("Store " + name + " Maintenance Thread");
+            setDaemon(true);
+        }
+
+        /**
+         * Main thread method.
+         */
+        public void run() {
+            maintenanceThreadMain();
+        }
+    }
+}
@@ -0,0 +1,138 @@
+/* ====================================================================
+ * The Apache Software License, Version 1.1
+ *
+ * Copyright (c) 2003 - 2004 Greg Luck.  All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ * 3. The end-user documentation included with the redistribution, if
+ *    any, must include the following acknowlegement:
+ *       "This product includes software developed by Greg Luck
+ *       (http://sourceforge.net/users/gregluck) and contributors.
+ *       See http://sourceforge.net/project/memberlist.php?group_id=93232
+ *       for a list of contributors"
+ *    Alternately, this acknowledgement may appear in the software itself,
+ *    if and wherever such third-party acknowlegements normally appear.
+ *
+ * 4. The names "EHCache" must not be used to endorse or promote products
+ *    derived from this software without prior written permission. For written
+ *    permission, please contact Greg Luck (gregluck at users.sourceforge.net).
+ *
+ * 5. Products derived from this software may not be called "EHCache"
+ *    nor may "EHCache" appear in their names without prior written
+ *    permission of Greg Luck.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED.  IN NO EVENT SHALL GREG LUCK OR OTHER
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ * USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ * OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by contributors
+ * individuals on behalf of the EHCache project.  For more
+ * information on EHCache, please see <http://ehcache.sourceforge.net/>.
+ *
+ */
+
+
+package net.sf.ehcache.store;
+
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * The data file of a {@link DiskStore} in memory mapped mode, mapped in segments of {@link #SEGMENT_SIZE} bytes.
+ * <p/>
+ * Segments are mapped read-write, which extends the file to the end of the last segment, and are never remapped:
+ * as the data grows, segments are added. A reader takes the current array of segments without locking, so reads
+ * are plain memory copies. The store must keep readers away from a region while it is rewritten, truncated or
+ * unmapped.
+ */
+final class MappedDataFile {
+
+    /**
+     * The size of each mapped segment.
+     */
+    static final int SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    private final FileChannel channel;
+
+    private volatile MappedByteBuffer[] segments = new MappedByteBuffer[0];
+
+    MappedDataFile(final FileChannel channel) {
+        this.channel = channel;
+    }
+
+    /**
+     * Maps segments until the first <code>length</code> bytes of the file are mapped. Must be called with the
+     * store lock held.
+     */
+    void ensureMapped(final long length) throws IOException {
+        final MappedByteBuffer[] current = segments;
+        final int needed = (int) ((length + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+        if (needed <= current.length) {
+            return;
+        }
+        final MappedByteBuffer[] grown = new MappedByteBuffer[needed];
+        System.arraycopy(current, 0, grown, 0, current.length);
+        for (int i = current.length; i < needed; i++) {
+            grown[i] = channel.map(FileChannel.MapMode.READ_WRITE, (long) i * SEGMENT_SIZE, SEGMENT_SIZE);
+        }
+        segments = grown;
+    }
+
+    /**
+     * Copies bytes from the mapped file. The bytes must have been mapped by {@link #ensureMapped}.
+     */
+    void read(long position, final byte[] bytes, int offset, int length) {
+        final MappedByteBuffer[] mapped = segments;
+        while (length > 0) {
+            final int segment = (int) (position / SEGMENT_SIZE);
+            final int start = (int) (position % SEGMENT_SIZE);
+            final int count = Math.min(length, SEGMENT_SIZE - start);
+            // Through Buffer and ByteBuffer, so that classes compiled by a newer JDK still link on Java 8
+            final ByteBuffer view = ((ByteBuffer) mapped[segment]).duplicate();
+            ((Buffer) view).position(start);
+            view.get(bytes, offset, count);
+            position += count;
+            offset += count;
+            length -= count;
+        }
+    }
+
+    /**
+     * @return the number of bytes mapped, up to the end of the last segment
+     */
+    long getMappedLength() {
+        return (long) segments.length * SEGMENT_SIZE;
+    }
+
+    /**
+     * Forgets all segments, before the file is truncated or closed. The mappings are released by the garbage
+     * collector.
+     */
+    void clear() {
+        segments = new MappedByteBuffer[0];
+    }
+}
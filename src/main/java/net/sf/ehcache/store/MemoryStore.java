@@ -64,8 +64,10 @@ import org.apache.commons.logging.LogFactory;
 import java.io.Externalizable;
 import java.io.IOException;
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 
 
@@ -96,13 +98,19 @@ public class MemoryStore implements Store {
     /**
      * The DiskStore associated with this MemoryStore
      */
-    private DiskStore diskStore;
+    private OverflowStore diskStore;
 
     /**
      * status
      */
     private int status;
 
+    /**
+     * Collects the elements evicted while {@link #putAll} is running, so that they reach the
+     * {@link DiskStore} as one batch. Null otherwise.
+     */
+    private List spoolBatch;
+
     /**
      * Required for deserialization
      */
@@ -114,7 +122,7 @@ public class MemoryStore implements Store {
      * Constructor for the MemoryStore object
      * The backing {@link java.util.LinkedHashMap} is created with LRU by access order.
      */
-    public MemoryStore(Cache cache, DiskStore diskStore) {
+    public MemoryStore(Cache cache, OverflowStore diskStore) {
         status = Store.STATUS_UNINITIALISED;
         this.cache = cache;
         this.diskStore = diskStore;
@@ -177,6 +185,30 @@ public class MemoryStore implements Store {
         map.put(element.getKey(), element);
     }
 
+    /**
+     * Puts a batch of items in the cache. Elements evicted as a result are handed to the
+     * {@link DiskStore} together, with a single call to {@link OverflowStore#putAll}.
+     *
+     * @param elements the {@link Element}s to add
+     */
+    public synchronized void putAll(Collection elements) {
+        spoolBatch = new ArrayList();
+        try {
+            for (Iterator iterator = elements.iterator(); iterator.hasNext();) {
+                Element element = (Element) iterator.next();
+                map.put(element.getKey(), element);
+            }
+            if (spoolBatch.size() > 0) {
+                diskStore.putAll(spoolBatch);
+            }
+        } catch (IOException e) {
+            LOG.error(e.getMessage(), e);
+            throw new IllegalStateException(e.getMessage());
+        } finally {
+            spoolBatch = null;
+        }
+    }
+
     /**
      * Remove all of the elements from the cache.
      */
@@ -248,6 +280,22 @@ public class MemoryStore implements Store {
         return removed;
     }
 
+    /**
+     * Removes a batch of items from the cache.
+     *
+     * @param keys the keys to remove
+     * @return the number of items removed
+     */
+    public synchronized int removeAll(Collection keys) {
+        int removed = 0;
+        for (Iterator iterator = keys.iterator(); iterator.hasNext();) {
+            if (map.remove(iterator.next()) != null) {
+                removed++;
+            }
+        }
+        return removed;
+    }
+
     /**
      * Gets an Array of the keys for all elements in the memory cache
      * <p/>
@@ -395,6 +443,10 @@ public class MemoryStore implements Store {
      * @param element The Element
      */
     private void spoolToDisk(Element element) {
+        if (spoolBatch != null) {
+            spoolBatch.add(element);
+            return;
+        }
         try {
             diskStore.put(element);
         } catch (IOException e) {
@@ -0,0 +1,278 @@
+/* ====================================================================
+ * The Apache Software License, Version 1.1
+ *
+ * Copyright (c) 2003 - 2004 Greg Luck.  All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ * 3. The end-user documentation included with the redistribution, if
+ *    any, must include the following acknowlegement:
+ *       "This product includes software developed by Greg Luck
+ *       (http://sourceforge.net/users/gregluck) and contributors.
+ *       See http://sourceforge.net/project/memberlist.php?group_id=93232
+ *       for a list of contributors"
+ *    Alternately, this acknowledgement may appear in the software itself,
+ *    if and wherever such third-party acknowlegements normally appear.
+ *
+ * 4. The names "EHCache" must not be used to endorse or promote products
+ *    derived from this software without prior written permission. For written
+ *    permission, please contact Greg Luck (gregluck at users.sourceforge.net).
+ *
+ * 5. Products derived from this software may not be called "EHCache"
+ *    nor may "EHCache" appear in their names without prior written
+ *    permission of Greg Luck.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED.  IN NO EVENT SHALL GREG LUCK OR OTHER
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ * USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ * OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by contributors
+ * individuals on behalf of the EHCache project.  For more
+ * information on EHCache, please see <http://ehcache.sourceforge.net/>.
+ *
+ */
+
+
+package net.sf.ehcache.store;
+
+import net.sf.ehcache.codec.Codec;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * The index of a {@link DiskStore}, mapping keys to their {@link DiskStore.DiskElement}s, held in an
+ * {@link OffHeapKeyTable} rather than on the heap.
+ * <p/>
+ * Keys are encoded with the key codec of the store on the way in and decoded on the way out, and the disk elements are rebuilt from the
+ * table on every lookup, so changing a disk element after it has been put does not change the index.
+ * <p/>
+ * Not thread safe. The disk store only uses it while holding its lock.
+ */
+final class OffHeapDiskIndex extends AbstractMap {
+
+    private static final int POSITION = 0;
+    private static final int SIZES = 1;
+    private static final int EXPIRY_TIME = 2;
+
+    private final OffHeapKeyTable table = new OffHeapKeyTable(3);
+    private final Codec keyCodec;
+
+    private Set entrySet;
+
+    /**
+     * Creates an empty index.
+     *
+     * @param keyCodec the codec that encodes keys for the table, which must be the one the disk store writes keys with
+     */
+    OffHeapDiskIndex(final Codec keyCodec) {
+        this.keyCodec = keyCodec;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public int size() {
+        return (int) Math.min(Integer.MAX_VALUE, table.size());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean containsKey(final Object key) {
+        return table.find(OffHeapKeyTable.encodeKey(key, keyCodec)) >= 0;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Object get(final Object key) {
+        final long slot = table.find(OffHeapKeyTable.encodeKey(key, keyCodec));
+        return slot < 0 ? null : diskElementAt(slot);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Object put(final Object key, final Object value) {
+        return put(OffHeapKeyTable.encodeKey(key, keyCodec), (DiskStore.DiskElement) value);
+    }
+
+    private Object put(final byte[] key, final DiskStore.DiskElement diskElement) {
+        final long found = table.find(key);
+        final Object old = found < 0 ? null : diskElementAt(found);
+        final long slot = found < 0 ? table.insert(key) : found;
+        table.setValue(slot, POSITION, diskElement.position);
+        table.setValue(slot, SIZES, ((long) diskElement.payloadSize << 32) | (diskElement.blockSize & 0xffffffffL));
+        table.setValue(slot, EXPIRY_TIME, diskElement.expiryTime);
+        return old;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Object remove(final Object key) {
+        final long slot = table.find(OffHeapKeyTable.encodeKey(key, keyCodec));
+        if (slot < 0) {
+            return null;
+        }
+        final Object old = diskElementAt(slot);
+        table.removeAt(slot);
+        return old;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void clear() {
+        table.clear();
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * Each step of an iteration decodes a key.
+     */
+    public Set entrySet() {
+        if (entrySet == null) {
+            entrySet = new AbstractSet() {
+                public int size() {
+                    return OffHeapDiskIndex.this.size();
+                }
+
+                public void clear() {
+                    OffHeapDiskIndex.this.clear();
+                }
+
+                public Iterator iterator() {
+                    return new EntryIterator();
+                }
+            };
+        }
+        return entrySet;
+    }
+
+    /**
+     * Writes the entries as encoded keys, so that the keys need not be decoded to save the index.
+     */
+    void writeEntries(final ObjectOutputStream out) throws IOException {
+        out.writeLong(table.size());
+        for (long slot = table.nextSlot(0); slot >= 0; slot = table.nextSlot(slot + 1)) {
+            final byte[] key = table.keyAt(slot);
+            out.writeInt(key.length);
+            out.write(key);
+            out.writeLong(table.getValue(slot, POSITION));
+            out.writeLong(table.getValue(slot, SIZES));
+            out.writeLong(table.getValue(slot, EXPIRY_TIME));
+        }
+    }
+
+    /**
+     * Reads entries written by {@link #writeEntries} into a map, decoding the keys only if the map is not an off-heap
+     * index.
+     *
+     * @param serialized true if the keys were written with Java serialization, as they were before off-heap indexes
+     *                   used the key codec, in which case they are always read back and encoded again
+     */
+    static void readEntries(final ObjectInputStream in, final Map diskElements, final Codec keyCodec,
+                            final boolean serialized) throws IOException {
+        final long count = in.readLong();
+        for (long i = 0; i < count; i++) {
+            final byte[] key = new byte[in.readInt()];
+            in.readFully(key);
+            final DiskStore.DiskElement diskElement = new DiskStore.DiskElement();
+            diskElement.position = in.readLong();
+            final long sizes = in.readLong();
+            diskElement.payloadSize = (int) (sizes >>> 32);
+            diskElement.blockSize = (int) sizes;
+            diskElement.expiryTime = in.readLong();
+            if (serialized) {
+                diskElements.put(deserializeKey(key), diskElement);
+            } else if (diskElements instanceof OffHeapDiskIndex) {
+                ((OffHeapDiskIndex) diskElements).put(key, diskElement);
+            } else {
+                diskElements.put(OffHeapKeyTable.decodeKey(key, keyCodec), diskElement);
+            }
+        }
+    }
+
+    private static Object deserializeKey(final byte[] key) throws IOException {
+        final ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(key));
+        try {
+            return in.readObject();
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Could not deserialize key: " + e.getMessage());
+        } finally {
+            in.close();
+        }
+    }
+
+    private DiskStore.DiskElement diskElementAt(final long slot) {
+        final DiskStore.DiskElement diskElement = new DiskStore.DiskElement();
+        diskElement.position = table.getValue(slot, POSITION);
+        final long sizes = table.getValue(slot, SIZES);
+        diskElement.payloadSize = (int) (sizes >>> 32);
+        diskElement.blockSize = (int) sizes;
+        diskElement.expiryTime = table.getValue(slot, EXPIRY_TIME);
+        return diskElement;
+    }
+
+    /**
+     * Walks the slots of the table. Removing through the iterator leaves the other keys where they are.
+     */
+    private final class EntryIterator implements Iterator {
+        private long next = table.nextSlot(0);
+        private long current = -1;
+
+        public boolean hasNext() {
+            return next >= 0;
+        }
+
+        public Object next() {
+            if (next < 0) {
+                throw new NoSuchElementException();
+            }
+            current = next;
+            next = table.nextSlot(current + 1);
+            final Object key = OffHeapKeyTable.decodeKey(table.keyAt(current), keyCodec);
+            final DiskStore.DiskElement value = diskElementAt(current);
+            return new SimpleImmutableEntry(key, value);
+        }
+
+        public void remove() {
+            if (current < 0) {
+                throw new IllegalStateException();
+            }
+            table.removeAt(current);
+            current = -1;
+        }
+    }
+}
@@ -0,0 +1,508 @@
+/* ====================================================================
+ * The Apache Software License, Version 1.1
+ *
+ * Copyright (c) 2003 - 2004 Greg Luck.  All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ * 3. The end-user documentation included with the redistribution, if
+ *    any, must include the following acknowlegement:
+ *       "This product includes software developed by Greg Luck
+ *       (http://sourceforge.net/users/gregluck) and contributors.
+ *       See http://sourceforge.net/project/memberlist.php?group_id=93232
+ *       for a list of contributors"
+ *    Alternately, this acknowledgement may appear in the software itself,
+ *    if and wherever such third-party acknowlegements normally appear.
+ *
+ * 4. The names "EHCache" must not be used to endorse or promote products
+ *    derived from this software without prior written permission. For written
+ *    permission, please contact Greg Luck (gregluck at users.sourceforge.net).
+ *
+ * 5. Products derived from this software may not be called "EHCache"
+ *    nor may "EHCache" appear in their names without prior written
+ *    permission of Greg Luck.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED.  IN NO EVENT SHALL GREG LUCK OR OTHER
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ * USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ * OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by contributors
+ * individuals on behalf of the EHCache project.  For more
+ * information on EHCache, please see <http://ehcache.sourceforge.net/>.
+ *
+ */
+
+
+package net.sf.ehcache.store;
+
+import net.sf.ehcache.codec.Codec;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A hash table of encoded keys, each with a fixed number of <code>long</code> values, held outside the Java heap
+ * in direct buffers.
+ * <p/>
+ * Keys are stored as the bytes written by a {@link Codec} in an append-only arena, and found through an open addressing table of
+ * slots. Each slot packs the address of its record with a few bits of the hash of the key, so that a lookup only
+ * reads the arena for likely matches. The garbage collector sees a handful of buffers however many keys there are.
+ * <p/>
+ * Removing a key leaves its record in the arena and a tombstone in its slot. Both are reclaimed when the table is
+ * rebuilt, which happens when it runs out of free slots or when more than half of the arena is garbage. The arena
+ * starts with a few kilobytes and doubles its last chunk as it fills, so a small table costs little direct memory.
+ * <p/>
+ * Keys are compared by their encoded form, so they must encode identically whenever they are equal, as
+ * Strings, boxed primitives and most value classes do.
+ * <p/>
+ * This class is not thread safe. Slot numbers are only stable until the next insertion.
+ * <p/>
+ * The direct buffers are released by the garbage collector once the table is no longer referenced, so
+ * <code>-XX:MaxDirectMemorySize</code> must leave room for the table and, while it is rebuilt, its copy.
+ */
+public final class OffHeapKeyTable {
+
+    private static final int SLOT_CHUNK_SHIFT = 24;
+    private static final int SLOT_CHUNK_SIZE = 1 << SLOT_CHUNK_SHIFT;
+    private static final int ARENA_CHUNK_SHIFT = 26;
+    private static final int ARENA_CHUNK_SIZE = 1 << ARENA_CHUNK_SHIFT;
+    private static final int MIN_ARENA_CHUNK_SIZE = 4096;
+    private static final int MIN_CAPACITY = 16;
+
+    private static final long EMPTY = 0L;
+    private static final long TOMBSTONE = 1L;
+    private static final int ADDRESS_BITS = 40;
+    private static final long ADDRESS_MASK = (1L << ADDRESS_BITS) - 1;
+
+    private final int valueCount;
+
+    private LongBuffer[] slots;
+    private long capacity;
+    private long size;
+    private long tombstones;
+
+    private List arena;
+    private long arenaEnd;
+    private long garbage;
+
+    /**
+     * Creates an empty table.
+     *
+     * @param valueCount the number of <code>long</code> values stored with each key
+     */
+    public OffHeapKeyTable(final int valueCount) {
+        this.valueCount = valueCount;
+        allocate(MIN_CAPACITY);
+    }
+
+    /**
+     * @return the number of keys in the table
+     */
+    public long size() {
+        return size;
+    }
+
+    /**
+     * @return the number of slots, which bounds the slot numbers returned by {@link #nextSlot}
+     */
+    public long capacity() {
+        return capacity;
+    }
+
+    /**
+     * @return the number of bytes held outside the heap
+     */
+    public long getOffHeapSize() {
+        long arenaSize = 0;
+        for (int i = 0; i < arena.size(); i++) {
+            arenaSize += ((ByteBuffer) arena.get(i)).capacity();
+        }
+        return capacity * 8 + arenaSize;
+    }
+
+    /**
+     * Finds the slot of a key.
+     *
+     * @return the slot, or -1 if the key is not in the table
+     */
+    public long find(final byte[] key) {
+        final long hash = hash(key);
+        final long tag = tagOf(hash);
+        final long mask = capacity - 1;
+        for (long slot = hash & mask; ; slot = (slot + 1) & mask) {
+            final long entry = getSlot(slot);
+            if (entry == EMPTY) {
+                return -1;
+            }
+            if (entry != TOMBSTONE && (entry >>> ADDRESS_BITS) == tag && keyEquals(addressOf(entry), key)) {
+                return slot;
+            }
+        }
+    }
+
+    /**
+     * Inserts a key, if it is not already in the table. The values of a new key are all 0.
+     * <p/>
+     * Slot numbers obtained before the call may no longer be valid after it.
+     *
+     * @return the slot of the key
+     */
+    public long insert(final byte[] key) {
+        final long existing = find(key);
+        if (existing >= 0) {
+            return existing;
+        }
+        if (size + tombstones + 1 > capacity - (capacity >>> 2)) {
+            rebuild(size + 1 > capacity >>> 1 ? capacity << 1 : capacity);
+        } else if (garbage > arenaEnd >>> 1 && arena.size() > 1) {
+            rebuild(capacity);
+        }
+        final long hash = hash(key);
+        final long mask = capacity - 1;
+        long slot = hash & mask;
+        long entry;
+        while ((entry = getSlot(slot)) != EMPTY && entry != TOMBSTONE) {
+            slot = (slot + 1) & mask;
+        }
+        if (entry == TOMBSTONE) {
+            tombstones--;
+        }
+        final long address = appendRecord(key);
+        setSlot(slot, (tagOf(hash) << ADDRESS_BITS) | address);
+        size++;
+        return slot;
+    }
+
+    /**
+     * Removes a key.
+     *
+     * @return true if the key was in the table
+     */
+    public boolean remove(final byte[] key) {
+        final long slot = find(key);
+        if (slot < 0) {
+            return false;
+        }
+        removeAt(slot);
+        return true;
+    }
+
+    /**
+     * Removes the key held by a slot. Unlike an insertion, this does not move other keys, so it may be called
+     * while walking the slots with {@link #nextSlot}.
+     */
+    public void removeAt(final long slot) {
+        final long address = addressOf(getSlot(slot));
+        garbage += recordLength(keyLength(address));
+        setSlot(slot, TOMBSTONE);
+        size--;
+        tombstones++;
+    }
+
+    /**
+     * Removes all the keys and releases the buffers beyond the minimum size.
+     */
+    public void clear() {
+        allocate(MIN_CAPACITY);
+    }
+
+    /**
+     * Finds the next slot holding a key.
+     *
+     * @param from the first slot to look at
+     * @return the slot, or -1 if there are no keys in or after <code>from</code>
+     */
+    public long nextSlot(final long from) {
+        for (long slot = from; slot < capacity; slot++) {
+            final long entry = getSlot(slot);
+            if (entry != EMPTY && entry != TOMBSTONE) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return a copy of the encoded key held by a slot
+     */
+    public byte[] keyAt(final long slot) {
+        final long address = addressOf(getSlot(slot));
+        final byte[] key = new byte[keyLength(address)];
+        final ByteBuffer chunk = chunkOf(address);
+        final int offset = offsetOf(address) + 4;
+        for (int i = 0; i < key.length; i++) {
+            key[i] = chunk.get(offset + i);
+        }
+        return key;
+    }
+
+    /**
+     * @return one of the values stored with the key held by a slot
+     */
+    public long getValue(final long slot, final int index) {
+        final long address = addressOf(getSlot(slot));
+        return chunkOf(address).getLong(valueOffset(address, index));
+    }
+
+    /**
+     * Sets one of the values stored with the key held by a slot.
+     */
+    public void setValue(final long slot, final int index, final long value) {
+        final long address = addressOf(getSlot(slot));
+        chunkOf(address).putLong(valueOffset(address, index), value);
+    }
+
+    /**
+     * Encodes a key into the form used by the table.
+     */
+    public static byte[] encodeKey(final Object key, final Codec codec) {
+        try {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream(32);
+            final DataOutputStream out = new DataOutputStream(bytes);
+            codec.encode(key, out);
+            out.flush();
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Could not encode key " + key + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Reads back a key encoded with {@link #encodeKey}.
+     */
+    public static Object decodeKey(final byte[] key, final Codec codec) {
+        try {
+            return codec.decode(new DataInputStream(new ByteArrayInputStream(key)));
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not decode key: " + e.getMessage());
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException("Could not decode key: " + e.getMessage());
+        }
+    }
+
+    private void allocate(final long newCapacity) {
+        capacity = newCapacity;
+        final int chunks = (int) ((newCapacity + SLOT_CHUNK_SIZE - 1) >>> SLOT_CHUNK_SHIFT);
+        slots = new LongBuffer[chunks];
+        for (int i = 0; i < chunks; i++) {
+            final long chunkSlots = Math.min(SLOT_CHUNK_SIZE, newCapacity - ((long) i << SLOT_CHUNK_SHIFT));
+            slots[i] = ByteBuffer.allocateDirect((int) chunkSlots * 8).asLongBuffer();
+        }
+        size = 0;
+        tombstones = 0;
+        arena = new ArrayList();
+        arenaEnd = 2;
+        garbage = 0;
+    }
+
+    /**
+     * Copies the live keys into fresh slots and a compacted arena.
+     */
+    private void rebuild(final long newCapacity) {
+        final LongBuffer[] oldSlots = slots;
+        final long oldCapacity = capacity;
+        final List oldArena = arena;
+        final long live = arenaEnd - garbage;
+        allocate(newCapacity);
+        // Room for the live records up front, so that the copy does not regrow the first chunk again and again
+        arena.add(ByteBuffer.allocateDirect(chunkSizeFor(live)));
+        final long mask = capacity - 1;
+        for (long i = 0; i < oldCapacity; i++) {
+            final long entry = oldSlots[(int) (i >>> SLOT_CHUNK_SHIFT)].get((int) (i & (SLOT_CHUNK_SIZE - 1)));
+            if (entry == EMPTY || entry == TOMBSTONE) {
+                continue;
+            }
+            final long oldAddress = addressOf(entry);
+            final ByteBuffer oldChunk = (ByteBuffer) oldArena.get((int) (oldAddress >>> ARENA_CHUNK_SHIFT));
+            final int oldOffset = (int) (oldAddress & (ARENA_CHUNK_SIZE - 1));
+            final int length = recordLength(oldChunk.getInt(oldOffset));
+            final long address = reserve(length);
+            final ByteBuffer chunk = chunkOf(address);
+            final int offset = offsetOf(address);
+            for (int b = 0; b < length; b++) {
+                chunk.put(offset + b, oldChunk.get(oldOffset + b));
+            }
+            long slot = hashAt(chunk, offset) & mask;
+            while (getSlot(slot) != EMPTY) {
+                slot = (slot + 1) & mask;
+            }
+            setSlot(slot, (entry & ~ADDRESS_MASK) | address);
+            size++;
+        }
+    }
+
+    private long hashAt(final ByteBuffer chunk, final int offset) {
+        final int length = chunk.getInt(offset);
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < length; i++) {
+            h ^= chunk.get(offset + 4 + i) & 0xff;
+            h *= 0x100000001b3L;
+        }
+        return mix(h);
+    }
+
+    private static long hash(final byte[] key) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length; i++) {
+            h ^= key[i] & 0xff;
+            h *= 0x100000001b3L;
+        }
+        return mix(h);
+    }
+
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * The bits of the hash kept in a slot. Never negative, so a slot holding a key is never mistaken for
+     * {@link #EMPTY} or {@link #TOMBSTONE}, whose addresses are too small to be real.
+     */
+    private static long tagOf(final long hash) {
+        return (hash >>> ADDRESS_BITS) & ((1L << (63 - ADDRESS_BITS)) - 1);
+    }
+
+    /**
+     * Appends a record for a key, with its values zeroed. Addresses start at 2 so that no record has the address
+     * of an empty slot or a tombstone.
+     */
+    private long appendRecord(final byte[] key) {
+        final long address = reserve(recordLength(key.length));
+        final ByteBuffer chunk = chunkOf(address);
+        final int offset = offsetOf(address);
+        chunk.putInt(offset, key.length);
+        for (int i = 0; i < key.length; i++) {
+            chunk.put(offset + 4 + i, key[i]);
+        }
+        for (int i = 0; i < valueCount; i++) {
+            chunk.putLong(offset + 4 + key.length + i * 8, 0L);
+        }
+        return address;
+    }
+
+    private long reserve(final int length) {
+        if (length > ARENA_CHUNK_SIZE - 2) {
+            throw new IllegalArgumentException("Key of " + length + " bytes is too large for an off-heap index");
+        }
+        if (arenaEnd >>> ARENA_CHUNK_SHIFT == arena.size()) {
+            arena.add(ByteBuffer.allocateDirect(MIN_ARENA_CHUNK_SIZE));
+        } else if (offsetOf(arenaEnd) + length > ARENA_CHUNK_SIZE) {
+            // Records never straddle two chunks, so the end of this one is wasted
+            garbage += ARENA_CHUNK_SIZE - offsetOf(arenaEnd);
+            arenaEnd = (long) arena.size() << ARENA_CHUNK_SHIFT;
+            arena.add(ByteBuffer.allocateDirect(MIN_ARENA_CHUNK_SIZE));
+        }
+        final long address = arenaEnd;
+        if (address + length > ADDRESS_MASK) {
+            throw new IllegalStateException("Off-heap index is full");
+        }
+        final int offset = offsetOf(address);
+        final int chunkIndex = (int) (address >>> ARENA_CHUNK_SHIFT);
+        final ByteBuffer chunk = (ByteBuffer) arena.get(chunkIndex);
+        if (offset + length > chunk.capacity()) {
+            // Doubling keeps the copies to about as many bytes again as the chunk ends up holding
+            int size = chunk.capacity();
+            while (size < offset + length) {
+                size <<= 1;
+            }
+            final ByteBuffer grown = ByteBuffer.allocateDirect(size);
+            final ByteBuffer used = chunk.duplicate();
+            ((Buffer) used).position(0);
+            ((Buffer) used).limit(offset);
+            grown.put(used);
+            arena.set(chunkIndex, grown);
+        }
+        arenaEnd += length;
+        return address;
+    }
+
+    /**
+     * @return the smallest power of two chunk size, from the minimum to the largest, that holds some bytes
+     */
+    private static int chunkSizeFor(final long bytes) {
+        int size = MIN_ARENA_CHUNK_SIZE;
+        while (size < bytes && size < ARENA_CHUNK_SIZE) {
+            size <<= 1;
+        }
+        return size;
+    }
+
+    private int recordLength(final int keyLength) {
+        return 4 + keyLength + valueCount * 8;
+    }
+
+    private int keyLength(final long address) {
+        return chunkOf(address).getInt(offsetOf(address));
+    }
+
+    private int valueOffset(final long address, final int index) {
+        return offsetOf(address) + 4 + keyLength(address) + index * 8;
+    }
+
+    private boolean keyEquals(final long address, final byte[] key) {
+        final ByteBuffer chunk = chunkOf(address);
+        final int offset = offsetOf(address);
+        if (chunk.getInt(offset) != key.length) {
+            return false;
+        }
+        for (int i = 0; i < key.length; i++) {
+            if (chunk.get(offset + 4 + i) != key[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private ByteBuffer chunkOf(final long address) {
+        return (ByteBuffer) arena.get((int) (address >>> ARENA_CHUNK_SHIFT));
+    }
+
+    private static int offsetOf(final long address) {
+        return (int) (address & (ARENA_CHUNK_SIZE - 1));
+    }
+
+    private static long addressOf(final long entry) {
+        return entry & ADDRESS_MASK;
+    }
+
+    private long getSlot(final long slot) {
+        return slots[(int) (slot >>> SLOT_CHUNK_SHIFT)].get((int) (slot & (SLOT_CHUNK_SIZE - 1)));
+    }
+
+    private void setSlot(final long slot, final long entry) {
+        slots[(int) (slot >>> SLOT_CHUNK_SHIFT)].put((int) (slot & (SLOT_CHUNK_SIZE - 1)), entry);
+    }
+}
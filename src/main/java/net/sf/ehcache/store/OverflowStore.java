@@ -0,0 +1,162 @@
+/* ====================================================================
+ * The Apache Software License, Version 1.1
+ *
+ * Copyright (c) 2003 - 2004 Greg Luck.  All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ * 3. The end-user documentation included with the redistribution, if
+ *    any, must include the following acknowlegement:
+ *       "This product includes software developed by Greg Luck
+ *       (http://sourceforge.net/users/gregluck) and contributors.
+ *       See http://sourceforge.net/project/memberlist.php?group_id=93232
+ *       for a list of contributors"
+ *    Alternately, this acknowledgement may appear in the software itself,
+ *    if and wherever such third-party acknowlegements normally appear.
+ *
+ * 4. The names "EHCache" must not be used to endorse or promote products
+ *    derived from this software without prior written permission. For written
+ *    permission, please contact Greg Luck (gregluck at users.sourceforge.net).
+ *
+ * 5. Products derived from this software may not be called "EHCache"
+ *    nor may "EHCache" appear in their names without prior written
+ *    permission of Greg Luck.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED.  IN NO EVENT SHALL GREG LUCK OR OTHER
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ * USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ * OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by contributors
+ * individuals on behalf of the EHCache project.  For more
+ * information on EHCache, please see <http://ehcache.sourceforge.net/>.
+ *
+ */
+
+
+
+
+package net.sf.ehcache.store;
+
+import net.sf.ehcache.CacheException;
+import net.sf.ehcache.Element;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * The store a cache overflows to, on disk. {@link DiskStore} keeps its elements in blocks of a data file that it
+ * reuses; {@link LogStore} appends them to a log.
+ */
+public interface OverflowStore extends Store {
+
+    /**
+     * Is given the keys of a store one at a time by {@link OverflowStore#visitKeys}.
+     */
+    interface KeyVisitor {
+
+        /** Called once for each key in the store. */
+        void visit(Serializable key);
+    }
+
+    /** Gets an item from the store, without updating statistics. */
+    Element getQuiet(Serializable key) throws IOException;
+
+    /**
+     * Gets a batch of items from the store, without updating statistics.
+     *
+     * @return a Map of key to {@link Element}, for the keys that were found
+     */
+    Map getAll(Collection keys) throws IOException;
+
+    /** Puts a batch of items into the store. */
+    void putAll(Collection elements) throws IOException;
+
+    /**
+     * Puts an item that has already been encoded, by {@link Element#encode} with the codecs of the cache, into the
+     * store.
+     */
+    void putEncoded(Serializable key, byte[] record) throws IOException;
+
+    /**
+     * Puts a batch of encoded items into the store.
+     *
+     * @param records a Map of key to encoded item
+     */
+    void putAllEncoded(Map records) throws IOException;
+
+    /**
+     * Removes a batch of items from the store.
+     *
+     * @return the number of items removed
+     * @throws IOException if the removals could not be written to disk
+     */
+    int removeAll(Collection keys) throws IOException;
+
+    /** Prepares for shutdown. Problems are logged rather than thrown. */
+    void dispose();
+
+    /**
+     * Writes the items waiting to be written now, on the calling thread.
+     *
+     * @throws IOException if they, or any items written in the background since the last flush, could not be
+     *                     written
+     */
+    void flush() throws IOException, CacheException;
+
+    /** @return an Object[] of the {@link Serializable} keys of all the items in the store */
+    Object[] getKeyArray();
+
+    /**
+     * Gives the keys of all the items in the store to a visitor, one at a time, without collecting them first.
+     * The visitor must not modify the store.
+     */
+    void visitKeys(KeyVisitor visitor);
+
+    /** @return false if the item is certainly not in the store */
+    boolean mightContain(Serializable key);
+
+    /** @return the size of the records written before compression divided by their size after */
+    double getCompressionRatio();
+
+    /**
+     * Stores the contents of a stream under a key, replacing any stream stored under it.
+     *
+     * @return the number of bytes stored
+     */
+    long putStream(Serializable key, InputStream in) throws IOException, CacheException;
+
+    /** @return the stream stored under a key, or null if there is none */
+    InputStream openStream(Serializable key) throws CacheException;
+
+    /** @return part of the stream stored under a key, or null if there is none */
+    byte[] getRange(Serializable key, long offset, int length) throws IOException, CacheException;
+
+    /** @return the length of the stream stored under a key, or -1 if there is none */
+    long getStreamLength(Serializable key) throws CacheException;
+
+    /** @return true if there was a stream under the key */
+    boolean removeStream(Serializable key) throws CacheException;
+}
@@ -0,0 +1,157 @@
+/* ====================================================================
+ * The Apache Software License, Version 1.1
+ *
+ * Copyright (c) 2003 - 2004 Greg Luck.  All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ * 3. The end-user documentation included with the redistribution, if
+ *    any, must include the following acknowlegement:
+ *       "This product includes software developed by Greg Luck
+ *       (http://sourceforge.net/users/gregluck) and contributors.
+ *       See http://sourceforge.net/project/memberlist.php?group_id=93232
+ *       for a list of contributors"
+ *    Alternately, this acknowledgement may appear in the software itself,
+ *    if and wherever such third-party acknowlegements normally appear.
+ *
+ * 4. The names "EHCache" must not be used to endorse or promote products
+ *    derived from this software without prior written permission. For written
+ *    permission, please contact Greg Luck (gregluck at users.sourceforge.net).
+ *
+ * 5. Products derived from this software may not be called "EHCache"
+ *    nor may "EHCache" appear in their names without prior written
+ *    permission of Greg Luck.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED.  IN NO EVENT SHALL GREG LUCK OR OTHER
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ * USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ * OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by contributors
+ * individuals on behalf of the EHCache project.  For more
+ * information on EHCache, please see <http://ehcache.sourceforge.net/>.
+ *
+ */
+
+
+
+
+package net.sf.ehcache.store;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A read-only channel on a file, for positional reads, which do not move a file pointer and so may run in parallel
+ * with each other and with writes through another handle.
+ * <p/>
+ * Interrupting a thread reading from a channel closes the channel for every reader. The channel is then reopened,
+ * and the interrupted read finished regardless, as a read from a {@link RandomAccessFile} would be; the thread is
+ * interrupted again afterwards.
+ */
+final class ReadChannel {
+
+    private final File file;
+
+    /**
+     * Guards replacing and closing the channel.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private volatile FileChannel channel;
+    private boolean closed;
+
+    /**
+     * Opens a channel on a file, which must exist.
+     */
+    ReadChannel(final File file) throws IOException {
+        this.file = file;
+        channel = new RandomAccessFile(file, "r").getChannel();
+    }
+
+    /**
+     * Reads bytes from the file.
+     *
+     * @throws EOFException if the file ends first
+     */
+    void read(final long position, final byte[] bytes, final int offset, final int length) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.wrap(bytes, offset, length);
+        boolean interrupted = false;
+        try {
+            while (buffer.hasRemaining()) {
+                final FileChannel current = channel;
+                try {
+                    if (current.read(buffer, position + buffer.position() - offset) < 0) {
+                        throw new EOFException();
+                    }
+                } catch (ClosedByInterruptException e) {
+                    interrupted = Thread.interrupted() || interrupted;
+                    reopen(current);
+                } catch (AsynchronousCloseException e) {
+                    // Another reader was interrupted
+                    reopen(current);
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Replaces the channel after it was closed by an interrupted reader, unless it has been replaced already.
+     */
+    private void reopen(final FileChannel closedChannel) throws IOException {
+        lock.lock();
+        try {
+            if (closed) {
+                throw new IOException(file + " has been closed");
+            }
+            if (channel == closedChannel) {
+                channel = new RandomAccessFile(file, "r").getChannel();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Closes the channel. Reads that follow fail.
+     */
+    void close() throws IOException {
+        lock.lock();
+        try {
+            closed = true;
+            channel.close();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,183 @@
+/* ====================================================================
+ * The Apache Software License, Version 1.1
+ *
+ * Copyright (c) 2003 - 2004 Greg Luck.  All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ * 3. The end-user documentation included with the redistribution, if
+ *    any, must include the following acknowlegement:
+ *       "This product includes software developed by Greg Luck
+ *       (http://sourceforge.net/users/gregluck) and contributors.
+ *       See http://sourceforge.net/project/memberlist.php?group_id=93232
+ *       for a list of contributors"
+ *    Alternately, this acknowledgement may appear in the software itself,
+ *    if and wherever such third-party acknowlegements normally appear.
+ *
+ * 4. The names "EHCache" must not be used to endorse or promote products
+ *    derived from this software without prior written permission. For written
+ *    permission, please contact Greg Luck (gregluck at users.sourceforge.net).
+ *
+ * 5. Products derived from this software may not be called "EHCache"
+ *    nor may "EHCache" appear in their names without prior written
+ *    permission of Greg Luck.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED.  IN NO EVENT SHALL GREG LUCK OR OTHER
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ * USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ * OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by contributors
+ * individuals on behalf of the EHCache project.  For more
+ * information on EHCache, please see <http://ehcache.sourceforge.net/>.
+ *
+ */
+
+
+
+
+package net.sf.ehcache.store;
+
+import net.sf.ehcache.Element;
+import net.sf.ehcache.codec.Compressor;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compresses the records of a store, written by {@link Element#encode}, and keeps the compression ratio.
+ * <p/>
+ * A compressed record keeps the header of the record, with its format changed to
+ * {@link Element#COMPRESSED_RECORD_FORMAT}, so that its timestamps can be read without decompressing it. The length
+ * of the key and value follows, then the key and value compressed.
+ */
+final class RecordCompression {
+
+    /**
+     * Records with fewer bytes of key and value are not compressed, as they would hardly shrink.
+     */
+    private static final int MIN_COMPRESSED_LENGTH = 64;
+
+    /**
+     * After this many records in a row that compression did not pay for, only one record in this many is
+     * compressed, until one pays again.
+     */
+    private static final int COMPRESSION_BACKOFF = 32;
+
+    private final String name;
+    private final Compressor compressor;
+
+    /**
+     * The size of the records compressed, before and after compression. Records that were not compressed count
+     * at their full size.
+     */
+    private final AtomicLong encodedBytes = new AtomicLong();
+    private final AtomicLong storedBytes = new AtomicLong();
+
+    /**
+     * The number of records in a row that compression did not pay for.
+     */
+    private final AtomicInteger uncompressedRecords = new AtomicInteger();
+
+    /**
+     * @param name       the name of the cache, for messages
+     * @param compressor the compressor, or null to store records as they are
+     */
+    RecordCompression(final String name, final Compressor compressor) {
+        this.name = name;
+        this.compressor = compressor;
+    }
+
+    /**
+     * Compresses the key and value of a record, if there is a compressor and the compressed form is at least an
+     * eighth smaller.
+     * <p/>
+     * Records that do not compress well are common in some caches, so after {@link #COMPRESSION_BACKOFF} of them in
+     * a row only a sample of the records are tried.
+     *
+     * @return the compressed record, or the record itself
+     */
+    byte[] compress(final byte[] record) throws IOException {
+        final int header = Element.RECORD_HEADER_SIZE;
+        final int length = record.length - header;
+        if (compressor == null) {
+            return record;
+        }
+        final int uncompressed = uncompressedRecords.get();
+        if (length >= MIN_COMPRESSED_LENGTH
+                && (uncompressed < COMPRESSION_BACKOFF || uncompressed % COMPRESSION_BACKOFF == 0)) {
+            final byte[] compressed = compressor.compress(record, header, length);
+            if (compressed.length + 4 <= length - length / 8) {
+                final byte[] result = new byte[header + 4 + compressed.length];
+                System.arraycopy(record, 0, result, 0, header);
+                result[0] = Element.COMPRESSED_RECORD_FORMAT;
+                result[header] = (byte) (length >>> 24);
+                result[header + 1] = (byte) (length >>> 16);
+                result[header + 2] = (byte) (length >>> 8);
+                result[header + 3] = (byte) length;
+                System.arraycopy(compressed, 0, result, header + 4, compressed.length);
+                uncompressedRecords.set(0);
+                encodedBytes.addAndGet(record.length);
+                storedBytes.addAndGet(result.length);
+                return result;
+            }
+        }
+        uncompressedRecords.incrementAndGet();
+        encodedBytes.addAndGet(record.length);
+        storedBytes.addAndGet(record.length);
+        return record;
+    }
+
+    /**
+     * Decompresses a record, if it was compressed.
+     *
+     * @return the record as {@link Element#encode} wrote it
+     */
+    byte[] decompress(final byte[] record) throws IOException {
+        if (record[0] != Element.COMPRESSED_RECORD_FORMAT) {
+            return record;
+        }
+        if (compressor == null) {
+            throw new IOException("Compressed record found, but the " + name + " cache has no compressor");
+        }
+        final int header = Element.RECORD_HEADER_SIZE;
+        final int length = ((record[header] & 0xFF) << 24) | ((record[header + 1] & 0xFF) << 16)
+                | ((record[header + 2] & 0xFF) << 8) | (record[header + 3] & 0xFF);
+        final byte[] buffer = new byte[header + length];
+        System.arraycopy(record, 0, buffer, 0, header);
+        buffer[0] = Element.RECORD_FORMAT;
+        compressor.decompress(record, header + 4, record.length - header - 4, buffer, header, length);
+        return buffer;
+    }
+
+    /**
+     * Gets the compression ratio of the records compressed so far: their size before compression divided by their
+     * size after.
+     *
+     * @return the ratio, 1 if no records have been compressed or there is no compressor
+     */
+    double getRatio() {
+        final long stored = storedBytes.get();
+        return stored == 0 ? 1 : (double) encodedBytes.get() / stored;
+    }
+}
@@ -0,0 +1,229 @@
+/* ====================================================================
+ * The Apache Software License, Version 1.1
+ *
+ * Copyright (c) 2003 - 2004 Greg Luck.  All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ * 3. The end-user documentation included with the redistribution, if
+ *    any, must include the following acknowlegement:
+ *       "This product includes software developed by Greg Luck
+ *       (http://sourceforge.net/users/gregluck) and contributors.
+ *       See http://sourceforge.net/project/memberlist.php?group_id=93232
+ *       for a list of contributors"
+ *    Alternately, this acknowledgement may appear in the software itself,
+ *    if and wherever such third-party acknowlegements normally appear.
+ *
+ * 4. The names "EHCache" must not be used to endorse or promote products
+ *    derived from this software without prior written permission. For written
+ *    permission, please contact Greg Luck (gregluck at users.sourceforge.net).
+ *
+ * 5. Products derived from this software may not be called "EHCache"
+ *    nor may "EHCache" appear in their names without prior written
+ *    permission of Greg Luck.
+ *
+ * THIS SOFTWARE IS PROVIDED ``AS IS'' AND ANY EXPRESSED OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED.  IN NO EVENT SHALL GREG LUCK OR OTHER
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF
+ * USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT
+ * OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF
+ * SUCH DAMAGE.
+ * ====================================================================
+ *
+ * This software consists of voluntary contributions made by contributors
+ * individuals on behalf of the EHCache project.  For more
+ * information on EHCache, please see <http://ehcache.sourceforge.net/>.
+ *
+ */
+
+
+
+
+package net.sf.ehcache.store;
+
+import java.io.IOException;
+import java.util.zip.CRC32;
+
+/**
+ * The header with which a persistent {@link DiskStore} writes each element to its data file, so that the elements
+ * can be found again by scanning the file if the index was not saved.
+ * <p/>
+ * The header is the {@link #MAGIC} number, a state byte, the length of the record that follows, the sequence number
+ * of the write, and a CRC32 checksum of the length, the sequence number and the record. The state is {@link #LIVE}
+ * when the record is written, and set to {@link #FREE} when its block is freed, so that a scan does not bring back
+ * elements that were removed. When a key was written more than once, the record with the highest sequence number is
+ * the latest.
+ * <p/>
+ * The magic number starts with a byte that neither records written by {@link net.sf.ehcache.Element#write} nor Java
+ * serialization streams start with, so records written without a header by earlier versions are still told apart.
+ */
+final class RecordHeader {
+
+    /**
+     * The first four bytes of a header: "DSR1".
+     */
+    static final int MAGIC = 0x44535231;
+
+    /**
+     * The size of a header.
+     */
+    static final int SIZE = 21;
+
+    /**
+     * The offset of the state byte in a header.
+     */
+    static final int STATE_OFFSET = 4;
+
+    /**
+     * The state of a record in use.
+     */
+    static final byte LIVE = 1;
+
+    /**
+     * The state of a record whose block has been freed.
+     */
+    static final byte FREE = 0;
+
+    private static final int LENGTH_OFFSET = 5;
+    private static final int SEQUENCE_OFFSET = 9;
+    private static final int CHECKSUM_OFFSET = 17;
+
+    private RecordHeader() {
+        // Utility class
+    }
+
+    /**
+     * Prefixes a record with a {@link #LIVE} header.
+     *
+     * @return the header followed by the record
+     */
+    static byte[] frame(final long sequence, final byte[] record) {
+        final byte[] block = new byte[SIZE + record.length];
+        writeInt(block, 0, MAGIC);
+        block[STATE_OFFSET] = LIVE;
+        writeInt(block, LENGTH_OFFSET, record.length);
+        writeLong(block, SEQUENCE_OFFSET, sequence);
+        System.arraycopy(record, 0, block, SIZE, record.length);
+        writeInt(block, CHECKSUM_OFFSET, checksum(block, 0, block, SIZE, record.length));
+        return block;
+    }
+
+    /**
+     * Gives a framed block the sequence number of a new write, as when its record is moved, and updates its
+     * checksum.
+     */
+    static void setSequence(final byte[] block, final long sequence) {
+        writeLong(block, SEQUENCE_OFFSET, sequence);
+        writeInt(block, CHECKSUM_OFFSET, checksum(block, 0, block, SIZE, getLength(block, 0)));
+    }
+
+    /**
+     * Tells whether a block read from the data file starts with a header.
+     */
+    static boolean isFramed(final byte[] block) {
+        return block.length >= SIZE && readInt(block, 0) == MAGIC;
+    }
+
+    /**
+     * Checks the header of a block read from the data file, and strips it.
+     *
+     * @return the record
+     * @throws IOException if the length or checksum in the header do not match the record
+     */
+    static byte[] unframe(final byte[] block) throws IOException {
+        final int length = readInt(block, LENGTH_OFFSET);
+        if (length != block.length - SIZE || !checksumMatches(block, 0, block, SIZE)) {
+            throw new IOException("Corrupt record in the data file: the checksum does not match");
+        }
+        final byte[] record = new byte[length];
+        System.arraycopy(block, SIZE, record, 0, length);
+        return record;
+    }
+
+    /**
+     * Tells whether a header starts at an offset in a buffer. The checksum is not checked.
+     */
+    static boolean isHeader(final byte[] buffer, final int offset) {
+        final byte state = buffer[offset + STATE_OFFSET];
+        return readInt(buffer, offset) == MAGIC && (state == LIVE || state == FREE)
+                && readInt(buffer, offset + LENGTH_OFFSET) >= 0;
+    }
+
+    static byte getState(final byte[] buffer, final int offset) {
+        return buffer[offset + STATE_OFFSET];
+    }
+
+    static int getLength(final byte[] buffer, final int offset) {
+        return readInt(buffer, offset + LENGTH_OFFSET);
+    }
+
+    static long getSequence(final byte[] buffer, final int offset) {
+        return readLong(buffer, offset + SEQUENCE_OFFSET);
+    }
+
+    static int getChecksum(final byte[] buffer, final int offset) {
+        return readInt(buffer, offset + CHECKSUM_OFFSET);
+    }
+
+    /**
+     * Tells whether the checksum in a header matches the record that follows it.
+     */
+    static boolean checksumMatches(final byte[] header, final int headerOffset, final byte[] record,
+            final int recordOffset) {
+        return getChecksum(header, headerOffset)
+                == checksum(header, headerOffset, record, recordOffset, getLength(header, headerOffset));
+    }
+
+    /**
+     * Starts the checksum of a record, with the fields of its header that it covers. The record is added to it.
+     */
+    static CRC32 startChecksum(final byte[] header, final int headerOffset) {
+        final CRC32 crc = new CRC32();
+        crc.update(header, headerOffset + LENGTH_OFFSET, CHECKSUM_OFFSET - LENGTH_OFFSET);
+        return crc;
+    }
+
+    private static int checksum(final byte[] header, final int headerOffset, final byte[] record,
+            final int recordOffset, final int length) {
+        final CRC32 crc = startChecksum(header, headerOffset);
+        crc.update(record, recordOffset, length);
+        return (int) crc.getValue();
+    }
+
+    private static int readInt(final byte[] bytes, final int offset) {
+        return ((bytes[offset] & 0xFF) << 24) | ((bytes[offset + 1] & 0xFF) << 16)
+                | ((bytes[offset + 2] & 0xFF) << 8) | (bytes[offset + 3] & 0xFF);
+    }
+
+    private static long readLong(final byte[] bytes, final int offset) {
+        return ((long) readInt(bytes, offset) << 32) | (readInt(bytes, offset + 4) & 0xFFFFFFFFL);
+    }
+
+    private static void writeInt(final byte[] bytes, final int offset, final int value) {
+        bytes[offset] = (byte) (value >>> 24);
+        bytes[offset + 1] = (byte) (value >>> 16);
+        bytes[offset + 2] = (byte) (value >>> 8);
+        bytes[offset + 3] = (byte) value;
+    }
+
+    private static void writeLong(final byte[] bytes, final int offset, final long value) {
+        writeInt(bytes, offset, (int) (value >>> 32));
+        writeInt(bytes, offset + 4, (int) value);
+    }
+}